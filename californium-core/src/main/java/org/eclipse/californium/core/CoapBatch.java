@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.BatchEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+
+/**
+ * A CoapBatch sends many requests, e.g., to poll many devices, and is the
+ * future of all their responses. The batch hands the first requests of all
+ * peers to the endpoint as one task of its protocol stage. At most NSTART
+ * requests of the batch are outstanding per peer; when one completes, the
+ * batch sends the next request to this peer.
+ * <p>
+ * Each request has its own {@link CoapFuture}. The batch completes when all
+ * of them have completed. A failed request has a null response.
+ */
+public class CoapBatch implements Future<List<CoapResponse>> {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(CoapBatch.class.getCanonicalName());
+
+	/**
+	 * A handler that is invoked when all requests of a batch have completed.
+	 */
+	public interface Handler {
+
+		/**
+		 * Invoked when all requests of the batch have completed.
+		 *
+		 * @param batch the batch
+		 */
+		public void onComplete(CoapBatch batch);
+	}
+
+	private final Endpoint endpoint;
+	private final List<CoapFuture> futures;
+	private final Map<InetSocketAddress, Peer> peers = new HashMap<InetSocketAddress, Peer>();
+	private final int nstart;
+
+	private final AtomicInteger remaining;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile boolean canceled;
+
+	/** The handlers to invoke on completion; guarded by this */
+	private List<Handler> handlers;
+
+	/**
+	 * Creates a batch for the specified requests. The requests must have a
+	 * destination and must not have been sent yet.
+	 *
+	 * @param endpoint the endpoint to send the requests over
+	 * @param requests the requests
+	 * @param nstart the maximum number of outstanding requests per peer
+	 */
+	public CoapBatch(Endpoint endpoint, List<Request> requests, int nstart) {
+		if (nstart <= 0)
+			throw new IllegalArgumentException("NSTART must be positive but is " + nstart);
+		this.endpoint = endpoint;
+		this.nstart = nstart;
+		this.remaining = new AtomicInteger(requests.size());
+		List<CoapFuture> futures = new ArrayList<CoapFuture>(requests.size());
+		for (Request request:requests) {
+			if (request.getDestination() == null)
+				throw new IllegalArgumentException("Request has no destination address: " + request);
+			InetSocketAddress address = new InetSocketAddress(request.getDestination(), request.getDestinationPort());
+			Peer peer = peers.get(address);
+			if (peer == null) {
+				peer = new Peer();
+				peers.put(address, peer);
+			}
+			CoapFuture future = new CoapFuture(request);
+			Entry entry = new Entry(peer, future);
+			peer.pending.add(entry);
+			future.addHandler(entry);
+			futures.add(future);
+		}
+		this.futures = Collections.unmodifiableList(futures);
+	}
+
+	/**
+	 * Sends the first requests to each peer in one task of the endpoint if
+	 * it is a {@link BatchEndpoint} and one by one otherwise.
+	 *
+	 * @return this batch
+	 */
+	public CoapBatch start() {
+		List<Request> first = new ArrayList<Request>();
+		for (Peer peer:peers.values()) {
+			synchronized (peer) {
+				Entry entry;
+				while (peer.outstanding < nstart && (entry = peer.next()) != null)
+					first.add(entry.future.getRequest());
+			}
+		}
+		if (endpoint instanceof BatchEndpoint) {
+			if (!first.isEmpty())
+				((BatchEndpoint) endpoint).sendRequests(first);
+		} else {
+			for (Request request:first)
+				endpoint.sendRequest(request);
+		}
+		if (futures.isEmpty())
+			complete();
+		return this;
+	}
+
+	/**
+	 * Gets the futures of the requests in the order of the requests.
+	 *
+	 * @return the futures
+	 */
+	public List<CoapFuture> getFutures() {
+		return futures;
+	}
+
+	/**
+	 * Adds a handler that is invoked when all requests have completed. If the
+	 * batch has already completed, the handler is invoked immediately on the
+	 * calling thread. Otherwise, it runs on the thread that completes the last
+	 * request and must not block.
+	 *
+	 * @param handler the handler
+	 * @return this batch
+	 */
+	public CoapBatch addHandler(Handler handler) {
+		synchronized (this) {
+			if (!isDone()) {
+				if (handlers == null)
+					handlers = new ArrayList<Handler>(2);
+				handlers.add(handler);
+				return this;
+			}
+		}
+		invoke(handler);
+		return this;
+	}
+
+	/**
+	 * Cancels all requests that have not completed yet, including the ones
+	 * that wait for NSTART.
+	 *
+	 * @param mayInterruptIfRunning ignored since no thread runs the requests
+	 * @return true if at least one request has been canceled
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		canceled = true;
+		boolean result = false;
+		for (CoapFuture future:futures)
+			result |= future.cancel(mayInterruptIfRunning);
+		return result;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return canceled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits until all requests have completed.
+	 *
+	 * @return the responses in the order of the requests; null for a failed
+	 *         or canceled request
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	@Override
+	public List<CoapResponse> get() throws InterruptedException {
+		done.await();
+		return getResponses();
+	}
+
+	/**
+	 * Waits at most the specified time until all requests have completed.
+	 *
+	 * @return the responses in the order of the requests; null for a failed
+	 *         or canceled request
+	 * @throws InterruptedException if the thread is interrupted
+	 * @throws TimeoutException if the batch has not completed in time
+	 */
+	@Override
+	public List<CoapResponse> get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		if (!done.await(timeout, unit))
+			throw new TimeoutException(remaining.get() + " of " + futures.size() + " requests have not completed within " + unit.toMillis(timeout) + " ms");
+		return getResponses();
+	}
+
+	private List<CoapResponse> getResponses() throws InterruptedException {
+		List<CoapResponse> responses = new ArrayList<CoapResponse>(futures.size());
+		for (CoapFuture future:futures)
+			responses.add(future.waitForResponse());
+		return responses;
+	}
+
+	/*
+	 * Sends the next request to the peer of the completed entry.
+	 */
+	private void completed(Entry entry) {
+		Entry next = null;
+		Peer peer = entry.peer;
+		synchronized (peer) {
+			if (entry.sent) {
+				peer.outstanding--;
+				if (!canceled)
+					next = peer.next();
+			}
+		}
+		if (next != null)
+			endpoint.sendRequest(next.future.getRequest());
+		if (remaining.decrementAndGet() == 0)
+			complete();
+	}
+
+	private void complete() {
+		List<Handler> handlers;
+		synchronized (this) {
+			done.countDown();
+			handlers = this.handlers;
+			this.handlers = null;
+		}
+		if (handlers != null)
+			for (Handler handler:handlers)
+				invoke(handler);
+	}
+
+	private void invoke(Handler handler) {
+		try {
+			handler.onComplete(this);
+		} catch (Throwable t) {
+			LOGGER.log(Level.WARNING, "Exception while completing batch", t);
+		}
+	}
+
+	/**
+	 * The requests of the batch to one peer.
+	 */
+	private static final class Peer {
+
+		private final LinkedList<Entry> pending = new LinkedList<Entry>();
+		private int outstanding;
+
+		/*
+		 * Takes the next request that has not been canceled in the meantime.
+		 * Must be called while holding the lock of this peer.
+		 */
+		private Entry next() {
+			Entry entry;
+			while ((entry = pending.poll()) != null) {
+				if (!entry.future.isDone()) {
+					entry.sent = true;
+					outstanding++;
+					return entry;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A request of the batch.
+	 */
+	private final class Entry implements CoapHandler {
+
+		private final Peer peer;
+		private final CoapFuture future;
+
+		/** True when handed to the endpoint; guarded by the peer */
+		private boolean sent;
+
+		private Entry(Peer peer, CoapFuture future) {
+			this.peer = peer;
+			this.future = future;
+		}
+
+		@Override
+		public void onLoad(CoapResponse response) {
+			completed(this);
+		}
+
+		@Override
+		public void onError() {
+			completed(this);
+		}
+	}
+}
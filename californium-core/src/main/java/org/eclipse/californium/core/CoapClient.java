@@ -21,8 +21,12 @@ package org.eclipse.californium.core;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -181,6 +185,19 @@ public class CoapClient {
 		return this;
 	}
 
+	/*
+	 * Gets the executor for handlers: the client-specific executor or, if the
+	 * standard configuration enables elastic handler execution, the shared
+	 * elastic executor. Returns null if the protocol stage invokes handlers.
+	 */
+	private Executor getHandlerExecutor() {
+		Executor executor = this.executor;
+		if (executor != null)
+			return executor;
+		Endpoint endpoint = this.endpoint;
+		return ElasticExecutor.getShared(endpoint != null ? endpoint.getConfig() : NetworkConfig.getStandard());
+	}
+
 	/**
 	 * Gets the endpoint this client uses.
 	 *
@@ -720,6 +737,158 @@ public class CoapClient {
 		return observe(accept(request, accept), handler);
 	}
 	
+	// Futures
+	
+	/**
+	 * Sends a GET request and returns the future of the response. The future
+	 * completes with null if there is no response within the timeout of this
+	 * client.
+	 * 
+	 * @return the future of the response
+	 */
+	public CoapFuture getAsync() {
+		return future(Request.newGet().setURI(uri));
+	}
+	
+	/**
+	 * Sends a GET request with the specified Accept option and returns the
+	 * future of the response.
+	 * 
+	 * @param accept the Accept option
+	 * @return the future of the response
+	 */
+	public CoapFuture getAsync(int accept) {
+		return future(accept(Request.newGet().setURI(uri), accept));
+	}
+	
+	/**
+	 * Sends a POST request with the specified payload and Content-Format and
+	 * returns the future of the response.
+	 * 
+	 * @param payload the payload
+	 * @param format the Content-Format
+	 * @return the future of the response
+	 */
+	public CoapFuture postAsync(String payload, int format) {
+		return future(format(Request.newPost().setURI(uri).setPayload(payload), format));
+	}
+	
+	/**
+	 * Sends a POST request with the specified payload and Content-Format and
+	 * returns the future of the response.
+	 * 
+	 * @param payload the payload
+	 * @param format the Content-Format
+	 * @return the future of the response
+	 */
+	public CoapFuture postAsync(byte[] payload, int format) {
+		return future(format(Request.newPost().setURI(uri).setPayload(payload), format));
+	}
+	
+	/**
+	 * Sends a PUT request with the specified payload and Content-Format and
+	 * returns the future of the response.
+	 * 
+	 * @param payload the payload
+	 * @param format the Content-Format
+	 * @return the future of the response
+	 */
+	public CoapFuture putAsync(String payload, int format) {
+		return future(format(Request.newPut().setURI(uri).setPayload(payload), format));
+	}
+	
+	/**
+	 * Sends a PUT request with the specified payload and Content-Format and
+	 * returns the future of the response.
+	 * 
+	 * @param payload the payload
+	 * @param format the Content-Format
+	 * @return the future of the response
+	 */
+	public CoapFuture putAsync(byte[] payload, int format) {
+		return future(format(Request.newPut().setURI(uri).setPayload(payload), format));
+	}
+	
+	/**
+	 * Sends a DELETE request and returns the future of the response.
+	 * 
+	 * @return the future of the response
+	 */
+	public CoapFuture deleteAsync() {
+		return future(Request.newDelete().setURI(uri));
+	}
+	
+	/**
+	 * Sends an advanced request that has to be configured by the developer
+	 * and returns the future of the response.
+	 * 
+	 * @param request the custom request
+	 * @return the future of the response
+	 */
+	public CoapFuture advancedAsync(Request request) {
+		request.setURI(uri);
+		return future(request);
+	}
+	
+	/**
+	 * Sends an observe request and returns the future of the first
+	 * notification. The specified handler is invoked each time a notification
+	 * arrives. Cancelling the future cancels the relation, also after the
+	 * first notification; {@link CoapFuture#getRelation()} gives access to
+	 * the relation.
+	 * 
+	 * @param handler the Response handler
+	 * @return the future of the first notification
+	 */
+	public CoapFuture observeAsync(CoapHandler handler) {
+		Request request = Request.newGet().setURI(uri).setObserve();
+		Endpoint outEndpoint = getEffectiveEndpoint(request);
+		CoapObserveRelation relation = new CoapObserveRelation(request, outEndpoint);
+		request.addMessageObserver(new ObserveMessageObserverImpl(handler, relation));
+		return send(new CoapFuture(request, relation), outEndpoint);
+	}
+	
+	// Batches
+	
+	/**
+	 * Sends the specified requests as a batch and returns the future of all
+	 * responses. Requests without a destination are sent to the URI of this
+	 * client. The batch sends all requests over one endpoint, i.e., the
+	 * endpoint of this client or the default endpoint for the scheme of the
+	 * first request, and keeps at most NSTART requests outstanding per peer.
+	 * 
+	 * @param requests the requests
+	 * @return the future of the responses
+	 */
+	public CoapBatch sendAll(Collection<Request> requests) {
+		List<Request> batch = new ArrayList<Request>(requests.size());
+		for (Request request:requests) {
+			if (request.getDestination() == null)
+				request.setURI(uri);
+			batch.add(prepare(request));
+			if (getTimeout() > 0)
+				request.setResponseTimeout(getTimeout());
+		}
+		Endpoint outEndpoint = batch.isEmpty() ? getEndpoint() : getEffectiveEndpoint(batch.get(0));
+		int nstart = outEndpoint != null ? outEndpoint.getConfig().getInt(NetworkConfig.Keys.NSTART) : 1;
+		return new CoapBatch(outEndpoint, batch, nstart).start();
+	}
+	
+	/**
+	 * Sends a GET request for each of the specified paths on the host of this
+	 * client as a batch and returns the future of all responses.
+	 * 
+	 * @param paths the paths relative to the URI of this client
+	 * @return the future of the responses
+	 */
+	public CoapBatch getAll(String... paths) {
+		List<Request> requests = new ArrayList<Request>(paths.length);
+		URI base = URI.create(uri);
+		for (String path:paths)
+			requests.add(Request.newGet().setURI(base.resolve(path)));
+		return sendAll(requests);
+	}
+	
 	/**
 	 * Stops the client-specific executor service to cleanly exit programs.
 	 * Only needed if {@link #useExecutor()} or {@link #setExecutor(ExecutorService)}
@@ -743,6 +912,32 @@ public class CoapClient {
 		send(request);
 	}
 	
+	/*
+	 * Sends the specified request and returns the future of the response. The
+	 * stack times out the request, so that no thread waits for it.
+	 *
+	 * @param request the request
+	 * @return the future of the response
+	 */
+	private CoapFuture future(Request request) {
+		return send(new CoapFuture(request), getEffectiveEndpoint(request));
+	}
+	
+	/*
+	 * Sends the request of the specified future over the specified endpoint.
+	 *
+	 * @param future the future of the response
+	 * @param outEndpoint the endpoint
+	 * @return the future
+	 */
+	private CoapFuture send(CoapFuture future, Endpoint outEndpoint) {
+		Request request = future.getRequest();
+		if (getTimeout() > 0)
+			request.setResponseTimeout(getTimeout());
+		send(request, outEndpoint);
+		return future;
+	}
+	
 	/*
 	 * Synchronously sends the specified request.
 	 *
@@ -888,14 +1083,24 @@ public class CoapClient {
 	 * @return the request
 	 */
 	protected Request send(Request request, Endpoint outEndpoint) {
+		outEndpoint.sendRequest(prepare(request));
+		return request;
+	}
+	
+	/*
+	 * Applies the message type and block size of this client to the
+	 * specified request.
+	 *
+	 * @param request the request
+	 * @return the request
+	 */
+	private Request prepare(Request request) {
 		// use the specified message type
 		request.setType(this.type);
 
 		if (blockwise!=0) {
 			request.getOptions().setBlock2(new BlockOption(BlockOption.size2Szx(this.blockwise), false, 0));
 		}
-		
-		outEndpoint.sendRequest(request);
 		return request;
 	}
 	
@@ -960,6 +1165,11 @@ public class CoapClient {
 		 */
 		@Override public void onTimeout() { failed(); }
 		
+		/* (non-Javadoc)
+		 * @see org.eclipse.californium.core.coap.MessageObserverAdapter#onOverload()
+		 */
+		@Override public void onOverload() { failed(); }
+		
 		/**
 		 * Invoked when a response arrives (even if the response code is not
 		 * successful, the response still was successfully transmitted).
@@ -967,6 +1177,7 @@ public class CoapClient {
 		 * @param response the response
 		 */
 		protected void succeeded(final CoapResponse response) {
+			Executor executor = getHandlerExecutor();
 			// use thread from the protocol stage
 			if (executor == null) deliver(response);
 			// use thread from the client executer
@@ -996,6 +1207,7 @@ public class CoapClient {
 		 * Invokes the handler's method failed() on the executor.
 		 */
 		protected void failed() {
+			Executor executor = getHandlerExecutor();
 			// use thread from the protocol stage
 			if (executor == null) handler.onError();
 			// use thread from the client executer
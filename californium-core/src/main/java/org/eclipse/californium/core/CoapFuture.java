@@ -0,0 +1,327 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+/**
+ * A CoapFuture is the pending response of a request. The message observer
+ * of the request completes the future directly on the thread that delivers
+ * the response, i.e., without handing it off to another thread. If the
+ * request times out, is rejected, or cannot be sent, the future fails and
+ * {@link #get()} throws an {@link ExecutionException}. Use
+ * {@link #waitForResponse()} to receive a null response instead, like from
+ * the synchronous methods of the {@link CoapClient}, and
+ * {@link #getFailure()} to tell why the request has failed, e.g., to retry
+ * later when the queue for the server was full.
+ * <p>
+ * Cancelling the future cancels the request. The stack then completes the
+ * exchange, so that the endpoint forgets its token and MID. For an observe
+ * request, the future completes with the first notification. Cancelling the
+ * future cancels the relation proactively also after the first notification,
+ * and {@link #getRelation()} gives access to the relation.
+ * <p>
+ * Handlers added with {@link #addHandler(CoapHandler)} run on the thread that
+ * completes the future and must not block.
+ */
+public class CoapFuture implements Future<CoapResponse> {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(CoapFuture.class.getCanonicalName());
+
+	private static final int PENDING = 0;
+	private static final int RESPONDED = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELED = 3;
+
+	/**
+	 * The reasons why a request fails.
+	 */
+	public enum Failure {
+
+		/** The server has rejected the request */
+		REJECTED("Request has been rejected"),
+
+		/** The request has not received a response in time */
+		TIMEOUT("Request has timed out"),
+
+		/**
+		 * The request has not been sent, because too many requests to the
+		 * server are queued, e.g., when congestion control enforces NSTART
+		 */
+		OVERLOAD("Request has been dropped due to overload");
+
+		private final String description;
+
+		private Failure(String description) {
+			this.description = description;
+		}
+
+		@Override
+		public String toString() {
+			return description;
+		}
+	}
+
+	private final Request request;
+	private final CoapObserveRelation relation;
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/** The handlers to invoke on completion; guarded by this */
+	private List<CoapHandler> handlers;
+	private volatile int state = PENDING;
+	private volatile CoapResponse response;
+	private volatile Failure failure;
+
+	/**
+	 * Creates a future for the specified request. The request must not have
+	 * been sent yet.
+	 *
+	 * @param request the request
+	 */
+	public CoapFuture(Request request) {
+		this(request, null);
+	}
+
+	/**
+	 * Creates a future for the specified observe request and its relation.
+	 *
+	 * @param request the request
+	 * @param relation the relation or null if not an observe request
+	 */
+	CoapFuture(Request request, CoapObserveRelation relation) {
+		this.request = request;
+		this.relation = relation;
+		request.setCompleteOnCancel(true);
+		request.addMessageObserver(new FutureObserver());
+	}
+
+	/**
+	 * Gets the request of this future.
+	 *
+	 * @return the request
+	 */
+	public Request getRequest() {
+		return request;
+	}
+
+	/**
+	 * Gets the observe relation of this future.
+	 *
+	 * @return the relation or null if the request is not an observe request
+	 */
+	public CoapObserveRelation getRelation() {
+		return relation;
+	}
+
+	/**
+	 * Adds a handler that is invoked when this future completes. If the
+	 * future has already completed, the handler is invoked immediately on the
+	 * calling thread. A canceled future invokes {@link CoapHandler#onError()}.
+	 *
+	 * @param handler the handler
+	 * @return this future
+	 */
+	public CoapFuture addHandler(CoapHandler handler) {
+		synchronized (this) {
+			if (state == PENDING) {
+				if (handlers == null)
+					handlers = new ArrayList<CoapHandler>(2);
+				handlers.add(handler);
+				return this;
+			}
+		}
+		invoke(handler);
+		return this;
+	}
+
+	/**
+	 * Cancels the request of this future unless a response has already
+	 * arrived. The observe relation of an observe request is canceled in any
+	 * case, i.e., also after the first notification.
+	 *
+	 * @param mayInterruptIfRunning ignored since no thread runs the request
+	 * @return true if the future has been canceled
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean canceled = complete(CANCELED, null, null);
+		if (relation != null) {
+			if (!relation.isCanceled())
+				relation.proactiveCancel();
+		} else if (canceled) {
+			request.cancel();
+		}
+		return canceled;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return state == CANCELED;
+	}
+
+	@Override
+	public boolean isDone() {
+		return state != PENDING;
+	}
+
+	/**
+	 * Checks if the request has failed, i.e., timed out, was rejected, or
+	 * could not be sent.
+	 *
+	 * @return true if failed
+	 */
+	public boolean isFailed() {
+		return state == FAILED;
+	}
+
+	/**
+	 * Gets the reason why the request has failed.
+	 *
+	 * @return the reason or null if the request has not failed
+	 */
+	public Failure getFailure() {
+		return state == FAILED ? failure : null;
+	}
+
+	/**
+	 * Waits until the future completes.
+	 *
+	 * @return the response
+	 * @throws InterruptedException if the thread is interrupted
+	 * @throws CancellationException if the future has been canceled
+	 * @throws ExecutionException if the request has failed
+	 */
+	@Override
+	public CoapResponse get() throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	/**
+	 * Waits at most the specified time until the future completes.
+	 *
+	 * @return the response
+	 * @throws InterruptedException if the thread is interrupted
+	 * @throws CancellationException if the future has been canceled
+	 * @throws ExecutionException if the request has failed
+	 * @throws TimeoutException if the future has not completed in time
+	 */
+	@Override
+	public CoapResponse get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit))
+			throw new TimeoutException("No response within " + unit.toMillis(timeout) + " ms");
+		return getResult();
+	}
+
+	/**
+	 * Waits until the future completes and returns null instead of throwing
+	 * an exception if the request has failed or been canceled.
+	 *
+	 * @return the response or null if the request has failed or been canceled
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	public CoapResponse waitForResponse() throws InterruptedException {
+		done.await();
+		return response;
+	}
+
+	private CoapResponse getResult() throws ExecutionException {
+		if (state == CANCELED)
+			throw new CancellationException("Request has been canceled");
+		if (state == FAILED)
+			throw new ExecutionException(failure.toString(), null);
+		return response;
+	}
+
+	/*
+	 * Completes this future once and invokes the handlers.
+	 */
+	private boolean complete(int result, CoapResponse response, Failure failure) {
+		List<CoapHandler> handlers;
+		synchronized (this) {
+			if (state != PENDING)
+				return false;
+			this.response = response;
+			this.failure = failure;
+			this.state = result;
+			handlers = this.handlers;
+			this.handlers = null;
+		}
+		done.countDown();
+		if (handlers != null)
+			for (CoapHandler handler:handlers)
+				invoke(handler);
+		return true;
+	}
+
+	private void invoke(CoapHandler handler) {
+		try {
+			if (state == RESPONDED)
+				handler.onLoad(response);
+			else
+				handler.onError();
+		} catch (Throwable t) {
+			LOGGER.log(Level.WARNING, "Exception while completing future", t);
+		}
+	}
+
+	/**
+	 * Completes the future from the callbacks of the request.
+	 */
+	private class FutureObserver extends MessageObserverAdapter {
+
+		@Override
+		public void onResponse(Response response) {
+			// further notifications do not change the future
+			if (state == PENDING)
+				complete(RESPONDED, new CoapResponse(response), null);
+		}
+
+		@Override
+		public void onReject() {
+			complete(FAILED, null, Failure.REJECTED);
+		}
+
+		@Override
+		public void onTimeout() {
+			complete(FAILED, null, Failure.TIMEOUT);
+		}
+
+		@Override
+		public void onOverload() {
+			complete(FAILED, null, Failure.OVERLOAD);
+		}
+
+		@Override
+		public void onCancel() {
+			complete(CANCELED, null, null);
+		}
+	}
+}
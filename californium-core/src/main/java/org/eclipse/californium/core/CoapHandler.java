@@ -37,7 +37,9 @@ public interface CoapHandler {
 	public void onLoad(CoapResponse response);
 	
 	/**
-	 * Invoked when a request timeouts or has been rejected by the server.
+	 * Invoked when a request timeouts, has been rejected by the server, or
+	 * could not be sent. Use {@link CoapFuture#getFailure()} to tell the
+	 * reasons apart.
 	 */
 	public void onError();
 
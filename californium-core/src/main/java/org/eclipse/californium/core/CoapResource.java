@@ -37,11 +37,15 @@ import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Endpoint;
 import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.observe.NotificationFanOut;
+import org.eclipse.californium.core.observe.NotificationPolicy;
 import org.eclipse.californium.core.observe.ObserveNotificationOrderer;
 import org.eclipse.californium.core.observe.ObserveRelation;
 import org.eclipse.californium.core.observe.ObserveRelationContainer;
 import org.eclipse.californium.core.server.ServerMessageDeliverer;
+import org.eclipse.californium.core.server.resources.ChildIndex;
 import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.RepresentationCache;
 import org.eclipse.californium.core.server.resources.Resource;
 import org.eclipse.californium.core.server.resources.ResourceAttributes;
 import org.eclipse.californium.core.server.resources.ResourceObserver;
@@ -145,6 +149,15 @@ public  class CoapResource implements Resource {
 	 */
 	private ConcurrentHashMap<String, Resource> children;
 	
+	/* The index of the children by their encoded names (rebuilt when null) */
+	private volatile ChildIndex childIndex = ChildIndex.EMPTY;
+	
+	/* Indicates whether a subclass resolves children on its own */
+	private final boolean customChildLookup;
+	
+	/* Whether a resource class overrides getChild(String) */
+	private static final ConcurrentHashMap<Class<?>, Boolean> CUSTOM_CHILD_LOOKUP = new ConcurrentHashMap<Class<?>, Boolean>();
+	
 	/* The parent of this resource. */
 	private Resource parent;
 	
@@ -160,6 +173,15 @@ public  class CoapResource implements Resource {
 	/* The notification orderer. */
 	private ObserveNotificationOrderer notificationOrderer;
 	
+	/* The fan-out for notifications (reprocess each request when null) */
+	private volatile NotificationFanOut notificationFanOut = null;
+	
+	/* The rate limits for new observe relations (configuration when null) */
+	private volatile NotificationPolicy notificationPolicy = null;
+	
+	/* The cache for large representations (handle each request when null) */
+	private volatile RepresentationCache representationCache = null;
+	
 	/**
 	 * Constructs a new resource with the specified name.
 	 *
@@ -185,6 +207,7 @@ public  class CoapResource implements Resource {
 		this.observers = new CopyOnWriteArrayList<ResourceObserver>();
 		this.observeRelations = new ObserveRelationContainer();
 		this.notificationOrderer = new ObserveNotificationOrderer();
+		this.customChildLookup = overridesGetChild(getClass());
 	}
 	
 
@@ -202,6 +225,14 @@ public  class CoapResource implements Resource {
 	@Override
 	public void handleRequest(final Exchange exchange) {
 		Code code = exchange.getRequest().getCode();
+		RepresentationCache cache = representationCache;
+		if (cache != null && code == Code.GET) {
+			Response cached = cache.get(this, exchange.getRequest());
+			if (cached != null) {
+				exchange.sendResponse(cached);
+				return;
+			}
+		}
 		switch (code) {
 			case GET:	handleGET(new CoapExchange(exchange, this)); break;
 			case POST:	handlePOST(new CoapExchange(exchange, this)); break;
@@ -285,9 +316,16 @@ public  class CoapResource implements Resource {
 		if (relation == null) return; // because request did not try to establish a relation
 		
 		if (CoAP.ResponseCode.isSuccess(response.getCode())) {
-			response.getOptions().setObserve(notificationOrderer.getCurrent());
+			int number = notificationOrderer.getCurrent();
+			// a relation refreshed without change still needs a fresh number
+			if (relation.getObserveNumber() == number)
+				number = notificationOrderer.getNextObserveNumber();
+			relation.setObserveNumber(number);
+			response.getOptions().setObserve(number);
 			
 			if (!relation.isEstablished()) {
+				if (notificationPolicy != null)
+					relation.setNotificationPolicy(notificationPolicy);
 				relation.setEstablished(true);
 				addObserveRelation(relation);
 			} else if (observeType != null) {
@@ -356,6 +394,7 @@ public  class CoapResource implements Resource {
 		if (child.getParent() != null)
 			child.getParent().remove(child);
 		children.put(child.getName(), child);
+		childIndex = null;
 		child.setParent(this);
 		for (ResourceObserver obs:observers)
 			obs.addedChild(child);
@@ -444,7 +483,10 @@ public  class CoapResource implements Resource {
 	 * @return the removed resource or null
 	 */
 	public synchronized Resource remove(String name) {
-		return children.remove(name);
+		Resource removed = children.remove(name);
+		if (removed != null)
+			childIndex = null;
+		return removed;
 	}
 	
 	/**
@@ -513,12 +555,78 @@ public  class CoapResource implements Resource {
 		adjustChildrenPath();
 	}
 	
-	/* (non-Javadoc)
-	 * @see org.eclipse.californium.core.server.resources.Resource#getChild(java.lang.String)
+	/**
+	 * Gets the child with the specified name. If no child has this name, the
+	 * child with a parameter name such as <code>{id}</code> is returned, so
+	 * that a resource <code>/device/{id}</code> serves <code>/device/17</code>
+	 * and <code>/device/42</code>. Before parameter children were introduced,
+	 * this method returned null in this case. Resources that have no child
+	 * with a name in curly braces are not affected.
+	 * 
+	 * @param name the name
+	 * @return the child or null if not found
 	 */
 	@Override
 	public Resource getChild(String name) {
-		return children.get(name);
+		Resource child = children.get(name);
+		if (child == null)
+			child = getChildIndex().getParameter();
+		return child;
+	}
+	
+	/**
+	 * Gets the child with the UTF-8 encoded name in the specified region, e.g.,
+	 * a segment of an encoded Uri-Path (see
+	 * {@link org.eclipse.californium.core.coap.OptionSet#getEncodedUriPath()}).
+	 * The name is only decoded if a subclass overrides
+	 * {@link #getChild(String)}. A child with a parameter name such as
+	 * <code>{id}</code> matches all names that no other child has.
+	 * 
+	 * @param buffer the array holding the name
+	 * @param offset the offset of the name
+	 * @param length the length of the name
+	 * @return the child or null if not found
+	 */
+	public Resource getChild(byte[] buffer, int offset, int length) {
+		if (customChildLookup)
+			return getChild(new String(buffer, offset, length, CoAP.UTF8_CHARSET));
+		return getChildIndex().get(buffer, offset, length);
+	}
+	
+	/*
+	 * The index is rebuilt lazily, so that adding many children does not
+	 * rebuild it each time.
+	 */
+	private ChildIndex getChildIndex() {
+		ChildIndex index = childIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = childIndex;
+				if (index == null) {
+					index = new ChildIndex(children.values());
+					childIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+	
+	/*
+	 * Subclasses that override getChild(String), e.g., to accept requests to
+	 * any subresource, do not use the index. The result is cached per class,
+	 * since resources are often created in large numbers.
+	 */
+	private static boolean overridesGetChild(Class<?> type) {
+		Boolean overrides = CUSTOM_CHILD_LOOKUP.get(type);
+		if (overrides == null) {
+			try {
+				overrides = type.getMethod("getChild", String.class).getDeclaringClass() != CoapResource.class;
+			} catch (NoSuchMethodException e) {
+				overrides = Boolean.TRUE;
+			}
+			CUSTOM_CHILD_LOOKUP.put(type, overrides);
+		}
+		return overrides;
 	}
 
 	/* (non-Javadoc)
@@ -664,6 +772,64 @@ public  class CoapResource implements Resource {
 		this.observeType = type;
 	}
 
+	/**
+	 * Sets the policy that limits the rate of notifications for the observe
+	 * relations that are established from now on. By default, the policy from
+	 * the configuration is used.
+	 *
+	 * @param policy the policy or null for the policy from the configuration
+	 */
+	public void setNotificationPolicy(NotificationPolicy policy) {
+		this.notificationPolicy = policy;
+	}
+	
+	/**
+	 * Enables or disables the fan-out mode for notifications. By default, the
+	 * resource reprocesses the request of each observe relation when it has
+	 * changed. In fan-out mode, the resource handles the request only once for
+	 * all relations that ask for the same representation and the response is
+	 * encoded once and sent in batches to all of them (see
+	 * {@link NotificationFanOut}). Only use this mode if the handler responds
+	 * the same to all observers with the same request options.
+	 *
+	 * @param fanOut true to handle each change only once
+	 */
+	public void setNotificationFanOut(boolean fanOut) {
+		this.notificationFanOut = fanOut ? new NotificationFanOut() : null;
+	}
+	
+	/**
+	 * Checks if the fan-out mode for notifications is enabled.
+	 *
+	 * @return true if the resource handles each change only once
+	 */
+	public boolean isNotificationFanOut() {
+		return notificationFanOut != null;
+	}
+	
+	/**
+	 * Sets the cache for large representations of this resource. Requests for
+	 * further blocks of a cached representation are answered from the cache
+	 * without calling {@link #handleGET(CoapExchange)}. The representations
+	 * are invalidated when the resource calls {@link #changed()}. Only use a
+	 * cache if the handler does not respond differently to different clients.
+	 * The same cache can be used for many resources.
+	 *
+	 * @param cache the cache or null to handle each request
+	 */
+	public void setRepresentationCache(RepresentationCache cache) {
+		this.representationCache = cache;
+	}
+	
+	/**
+	 * Gets the cache for large representations of this resource.
+	 *
+	 * @return the cache or null if not set
+	 */
+	public RepresentationCache getRepresentationCache() {
+		return representationCache;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.eclipse.californium.core.server.resources.Resource#addObserveRelation(org.eclipse.californium.core.observe.ObserveRelation)
 	 */
@@ -707,6 +873,9 @@ public  class CoapResource implements Resource {
 	 * thread that has called this method performs the notification.
 	 */
 	public void changed() {
+		RepresentationCache cache = representationCache;
+		if (cache != null)
+			cache.invalidate(this);
 		Executor executor = getExecutor();
 		// use thread from the protocol stage
 		if (executor == null) notifyObserverRelations();
@@ -724,6 +893,11 @@ public  class CoapResource implements Resource {
 	 */
 	protected void notifyObserverRelations() {
 		notificationOrderer.getNextObserveNumber();
+		NotificationFanOut fanOut = notificationFanOut;
+		if (fanOut != null) {
+			fanOut.notifyRelations(this, observeRelations);
+			return;
+		}
 		for (ObserveRelation relation:observeRelations) {
 			relation.notifyObservers();
 		}
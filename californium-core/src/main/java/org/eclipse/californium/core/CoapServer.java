@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -104,6 +105,9 @@ public class CoapServer implements ServerInterface {
 	/** The executor of the server for its endpoints (can be null). */
 	private ScheduledExecutorService executor;
 	
+	/** The executor for resource handlers in elastic mode (null otherwise). */
+	private ExecutorService handlerExecutor;
+	
 	private NetworkConfig config;
 	
 	/**
@@ -154,7 +158,14 @@ public class CoapServer implements ServerInterface {
 		// endpoints
 		this.endpoints = new ArrayList<Endpoint>();
 		// sets the central thread pool for the protocol stage over all endpoints
-		this.executor = Executors.newScheduledThreadPool( config.getInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT) );
+		this.executor = Executors.newScheduledThreadPool( this.config.getInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT) );
+		// blocking handlers must not starve the protocol stage
+		if (ElasticExecutor.isEnabled(this.config)) {
+			this.handlerExecutor = ElasticExecutor.fromConfig(this.config, "CoapServer");
+			// resources obtain the executor from the root
+			if (root.getExecutor() != handlerExecutor)
+				LOGGER.warning("The root resource does not use the elastic executor; resources run their handlers on the protocol stage");
+		}
 		// create endpoint for each port
 		for (int port:ports)
 			addEndpoint(new CoAPEndpoint(port, this.config));
@@ -169,6 +180,15 @@ public class CoapServer implements ServerInterface {
 			ep.setExecutor(executor);
 	}
 	
+	/**
+	 * Gets the executor that runs the resource handlers in elastic mode.
+	 * 
+	 * @return the executor or null if the protocol stage runs the handlers
+	 */
+	public ExecutorService getHandlerExecutor() {
+		return handlerExecutor;
+	}
+	
 	/**
 	 * Starts the server by starting all endpoints this server is assigned to.
 	 * Each endpoint binds to its port. If no endpoint is assigned to the
@@ -220,6 +240,8 @@ public class CoapServer implements ServerInterface {
 		LOGGER.info("Destroy server");
 		for (Endpoint ep:endpoints)
 			ep.destroy();
+		if (handlerExecutor != null)
+			handlerExecutor.shutdown();
 		executor.shutdown(); // cannot be started again
 		try {
 			boolean succ = executor.awaitTermination(5, TimeUnit.SECONDS);
@@ -340,6 +362,10 @@ public class CoapServer implements ServerInterface {
 	
 	/**
 	 * Creates a root for this server. Can be overridden to create another root.
+	 * In elastic handler mode, the default root provides the executor for all
+	 * resources that do not define their own. A root that is overridden this
+	 * way disables the elastic mode unless its
+	 * {@link Resource#getExecutor()} returns {@link #getHandlerExecutor()}.
 	 *
 	 * @return the resource
 	 */
@@ -373,6 +399,11 @@ public class CoapServer implements ServerInterface {
 			super("");
 		}
 		
+		@Override
+		public ExecutorService getExecutor() {
+			return handlerExecutor;
+		}
+		
 		@Override
 		public void handleGET(CoapExchange exchange) {
 			exchange.respond(ResponseCode.CONTENT, msg);
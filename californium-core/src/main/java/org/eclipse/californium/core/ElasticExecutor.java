@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+/**
+ * The elastic executor runs handlers that may block, e.g., resource handlers
+ * that wait for a response of another server. Like a cached thread pool, it
+ * hands each task to an idle thread and starts a new thread only if no thread
+ * is idle. When the thread limit is reached, tasks wait in an overflow queue
+ * that the threads drain before they become idle again. Idle threads
+ * terminate after a minute. The threads have a small stack, so that
+ * thousands of them can wait at the same time without starving the protocol
+ * stage, which keeps its own small thread pool.
+ * <p>
+ * Servers and clients use the elastic executor for their handlers when
+ * {@link NetworkConfig.Keys#HANDLER_EXECUTION} is set to
+ * {@link NetworkConfig.Keys#HANDLER_EXECUTION_ELASTIC}. Note that a server
+ * can only use the elastic executor for resources that inherit the executor
+ * of its root resource.
+ */
+public class ElasticExecutor extends ThreadPoolExecutor {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(ElasticExecutor.class.getCanonicalName());
+
+	/** The executor for clients that do not have their own */
+	private static volatile ElasticExecutor shared;
+
+	/**
+	 * Creates a new elastic executor.
+	 * 
+	 * @param threadLimit the maximum number of threads
+	 * @param stackSize the stack size of the threads in bytes or 0 for the
+	 *            default of the JVM
+	 * @param name the prefix for the names of the threads
+	 */
+	public ElasticExecutor(int threadLimit, long stackSize, String name) {
+		this(threadLimit, stackSize, name, new HandoffQueue());
+	}
+
+	private ElasticExecutor(int threadLimit, long stackSize, String name, HandoffQueue queue) {
+		super(0, threadLimit, 60, TimeUnit.SECONDS, queue, new HandlerThreadFactory(name, stackSize), new OverflowPolicy(queue));
+	}
+
+	/**
+	 * Checks if the specified configuration enables elastic handler execution.
+	 * 
+	 * @param config the configuration
+	 * @return true if handlers run on an elastic executor
+	 */
+	public static boolean isEnabled(NetworkConfig config) {
+		return NetworkConfig.Keys.HANDLER_EXECUTION_ELASTIC.equals(config.getString(NetworkConfig.Keys.HANDLER_EXECUTION));
+	}
+
+	/**
+	 * Creates a new elastic executor with the limits from the specified
+	 * configuration.
+	 * 
+	 * @param config the configuration
+	 * @param name the prefix for the names of the threads
+	 * @return the executor
+	 */
+	public static ElasticExecutor fromConfig(NetworkConfig config, String name) {
+		int threadLimit = config.getInt(NetworkConfig.Keys.HANDLER_THREAD_LIMIT);
+		long stackSize = config.getLong(NetworkConfig.Keys.HANDLER_THREAD_STACK_SIZE);
+		LOGGER.config(name + " runs handlers on up to " + threadLimit + " threads");
+		return new ElasticExecutor(threadLimit, stackSize, name);
+	}
+
+	/**
+	 * Gets the executor that clients without their own executor use for their
+	 * handlers if the specified configuration enables elastic execution. The
+	 * limits of the configuration that is passed first apply to the shared
+	 * executor.
+	 * 
+	 * @param config the configuration of the client
+	 * @return the shared executor or null if not enabled
+	 */
+	public static ElasticExecutor getShared(NetworkConfig config) {
+		if (!isEnabled(config))
+			return null;
+		if (shared == null) {
+			synchronized (ElasticExecutor.class) {
+				if (shared == null)
+					shared = fromConfig(config, "CoapClient");
+			}
+		}
+		return shared;
+	}
+
+	/**
+	 * Hands tasks over to idle threads. The executor starts a new thread if
+	 * the queue refuses a task, so the queue accepts a task only if it can
+	 * reserve an idle thread for it. At the thread limit, the overflow policy
+	 * adds the task anyway and the next thread that completes its task takes
+	 * it. Since handed over and overflowing tasks share the queue, a thread
+	 * that becomes idle while a task overflows finds the task right away, and
+	 * idle threads only wake up for a task or their keep-alive timeout.
+	 */
+	private static class HandoffQueue extends LinkedBlockingQueue<Runnable> {
+
+		private static final long serialVersionUID = 1L;
+
+		/** The number of waiting threads that no task has reserved */
+		private final AtomicInteger idle = new AtomicInteger();
+
+		/** The number of handed over tasks that no thread has taken yet */
+		private final AtomicInteger reserved = new AtomicInteger();
+
+		@Override
+		public boolean offer(Runnable task) {
+			if (!decrementIfPositive(idle))
+				return false;
+			reserved.incrementAndGet();
+			return super.offer(task);
+		}
+
+		private void overflow(Runnable task) {
+			super.offer(task);
+		}
+
+		@Override
+		public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+			idle.incrementAndGet();
+			Runnable task;
+			try {
+				task = super.poll(timeout, unit);
+			} catch (InterruptedException e) {
+				task = leave();
+				if (task == null)
+					throw e;
+				return task;
+			}
+			if (task == null)
+				return leave();
+			taken();
+			return task;
+		}
+
+		@Override
+		public Runnable take() throws InterruptedException {
+			return poll(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+
+		/*
+		 * Stops waiting without a task unless a task has reserved this
+		 * thread. Then the task is about to be queued and the thread takes it.
+		 */
+		private Runnable leave() {
+			if (decrementIfPositive(idle))
+				return null;
+			Runnable task;
+			while ((task = super.poll()) == null)
+				Thread.yield();
+			taken();
+			return task;
+		}
+
+		/*
+		 * A task may be taken by another thread than the one it has
+		 * reserved, so a taken task releases any reservation first.
+		 */
+		private void taken() {
+			if (!decrementIfPositive(reserved))
+				idle.decrementAndGet();
+		}
+
+		private static boolean decrementIfPositive(AtomicInteger counter) {
+			while (true) {
+				int value = counter.get();
+				if (value <= 0)
+					return false;
+				if (counter.compareAndSet(value, value - 1))
+					return true;
+			}
+		}
+	}
+
+	/**
+	 * Puts tasks into the overflow when all threads are busy.
+	 */
+	private static class OverflowPolicy implements RejectedExecutionHandler {
+
+		private final HandoffQueue queue;
+
+		private OverflowPolicy(HandoffQueue queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			if (executor.isShutdown())
+				throw new RejectedExecutionException("Elastic executor has been shut down");
+			queue.overflow(task);
+		}
+	}
+
+	/**
+	 * Creates the daemon threads of an elastic executor.
+	 */
+	private static class HandlerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger counter = new AtomicInteger();
+		private final String name;
+		private final long stackSize;
+
+		private HandlerThreadFactory(String name, long stackSize) {
+			this.name = name;
+			this.stackSize = stackSize;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(null, runnable, name + "-handler#" + counter.incrementAndGet(), stackSize);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -21,21 +21,22 @@
  ******************************************************************************/
 package org.eclipse.californium.core.coap;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.Utils;
 import org.eclipse.californium.core.coap.CoAP.Type;
-import org.eclipse.californium.core.observe.ObserveManager;
 
 /**
  * The class Message models the base class of all CoAP messages. CoAP messages
@@ -48,7 +49,7 @@ import org.eclipse.californium.core.observe.ObserveManager;
  * message can be observed by {@link MessageObserver} which will be notified
  * when an event triggers one of the properties from above become true.
  * <p>
- * Note: The variables {@link #handlers} and {@link #options} are
+ * Note: The variables {@link #observers} and {@link #options} are
  * lazy-initialized. This saves a few bytes in case it the variables are not in
  * use. For instance an empty message should not have options and most messages
  * will not have a {@link MessageObserver} registered.
@@ -76,7 +77,28 @@ public abstract class Message {
 	private OptionSet options;
 	
 	/** The payload of this message. */
-	private byte[] payload;
+	private volatile byte[] payload;
+	
+	/**
+	 * The buffer that contains the payload of a parsed message until the
+	 * payload is accessed the first time (see
+	 * {@link #setPayload(byte[], int, int)}). Null if the payload has been
+	 * set as array or has already been copied out of the buffer. The
+	 * {@link #payload} is always set before the buffer is cleared.
+	 */
+	private volatile byte[] payloadBuffer;
+	
+	/** The offset of the payload within the {@link #payloadBuffer}. */
+	private int payloadOffset;
+	
+	/** The length of the payload within the {@link #payloadBuffer}. */
+	private int payloadLength;
+
+	/**
+	 * The source of a payload that is not held in memory. Null if the payload
+	 * is a byte array.
+	 */
+	private volatile PayloadSource payloadSource;
 	
 	/** The destination address of this message. */
 	private InetAddress destination;
@@ -102,19 +124,26 @@ public abstract class Message {
 	/** Indicates if the message has timed out */
 	private boolean timedOut; // Important for CONs
 	
+	/** Indicates if the message could not be sent because of a full queue */
+	private boolean overloaded;
+	
 	/** Indicates if the message is a duplicate. */
 	private boolean duplicate;
 	
 	/** The serialized message as byte array. */
 	private byte[] bytes;
 	
+	/** Updates the observers without a lock. */
+	private static final AtomicReferenceFieldUpdater<Message, MessageObserver[]> OBSERVERS =
+			AtomicReferenceFieldUpdater.newUpdater(Message.class, MessageObserver[].class, "observers");
+	
 	/**
-	 * A list of all {@link ObserveManager} that should be notified when an
-	 * event for this message occurs. By default, this field is null
-	 * (lazy-initialization). If a handler is added, the list will be created
-	 * and from then on must never again become null.
+	 * The {@link MessageObserver}s that should be notified when an event for
+	 * this message occurs. The array is never modified but replaced as a
+	 * whole, so that events iterate a consistent snapshot from any thread. By
+	 * default, this field is null (lazy-initialization).
 	 */
-	private List<MessageObserver> handlers = null;
+	private volatile MessageObserver[] observers = null;
 	
 	/**
 	 * The timestamp when this message has been received or sent or 0 if neither
@@ -279,18 +308,91 @@ public abstract class Message {
 	 * @return the payload size
 	 */
 	public int getPayloadSize() {
+		if (payloadBuffer != null)
+			return payloadLength;
+		if (payload == null && payloadSource != null)
+			return payloadSource.size();
 		return payload == null ? 0 : payload.length;
 	}
 	
 	/**
-	 * Gets the raw payload.
+	 * Gets the raw payload. If the payload has been set as a view on a
+	 * buffer, it is copied out of the buffer on the first call. If the payload
+	 * has been set as a source, it is read into memory on the first call. This
+	 * is the case for request bodies that the blockwise layer has moved to a file
+	 * because they exceed the spill threshold, so that calling this method
+	 * pulls the whole body onto the heap. Use {@link #getPayloadSource()}
+	 * and, e.g., a {@link PayloadSourceStream} to read large payloads
+	 * instead. Concurrent callers receive the same array.
 	 *
 	 * @return the payload
+	 * @throws IllegalStateException if the payload source cannot be read
 	 */
 	public byte[] getPayload() {
+		byte[] payload = this.payload;
+		if (payload == null && (payloadBuffer != null || payloadSource != null)) {
+			synchronized (this) {
+				payload = this.payload;
+				byte[] buffer = payloadBuffer;
+				if (buffer != null) {
+					payload = Arrays.copyOfRange(buffer, payloadOffset, payloadOffset + payloadLength);
+					this.payload = payload;
+					payloadBuffer = null;
+				} else if (payload == null && payloadSource != null) {
+					payload = readPayloadSource(payloadSource);
+					this.payload = payload;
+				}
+			}
+		}
 		return payload;
 	}
 	
+	private static byte[] readPayloadSource(PayloadSource source) {
+		byte[] bytes = new byte[source.size()];
+		try {
+			int position = 0, count;
+			while (position < bytes.length && (count = source.read(position, bytes, position, bytes.length - position)) > 0)
+				position += count;
+			if (position < bytes.length)
+				throw new IllegalStateException("Payload source ended after "+position+" of "+bytes.length+" bytes");
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read payload source", e);
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Gets the source of the payload if the payload has been set with
+	 * {@link #setPayloadSource(PayloadSource)}, e.g., the body of a large
+	 * request that has been assembled from blocks.
+	 * <p>
+	 * The exchange closes the source of a request that has been assembled
+	 * from blocks after the response has been sent. A response that has
+	 * been assembled from blocks carries its payload on the heap.
+	 *
+	 * @return the payload source or null
+	 */
+	public PayloadSource getPayloadSource() {
+		return payloadSource;
+	}
+	
+	/**
+	 * Sets a source for the payload. The payload is not read into memory
+	 * unless {@link #getPayload()} is called. The blockwise layer reads only
+	 * the blocks that are sent, which allows resources to serve large bodies,
+	 * e.g., from a file.
+	 * Provides a fluent API to chain setters.
+	 *
+	 * @param source the payload source
+	 * @return this Message
+	 */
+	public Message setPayloadSource(PayloadSource source) {
+		this.payload = null;
+		this.payloadBuffer = null;
+		this.payloadSource = source;
+		return this;
+	}
+	
 	/**
 	 * Gets the payload in the form of a string. Returns an empty string if no
 	 * payload is defined.
@@ -298,12 +400,19 @@ public abstract class Message {
 	 * @return the payload as string
 	 */
 	public String getPayloadString() {
+		byte[] buffer = payloadBuffer;
+		if (buffer != null)
+			return new String(buffer, payloadOffset, payloadLength, CoAP.UTF8_CHARSET);
+		byte[] payload = getPayload();
 		if (payload==null)
 			return "";
 		return new String(payload, CoAP.UTF8_CHARSET);
 	}
 	
 	public String getPayloadTracingString() {
+		if (payload == null && payloadBuffer == null && payloadSource != null)
+			return "payload source of " + payloadSource.size() + " bytes";
+		byte[] payload = getPayload();
 		if (null == payload || 0 == payload.length)
 			return "no payload";
 		boolean text = true;
@@ -346,7 +455,7 @@ public abstract class Message {
 	 */
 	public Message setPayload(String payload) {
 		if (payload == null) {
-			this.payload = null;
+			setPayload((byte[]) null);
 		} else {
 			setPayload(payload.getBytes(CoAP.UTF8_CHARSET));
 		}
@@ -362,6 +471,32 @@ public abstract class Message {
 	 */
 	public Message setPayload(byte[] payload) {
 		this.payload = payload;
+		this.payloadBuffer = null;
+		this.payloadSource = null;
+		return this;
+	}
+	
+	/**
+	 * Sets the payload as a view on the specified region of a buffer. The
+	 * bytes are only copied when {@link #getPayload()} is called. This avoids
+	 * copying the payload of received messages that are never read. The
+	 * caller must not modify the region of the buffer afterwards.
+	 * Provides a fluent API to chain setters.
+	 *
+	 * @param buffer the buffer that contains the payload
+	 * @param offset the offset of the payload in the buffer
+	 * @param length the length of the payload
+	 * @return this Message
+	 * @throws IndexOutOfBoundsException if the region exceeds the buffer
+	 */
+	public Message setPayload(byte[] buffer, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > buffer.length)
+			throw new IndexOutOfBoundsException("Payload region "+offset+"+"+length+" exceeds buffer of "+buffer.length+" bytes");
+		this.payload = null;
+		this.payloadSource = null;
+		this.payloadOffset = offset;
+		this.payloadLength = length;
+		this.payloadBuffer = buffer;
 		return this;
 	}
 
@@ -463,8 +598,7 @@ public abstract class Message {
 	public void setAcknowledged(boolean acknowledged) {
 		this.acknowledged = acknowledged;
 		if (acknowledged)
-			for (MessageObserver handler:getMessageObservers())
-				handler.onAcknowledgement();
+			fire(MessageEvent.ACKNOWLEDGEMENT, null);
 	}
 
 	/**
@@ -485,8 +619,7 @@ public abstract class Message {
 	public void setRejected(boolean rejected) {
 		this.rejected = rejected;
 		if (rejected)
-			for (MessageObserver handler:getMessageObservers())
-				handler.onReject();
+			fire(MessageEvent.REJECT, null);
 	}
 
 	
@@ -508,11 +641,30 @@ public abstract class Message {
 	 */
 	public void setTimedOut(boolean timedOut) {
 		this.timedOut = timedOut;
-		if (timedOut) {
-			for (MessageObserver handler:getMessageObservers()) {
-				handler.onTimeout();
-			}
-		}
+		if (timedOut)
+			fire(MessageEvent.TIMEOUT, null);
+	}
+	
+	/**
+	 * Checks if this message could not be sent, because the queue for
+	 * messages to the remote endpoint was full.
+	 * 
+	 * @return true, if overloaded
+	 */
+	public boolean isOverloaded() {
+		return overloaded;
+	}
+	
+	/**
+	 * Marks this message as not sent because the queue for messages to the
+	 * remote endpoint was full.
+	 * 
+	 * @param overloaded true if overloaded
+	 */
+	public void setOverloaded(boolean overloaded) {
+		this.overloaded = overloaded;
+		if (overloaded)
+			fire(MessageEvent.OVERLOAD, null);
 	}
 	
 	/**
@@ -533,8 +685,7 @@ public abstract class Message {
 	public void setCanceled(boolean canceled) {
 		this.canceled = canceled;
 		if (canceled)
-			for (MessageObserver handler:getMessageObservers())
-				handler.onCancel();
+			fire(MessageEvent.CANCEL, null);
 	}
 	
 	/**
@@ -604,33 +755,45 @@ public abstract class Message {
 	}
 	
 	public void retransmitting() {
-			for (MessageObserver handler:getMessageObservers()) {
-				try {
-					// guard against faulty MessageObservers
-					handler.onRetransmission();
-				} catch (Exception e) {
-					LOGGER.log(Level.SEVERE, "Faulty MessageObserver for retransmitting events.", e);
-				}
+		fire(MessageEvent.RETRANSMISSION, null);
+	}
+	
+	/**
+	 * Notifies all {@link MessageObserver}s of this message of the specified
+	 * event. The observers registered when the event fires are notified; a
+	 * faulty observer does not keep the others from being notified.
+	 * 
+	 * @param event the event
+	 * @param response the response for {@link MessageEvent#RESPONSE}, null
+	 *            otherwise
+	 */
+	protected final void fire(MessageEvent event, Response response) {
+		MessageObserver[] observers = this.observers;
+		if (observers == null)
+			return;
+		for (MessageObserver observer:observers) {
+			try {
+				event.deliver(observer, response);
+			} catch (RuntimeException e) {
+				// guard against faulty MessageObservers
+				LOGGER.log(Level.SEVERE, "Faulty MessageObserver for " + event + " event", e);
 			}
+		}
 	}
 	
-    /**
-	 * Returns an {@link Iterable} over the elements in this list in proper
-	 * sequence.
-	 * <p>
-	 * The returned iterable provides an iterator over all
-	 * {@link MessageObserver} registered with this message. No synchronization
-	 * is needed while traversing the iterator. The method never returns null.
-	 * The iterator does <em>NOT</em> support the <tt>remove</tt> method.
+	/**
+	 * Returns a snapshot of the {@link MessageObserver}s registered with this
+	 * message. The list does not change when observers are added or removed
+	 * later and cannot be modified. The method never returns null.
 	 * 
-	 * @return an iterable of all {@link MessageObserver} of this message
+	 * @return the observers of this message
 	 */
 	public List<MessageObserver> getMessageObservers() {
-		List<MessageObserver> handlers = this.handlers;
-		if (handlers == null)
+		MessageObserver[] observers = this.observers;
+		if (observers == null)
 			return Collections.emptyList();
 		else
-			return handlers;
+			return Collections.unmodifiableList(Arrays.asList(observers));
 	}
 
 	/**
@@ -641,9 +804,16 @@ public abstract class Message {
 	public void addMessageObserver(MessageObserver observer) {
 		if (observer == null)
 			throw new NullPointerException();
-		if (handlers == null)
-			createMessageObserver();
-		handlers.add(observer);
+		MessageObserver[] current, updated;
+		do {
+			current = observers;
+			if (current == null) {
+				updated = new MessageObserver[] { observer };
+			} else {
+				updated = Arrays.copyOf(current, current.length + 1);
+				updated[current.length] = observer;
+			}
+		} while (!OBSERVERS.compareAndSet(this, current, updated));
 	}
 	
 	/**
@@ -654,21 +824,20 @@ public abstract class Message {
 	public void removeMessageObserver(MessageObserver observer) {
 		if (observer == null)
 			throw new NullPointerException();
-		if (handlers == null) return;
-		handlers.remove(observer);
-	}
-	
-	/**
-	 * Create a new list of {@link MessageObserver} if not already defined. This
-	 * method is thread-safe and creates exactly one list.
-	 */
-	private void createMessageObserver() {
-		if (handlers == null) {
-			synchronized (this) {
-				if (handlers == null) 
-					handlers = new CopyOnWriteArrayList<MessageObserver>();
+		MessageObserver[] current, updated;
+		do {
+			current = observers;
+			int index = current == null ? -1 : Arrays.asList(current).indexOf(observer);
+			if (index < 0)
+				return;
+			if (current.length == 1) {
+				updated = null;
+			} else {
+				updated = new MessageObserver[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, index);
+				System.arraycopy(current, index + 1, updated, index, updated.length - index);
 			}
-		}
+		} while (!OBSERVERS.compareAndSet(this, current, updated));
 	}
 
 }
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.coap;
+
+/**
+ * The events of a {@link Message} that its {@link MessageObserver}s receive.
+ * A message fires each event through {@link Message#fire(MessageEvent, Response)},
+ * and the event invokes the corresponding method of the observer.
+ */
+public enum MessageEvent {
+
+	/** The message is about to be retransmitted */
+	RETRANSMISSION {
+		@Override
+		void deliver(MessageObserver observer, Response response) {
+			observer.onRetransmission();
+		}
+	},
+
+	/** A response to the request has arrived */
+	RESPONSE {
+		@Override
+		void deliver(MessageObserver observer, Response response) {
+			observer.onResponse(response);
+		}
+	},
+
+	/** The message has been acknowledged */
+	ACKNOWLEDGEMENT {
+		@Override
+		void deliver(MessageObserver observer, Response response) {
+			observer.onAcknowledgement();
+		}
+	},
+
+	/** The message has been rejected */
+	REJECT {
+		@Override
+		void deliver(MessageObserver observer, Response response) {
+			observer.onReject();
+		}
+	},
+
+	/** The message has timed out */
+	TIMEOUT {
+		@Override
+		void deliver(MessageObserver observer, Response response) {
+			observer.onTimeout();
+		}
+	},
+
+	/** The message has been canceled */
+	CANCEL {
+		@Override
+		void deliver(MessageObserver observer, Response response) {
+			observer.onCancel();
+		}
+	},
+
+	/**
+	 * The message could not be sent because the queue was full. Only
+	 * observers that implement {@link OverloadObserver} receive this event.
+	 */
+	OVERLOAD {
+		@Override
+		void deliver(MessageObserver observer, Response response) {
+			if (observer instanceof OverloadObserver)
+				((OverloadObserver) observer).onOverload();
+		}
+	};
+
+	/**
+	 * Invokes the method of the observer for this event.
+	 *
+	 * @param observer the observer
+	 * @param response the response for {@link #RESPONSE}, null otherwise
+	 */
+	abstract void deliver(MessageObserver observer, Response response);
+}
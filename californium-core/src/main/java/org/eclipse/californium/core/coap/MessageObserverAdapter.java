@@ -33,6 +33,8 @@ package org.eclipse.californium.core.coap;
  * <li> {@link #onCancel()} when the message has been canceled</li>
  * <li> {@link #onTimeout()} when the client stops retransmitting the message and
  * still has not received anything from the remote endpoint</li>
+ * <li> {@link #onOverload()} when the message could not be sent, because too
+ * many messages to the remote endpoint are queued</li>
  * </ul>
  * <p>
  * Extend this class to create a message observer and override the methods for
@@ -45,7 +47,7 @@ package org.eclipse.californium.core.coap;
  * a message using the message's
  * <code>addMessageObserver(MessageObserver observer)</code> method.
  */
-public abstract class MessageObserverAdapter implements MessageObserver {
+public abstract class MessageObserverAdapter implements OverloadObserver {
 
 	/* (non-Javadoc)
 	 * @see ch.inf.vs.californium.coap.MessageObserver#retransmitting()
@@ -94,4 +96,12 @@ public abstract class MessageObserverAdapter implements MessageObserver {
 	public void onTimeout() {
 		// empty default implementation
 	}
+
+	/* (non-Javadoc)
+	 * @see org.eclipse.californium.core.coap.OverloadObserver#onOverload()
+	 */
+	@Override
+	public void onOverload() {
+		// empty default implementation
+	}
 }
@@ -303,7 +303,7 @@ public class Option implements Comparable<Option> {
 	 */
 	@Override
 	public int hashCode() {
-		return number*31 + value.hashCode();
+		return number*31 + Arrays.hashCode(value);
 	}
 	
 	/* (non-Javadoc)
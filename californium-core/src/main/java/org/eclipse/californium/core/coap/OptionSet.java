@@ -47,6 +47,7 @@ public class OptionSet {
 	private Integer      uri_port; // null if no port is explicitly defined
 	private List<String> location_path_list;
 	private List<String> uri_path_list;
+	private byte[]       uri_path_encoded; // length-prefixed segments until decoded
 	private Integer      content_format;
 	private Long         max_age; // (0-4 bytes)
 	private List<String> uri_query_list;
@@ -63,6 +64,28 @@ public class OptionSet {
 	// Arbitrary options
 	private List<Option> others;
 	
+	/*
+	 * Options of a parsed message that are only decoded when accessed. The
+	 * index holds number, offset, and length of each option in the datagram.
+	 * A bit in encoded_pending is set while options with this number are
+	 * still encoded (see encodedBit()); the index is released once all have
+	 * been decoded.
+	 */
+	private static final long ENCODED_OTHERS = 1L;
+	private static final long ENCODED_IF_MATCH = 1L << OptionNumberRegistry.IF_MATCH;
+	private static final long ENCODED_URI_HOST = 1L << OptionNumberRegistry.URI_HOST;
+	private static final long ENCODED_ETAG = 1L << OptionNumberRegistry.ETAG;
+	private static final long ENCODED_LOCATION_PATH = 1L << OptionNumberRegistry.LOCATION_PATH;
+	private static final long ENCODED_URI_QUERY = 1L << OptionNumberRegistry.URI_QUERY;
+	private static final long ENCODED_LOCATION_QUERY = 1L << OptionNumberRegistry.LOCATION_QUERY;
+	private static final long ENCODED_PROXY_URI = 1L << OptionNumberRegistry.PROXY_URI;
+	private static final long ENCODED_PROXY_SCHEME = 1L << OptionNumberRegistry.PROXY_SCHEME;
+	
+	private byte[]        encoded; // the datagram, never modified
+	private int[]         encoded_index;
+	private int           encoded_count; // used entries of the index
+	private volatile long encoded_pending;
+	
 	// TODO: When receiving, uri_host/port should be those from the sender 
 	/*
 	 * Once a list is touched and constructed it must never become null again.
@@ -93,6 +116,12 @@ public class OptionSet {
 	}
 
 	public void clear() {
+		synchronized (this) {
+			encoded = null;
+			encoded_index = null;
+			encoded_count = 0;
+			encoded_pending = 0;
+		}
 		if (if_match_list != null)
 			if_match_list.clear();
 		uri_host = null;
@@ -104,13 +133,14 @@ public class OptionSet {
 			location_path_list.clear();
 		if (uri_path_list != null)
 			uri_path_list.clear();
+		uri_path_encoded = null;
 		content_format = null;
 		max_age = null;
 		if (uri_query_list != null)
 			uri_query_list.clear();
 		accept = null;
 		if (location_query_list != null)
-			location_path_list.clear();
+			location_query_list.clear();
 		proxy_uri = null;
 		proxy_scheme = null;
 		block1 = null;
@@ -126,12 +156,20 @@ public class OptionSet {
 	 */
 	public OptionSet(OptionSet origin) {
 		if (origin == null) throw new NullPointerException();
+		synchronized (origin) {
+			// the datagram is shared, each copy decodes its own options
+			encoded         = origin.encoded;
+			encoded_index   = origin.encoded_index == null ? null : Arrays.copyOf(origin.encoded_index, origin.encoded_index.length);
+			encoded_count   = origin.encoded_count;
+			encoded_pending = origin.encoded_pending;
+		}
 		if_match_list       = copyList(origin.if_match_list);
 		uri_host            = origin.uri_host;
 		etag_list           = copyList(origin.etag_list);
 		if_none_match       = origin.if_none_match;
 		uri_port            = origin.uri_port;
 		location_path_list  = copyList(origin.location_path_list);
+		uri_path_encoded    = origin.uri_path_encoded;
 		uri_path_list       = copyList(origin.uri_path_list);
 		content_format      = origin.content_format;
 		max_age             = origin.max_age;
@@ -170,6 +208,7 @@ public class OptionSet {
 	 * @return the list of If-Match ETags
 	 */
 	public List<byte[]> getIfMatch() {
+		decode(ENCODED_IF_MATCH);
 		if (if_match_list == null)
 			synchronized (this) {
 				if (if_match_list == null)
@@ -197,6 +236,7 @@ public class OptionSet {
 	public boolean isIfMatch(byte[] check) {
 		
 		// if no If-Match option is present, conditional update is allowed
+		decode(ENCODED_IF_MATCH);
 		if (if_match_list==null) return true;
 		
 		for (byte[] etag:if_match_list) {
@@ -250,6 +290,7 @@ public class OptionSet {
 	 * @return the Uri-Host or null if the option is not present
 	 */
 	public String getUriHost() {
+		decode(ENCODED_URI_HOST);
 		return uri_host;
 	}
 
@@ -258,6 +299,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasUriHost() {
+		decode(ENCODED_URI_HOST);
 		return uri_host != null;
 	}
 
@@ -272,6 +314,7 @@ public class OptionSet {
 			throw new NullPointerException("URI-Host must not be null");
 		if (host.length() < 1 || 255 < host.length())
 			throw new IllegalArgumentException("URI-Host option's length must be between 1 and 255 inclusive");
+		discard(ENCODED_URI_HOST);
 		this.uri_host = host;
 		return this;
 	}
@@ -282,6 +325,7 @@ public class OptionSet {
 	 * @return this OptionSet
 	 */
 	public OptionSet removeUriHost() {
+		discard(ENCODED_URI_HOST);
 		this.uri_host = null;
 		return this;
 	}
@@ -295,6 +339,7 @@ public class OptionSet {
 	 * @return the list of ETags
 	 */
 	public List<byte[]> getETags() {
+		decode(ENCODED_ETAG);
 		if (etag_list == null)
 			synchronized (this) {
 				if (etag_list == null)
@@ -319,6 +364,7 @@ public class OptionSet {
 	 * @return true if ETag is included
 	 */
 	public boolean containsETag(byte[] check) {
+		decode(ENCODED_ETAG);
 		if (etag_list==null) return false;
 		for (byte[] etag:etag_list) {
 			if (Arrays.equals(etag, check)) return true;
@@ -427,6 +473,7 @@ public class OptionSet {
 	 * @return the list of Location-Path segments
 	 */
 	public List<String> getLocationPath() {
+		decode(ENCODED_LOCATION_PATH);
 		if (location_path_list == null)
 			synchronized (this) {
 				if (location_path_list == null)
@@ -527,11 +574,51 @@ public class OptionSet {
 	public List<String> getUriPath() {
 		if (uri_path_list == null)
 			synchronized (this) {
-				if (uri_path_list == null)
-					uri_path_list = new LinkedList<String>();
+				if (uri_path_list == null) {
+					LinkedList<String> list = new LinkedList<String>();
+					byte[] encoded = uri_path_encoded;
+					for (int position = 0; encoded != null && position < encoded.length;) {
+						int length = encoded[position++] & 0xFF;
+						list.add(new String(encoded, position, length, CoAP.UTF8_CHARSET));
+						position += length;
+					}
+					uri_path_encoded = null;
+					uri_path_list = list;
+				}
 			}
 		return uri_path_list;
 	}
+	
+	/**
+	 * Returns the Uri-Path of a parsed message as long as it has not been
+	 * decoded to strings. Each segment is encoded in UTF-8 and prefixed with
+	 * one byte holding its length. The Uri-Path is decoded when it is accessed
+	 * through {@link #getUriPath()} or modified. The array must not be
+	 * modified.
+	 * 
+	 * @return the encoded segments or null if already decoded
+	 */
+	public byte[] getEncodedUriPath() {
+		return uri_path_list == null ? uri_path_encoded : null;
+	}
+	
+	/**
+	 * Sets the Uri-Path in encoded form as described in
+	 * {@link #getEncodedUriPath()}. Parsers use this method to defer decoding
+	 * the segments to strings. The array must not be modified afterwards.
+	 * 
+	 * @param encoded the encoded segments
+	 * @return this OptionSet
+	 */
+	public OptionSet setEncodedUriPath(byte[] encoded) {
+		if (encoded == null)
+			throw new NullPointerException();
+		synchronized (this) {
+			uri_path_list = null;
+			uri_path_encoded = encoded;
+		}
+		return this;
+	}
 
 	/**
 	 * Returns the Uri-Path options as relative URI string.
@@ -702,6 +789,7 @@ public class OptionSet {
 	 * @return the list of query arguments
 	 */
 	public List<String> getUriQuery() {
+		decode(ENCODED_URI_QUERY);
 		if (uri_query_list == null)
 			synchronized (this) {
 				if (uri_query_list == null)
@@ -844,6 +932,7 @@ public class OptionSet {
 	 * @return the list of query arguments
 	 */
 	public List<String> getLocationQuery() {
+		decode(ENCODED_LOCATION_QUERY);
 		if (location_query_list == null)
 			synchronized (this) {
 				if (location_query_list == null)
@@ -933,6 +1022,7 @@ public class OptionSet {
 	 * @return the Proxy-Uri or null if the option is not present
 	 */
 	public String getProxyUri() {
+		decode(ENCODED_PROXY_URI);
 		return proxy_uri;
 	}
 
@@ -941,6 +1031,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasProxyUri() {
+		decode(ENCODED_PROXY_URI);
 		return proxy_uri != null;
 	}
 
@@ -955,6 +1046,7 @@ public class OptionSet {
 			throw new NullPointerException("Proxy-Uri option must not be null");
 		if (uri.getBytes(CoAP.UTF8_CHARSET).length < 1 || 1034 < uri.getBytes(CoAP.UTF8_CHARSET).length)
 			throw new IllegalArgumentException("Proxy-Uri option must be between 1 and 1034 bytes inclusive (UTF-8 encoded): " + uri);
+		discard(ENCODED_PROXY_URI);
 		proxy_uri = uri;
 		return this;
 	}
@@ -965,6 +1057,7 @@ public class OptionSet {
 	 * @return this OptionSet
 	 */
 	public OptionSet removeProxyUri() {
+		discard(ENCODED_PROXY_URI);
 		proxy_uri = null;
 		return this;
 	}
@@ -974,6 +1067,7 @@ public class OptionSet {
 	 * @return the Proxy-Scheme or null if the option is not present
 	 */
 	public String getProxyScheme() {
+		decode(ENCODED_PROXY_SCHEME);
 		return proxy_scheme;
 	}
 
@@ -982,6 +1076,7 @@ public class OptionSet {
 	 * @return true if present
 	 */
 	public boolean hasProxyScheme() {
+		decode(ENCODED_PROXY_SCHEME);
 		return proxy_scheme != null;
 	}
 
@@ -996,6 +1091,7 @@ public class OptionSet {
 			throw new NullPointerException("Proxy-Scheme option must not be null");
 		if (scheme.getBytes(CoAP.UTF8_CHARSET).length < 1 || 255 < scheme.getBytes(CoAP.UTF8_CHARSET).length)
 			throw new IllegalArgumentException("Proxy-Scheme option must be between 1 and 255 bytes inclusive (UTF-8 encoded): " + scheme);
+		discard(ENCODED_PROXY_SCHEME);
 		proxy_scheme = scheme;
 		return this;
 	}
@@ -1006,6 +1102,7 @@ public class OptionSet {
 	 * @return this OptionSet
 	 */
 	public OptionSet removeProxyScheme() {
+		discard(ENCODED_PROXY_SCHEME);
 		proxy_scheme = null;
 		return this;
 	}
@@ -1256,6 +1353,7 @@ public class OptionSet {
 	}
 	
 	private List<Option> getOthers() {
+		decode(ENCODED_OTHERS);
 		if (others == null)
 			synchronized (this) {
 				if (others == null)
@@ -1284,7 +1382,7 @@ public class OptionSet {
 			options.add(new Option(OptionNumberRegistry.URI_PORT, getUriPort()));
 		if (location_path_list != null) for (String str:location_path_list)
 			options.add(new Option(OptionNumberRegistry.LOCATION_PATH, str));
-		if (uri_path_list != null) for (String str:uri_path_list)
+		if (uri_path_list != null || uri_path_encoded != null) for (String str:getUriPath())
 			options.add(new Option(OptionNumberRegistry.URI_PATH, str));
 		if (hasContentFormat())
 			options.add(new Option(OptionNumberRegistry.CONTENT_FORMAT, getContentFormat()));
@@ -1316,10 +1414,604 @@ public class OptionSet {
 		if (others != null)
 			options.addAll(others);
 		
+		synchronized (this) {
+			for (int i = 0; i < encoded_count; i += 3) {
+				int number = encoded_index[i];
+				if ((encodedBit(number) & encoded_pending) != 0)
+					options.add(new Option(number, Arrays.copyOfRange(encoded, encoded_index[i+1], encoded_index[i+1] + encoded_index[i+2])));
+			}
+		}
+		
 		Collections.sort(options);
 		return options;
 	}
 
+	/**
+	 * Returns the number of bytes the options occupy in a message, i.e., the
+	 * length of the option headers (delta, length and extended fields) and
+	 * values as specified in RFC 7252, Section 3.1.
+	 * @return the length of the encoded options
+	 */
+	public int getEncodedLength() {
+		return new Encoder(null, 0, 0, Integer.MAX_VALUE, 0).encode();
+	}
+
+	/**
+	 * Encodes all options in ascending order of their option number into the
+	 * specified array, starting at the specified offset. The array must have
+	 * at least {@link #getEncodedLength()} bytes left. Unlike
+	 * {@link #asSortedList()}, this method does not create intermediate
+	 * {@link Option} objects or value arrays.
+	 * @param bytes the destination array
+	 * @param offset the offset of the first option
+	 * @return the offset after the last encoded option
+	 */
+	public int encode(byte[] bytes, int offset) {
+		return new Encoder(bytes, offset, 0, Integer.MAX_VALUE, 0).encode();
+	}
+
+	/**
+	 * Returns the length of the options with a number between from (inclusive)
+	 * and to (exclusive) when encoded relative to the specified previous
+	 * option number.
+	 * @param from the lowest option number to include
+	 * @param to the option number from which on options are excluded
+	 * @param previous the option number the first delta refers to
+	 * @return the length of the encoded options
+	 * @see #encode(byte[], int, int, int, int)
+	 */
+	public int getEncodedLength(int from, int to, int previous) {
+		return new Encoder(null, 0, from, to, previous).encode();
+	}
+
+	/**
+	 * Encodes the options with a number between from (inclusive) and to
+	 * (exclusive) into the specified array. The delta of the first encoded
+	 * option refers to the specified previous option number. This allows to
+	 * encode the options of a message in parts, e.g., to insert an option
+	 * that differs between otherwise equal messages.
+	 * @param bytes the destination array
+	 * @param offset the offset of the first option
+	 * @param from the lowest option number to include
+	 * @param to the option number from which on options are excluded
+	 * @param previous the option number the first delta refers to
+	 * @return the offset after the last encoded option
+	 */
+	public int encode(byte[] bytes, int offset, int from, int to, int previous) {
+		return new Encoder(bytes, offset, from, to, previous).encode();
+	}
+
+	/**
+	 * Writes the option header for the specified option delta and value length
+	 * into the specified array. If the array is null, only the length of the
+	 * header is computed.
+	 * @param bytes the destination array or null
+	 * @param offset the offset of the header
+	 * @param delta the option delta
+	 * @param length the length of the option value
+	 * @return the offset after the header
+	 */
+	public static int encodeOptionHeader(byte[] bytes, int offset, int delta, int length) {
+		int deltaNibble = getOptionNibble(delta);
+		int lengthNibble = getOptionNibble(length);
+		int position = offset + 1;
+		if (bytes != null)
+			bytes[offset] = (byte) (deltaNibble << 4 | lengthNibble);
+		position = encodeExtended(bytes, position, deltaNibble, delta);
+		position = encodeExtended(bytes, position, lengthNibble, length);
+		return position;
+	}
+
+	/**
+	 * Returns the number of bytes of the specified unsigned integer as option
+	 * value, i.e., without leading zero bytes.
+	 * @param value the value
+	 * @return the number of bytes
+	 */
+	public static int getIntegerLength(long value) {
+		int length = 0;
+		for (int i=0;i<8;i++)
+			if (value >= 1L<<(i*8) || value < 0) length++;
+			else break;
+		return length;
+	}
+
+	/**
+	 * Writes the specified unsigned integer as option value into the specified
+	 * array.
+	 * @param bytes the destination array
+	 * @param offset the offset of the value
+	 * @param value the value
+	 * @param length the number of bytes to write
+	 * @return the offset after the value
+	 */
+	public static int encodeInteger(byte[] bytes, int offset, long value, int length) {
+		for (int i=0;i<length;i++)
+			bytes[offset + length - i - 1] = (byte) (value >> i*8);
+		return offset + length;
+	}
+
+	private static int getOptionNibble(int value) {
+		if (value <= 12) {
+			return value;
+		} else if (value <= 255 + 13) {
+			return 13;
+		} else if (value <= 65535 + 269) {
+			return 14;
+		} else {
+			throw new IllegalArgumentException("Unsupported option delta "+value);
+		}
+	}
+
+	private static int encodeExtended(byte[] bytes, int offset, int nibble, int value) {
+		if (nibble == 13) {
+			if (bytes != null)
+				bytes[offset] = (byte) (value - 13);
+			return offset + 1;
+		} else if (nibble == 14) {
+			if (bytes != null) {
+				bytes[offset] = (byte) ((value - 269) >> 8);
+				bytes[offset + 1] = (byte) (value - 269);
+			}
+			return offset + 2;
+		} else {
+			return offset;
+		}
+	}
+
+	/*
+	 * Returns the length of the string in UTF-8 without encoding it. Unpaired
+	 * surrogates count as one byte as String#getBytes replaces them by '?'.
+	 */
+	private static int utf8Length(String str) {
+		int length = 0;
+		for (int i=0;i<str.length();i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				length += 1;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i+1 < str.length() && Character.isLowSurrogate(str.charAt(i+1))) {
+				length += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				length += 1;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/*
+	 * Encodes the string in UTF-8 into the array, equivalent to String#getBytes.
+	 */
+	private static int encodeUtf8(String str, byte[] bytes, int offset) {
+		int position = offset;
+		for (int i=0;i<str.length();i++) {
+			char c = str.charAt(i);
+			if (c < 0x80) {
+				bytes[position++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[position++] = (byte) (0xC0 | c >> 6);
+				bytes[position++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i+1 < str.length() && Character.isLowSurrogate(str.charAt(i+1))) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+				bytes[position++] = (byte) (0xF0 | cp >> 18);
+				bytes[position++] = (byte) (0x80 | cp >> 12 & 0x3F);
+				bytes[position++] = (byte) (0x80 | cp >> 6 & 0x3F);
+				bytes[position++] = (byte) (0x80 | cp & 0x3F);
+			} else if (Character.isSurrogate(c)) {
+				bytes[position++] = (byte) '?';
+			} else {
+				bytes[position++] = (byte) (0xE0 | c >> 12);
+				bytes[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+				bytes[position++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+		return position;
+	}
+
+	/*
+	 * Encodes the options into an array or, if the array is null, only
+	 * computes their encoded length. Options must be passed in ascending order.
+	 * Arbitrary options are merged in by their number.
+	 */
+	private class Encoder {
+
+		private final byte[] bytes;
+		private final int from;
+		private final int to;
+		private int position;
+		private int previous;
+
+		private Option[] sortedOthers;
+		private int nextOther;
+
+		private byte[] encoded;
+		private int[] encodedIndex;
+		private int encodedCount;
+		private long encodedPending;
+		private int nextEncoded;
+
+		private Encoder(byte[] bytes, int offset, int from, int to, int previous) {
+			this.bytes = bytes;
+			this.position = offset;
+			this.from = from;
+			this.to = to;
+			this.previous = previous;
+			List<Option> others = OptionSet.this.others;
+			if (others != null && !others.isEmpty()) {
+				sortedOthers = others.toArray(new Option[others.size()]);
+				Arrays.sort(sortedOthers); // stable
+			}
+			synchronized (OptionSet.this) {
+				encoded = OptionSet.this.encoded;
+				encodedIndex = encoded_index;
+				encodedCount = encoded_count;
+				encodedPending = encoded_pending;
+			}
+		}
+
+		private int encode() {
+			if (if_match_list != null) for (byte[] value:if_match_list)
+				opaque(OptionNumberRegistry.IF_MATCH, value);
+			if (uri_host != null)
+				string(OptionNumberRegistry.URI_HOST, uri_host);
+			if (etag_list != null) for (byte[] value:etag_list)
+				opaque(OptionNumberRegistry.ETAG, value);
+			if (if_none_match)
+				integer(OptionNumberRegistry.IF_NONE_MATCH, 0);
+			if (observe != null)
+				integer(OptionNumberRegistry.OBSERVE, observe);
+			if (uri_port != null)
+				integer(OptionNumberRegistry.URI_PORT, uri_port);
+			if (location_path_list != null) for (String str:location_path_list)
+				string(OptionNumberRegistry.LOCATION_PATH, str);
+			if (uri_path_list != null || uri_path_encoded != null) for (String str:getUriPath())
+				string(OptionNumberRegistry.URI_PATH, str);
+			if (content_format != null)
+				integer(OptionNumberRegistry.CONTENT_FORMAT, content_format);
+			if (max_age != null)
+				integer(OptionNumberRegistry.MAX_AGE, max_age);
+			if (uri_query_list != null) for (String str:uri_query_list)
+				string(OptionNumberRegistry.URI_QUERY, str);
+			if (accept != null)
+				integer(OptionNumberRegistry.ACCEPT, accept);
+			if (location_query_list != null) for (String str:location_query_list)
+				string(OptionNumberRegistry.LOCATION_QUERY, str);
+			if (block2 != null)
+				block(OptionNumberRegistry.BLOCK2, block2);
+			if (block1 != null)
+				block(OptionNumberRegistry.BLOCK1, block1);
+			if (size2 != null)
+				integer(OptionNumberRegistry.SIZE2, size2);
+			if (proxy_uri != null)
+				string(OptionNumberRegistry.PROXY_URI, proxy_uri);
+			if (proxy_scheme != null)
+				string(OptionNumberRegistry.PROXY_SCHEME, proxy_scheme);
+			if (size1 != null)
+				integer(OptionNumberRegistry.SIZE1, size1);
+			others(Integer.MAX_VALUE);
+			return position;
+		}
+
+		/*
+		 * Writes all arbitrary and still encoded options with a number smaller
+		 * than the limit. Like in asSortedList(), they follow known options
+		 * with the same number. Encoded options are copied from the datagram.
+		 */
+		private void others(int limit) {
+			while (true) {
+				int other = sortedOthers != null && nextOther < sortedOthers.length ? sortedOthers[nextOther].getNumber() : Integer.MAX_VALUE;
+				int number = nextEncoded();
+				if (other < limit && other <= number) {
+					Option option = sortedOthers[nextOther++];
+					if (include(other)) {
+						header(other, option.getLength());
+						value(option.getValue());
+					}
+				} else if (number < limit) {
+					int offset = encodedIndex[nextEncoded + 1];
+					int length = encodedIndex[nextEncoded + 2];
+					nextEncoded += 3;
+					if (include(number)) {
+						header(number, length);
+						if (bytes != null)
+							System.arraycopy(encoded, offset, bytes, position, length);
+						position += length;
+					}
+				} else {
+					return;
+				}
+			}
+		}
+
+		/*
+		 * Skips the index entries that have been decoded in the meantime and
+		 * returns the number of the next encoded option.
+		 */
+		private int nextEncoded() {
+			while (nextEncoded < encodedCount && (encodedBit(encodedIndex[nextEncoded]) & encodedPending) == 0)
+				nextEncoded += 3;
+			return nextEncoded < encodedCount ? encodedIndex[nextEncoded] : Integer.MAX_VALUE;
+		}
+
+		private boolean include(int number) {
+			return from <= number && number < to;
+		}
+
+		private void header(int number, int length) {
+			position = encodeOptionHeader(bytes, position, number - previous, length);
+			previous = number;
+		}
+
+		private void value(byte[] value) {
+			if (bytes != null)
+				System.arraycopy(value, 0, bytes, position, value.length);
+			position += value.length;
+		}
+
+		private void opaque(int number, byte[] value) {
+			others(number);
+			if (!include(number)) return;
+			header(number, value.length);
+			value(value);
+		}
+
+		private void integer(int number, long value) {
+			others(number);
+			if (!include(number)) return;
+			// integers are encoded like Option#setIntegerValue/setLongValue
+			int length = value < 0 && value >= Integer.MIN_VALUE ? 4 : getIntegerLength(value);
+			header(number, length);
+			if (bytes != null)
+				encodeInteger(bytes, position, value, length);
+			position += length;
+		}
+
+		private void block(int number, BlockOption block) {
+			int num = block.getNum();
+			int value = num << 4 | (block.isM() ? 1<<3 : 0) | block.getSzx();
+			// same length as BlockOption#getValue()
+			int length = value == 0 ? 0 : num < 1 << 4 ? 1 : num < 1 << 12 ? 2 : 3;
+			others(number);
+			if (!include(number)) return;
+			header(number, length);
+			if (bytes != null)
+				encodeInteger(bytes, position, value, length);
+			position += length;
+		}
+
+		private void string(int number, String str) {
+			others(number);
+			if (!include(number)) return;
+			int length = utf8Length(str);
+			header(number, length);
+			if (bytes != null)
+				encodeUtf8(str, bytes, position);
+			position += length;
+		}
+	}
+	
+	/**
+	 * Checks if parsers may add options with the specified number in encoded
+	 * form through {@link #addEncodedOption(byte[], int, int, int)}. This is
+	 * the case for string and opaque options and for arbitrary options.
+	 * Integer and block options are cheap to decode and always decoded when
+	 * parsed; the Uri-Path has its own encoded form.
+	 * @param number the option number
+	 * @return true if the option can be added in encoded form
+	 */
+	public static boolean isDeferrable(int number) {
+		return encodedBit(number) != 0;
+	}
+
+	/**
+	 * Adds an option of a parsed message in encoded form. The option set only
+	 * keeps a reference to the datagram and decodes the value when the option
+	 * is accessed. When the option set is serialized again, the value is
+	 * copied from the datagram as is. The options must be added in ascending
+	 * order of their number and the datagram must not be modified afterwards.
+	 * The value length is checked like by the corresponding setter.
+	 * @param bytes the datagram
+	 * @param number the option number
+	 * @param offset the offset of the option value in the datagram
+	 * @param length the length of the option value
+	 * @return this OptionSet
+	 * @throws IllegalArgumentException if the option is not deferrable (see
+	 *             {@link #isDeferrable(int)}) or the length is invalid
+	 */
+	public OptionSet addEncodedOption(byte[] bytes, int number, int offset, int length) {
+		long bit = encodedBit(number);
+		if (bit == 0)
+			throw new IllegalArgumentException("Option "+number+" cannot be added in encoded form");
+		checkEncodedLength(number, length);
+		synchronized (this) {
+			if (encoded != null && encoded != bytes)
+				decodePending(~0L);
+			if (isDecoded(number)) {
+				// keep the order of options that are already decoded
+				decodeOption(bytes, number, offset, length);
+				return this;
+			}
+			if (encoded_index == null) {
+				encoded_index = new int[3 * 8];
+			} else if (encoded_count == encoded_index.length) {
+				encoded_index = Arrays.copyOf(encoded_index, 2 * encoded_index.length);
+			}
+			encoded = bytes;
+			encoded_index[encoded_count++] = number;
+			encoded_index[encoded_count++] = offset;
+			encoded_index[encoded_count++] = length;
+			encoded_pending |= bit;
+		}
+		return this;
+	}
+
+	/*
+	 * Returns the bit of the specified number in encoded_pending or 0 if
+	 * options with this number are always decoded when parsed.
+	 */
+	private static long encodedBit(int number) {
+		switch (number) {
+			case OptionNumberRegistry.IF_MATCH:
+			case OptionNumberRegistry.URI_HOST:
+			case OptionNumberRegistry.ETAG:
+			case OptionNumberRegistry.LOCATION_PATH:
+			case OptionNumberRegistry.URI_QUERY:
+			case OptionNumberRegistry.LOCATION_QUERY:
+			case OptionNumberRegistry.PROXY_URI:
+			case OptionNumberRegistry.PROXY_SCHEME:
+				return 1L << number;
+			case OptionNumberRegistry.IF_NONE_MATCH:
+			case OptionNumberRegistry.URI_PORT:
+			case OptionNumberRegistry.URI_PATH:
+			case OptionNumberRegistry.CONTENT_FORMAT:
+			case OptionNumberRegistry.MAX_AGE:
+			case OptionNumberRegistry.ACCEPT:
+			case OptionNumberRegistry.BLOCK1:
+			case OptionNumberRegistry.BLOCK2:
+			case OptionNumberRegistry.SIZE1:
+			case OptionNumberRegistry.SIZE2:
+			case OptionNumberRegistry.OBSERVE:
+				return 0;
+			default:
+				return ENCODED_OTHERS;
+		}
+	}
+
+	private static void checkEncodedLength(int number, int length) {
+		switch (number) {
+			case OptionNumberRegistry.IF_MATCH:
+				if (length > 8)
+					throw new IllegalArgumentException("If-Match option must be smaller or equal to 8 bytes but has "+length);
+				break;
+			case OptionNumberRegistry.URI_HOST:
+				if (length < 1 || 255 < length)
+					throw new IllegalArgumentException("URI-Host option's length must be between 1 and 255 inclusive but was "+length);
+				break;
+			case OptionNumberRegistry.LOCATION_PATH:
+			case OptionNumberRegistry.URI_QUERY:
+			case OptionNumberRegistry.LOCATION_QUERY:
+				if (length > 255)
+					throw new IllegalArgumentException("Option "+number+" must be smaller or equal to 255 bytes (UTF-8 encoded) but has "+length);
+				break;
+			case OptionNumberRegistry.PROXY_URI:
+				if (length < 1 || 1034 < length)
+					throw new IllegalArgumentException("Proxy-Uri option must be between 1 and 1034 bytes inclusive (UTF-8 encoded) but has "+length);
+				break;
+			case OptionNumberRegistry.PROXY_SCHEME:
+				if (length < 1 || 255 < length)
+					throw new IllegalArgumentException("Proxy-Scheme option must be between 1 and 255 bytes inclusive (UTF-8 encoded) but has "+length);
+				break;
+		}
+	}
+
+	/*
+	 * Checks if options with the specified number already have a decoded
+	 * value. Must be called while holding the lock.
+	 */
+	private boolean isDecoded(int number) {
+		switch (number) {
+			case OptionNumberRegistry.IF_MATCH:       return if_match_list != null;
+			case OptionNumberRegistry.URI_HOST:       return uri_host != null;
+			case OptionNumberRegistry.ETAG:           return etag_list != null;
+			case OptionNumberRegistry.LOCATION_PATH:  return location_path_list != null;
+			case OptionNumberRegistry.URI_QUERY:      return uri_query_list != null;
+			case OptionNumberRegistry.LOCATION_QUERY: return location_query_list != null;
+			case OptionNumberRegistry.PROXY_URI:      return proxy_uri != null;
+			case OptionNumberRegistry.PROXY_SCHEME:   return proxy_scheme != null;
+			default:                                  return others != null;
+		}
+	}
+
+	/*
+	 * Decodes the still encoded options with the specified bits, if any.
+	 */
+	private void decode(long bits) {
+		if ((encoded_pending & bits) != 0)
+			decodePending(bits);
+	}
+
+	/*
+	 * Drops the still encoded options with the specified bits, if any, since
+	 * a setter replaces them.
+	 */
+	private void discard(long bits) {
+		if ((encoded_pending & bits) != 0)
+			discardPending(bits);
+	}
+
+	private synchronized void decodePending(long bits) {
+		long decode = encoded_pending & bits;
+		if (decode == 0) return;
+		for (int i = 0; i < encoded_count; i += 3) {
+			int number = encoded_index[i];
+			if ((encodedBit(number) & decode) != 0)
+				decodeOption(encoded, number, encoded_index[i+1], encoded_index[i+2]);
+		}
+		// only clear the bits once the fields have been written
+		discardPending(decode);
+	}
+
+	private synchronized void discardPending(long bits) {
+		long pending = encoded_pending & ~bits;
+		encoded_pending = pending;
+		if (pending == 0) {
+			encoded = null;
+			encoded_index = null;
+			encoded_count = 0;
+		}
+	}
+
+	/*
+	 * Writes the value of an encoded option to its field without the checks
+	 * of the setters. Must be called while holding the lock.
+	 */
+	private void decodeOption(byte[] bytes, int number, int offset, int length) {
+		switch (number) {
+			case OptionNumberRegistry.IF_MATCH:
+				if (if_match_list == null)
+					if_match_list = new LinkedList<byte[]>();
+				if_match_list.add(Arrays.copyOfRange(bytes, offset, offset + length));
+				break;
+			case OptionNumberRegistry.URI_HOST:
+				uri_host = new String(bytes, offset, length, CoAP.UTF8_CHARSET);
+				break;
+			case OptionNumberRegistry.ETAG:
+				if (etag_list == null)
+					etag_list = new LinkedList<byte[]>();
+				etag_list.add(Arrays.copyOfRange(bytes, offset, offset + length));
+				break;
+			case OptionNumberRegistry.LOCATION_PATH:
+				if (location_path_list == null)
+					location_path_list = new LinkedList<String>();
+				location_path_list.add(new String(bytes, offset, length, CoAP.UTF8_CHARSET));
+				break;
+			case OptionNumberRegistry.URI_QUERY:
+				if (uri_query_list == null)
+					uri_query_list = new LinkedList<String>();
+				uri_query_list.add(new String(bytes, offset, length, CoAP.UTF8_CHARSET));
+				break;
+			case OptionNumberRegistry.LOCATION_QUERY:
+				if (location_query_list == null)
+					location_query_list = new LinkedList<String>();
+				location_query_list.add(new String(bytes, offset, length, CoAP.UTF8_CHARSET));
+				break;
+			case OptionNumberRegistry.PROXY_URI:
+				proxy_uri = new String(bytes, offset, length, CoAP.UTF8_CHARSET);
+				break;
+			case OptionNumberRegistry.PROXY_SCHEME:
+				proxy_scheme = new String(bytes, offset, length, CoAP.UTF8_CHARSET);
+				break;
+			default:
+				if (others == null)
+					others = new LinkedList<Option>();
+				others.add(new Option(number, Arrays.copyOfRange(bytes, offset, offset + length)));
+		}
+	}
+
 	/**
 	 * Allows adding arbitrary options. Known options are checked if they are repeatable.
 	 * @param option the Option object to add
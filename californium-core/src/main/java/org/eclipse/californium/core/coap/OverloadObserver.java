@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.coap;
+
+/**
+ * A {@link MessageObserver} that is also notified when a message could not be
+ * sent, because too many messages to the remote endpoint are queued. The
+ * message only invokes {@link #onOverload()} on observers that implement this
+ * interface, so that existing implementations of {@link MessageObserver}
+ * remain valid. {@link MessageObserverAdapter} implements it.
+ */
+public interface OverloadObserver extends MessageObserver {
+
+	/**
+	 * Invoked when the message could not be sent, because the queue for
+	 * messages to the remote endpoint is full, e.g., when congestion control
+	 * enforces NSTART.
+	 */
+	public void onOverload();
+
+}
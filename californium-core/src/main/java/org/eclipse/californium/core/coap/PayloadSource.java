@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.coap;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A payload source provides the payload of a message that is not held in one
+ * byte array, e.g., a large body assembled from blocks or a file that a
+ * resource serves blockwise. The source is seekable so that the blockwise
+ * layer reads only the block that a client asks for. Sources must support
+ * concurrent reads. {@link PayloadSourceStream} reads a source as a stream.
+ * 
+ * @see Message#setPayloadSource(PayloadSource)
+ */
+public interface PayloadSource extends Closeable {
+
+	/**
+	 * Gets the size of the payload.
+	 * 
+	 * @return the size in bytes
+	 */
+	public int size();
+
+	/**
+	 * Reads bytes of the payload starting at the specified position. The
+	 * method reads the requested number of bytes unless the end of the
+	 * payload is reached.
+	 * 
+	 * @param position the position in the payload
+	 * @param buffer the buffer to read into
+	 * @param offset the offset in the buffer
+	 * @param length the maximum number of bytes to read
+	 * @return the number of bytes read, which is 0 at the end of the payload
+	 * @throws IOException if the source cannot be read
+	 */
+	public int read(int position, byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.coap;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that reads a {@link PayloadSource} from the beginning.
+ * Closing the stream does not close the source.
+ */
+public class PayloadSourceStream extends InputStream {
+
+	private final PayloadSource source;
+	private int position;
+	private int mark;
+
+	/**
+	 * Creates a new stream for the specified source.
+	 * 
+	 * @param source the source
+	 */
+	public PayloadSourceStream(PayloadSource source) {
+		if (source == null)
+			throw new NullPointerException();
+		this.source = source;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		return read(single, 0, 1) == 1 ? single[0] & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		int count = source.read(position, buffer, offset, length);
+		if (count <= 0)
+			return -1;
+		position += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) {
+		int skipped = (int) Math.max(0, Math.min(n, source.size() - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return source.size() - position;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = position;
+	}
+
+	@Override
+	public synchronized void reset() {
+		position = mark;
+	}
+}
@@ -105,6 +105,12 @@ public class Request extends Message {
 	/** the authenticated (remote) sender's identity **/
 	private Principal senderIdentity;
 	
+	/** The time to wait for a response in ms or 0 to wait until the retransmissions end */
+	private long responseTimeout;
+	
+	/** Indicates whether the stack completes the exchange when the request is canceled */
+	private boolean completeOnCancel;
+	
 	/**
 	 * Instantiates a new request with the specified CoAP code and no (null)
 	 * message type.
@@ -193,6 +199,16 @@ public class Request extends Message {
 		return this;
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * Required in Request to keep class for fluent API.
+	 */
+	public Request setPayload(byte[] buffer, int offset, int length) {
+		super.setPayload(buffer, offset, length);
+		return this;
+	}
+	
 	/**
 	 * This is a convenience method to set the reques's options for host, port
 	 * and path with a string of the form
@@ -324,6 +340,62 @@ public class Request extends Message {
 		return this;
 	}
 	
+	/**
+	 * Gets the time that the stack waits for a response before the request
+	 * times out.
+	 * 
+	 * @return the response timeout in ms or 0 if the request only times out
+	 *         when the retransmissions end
+	 */
+	public long getResponseTimeout() {
+		return responseTimeout;
+	}
+	
+	/**
+	 * Sets the time that the stack waits for a response before the request
+	 * times out. The stack then marks the request as timed out and cleans up
+	 * its exchange. Unlike {@link #waitForResponse(long)}, this does not
+	 * block a thread and also applies to asynchronous requests. A
+	 * notification of an observe request only counts as response for the
+	 * first notification. Must be set before the request is sent.
+	 * 
+	 * @param timeout the response timeout in ms or 0 to wait until the
+	 *            retransmissions end
+	 * @return this request
+	 */
+	public Request setResponseTimeout(long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Response timeout must not be negative but is " + timeout);
+		this.responseTimeout = timeout;
+		return this;
+	}
+	
+	/**
+	 * Checks if the stack completes the exchange when the request is
+	 * canceled.
+	 * 
+	 * @return true if the exchange is completed on cancel
+	 */
+	public boolean isCompleteOnCancel() {
+		return completeOnCancel;
+	}
+	
+	/**
+	 * Sets whether the stack completes the exchange when the request is
+	 * canceled, so that the endpoint forgets its token and MID right away
+	 * instead of when the exchange ends. A
+	 * {@link org.eclipse.californium.core.CoapFuture} sets this for its
+	 * request. Must be set before the request is sent and has no effect on
+	 * observe requests.
+	 * 
+	 * @param completeOnCancel true to complete the exchange on cancel
+	 * @return this request
+	 */
+	public Request setCompleteOnCancel(boolean completeOnCancel) {
+		this.completeOnCancel = completeOnCancel;
+		return this;
+	}
+	
 	/**
 	 * Sends the request over the default endpoint to its destination and
 	 * expects a response back.
@@ -412,8 +484,7 @@ public class Request extends Message {
 		}
 		// else: we know that nobody is waiting on the lock
 		
-		for (MessageObserver handler:getMessageObservers())
-			handler.onResponse(response);
+		fire(MessageEvent.RESPONSE, response);
 	}
 	
 	/**
@@ -460,7 +531,7 @@ public class Request extends Message {
 		}
 		// wait for response
 		synchronized (lock) {
-			while (this.response == null && !isCanceled() && !isTimedOut() && !isRejected()) {
+			while (this.response == null && !isCanceled() && !isTimedOut() && !isRejected() && !isOverloaded()) {
 				lock.wait(timeout);
 				long now = System.currentTimeMillis();				
 				// timeout expired?
@@ -517,6 +588,16 @@ public class Request extends Message {
 		}
 	}
 	
+	@Override
+	public void setOverloaded(boolean overloaded) {
+		super.setOverloaded(overloaded);
+		if (overloaded && lock != null) {
+			synchronized (lock) {
+				lock.notifyAll();
+			}
+		}
+	}
+	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -25,6 +25,7 @@ package org.eclipse.californium.core.coap;
 
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.network.serialization.NotificationTemplate;
 
 /**
  * Response represents a CoAP response to a CoAP request. A response is either a
@@ -41,6 +42,9 @@ public class Response extends Message {
 
 	private boolean last = true;
 	
+	/** The shared encoding of a notification or null */
+	private NotificationTemplate template;
+	
 	/**
 	 * Instantiates a new response with the specified response code.
 	 *
@@ -121,6 +125,27 @@ public class Response extends Message {
 		this.last = last;
 	}
 
+	/**
+	 * Gets the template with the shared encoding of this notification.
+	 *
+	 * @return the template or null if the response is encoded on its own
+	 */
+	public NotificationTemplate getNotificationTemplate() {
+		return template;
+	}
+
+	/**
+	 * Sets the template with the shared encoding of this notification. The
+	 * serializer then only writes the header, token and Observe option of
+	 * this response around the shared bytes of the template. The template
+	 * must match the code, options and payload of this response.
+	 *
+	 * @param template the template
+	 */
+	public void setNotificationTemplate(NotificationTemplate template) {
+		this.template = template;
+	}
+
 	public long getRTT() {
 		return rtt;
 	}
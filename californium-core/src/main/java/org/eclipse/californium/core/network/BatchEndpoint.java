@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ * 
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ * 
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ * 
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.util.List;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+/**
+ * An {@link Endpoint} that sends a batch of messages in one task of its
+ * protocol stage. Callers check for this interface and send the messages one
+ * by one to other endpoints, so that implementations of {@link Endpoint}
+ * need not support batches.
+ */
+public interface BatchEndpoint extends Endpoint {
+
+	/**
+	 * Send the specified requests as one batch. The endpoint processes the
+	 * whole batch in one task of its protocol stage.
+	 *
+	 * @param requests the requests
+	 */
+	public void sendRequests(List<Request> requests);
+
+	/**
+	 * Send the specified responses as one batch. The i-th response belongs to
+	 * the i-th exchange. The endpoint processes the whole batch in one task of
+	 * its protocol stage, e.g., to fan out the notifications of a resource.
+	 *
+	 * @param exchanges the exchanges
+	 * @param responses the responses
+	 */
+	public void sendResponses(List<Exchange> exchanges, List<Response> responses);
+
+}
@@ -39,7 +39,7 @@ import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.EndpointManager.ClientMessageDeliverer;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.network.interceptors.MessageInterceptor;
-import org.eclipse.californium.core.network.serialization.DataParser;
+import org.eclipse.californium.core.network.serialization.LazyDataParser;
 import org.eclipse.californium.core.network.serialization.Serializer;
 import org.eclipse.californium.core.network.stack.BlockwiseLayer;
 import org.eclipse.californium.core.network.stack.CoapStack;
@@ -112,7 +112,7 @@ import org.eclipse.californium.elements.UDPConnector;
  * The endpoint and its layers use an {@link ScheduledExecutorService} to
  * execute tasks, e.g., when a request arrives.
  */
-public class CoAPEndpoint implements Endpoint {
+public class CoAPEndpoint implements BatchEndpoint {
 	
 	/** the logger. */
 	private final static Logger LOGGER = Logger.getLogger(CoAPEndpoint.class.getCanonicalName());
@@ -400,6 +400,25 @@ public class CoAPEndpoint implements Endpoint {
 		});
 	}
 	
+	/* (non-Javadoc)
+	 * @see org.eclipse.californium.core.network.BatchEndpoint#sendRequests(java.util.List)
+	 */
+	@Override
+	public void sendRequests(final List<Request> requests) {
+		// one task of the protocol stage for the whole batch
+		executor.execute(new Runnable() {
+			public void run() {
+				for (Request request:requests) {
+					try {
+						coapstack.sendRequest(request);
+					} catch (Throwable t) {
+						LOGGER.log(Level.WARNING, "Exception while sending request in batch", t);
+					}
+				}
+			}
+		});
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.eclipse.californium.core.network.Endpoint#sendResponse(org.eclipse.californium.core.network.Exchange, org.eclipse.californium.core.coap.Response)
 	 */
@@ -422,6 +441,28 @@ public class CoAPEndpoint implements Endpoint {
 		}
 	}
 	
+	/* (non-Javadoc)
+	 * @see org.eclipse.californium.core.network.BatchEndpoint#sendResponses(java.util.List, java.util.List)
+	 */
+	@Override
+	public void sendResponses(final List<Exchange> exchanges, final List<Response> responses) {
+		if (exchanges.size() != responses.size())
+			throw new IllegalArgumentException("Expected one response per exchange but got "+responses.size()+" for "+exchanges.size());
+		Runnable batch = new Runnable() {
+			public void run() {
+				for (int i = 0; i < exchanges.size(); i++) {
+					try {
+						coapstack.sendResponse(exchanges.get(i), responses.get(i));
+					} catch (Exception e) {
+						LOGGER.log(Level.WARNING, "Exception while sending response in batch", e);
+					}
+				}
+			}
+		};
+		if (executor == null) batch.run();
+		else executor.execute(batch);
+	}
+	
 	/* (non-Javadoc)
 	 * @see org.eclipse.californium.core.network.Endpoint#sendEmptyMessage(org.eclipse.californium.core.network.Exchange, org.eclipse.californium.core.coap.EmptyMessage)
 	 */
@@ -567,7 +608,7 @@ public class CoAPEndpoint implements Endpoint {
 		 * the stack of layers.
 		 */
 		private void receiveMessage(RawData raw) {
-			DataParser parser = new DataParser(raw.getBytes());
+			LazyDataParser parser = new LazyDataParser(raw.getBytes());
 			
 			if (parser.isRequest()) {
 				// This is a request
@@ -20,17 +20,20 @@
 package org.eclipse.californium.core.network;
 
 import java.util.Arrays;
-import java.util.concurrent.ScheduledFuture;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.californium.core.Utils;
 import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.stack.BlockwiseLayer;
 import org.eclipse.californium.core.network.stack.BlockwiseStatus;
+import org.eclipse.californium.core.network.stack.RetransmissionTimer;
 import org.eclipse.californium.core.observe.ObserveRelation;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
@@ -125,7 +128,10 @@ public class Exchange {
 	private int failedTransmissionCount = 0;
 
 	// handle to cancel retransmission
-	private ScheduledFuture<?> retransmissionHandle = null;
+	private RetransmissionTimer.Timeout retransmissionHandle = null;
+	
+	// handle to cancel the response timeout of the request
+	private volatile RetransmissionTimer.Timeout responseTimeoutHandle = null;
 	
 	// If the request was sent with a block1 option the response has to send its
 	// first block piggy-backed with the Block1 option of the last request block
@@ -134,6 +140,14 @@ public class Exchange {
 	// The relation that the target resource has established with the source
 	private ObserveRelation relation;
 	
+	// The identity of the blockwise transfer if the matcher tracks it
+	private volatile KeyBlockwise blockwiseKey;
+	
+	// The identities under which the matcher stores this exchange
+	private volatile KeyMID localMidKey;
+	private volatile KeyMID remoteMidKey;
+	private volatile KeyToken tokenKey;
+	
 	// When the request is handled by an executor different than the protocol stage set to true.
 	// The endpoint will hand sending responses over to the protocol stage executor
 	private boolean customExecutor = false;
@@ -377,22 +391,38 @@ public class Exchange {
 		this.currentTimeout = currentTimeout;
 	}
 
-	public ScheduledFuture<?> getRetransmissionHandle() {
+	public RetransmissionTimer.Timeout getRetransmissionHandle() {
 		return retransmissionHandle;
 	}
 
-	public void setRetransmissionHandle(ScheduledFuture<?> retransmissionHandle) {
+	public void setRetransmissionHandle(RetransmissionTimer.Timeout retransmissionHandle) {
 		if (this.retransmissionHandle!=null) {
 			// avoid race condition of multiple responses (e.g., notifications)
 			synchronized (this) {
 				if (this.retransmissionHandle!=null) {
-					this.retransmissionHandle.cancel(false);
+					this.retransmissionHandle.cancel();
 				}
 			}
 		}
 		this.retransmissionHandle = retransmissionHandle;
 	}
 
+	public RetransmissionTimer.Timeout getResponseTimeoutHandle() {
+		return responseTimeoutHandle;
+	}
+
+	/**
+	 * Sets the handle of the response timeout and cancels the previous one.
+	 * 
+	 * @param responseTimeoutHandle the handle or null
+	 */
+	public void setResponseTimeoutHandle(RetransmissionTimer.Timeout responseTimeoutHandle) {
+		RetransmissionTimer.Timeout previous = this.responseTimeoutHandle;
+		this.responseTimeoutHandle = responseTimeoutHandle;
+		if (previous != null)
+			previous.cancel();
+	}
+
 	public void setObserver(ExchangeObserver observer) {
 		this.observer = observer;
 	}
@@ -403,6 +433,15 @@ public class Exchange {
 
 	public void setComplete() {
 		this.complete = true;
+		if (responseTimeoutHandle != null)
+			setResponseTimeoutHandle(null);
+		// Release the buffer of a body that has been received blockwise. The
+		// server owns the body of a request until it has responded. The
+		// blockwise layer reads the assembled body of a response onto the
+		// heap, so that only the buffer of an incomplete transfer is left.
+		BlockwiseStatus status = origin == Origin.REMOTE ? requestBlockStatus : responseBlockStatus;
+		if (status != null)
+			status.close();
 		ExchangeObserver obs = this.observer;
 		if (obs != null)
 			obs.completed(this);
@@ -430,6 +469,85 @@ public class Exchange {
 		this.relation = relation;
 	}
 
+	/**
+	 * Returns the identity under which the matcher tracks the blockwise
+	 * transfer of this exchange.
+	 * 
+	 * @return the key or null if no blockwise transfer is tracked
+	 */
+	public KeyBlockwise getBlockwiseKey() {
+		return blockwiseKey;
+	}
+
+	/**
+	 * Sets the identity under which the matcher tracks the blockwise transfer
+	 * of this exchange.
+	 * 
+	 * @param blockwiseKey the key
+	 */
+	public void setBlockwiseKey(KeyBlockwise blockwiseKey) {
+		this.blockwiseKey = blockwiseKey;
+	}
+
+	/**
+	 * Returns the identity of the outgoing CON or NON message that the
+	 * matcher has stored under a MID from the local namespace, i.e., the
+	 * current request of a local exchange or the last response of a remote
+	 * exchange.
+	 * 
+	 * @return the key or null if no message is stored
+	 */
+	public KeyMID getLocalMidKey() {
+		return localMidKey;
+	}
+
+	/**
+	 * Sets the identity of the outgoing message the matcher has stored by MID.
+	 * 
+	 * @param localMidKey the key
+	 */
+	public void setLocalMidKey(KeyMID localMidKey) {
+		this.localMidKey = localMidKey;
+	}
+
+	/**
+	 * Returns the identity of the request of a remote exchange, i.e., its MID
+	 * from the namespace of the remote endpoint and its source.
+	 * 
+	 * @return the key or null for a local exchange
+	 */
+	public KeyMID getRemoteMidKey() {
+		return remoteMidKey;
+	}
+
+	/**
+	 * Sets the identity of the request of a remote exchange.
+	 * 
+	 * @param remoteMidKey the key
+	 */
+	public void setRemoteMidKey(KeyMID remoteMidKey) {
+		this.remoteMidKey = remoteMidKey;
+	}
+
+	/**
+	 * Returns the identity under which the matcher has stored the token of the
+	 * current request of a local exchange.
+	 * 
+	 * @return the key or null if no token is stored
+	 */
+	public KeyToken getTokenKey() {
+		return tokenKey;
+	}
+
+	/**
+	 * Sets the identity under which the matcher has stored the token.
+	 * 
+	 * @param tokenKey the key
+	 */
+	public void setTokenKey(KeyToken tokenKey) {
+		this.tokenKey = tokenKey;
+	}
+
 	/**
 	 * Checks if this exchange was delivered to a handler with custom Executor.
 	 * If so, the protocol stage must hand the processing over to its own Executor.
@@ -452,7 +570,10 @@ public class Exchange {
 
 	/**
 	 * This class is used by the matcher to remember a message by its MID and
-	 * source/destination.
+	 * source/destination. The key is packed like in the
+	 * {@link PackedExchangeStore} when it is created, so that the matcher can
+	 * reuse it for every operation on the exchange without hashing the
+	 * address again. The address must not be modified.
 	 */
 	public static final class KeyMID {
 		
@@ -461,11 +582,28 @@ public class Exchange {
 		protected final int port;
 		private final int hash;
 		
+		// the packed key
+		final long k0, k1, k2;
+		
 		public KeyMID(int mid, byte[] address, int port) {
 			this.MID = mid;
 			this.address = address;
 			this.port = port;
-			this.hash = (port*31 + mid) * 31 + Arrays.hashCode(address);
+			this.k0 = PackedExchangeStore.addressHigh(address);
+			this.k1 = PackedExchangeStore.addressLow(address);
+			this.k2 = PackedExchangeStore.midKey(mid, address, port);
+			this.hash = PackedExchangeStore.hash(k0, k1, k2);
+		}
+		
+		/**
+		 * Returns the key of another MID of the same remote endpoint, e.g.,
+		 * of a previous notification, without copying the address.
+		 * 
+		 * @param mid the message ID
+		 * @return the key
+		 */
+		public KeyMID withMID(int mid) {
+			return new KeyMID(mid, address, port);
 		}
 		
 		@Override
@@ -478,7 +616,7 @@ public class Exchange {
 			if (! (o instanceof KeyMID))
 				return false;
 			KeyMID key = (KeyMID) o;
-			return MID == key.MID && port == key.port && Arrays.equals(address, key.address);
+			return k2 == key.k2 && k0 == key.k0 && k1 == key.k1;
 		}
 		
 		@Override
@@ -489,18 +627,23 @@ public class Exchange {
 	
 	/**
 	 * This class is used by the matcher to remember a request by its token and
-	 * destination.
+	 * destination. Like {@link KeyMID}, the key is packed when it is created.
 	 */
 	public static final class KeyToken {
 
 		protected final byte[] token;
 		private final int hash;
+		
+		// the packed key
+		final long k0, k2;
 
 		public KeyToken(byte[] token) {
 			if (token == null)
 				throw new NullPointerException();
 			this.token = token;
-			this.hash = Arrays.hashCode(token);
+			this.k0 = PackedExchangeStore.packToken(token);
+			this.k2 = PackedExchangeStore.tokenKey(token);
+			this.hash = PackedExchangeStore.hash(k0, 0, k2);
 		}
 		
 		@Override
@@ -513,7 +656,7 @@ public class Exchange {
 			if (! (o instanceof KeyToken))
 				return false;
 			KeyToken key = (KeyToken) o;
-			return Arrays.equals(token, key.token);
+			return k2 == key.k2 && k0 == key.k0;
 		}
 		
 		@Override
@@ -525,7 +668,11 @@ public class Exchange {
 	/**
 	 * This class is used by the matcher to remember a request by its 
 	 * destination URI (for observe relations).
+	 * 
+	 * @deprecated the matcher uses {@link KeyBlockwise}, which does not build
+	 *             the URI string.
 	 */
+	@Deprecated
 	public static class KeyUri {
 
 		protected final String uri;
@@ -560,4 +707,93 @@ public class Exchange {
 			return "KeyUri["+uri+" for "+Utils.toHexString(address)+":"+port+"]";
 		}
 	}
+
+	/**
+	 * This class is used by the matcher to remember a blockwise transfer by
+	 * the remote endpoint and the encoded Uri-Path and Uri-Query options of
+	 * its request. It is computed once per exchange from the option values and
+	 * does not build the URI string.
+	 */
+	public static final class KeyBlockwise {
+
+		private static final byte[] EMPTY = new byte[0];
+
+		protected final byte[] path;
+		protected final byte[] query;
+		protected final byte[] address;
+		protected final int port;
+		private final int hash;
+
+		public KeyBlockwise(byte[] path, byte[] query, byte[] address, int port) {
+			if (path == null) throw new NullPointerException();
+			if (query == null) throw new NullPointerException();
+			if (address == null) throw new NullPointerException();
+			this.path = path;
+			this.query = query;
+			this.address = address;
+			this.port = port;
+			this.hash = ((port*31 + Arrays.hashCode(path)) * 31 + Arrays.hashCode(query)) * 31 + Arrays.hashCode(address);
+		}
+
+		/**
+		 * Creates the key for the specified request from its source. If the
+		 * parser has deferred decoding the Uri-Path, the key uses the encoded
+		 * segments as they are.
+		 * 
+		 * @param request the received request
+		 * @return the key
+		 */
+		public static KeyBlockwise fromRequest(Request request) {
+			OptionSet options = request.getOptions();
+			byte[] path = options.getEncodedUriPath();
+			if (path == null)
+				path = encode(options.getUriPath());
+			byte[] query = options.getURIQueryCount() == 0 ? EMPTY : encode(options.getUriQuery());
+			return new KeyBlockwise(path, query, request.getSource().getAddress(), request.getSourcePort());
+		}
+
+		/*
+		 * Encodes the segments with a length prefix each as the parser does for
+		 * the Uri-Path (see OptionSet#getEncodedUriPath()).
+		 */
+		private static byte[] encode(List<String> segments) {
+			if (segments.isEmpty())
+				return EMPTY;
+			byte[][] encoded = new byte[segments.size()][];
+			int size = 0, index = 0;
+			for (String segment:segments) {
+				byte[] bytes = segment.getBytes(CoAP.UTF8_CHARSET);
+				encoded[index++] = bytes;
+				size += 1 + Math.min(bytes.length, 255);
+			}
+			byte[] key = new byte[size];
+			int position = 0;
+			for (byte[] bytes:encoded) {
+				// longer options are invalid but must not break the key
+				int length = Math.min(bytes.length, 255);
+				key[position++] = (byte) length;
+				System.arraycopy(bytes, 0, key, position, length);
+				position += length;
+			}
+			return key;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (! (o instanceof KeyBlockwise))
+				return false;
+			KeyBlockwise key = (KeyBlockwise) o;
+			return port == key.port && Arrays.equals(path, key.path) && Arrays.equals(query, key.query) && Arrays.equals(address, key.address);
+		}
+
+		@Override
+		public String toString() {
+			return "KeyBlockwise["+Utils.toHexString(path)+"?"+Utils.toHexString(query)+" for "+Utils.toHexString(address)+":"+port+"]";
+		}
+	}
 }
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.util.List;
+
+import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.Exchange.KeyToken;
+
+/**
+ * An exchange store is a concurrent index of exchanges. The {@link Matcher}
+ * uses it to find exchanges by message ID or by token and the deduplicators
+ * use it to remember incoming messages.
+ * <p>
+ * Exchanges are stored either under a message ID and the address and port of
+ * the remote endpoint or under a token. The address of a message ID key can
+ * be null, e.g., if only local MIDs are stored. Implementations should not
+ * allocate objects for lookups, since they are on the path of every message.
+ * For exchanges that are stored and removed several times, the matcher keeps
+ * a {@link KeyMID} and {@link KeyToken} on the exchange and passes them
+ * instead of the message fields.
+ * All methods are thread-safe.
+ */
+public interface ExchangeStore {
+
+	/**
+	 * Flag to combine with a MID to distinguish a MID that this endpoint has
+	 * chosen for messages to a remote endpoint from the same MID chosen by the
+	 * remote endpoint, e.g., <code>mid | LOCAL_NAMESPACE</code> for an ACK.
+	 */
+	public static final int LOCAL_NAMESPACE = 1 << 16;
+
+	/**
+	 * Returns the exchange stored under the specified MID, address and port.
+	 *
+	 * @param mid the message ID
+	 * @param address the address of the remote endpoint or null
+	 * @param port the port of the remote endpoint
+	 * @return the exchange or null if none is stored
+	 */
+	public Exchange get(int mid, byte[] address, int port);
+
+	/**
+	 * Stores the exchange under the specified MID, address and port.
+	 *
+	 * @param mid the message ID
+	 * @param address the address of the remote endpoint or null
+	 * @param port the port of the remote endpoint
+	 * @param exchange the exchange
+	 * @return the exchange stored before or null
+	 */
+	public Exchange put(int mid, byte[] address, int port, Exchange exchange);
+
+	/**
+	 * Stores the exchange under the specified MID, address and port unless
+	 * there is already an exchange stored. The operation is atomic.
+	 *
+	 * @param mid the message ID
+	 * @param address the address of the remote endpoint or null
+	 * @param port the port of the remote endpoint
+	 * @param exchange the exchange
+	 * @return the exchange stored before or null if the exchange was stored
+	 */
+	public Exchange putIfAbsent(int mid, byte[] address, int port, Exchange exchange);
+
+	/**
+	 * Removes the exchange stored under the specified MID, address and port.
+	 *
+	 * @param mid the message ID
+	 * @param address the address of the remote endpoint or null
+	 * @param port the port of the remote endpoint
+	 * @return the removed exchange or null
+	 */
+	public Exchange remove(int mid, byte[] address, int port);
+
+	/**
+	 * Removes the exchange stored under the specified MID, address and port
+	 * only if it is the specified exchange. The operation is atomic.
+	 *
+	 * @param mid the message ID
+	 * @param address the address of the remote endpoint or null
+	 * @param port the port of the remote endpoint
+	 * @param exchange the expected exchange
+	 * @return true if the exchange has been removed
+	 */
+	public boolean remove(int mid, byte[] address, int port, Exchange exchange);
+
+	/**
+	 * Returns the exchange stored under the MID, address and port of the
+	 * specified key.
+	 *
+	 * @param key the key
+	 * @return the exchange or null if none is stored
+	 */
+	public Exchange get(KeyMID key);
+
+	/**
+	 * Stores the exchange under the MID, address and port of the specified
+	 * key.
+	 *
+	 * @param key the key
+	 * @param exchange the exchange
+	 * @return the exchange stored before or null
+	 */
+	public Exchange put(KeyMID key, Exchange exchange);
+
+	/**
+	 * Removes the exchange stored under the MID, address and port of the
+	 * specified key only if it is the specified exchange.
+	 *
+	 * @param key the key
+	 * @param exchange the expected exchange
+	 * @return true if the exchange has been removed
+	 */
+	public boolean remove(KeyMID key, Exchange exchange);
+
+	/**
+	 * Returns the exchange stored under the specified token.
+	 *
+	 * @param token the token (at most 8 bytes)
+	 * @return the exchange or null if none is stored
+	 */
+	public Exchange get(byte[] token);
+
+	/**
+	 * Stores the exchange under the specified token.
+	 *
+	 * @param token the token (at most 8 bytes)
+	 * @param exchange the exchange
+	 * @return the exchange stored before or null
+	 */
+	public Exchange put(byte[] token, Exchange exchange);
+
+	/**
+	 * Removes the exchange stored under the specified token.
+	 *
+	 * @param token the token (at most 8 bytes)
+	 * @return the removed exchange or null
+	 */
+	public Exchange remove(byte[] token);
+
+	/**
+	 * Removes the entry for the specified token only if it is stored for the
+	 * specified exchange.
+	 *
+	 * @param token the token (at most 8 bytes)
+	 * @param exchange the expected exchange
+	 * @return true if the entry has been removed
+	 */
+	public boolean remove(byte[] token, Exchange exchange);
+
+	/**
+	 * Returns the exchange stored under the token of the specified key.
+	 *
+	 * @param key the key
+	 * @return the exchange or null if none is stored
+	 */
+	public Exchange get(KeyToken key);
+
+	/**
+	 * Stores the exchange under the token of the specified key.
+	 *
+	 * @param key the key
+	 * @param exchange the exchange
+	 * @return the exchange stored before or null
+	 */
+	public Exchange put(KeyToken key, Exchange exchange);
+
+	/**
+	 * Removes the entry for the token of the specified key only if it is
+	 * stored for the specified exchange.
+	 *
+	 * @param key the key
+	 * @param exchange the expected exchange
+	 * @return true if the entry has been removed
+	 */
+	public boolean remove(KeyToken key, Exchange exchange);
+
+	/**
+	 * Removes all exchanges that the specified filter accepts. The filter must
+	 * not call back into this store.
+	 *
+	 * @param filter the filter
+	 * @return the number of removed exchanges
+	 */
+	public int removeIf(Filter filter);
+
+	/**
+	 * Returns a snapshot of all stored exchanges.
+	 *
+	 * @return the exchanges
+	 */
+	public List<Exchange> values();
+
+	/**
+	 * Returns the number of stored exchanges.
+	 *
+	 * @return the number of exchanges
+	 */
+	public int size();
+
+	/**
+	 * Removes all exchanges.
+	 */
+	public void clear();
+
+	/**
+	 * A filter selects the exchanges to remove in {@link ExchangeStore#removeIf(Filter)}.
+	 */
+	public interface Filter {
+
+		/**
+		 * Returns true if the specified exchange should be removed.
+		 *
+		 * @param exchange the exchange
+		 * @return true to remove the exchange
+		 */
+		public boolean accept(Exchange exchange);
+	}
+}
@@ -19,12 +19,15 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,9 +36,9 @@ import org.eclipse.californium.core.coap.EmptyMessage;
 import org.eclipse.californium.core.coap.Message;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange.KeyBlockwise;
 import org.eclipse.californium.core.network.Exchange.KeyMID;
 import org.eclipse.californium.core.network.Exchange.KeyToken;
-import org.eclipse.californium.core.network.Exchange.KeyUri;
 import org.eclipse.californium.core.network.Exchange.Origin;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.network.deduplication.Deduplicator;
@@ -52,12 +55,15 @@ public class Matcher {
 	/** The executor. */
 	private ScheduledExecutorService executor;
 	
-	// TODO: Make per endpoint
-	private AtomicInteger currendMID; 
+	/** The MID trackers of the remote endpoints */
+	private ConcurrentHashMap<InetSocketAddress, MessageIdTracker> midTrackers;
+	private Random midStart; // null for MIDs starting at 0
+	private long exchangeLifetime;
+	private ScheduledFuture<?> trackerSweep;
 	
-	private ConcurrentHashMap<KeyMID, Exchange> exchangesByMID; // for all
-	private ConcurrentHashMap<KeyToken, Exchange> exchangesByToken; // for outgoing
-	private ConcurrentHashMap<KeyUri, Exchange> ongoingExchanges; // for blockwise
+	private ExchangeStore exchangesByMID; // for all
+	private ExchangeStore exchangesByToken; // for outgoing
+	private ConcurrentHashMap<KeyBlockwise, Exchange> ongoingExchanges; // for blockwise
 	
 	// TODO: Multicast Exchanges: should not be removed from deduplicator
 	private Deduplicator deduplicator;
@@ -69,18 +75,18 @@ public class Matcher {
 	
 	public Matcher(NetworkConfig config) {
 		this.started = false;
-		this.exchangesByMID = new ConcurrentHashMap<KeyMID, Exchange>();
-		this.exchangesByToken = new ConcurrentHashMap<KeyToken, Exchange>();
-		this.ongoingExchanges = new ConcurrentHashMap<KeyUri, Exchange>();
+		this.exchangesByMID = new PackedExchangeStore();
+		this.exchangesByToken = new PackedExchangeStore();
+		this.ongoingExchanges = new ConcurrentHashMap<KeyBlockwise, Exchange>();
 
 		DeduplicatorFactory factory = DeduplicatorFactory.getDeduplicatorFactory();
 		this.deduplicator = factory.createDeduplicator(config);
 		
+		this.midTrackers = new ConcurrentHashMap<InetSocketAddress, MessageIdTracker>();
 		if (config.getBoolean(NetworkConfig.Keys.USE_RANDOM_MID_START)) {
-			currendMID = new AtomicInteger(new Random().nextInt(1<<16));
-		} else {
-			currendMID = new AtomicInteger(0);
+			midStart = new Random();
 		}
+		exchangeLifetime = config.getLong(NetworkConfig.Keys.EXCHANGE_LIFETIME);
 		
 		healthStatusLevel = Level.parse(config.getString(NetworkConfig.Keys.HEALTH_STATUS_PRINT_LEVEL));
 		healthStatusInterval = config.getInt(NetworkConfig.Keys.HEALTH_STATUS_INTERVAL);
@@ -95,12 +101,24 @@ public class Matcher {
 		
 		deduplicator.start();
 		
+		// forget the MIDs of remote endpoints we have not talked to for an EXCHANGE_LIFETIME
+		trackerSweep = executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sweepMessageIdTrackers();
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception while sweeping MID trackers", t);
+				}
+			}
+		}, exchangeLifetime, exchangeLifetime, TimeUnit.MILLISECONDS);
+		
 		// this is a useful health metric that could later be exported to some kind of monitoring interface
 		if (LOGGER.isLoggable(healthStatusLevel)) {
 			executor.scheduleAtFixedRate(new Runnable() {
 				@Override
 				public void run() {
-					LOGGER.log(healthStatusLevel, "Matcher state: " + exchangesByMID.size() + " exchangesByMID, " + exchangesByToken.size() + " exchangesByToken, " + ongoingExchanges.size() + " ongoingExchanges");
+					LOGGER.log(healthStatusLevel, "Matcher state: " + exchangesByMID.size() + " exchangesByMID, " + exchangesByToken.size() + " exchangesByToken, " + ongoingExchanges.size() + " ongoingExchanges, " + midTrackers.size() + " midTrackers");
 				}
 			}, healthStatusInterval, healthStatusInterval, TimeUnit.SECONDS);
 		}
@@ -109,6 +127,8 @@ public class Matcher {
 	public synchronized void stop() {
 		if (!started) return;
 		else started = false;
+		if (trackerSweep != null)
+			trackerSweep.cancel(false);
 		deduplicator.stop();
 		clear();
 	}
@@ -122,7 +142,7 @@ public class Matcher {
 	public void sendRequest(Exchange exchange, Request request) {
 		
 		if (request.getMID() == Message.NONE)
-			request.setMID(currendMID.getAndIncrement()%(1<<16));
+			request.setMID(nextMessageId(request.getDestination(), request.getDestinationPort()));
 
 		/*
 		 * The request is a CON or NON and must be prepared for these responses
@@ -131,14 +151,16 @@ public class Matcher {
 		 * If this request goes lost, we do not get anything back.
 		 */
 
-		// the MID is from the local namespace -- use blank address
-		KeyMID idByMID = new KeyMID(request.getMID(), null, 0);
-		KeyToken idByToken = new KeyToken(request.getToken());
-		
+		// the MID is from the local namespace of the destination
 		exchange.setObserver(exchangeObserver);
 		
-		if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Stored open request by "+idByMID+", "+idByToken);
+		if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Stored open request by MID "+request.getMID()+", token "+request.getTokenString());
 		
+		// the keys are packed once and reused until the exchange completes
+		KeyMID idByMID = new KeyMID(request.getMID(), request.getDestination().getAddress(), request.getDestinationPort());
+		KeyToken idByToken = new KeyToken(request.getToken());
+		exchange.setLocalMidKey(idByMID);
+		exchange.setTokenKey(idByToken);
 		exchangesByMID.put(idByMID, exchange);
 		exchangesByToken.put(idByToken, exchange);
 	}
@@ -146,7 +168,7 @@ public class Matcher {
 	public void sendResponse(Exchange exchange, Response response) {
 		
 		if (response.getMID() == Message.NONE)
-			response.setMID(currendMID.getAndIncrement()%(1<<16));
+			response.setMID(nextMessageId(response.getDestination(), response.getDestinationPort()));
 		
 		/*
 		 * The response is a CON or NON or ACK and must be prepared for these
@@ -162,29 +184,33 @@ public class Matcher {
 		if (response.getType() == Type.CON || response.getType() == Type.ACK) {
 			ObserveRelation relation = exchange.getRelation();
 			if (relation != null) {
-				removeNotificatoinsOf(relation);
+				removeNotificatoinsOf(relation, exchange);
 			}
 		}
 		
-		// Blockwise transfers are identified by URI and remote endpoint
+		// Blockwise transfers are identified by resource and remote endpoint
 		if (response.getOptions().hasBlock2()) {
-			Request request = exchange.getRequest();
-			KeyUri idByUri = new KeyUri(request.getURI(),
-					response.getDestination().getAddress(), response.getDestinationPort());
+			KeyBlockwise idByResource = exchange.getBlockwiseKey();
 			if (exchange.getResponseBlockStatus()!=null && !response.getOptions().hasObserve()) {
 				// Remember ongoing blockwise GET requests
-				LOGGER.fine("Ongoing Block2 started, storing "+idByUri + "\nOngoing " + request + "\nOngoing " + response);
-				ongoingExchanges.put(idByUri, exchange);
-			} else {
-				LOGGER.fine("Ongoing Block2 completed, cleaning up "+idByUri + "\nOngoing " + request + "\nOngoing " + response);
-				ongoingExchanges.remove(idByUri);
+				if (idByResource == null) {
+					idByResource = KeyBlockwise.fromRequest(exchange.getCurrentRequest());
+					exchange.setBlockwiseKey(idByResource);
+				}
+				if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Ongoing Block2 started, storing "+idByResource + "\nOngoing " + exchange.getRequest() + "\nOngoing " + response);
+				ongoingExchanges.put(idByResource, exchange);
+			} else if (idByResource != null) {
+				if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Ongoing Block2 completed, cleaning up "+idByResource + "\nOngoing " + exchange.getRequest() + "\nOngoing " + response);
+				ongoingExchanges.remove(idByResource, exchange);
+				exchange.setBlockwiseKey(null);
 			}
 		}
 		
 		// Insert CON and NON to match ACKs and RSTs to the exchange.
 		// Do not insert ACKs and RSTs.
 		if (response.getType() == Type.CON || response.getType() == Type.NON) {
-			KeyMID idByMID = new KeyMID(response.getMID(), null, 0);
+			KeyMID idByMID = keyOf(response, exchange);
+			exchange.setLocalMidKey(idByMID);
 			exchangesByMID.put(idByMID, exchange);
 		}
 		
@@ -215,7 +241,9 @@ public class Matcher {
 		 * (Retransmission is supposed to be done by the retransm. layer)
 		 */
 		
-		KeyMID idByMID = new KeyMID(request.getMID(), request.getSource().getAddress(), request.getSourcePort());
+		int mid = request.getMID();
+		byte[] address = request.getSource().getAddress();
+		int port = request.getSourcePort();
 		
 		/*
 		 * The differentiation between the case where there is a Block1 or
@@ -226,8 +254,9 @@ public class Matcher {
 		if (!request.getOptions().hasBlock1() && !request.getOptions().hasBlock2()) {
 
 			Exchange exchange = new Exchange(request, Origin.REMOTE);
-			Exchange previous = deduplicator.findPrevious(idByMID, exchange);
+			Exchange previous = deduplicator.findPrevious(mid, address, port, exchange);
 			if (previous == null) {
+				exchange.setRemoteMidKey(new KeyMID(mid, address, port));
 				exchange.setObserver(exchangeObserver);
 				return exchange;
 				
@@ -239,14 +268,14 @@ public class Matcher {
 			
 		} else {
 			
-			KeyUri idByUri = new KeyUri(request.getURI(), request.getSource().getAddress(), request.getSourcePort());
+			KeyBlockwise idByResource = KeyBlockwise.fromRequest(request);
 			
-			if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Lookup ongoing exchange for "+idByUri);
+			if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Lookup ongoing exchange for "+idByResource);
 			
-			Exchange ongoing = ongoingExchanges.get(idByUri);
+			Exchange ongoing = ongoingExchanges.get(idByResource);
 			if (ongoing != null) {
 				
-				Exchange prev = deduplicator.findPrevious(idByMID, ongoing);
+				Exchange prev = deduplicator.findPrevious(mid, address, port, ongoing);
 				if (prev != null) {
 					LOGGER.info("Duplicate ongoing request: "+request);
 					request.setDuplicate(true);
@@ -264,11 +293,13 @@ public class Matcher {
 				 */
 				
 				Exchange exchange = new Exchange(request, Origin.REMOTE);
-				Exchange previous = deduplicator.findPrevious(idByMID, exchange);
-				LOGGER.fine("New ongoing exchange for remote Block1 request with key "+idByUri);
+				Exchange previous = deduplicator.findPrevious(mid, address, port, exchange);
+				if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("New ongoing exchange for remote Block1 request with key "+idByResource);
 				if (previous == null) {
+					exchange.setRemoteMidKey(new KeyMID(mid, address, port));
 					exchange.setObserver(exchangeObserver);
-					ongoingExchanges.put(idByUri, exchange);
+					exchange.setBlockwiseKey(idByResource);
+					ongoingExchanges.put(idByResource, exchange);
 					return exchange;
 				} else {
 					LOGGER.info("Duplicate initial request: "+request);
@@ -288,34 +319,35 @@ public class Matcher {
 		 * 		=> resend ACK
 		 */
 		
-		KeyMID idByMID;
+		int mid = response.getMID();
+		byte[] address = response.getSource().getAddress();
+		int port = response.getSourcePort();
+		int idByMID;
 		if (response.getType() == Type.ACK) {
-			// own namespace
-			idByMID = new KeyMID(response.getMID(), null, 0);
+			// own namespace of the remote endpoint
+			idByMID = mid | ExchangeStore.LOCAL_NAMESPACE;
 		} else {
 			// remote namespace
-			idByMID = new KeyMID(response.getMID(), response.getSource().getAddress(), response.getSourcePort());
+			idByMID = mid;
 		}
 		
-		KeyToken idByToken = new KeyToken(response.getToken());
-		
-		Exchange exchange = exchangesByToken.get(idByToken);
+		Exchange exchange = exchangesByToken.get(response.getToken());
 		
 		if (exchange != null) {
 			// There is an exchange with the given token
-			Exchange prev = deduplicator.findPrevious(idByMID, exchange);
+			Request request = exchange.getCurrentRequest();
+			Exchange prev = deduplicator.findPrevious(idByMID, address, port, exchange);
 			if (prev != null) { // (and thus it holds: prev == exchange)
 				LOGGER.info("Duplicate response for open exchange: "+response);
 				response.setDuplicate(true);
 			} else {
-				idByMID = new KeyMID(exchange.getCurrentRequest().getMID(), null, 0);
-				if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Exchange got response: Cleaning up "+idByMID);
-				exchangesByMID.remove(idByMID);
+				if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Exchange got response: Cleaning up MID "+request.getMID());
+				removeByMID(keyOf(request, exchange), request.getDestination(), exchange);
 			}
 			
-			if (response.getType() == Type.ACK && exchange.getCurrentRequest().getMID() != response.getMID()) {
+			if (response.getType() == Type.ACK && request.getMID() != mid) {
 				// The token matches but not the MID.
-				LOGGER.warning("Possible MID reuse before lifetime end: "+response.getTokenString()+" expected MID "+exchange.getCurrentRequest().getMID()+" but received "+response.getMID());
+				LOGGER.warning("Possible MID reuse before lifetime end: "+response.getTokenString()+" expected MID "+request.getMID()+" but received "+mid);
 			}
 			
 			return exchange;
@@ -324,7 +356,7 @@ public class Matcher {
 			// There is no exchange with the given token.
 			if (response.getType() != Type.ACK) {
 				// only act upon separate responses
-				Exchange prev = deduplicator.find(idByMID);
+				Exchange prev = deduplicator.find(idByMID, address, port);
 				if (prev != null) {
 					LOGGER.info("Duplicate response for completed exchange: "+response);
 					response.setDuplicate(true);
@@ -341,13 +373,11 @@ public class Matcher {
 	public Exchange receiveEmptyMessage(EmptyMessage message) {
 		
 		// local namespace
-		KeyMID idByMID = new KeyMID(message.getMID(), null, 0);
-		
-		Exchange exchange = exchangesByMID.get(idByMID);
+		Exchange exchange = exchangesByMID.remove(message.getMID(), message.getSource().getAddress(), message.getSourcePort());
 		
 		if (exchange != null) {
-			if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Exchange got reply: Cleaning up "+idByMID);
-			exchangesByMID.remove(idByMID);
+			if (LOGGER.isLoggable(Level.FINE)) LOGGER.fine("Exchange got reply: Cleaning up MID "+message.getMID());
+			releaseMessageId(message.getMID(), message.getSource(), message.getSourcePort());
 			return exchange;
 		} else {
 			LOGGER.info("Ignoring unmatchable empty message: "+message);
@@ -359,16 +389,99 @@ public class Matcher {
 		this.exchangesByMID.clear();
 		this.exchangesByToken.clear();
 		this.ongoingExchanges.clear();
+		this.midTrackers.clear();
 		deduplicator.clear();
 	}
 	
-	private void removeNotificatoinsOf(ObserveRelation relation) {
+	/**
+	 * Allocates the next MID from the namespace of the specified remote
+	 * endpoint.
+	 */
+	private int nextMessageId(InetAddress address, int port) {
+		InetSocketAddress peer = new InetSocketAddress(address, port);
+		while (true) {
+			MessageIdTracker tracker = midTrackers.get(peer);
+			if (tracker == null) {
+				tracker = new MessageIdTracker(midStart == null ? 0 : midStart.nextInt(1<<16), exchangeLifetime);
+				MessageIdTracker previous = midTrackers.putIfAbsent(peer, tracker);
+				if (previous != null)
+					tracker = previous;
+			}
+			int mid = tracker.getNextMessageId();
+			if (mid == MessageIdTracker.RETIRED) {
+				// the sweep has just retired the tracker
+				midTrackers.remove(peer, tracker);
+			} else if (mid == Message.NONE) {
+				throw new IllegalStateException("No free message ID for " + peer);
+			} else {
+				return mid;
+			}
+		}
+	}
+	
+	private void releaseMessageId(int mid, InetAddress address, int port) {
+		MessageIdTracker tracker = midTrackers.get(new InetSocketAddress(address, port));
+		if (tracker != null)
+			tracker.release(mid);
+	}
+	
+	/**
+	 * Removes the exchange from the local MID namespace and frees its MID.
+	 * Nothing happens if the MID has already been freed for the exchange,
+	 * e.g., when an ACK has arrived before, or if another exchange holds it.
+	 */
+	private boolean removeByMID(KeyMID key, InetAddress address, Exchange exchange) {
+		if (key != null && exchangesByMID.remove(key, exchange)) {
+			releaseMessageId(key.MID, address, key.port);
+			return true;
+		} else {
+			return false;
+		}
+	}
+	
+	/*
+	 * Returns the key of a request of a local exchange, which is usually the
+	 * one stored when the request was sent.
+	 */
+	private static KeyMID keyOf(Request request, Exchange exchange) {
+		KeyMID local = exchange.getLocalMidKey();
+		if (local != null && local.MID == request.getMID())
+			return local;
+		else
+			return new KeyMID(request.getMID(), request.getDestination().getAddress(), request.getDestinationPort());
+	}
+	
+	/*
+	 * Returns the key of a response of a remote exchange. Responses usually go
+	 * to the source of the request, whose packed address is reused then.
+	 */
+	private static KeyMID keyOf(Response response, Exchange exchange) {
+		KeyMID local = exchange.getLocalMidKey();
+		if (local != null && local.MID == response.getMID() && local.port == response.getDestinationPort())
+			return local;
+		KeyMID remote = exchange.getRemoteMidKey();
+		if (remote != null && remote.port == response.getDestinationPort()
+				&& response.getDestination().equals(exchange.getCurrentRequest().getSource()))
+			return remote.withMID(response.getMID());
+		else
+			return new KeyMID(response.getMID(), response.getDestination().getAddress(), response.getDestinationPort());
+	}
+	
+	private void sweepMessageIdTrackers() {
+		long oldestAllowed = System.currentTimeMillis() - exchangeLifetime;
+		for (Map.Entry<InetSocketAddress, MessageIdTracker> entry:midTrackers.entrySet()) {
+			MessageIdTracker tracker = entry.getValue();
+			if (tracker.getLastUsage() < oldestAllowed && tracker.retire())
+				midTrackers.remove(entry.getKey(), tracker);
+		}
+	}
+	
+	private void removeNotificatoinsOf(ObserveRelation relation, Exchange exchange) {
 		LOGGER.fine("Remove all remaining NON-notifications of observe relation");
 		for (Iterator<Response> iterator = relation.getNotificationIterator(); iterator.hasNext();) {
 			Response previous = iterator.next();
 			// notifications are local MID namespace
-			KeyMID idByMID = new KeyMID(previous.getMID(), null, 0);
-			exchangesByMID.remove(idByMID);
+			removeByMID(keyOf(previous, exchange), previous.getDestination(), exchange);
 			iterator.remove();
 		}
 	}
@@ -386,38 +499,52 @@ public class Matcher {
 			if (exchange.getOrigin() == Origin.LOCAL) {
 				// this endpoint created the Exchange by issuing a request
 				
-				KeyMID idByMID = new KeyMID(exchange.getCurrentRequest().getMID(), null, 0);
-				KeyToken idByToken = new KeyToken(exchange.getCurrentRequest().getToken());
+				Request request = exchange.getCurrentRequest();
 				
-//				LOGGER.fine("Exchange completed: Cleaning up "+idByTok);
-				exchangesByToken.remove(idByToken);
+//				LOGGER.fine("Exchange completed: Cleaning up "+request.getTokenString());
+				// a new exchange might already use the token, e.g., to cancel an observe relation
+				KeyToken idByToken = exchange.getTokenKey();
+				if (idByToken != null)
+					exchangesByToken.remove(idByToken, exchange);
 				
 				// in case an empty ACK was lost
-				exchangesByMID.remove(idByMID);
+				removeByMID(keyOf(request, exchange), request.getDestination(), exchange);
+				
+				Response response = exchange.getCurrentResponse();
+				if (response != null && response.getSource() != null) {
+					int idByMID = response.getType() == Type.ACK ? response.getMID() | ExchangeStore.LOCAL_NAMESPACE : response.getMID();
+					deduplicator.completed(idByMID, response.getSource().getAddress(), response.getSourcePort(), exchange);
+				}
 			
 			} else { // Origin.REMOTE
 				// this endpoint created the Exchange to respond to a request
 				
 				Request request = exchange.getCurrentRequest();
 				if (request != null) {
-					// TODO: We can optimize this and only do it, when the request really had blockwise transfer
-					KeyUri uriKey = new KeyUri(request.getURI(), request.getSource().getAddress(), request.getSourcePort());
-//					LOGGER.fine("Remote ongoing completed, cleaning up "+uriKey);
-					ongoingExchanges.remove(uriKey);
+					// only exchanges with blockwise transfer have a key
+					KeyBlockwise idByResource = exchange.getBlockwiseKey();
+					if (idByResource != null) {
+//						LOGGER.fine("Remote ongoing completed, cleaning up "+idByResource);
+						ongoingExchanges.remove(idByResource, exchange);
+					}
+					KeyMID remote = exchange.getRemoteMidKey();
+					if (remote != null)
+						deduplicator.completed(remote.MID, remote.address, remote.port, exchange);
+					else
+						deduplicator.completed(request.getMID(), request.getSource().getAddress(), request.getSourcePort(), exchange);
 				}
 
 				Response response = exchange.getResponse();
 				if (response != null && response.getType() != Type.ACK) {
 					// only response MIDs are stored for ACK and RST, no reponse Tokens
-					KeyMID midKey = new KeyMID(response.getMID(), null, 0);
-//					LOGGER.fine("Remote ongoing completed, cleaning up "+midKey);
-					exchangesByMID.remove(midKey);
+//					LOGGER.fine("Remote ongoing completed, cleaning up MID "+response.getMID());
+					removeByMID(keyOf(response, exchange), response.getDestination(), exchange);
 				}
 				
 				// Remove all remaining NON-notifications if this exchange is an observe relation
 				ObserveRelation relation = exchange.getRelation();
 				if (relation != null) {
-					removeNotificatoinsOf(relation);
+					removeNotificatoinsOf(relation, exchange);
 				}
 			}
 		}
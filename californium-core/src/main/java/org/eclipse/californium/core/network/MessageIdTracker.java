@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.californium.core.coap.Message;
+
+/**
+ * A message ID tracker allocates the MIDs for messages to one remote endpoint
+ * and keeps track of the MIDs that are still in use, i.e., of messages that
+ * still wait for an ACK or RST. Allocation skips MIDs in use, so a MID is
+ * only reused when the exchange that held it has been removed from the
+ * {@link Matcher}. A released MID stays reserved for the exchange lifetime,
+ * so that the peer does not take a message with a reused MID for a
+ * duplicate (RFC 7252, Section 4.4).
+ * <p>
+ * The MIDs in use are kept in a bitmap that is split into chunks of 1024
+ * MIDs. Chunks are only allocated when MIDs in their range are used. A
+ * second bitmap marks the released MIDs of a chunk, which become free once
+ * the exchange lifetime has passed since the last release in the chunk.
+ * They are reclaimed when the allocation reaches them. Since MIDs are
+ * allocated sequentially, the releases of a chunk are close in time. All
+ * methods are lock-free.
+ * <p>
+ * A tracker that has no MIDs in use can be retired with {@link #retire()}.
+ * After that, {@link #getNextMessageId()} returns {@link #RETIRED} and the
+ * caller must obtain a new tracker.
+ */
+public class MessageIdTracker {
+
+	/** Returned by {@link #getNextMessageId()} after the tracker has been retired */
+	public static final int RETIRED = -2;
+
+	private static final int MID_COUNT = 1 << 16;
+	private static final int CHUNK_BITS = 10;
+	private static final int WORDS_PER_CHUNK = (1 << CHUNK_BITS) / 64;
+
+	/** The next MID to try */
+	private final AtomicInteger counter;
+
+	/** The bitmap chunks of MIDs in use */
+	private final AtomicReferenceArray<Chunk> chunks;
+
+	/** The time in nanoseconds for which a released MID stays reserved */
+	private final long lifetime;
+
+	/** The number of MIDs in use or -1 if retired */
+	private final AtomicInteger inUse;
+
+	/** The time when a MID was last allocated or released */
+	private volatile long lastUsage;
+
+	/**
+	 * Creates a new tracker that starts allocation at the specified MID.
+	 *
+	 * @param initialMID the first MID to allocate
+	 * @param exchangeLifetime the time in milliseconds for which a released
+	 *            MID must not be reused
+	 */
+	public MessageIdTracker(int initialMID, long exchangeLifetime) {
+		this.counter = new AtomicInteger(initialMID);
+		this.chunks = new AtomicReferenceArray<Chunk>(MID_COUNT >> CHUNK_BITS);
+		this.lifetime = TimeUnit.MILLISECONDS.toNanos(exchangeLifetime);
+		this.inUse = new AtomicInteger();
+		this.lastUsage = System.currentTimeMillis();
+	}
+
+	/**
+	 * Allocates the next free MID and marks it as in use.
+	 *
+	 * @return the MID, {@link Message#NONE} if all MIDs are in use, or
+	 *         {@link #RETIRED} if this tracker has been retired
+	 */
+	public int getNextMessageId() {
+		// register before taking a MID so that retire() cannot interfere
+		int count;
+		do {
+			count = inUse.get();
+			if (count < 0)
+				return RETIRED;
+		} while (!inUse.compareAndSet(count, count + 1));
+
+		lastUsage = System.currentTimeMillis();
+		for (int attempt = 0; attempt < MID_COUNT; attempt++) {
+			int mid = counter.getAndIncrement() & 0xFFFF;
+			if (set(mid))
+				return mid;
+		}
+		inUse.decrementAndGet();
+		return Message.NONE;
+	}
+
+	/**
+	 * Marks the specified MID as in use, e.g., when the application has set
+	 * the MID explicitly.
+	 *
+	 * @param mid the MID
+	 * @return true if the MID was free, false if it is already in use or
+	 *         the tracker has been retired
+	 */
+	public boolean acquire(int mid) {
+		int count;
+		do {
+			count = inUse.get();
+			if (count < 0)
+				return false;
+		} while (!inUse.compareAndSet(count, count + 1));
+
+		lastUsage = System.currentTimeMillis();
+		if (set(mid & 0xFFFF)) {
+			return true;
+		} else {
+			inUse.decrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Marks the specified MID as released. It is not allocated again before
+	 * the exchange lifetime has passed.
+	 *
+	 * @param mid the MID
+	 */
+	public void release(int mid) {
+		if (markReleased(mid & 0xFFFF)) {
+			inUse.decrementAndGet();
+			lastUsage = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Checks if the specified MID is in use, i.e., allocated and not released.
+	 *
+	 * @param mid the MID
+	 * @return true if the MID is in use
+	 */
+	public boolean isInUse(int mid) {
+		Chunk chunk = chunks.get((mid & 0xFFFF) >> CHUNK_BITS);
+		int word = wordIndex(mid);
+		return chunk != null && (chunk.used.get(word) & ~chunk.released.get(word) & bit(mid)) != 0;
+	}
+
+	/**
+	 * Returns the number of MIDs in use.
+	 *
+	 * @return the number of MIDs in use or -1 if retired
+	 */
+	public int getInUseCount() {
+		return inUse.get();
+	}
+
+	/**
+	 * Returns the time when a MID was last allocated or released.
+	 *
+	 * @return the time in milliseconds
+	 */
+	public long getLastUsage() {
+		return lastUsage;
+	}
+
+	/**
+	 * Retires this tracker if it has no MIDs in use. A retired tracker does
+	 * not allocate MIDs anymore.
+	 *
+	 * @return true if the tracker has been retired
+	 */
+	public boolean retire() {
+		return inUse.compareAndSet(0, -1);
+	}
+
+	private boolean set(int mid) {
+		int index = mid >> CHUNK_BITS;
+		Chunk chunk = chunks.get(index);
+		if (chunk == null) {
+			chunks.compareAndSet(index, null, new Chunk());
+			chunk = chunks.get(index);
+		}
+		int word = wordIndex(mid);
+		long bit = bit(mid);
+		long value;
+		do {
+			value = chunk.used.get(word);
+			if ((value & bit) != 0) {
+				if (reclaim(chunk, word))
+					continue;
+				return false;
+			}
+		} while (!chunk.used.compareAndSet(word, value, value | bit));
+		return true;
+	}
+
+	private boolean markReleased(int mid) {
+		Chunk chunk = chunks.get(mid >> CHUNK_BITS);
+		if (chunk == null)
+			return false;
+		int word = wordIndex(mid);
+		long bit = bit(mid);
+		if ((chunk.used.get(word) & bit) == 0)
+			return false;
+		// the time must be visible before the bit
+		chunk.lastRelease = System.nanoTime();
+		long value;
+		do {
+			value = chunk.released.get(word);
+			if ((value & bit) != 0)
+				return false;
+		} while (!chunk.released.compareAndSet(word, value, value | bit));
+		return true;
+	}
+
+	/*
+	 * Frees the released MIDs of the word if the exchange lifetime has passed
+	 * since the last release in the chunk. Returns true if MIDs have been
+	 * freed.
+	 */
+	private boolean reclaim(Chunk chunk, int word) {
+		// read the bits before the time, see markReleased()
+		long released = chunk.released.get(word);
+		if (released == 0 || System.nanoTime() - chunk.lastRelease < lifetime)
+			return false;
+		long value;
+		do {
+			value = chunk.released.get(word);
+		} while (!chunk.released.compareAndSet(word, value, value & ~released));
+		do {
+			value = chunk.used.get(word);
+		} while (!chunk.used.compareAndSet(word, value, value & ~released));
+		return true;
+	}
+
+	private static int wordIndex(int mid) {
+		return (mid & ((1 << CHUNK_BITS) - 1)) >> 6;
+	}
+
+	private static long bit(int mid) {
+		return 1L << (mid & 63);
+	}
+
+	/**
+	 * The MIDs in use and the released MIDs of a range of 1024 MIDs.
+	 */
+	private static final class Chunk {
+		private final AtomicLongArray used = new AtomicLongArray(WORDS_PER_CHUNK);
+		private final AtomicLongArray released = new AtomicLongArray(WORDS_PER_CHUNK);
+		private volatile long lastRelease;
+	}
+}
@@ -0,0 +1,489 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.Exchange.KeyToken;
+
+/**
+ * An {@link ExchangeStore} that packs keys into primitive longs and stores
+ * them in open addressing hash tables. In contrast to a
+ * {@link java.util.concurrent.ConcurrentHashMap} with {@link Exchange.KeyMID}
+ * or {@link Exchange.KeyToken} keys, lookups do not allocate any objects. The
+ * keys can still be passed in, since they carry the packed key and its hash.
+ * <p>
+ * A key consists of three longs. For a MID key, the first two hold the IPv6
+ * address (IPv4 addresses are stored as IPv4-mapped IPv6 addresses) and the
+ * third holds the MID (including {@link ExchangeStore#LOCAL_NAMESPACE}), the
+ * port and a tag. For a token key, the first holds
+ * the token bytes and the third its length and a tag. The third long of a
+ * used slot is never 0.
+ * <p>
+ * The store is split into segments, each with its own table and lock, so that
+ * threads working on different exchanges rarely contend. Tables use linear
+ * probing and backward-shift deletion and therefore need no tombstones.
+ */
+public class PackedExchangeStore implements ExchangeStore {
+
+	/** The tag of keys with a MID */
+	private static final long MID_KEY = 1L << 40;
+
+	/** The tag of MID keys from the local namespace, i.e., without address */
+	private static final long LOCAL_KEY = 1L << 41;
+
+	/** The tag of keys with a token */
+	private static final long TOKEN_KEY = 1L << 42;
+
+	/** The prefix of IPv4-mapped IPv6 addresses */
+	private static final long IPV4_MAPPED = 0xFFFFL << 32;
+
+	private static final int DEFAULT_SEGMENTS = 16;
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private final Segment[] segments;
+	private final int segmentShift;
+
+	/**
+	 * Creates a new store with default concurrency and capacity.
+	 */
+	public PackedExchangeStore() {
+		this(DEFAULT_SEGMENTS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a new store.
+	 *
+	 * @param concurrency the number of segments (rounded up to a power of two)
+	 * @param initialCapacity the initial number of slots of each segment
+	 *            (rounded up to a power of two)
+	 */
+	public PackedExchangeStore(int concurrency, int initialCapacity) {
+		int count = powerOfTwo(Math.max(1, concurrency));
+		this.segments = new Segment[count];
+		this.segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+		for (int i = 0; i < count; i++)
+			segments[i] = new Segment(powerOfTwo(Math.max(4, initialCapacity)));
+	}
+
+	@Override
+	public Exchange get(int mid, byte[] address, int port) {
+		long k2 = midKey(mid, address, port);
+		long k0 = addressHigh(address);
+		long k1 = addressLow(address);
+		int hash = hash(k0, k1, k2);
+		return segmentFor(hash).get(k0, k1, k2, hash);
+	}
+
+	@Override
+	public Exchange put(int mid, byte[] address, int port, Exchange exchange) {
+		long k2 = midKey(mid, address, port);
+		long k0 = addressHigh(address);
+		long k1 = addressLow(address);
+		int hash = hash(k0, k1, k2);
+		return segmentFor(hash).put(k0, k1, k2, hash, exchange, false);
+	}
+
+	@Override
+	public Exchange putIfAbsent(int mid, byte[] address, int port, Exchange exchange) {
+		long k2 = midKey(mid, address, port);
+		long k0 = addressHigh(address);
+		long k1 = addressLow(address);
+		int hash = hash(k0, k1, k2);
+		return segmentFor(hash).put(k0, k1, k2, hash, exchange, true);
+	}
+
+	@Override
+	public Exchange remove(int mid, byte[] address, int port) {
+		long k2 = midKey(mid, address, port);
+		long k0 = addressHigh(address);
+		long k1 = addressLow(address);
+		int hash = hash(k0, k1, k2);
+		return segmentFor(hash).remove(k0, k1, k2, hash);
+	}
+
+	@Override
+	public boolean remove(int mid, byte[] address, int port, Exchange exchange) {
+		long k2 = midKey(mid, address, port);
+		long k0 = addressHigh(address);
+		long k1 = addressLow(address);
+		int hash = hash(k0, k1, k2);
+		return segmentFor(hash).remove(k0, k1, k2, hash, exchange);
+	}
+
+	@Override
+	public Exchange get(KeyMID key) {
+		return segmentFor(key.hashCode()).get(key.k0, key.k1, key.k2, key.hashCode());
+	}
+
+	@Override
+	public Exchange put(KeyMID key, Exchange exchange) {
+		return segmentFor(key.hashCode()).put(key.k0, key.k1, key.k2, key.hashCode(), exchange, false);
+	}
+
+	@Override
+	public boolean remove(KeyMID key, Exchange exchange) {
+		return segmentFor(key.hashCode()).remove(key.k0, key.k1, key.k2, key.hashCode(), exchange);
+	}
+
+	@Override
+	public Exchange get(byte[] token) {
+		long k0 = packToken(token);
+		long k2 = TOKEN_KEY | token.length;
+		int hash = hash(k0, 0, k2);
+		return segmentFor(hash).get(k0, 0, k2, hash);
+	}
+
+	@Override
+	public Exchange put(byte[] token, Exchange exchange) {
+		long k0 = packToken(token);
+		long k2 = TOKEN_KEY | token.length;
+		int hash = hash(k0, 0, k2);
+		return segmentFor(hash).put(k0, 0, k2, hash, exchange, false);
+	}
+
+	@Override
+	public Exchange remove(byte[] token) {
+		long k0 = packToken(token);
+		long k2 = TOKEN_KEY | token.length;
+		int hash = hash(k0, 0, k2);
+		return segmentFor(hash).remove(k0, 0, k2, hash);
+	}
+
+	@Override
+	public boolean remove(byte[] token, Exchange exchange) {
+		long k0 = packToken(token);
+		long k2 = TOKEN_KEY | token.length;
+		int hash = hash(k0, 0, k2);
+		return segmentFor(hash).remove(k0, 0, k2, hash, exchange);
+	}
+
+	@Override
+	public Exchange get(KeyToken key) {
+		return segmentFor(key.hashCode()).get(key.k0, 0, key.k2, key.hashCode());
+	}
+
+	@Override
+	public Exchange put(KeyToken key, Exchange exchange) {
+		return segmentFor(key.hashCode()).put(key.k0, 0, key.k2, key.hashCode(), exchange, false);
+	}
+
+	@Override
+	public boolean remove(KeyToken key, Exchange exchange) {
+		return segmentFor(key.hashCode()).remove(key.k0, 0, key.k2, key.hashCode(), exchange);
+	}
+
+	@Override
+	public int removeIf(Filter filter) {
+		int removed = 0;
+		for (Segment segment:segments)
+			removed += segment.removeIf(filter);
+		return removed;
+	}
+
+	@Override
+	public List<Exchange> values() {
+		List<Exchange> values = new ArrayList<Exchange>();
+		for (Segment segment:segments)
+			segment.addValuesTo(values);
+		return values;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Segment segment:segments)
+			size += segment.size();
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		for (Segment segment:segments)
+			segment.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "PackedExchangeStore[" + size() + " exchanges]";
+	}
+
+	private Segment segmentFor(int hash) {
+		// the table index uses the low bits of the hash, the segment the high bits
+		return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+	}
+
+	/**
+	 * Packs a MID and port into the third long of a MID key. Other primitive
+	 * indexes of messages, e.g., the
+	 * {@link org.eclipse.californium.core.network.deduplication.TimingWheelDeduplicator},
+	 * use the same keys as this store.
+	 *
+	 * @param mid the message ID, possibly with {@link #LOCAL_NAMESPACE}
+	 * @param address the address or null
+	 * @param port the port
+	 * @return the packed key
+	 */
+	public static long midKey(int mid, byte[] address, int port) {
+		return MID_KEY | (address == null ? LOCAL_KEY : 0) | (port & 0xFFFFL) << 17 | (mid & 0x1FFFFL);
+	}
+
+	/**
+	 * Returns the upper 64 bits of the address as IPv6 address.
+	 *
+	 * @param address the IPv4 or IPv6 address or null
+	 * @return the upper 64 bits
+	 */
+	public static long addressHigh(byte[] address) {
+		if (address == null || address.length == 4)
+			return 0;
+		else if (address.length == 16)
+			return pack(address, 0, 8);
+		else
+			throw new IllegalArgumentException("Unsupported address length " + address.length);
+	}
+
+	/**
+	 * Returns the lower 64 bits of the address as IPv6 address. IPv4
+	 * addresses are mapped to IPv6.
+	 *
+	 * @param address the IPv4 or IPv6 address or null
+	 * @return the lower 64 bits
+	 */
+	public static long addressLow(byte[] address) {
+		if (address == null)
+			return 0;
+		else if (address.length == 4)
+			return IPV4_MAPPED | pack(address, 0, 4);
+		else
+			return pack(address, 8, 8);
+	}
+
+	/**
+	 * Returns the third long of the key of the specified token.
+	 *
+	 * @param token the token
+	 * @return the packed length and tag
+	 */
+	static long tokenKey(byte[] token) {
+		return TOKEN_KEY | token.length;
+	}
+
+	static long packToken(byte[] token) {
+		if (token.length > 8)
+			throw new IllegalArgumentException("Token must not be longer than 8 bytes but has " + token.length);
+		return pack(token, 0, token.length);
+	}
+
+	private static long pack(byte[] bytes, int offset, int length) {
+		long value = 0;
+		for (int i = 0; i < length; i++)
+			value = value << 8 | (bytes[offset + i] & 0xFF);
+		return value;
+	}
+
+	/**
+	 * Mixes the three longs of a key into a hash.
+	 *
+	 * @param k0 the first long
+	 * @param k1 the second long
+	 * @param k2 the third long
+	 * @return the hash
+	 */
+	public static int hash(long k0, long k1, long k2) {
+		long h = k0 * 0x9E3779B97F4A7C15L + k1;
+		h = h * 0x9E3779B97F4A7C15L + k2;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	private static int powerOfTwo(int value) {
+		int power = Integer.highestOneBit(value);
+		return power == value ? value : power << 1;
+	}
+
+	/**
+	 * A segment is an open addressing hash table with linear probing. All
+	 * methods synchronize on the segment.
+	 */
+	private static final class Segment {
+
+		/** Three longs per slot */
+		private long[] keys;
+		private int[] hashes;
+		private Exchange[] values;
+		private int mask;
+		private int size;
+
+		private Segment(int capacity) {
+			allocate(capacity);
+		}
+
+		private void allocate(int capacity) {
+			keys = new long[3 * capacity];
+			hashes = new int[capacity];
+			values = new Exchange[capacity];
+			mask = capacity - 1;
+			size = 0;
+		}
+
+		private synchronized Exchange get(long k0, long k1, long k2, int hash) {
+			int slot = find(k0, k1, k2, hash);
+			return slot < 0 ? null : values[slot];
+		}
+
+		private synchronized Exchange put(long k0, long k1, long k2, int hash, Exchange exchange, boolean onlyIfAbsent) {
+			if (exchange == null)
+				throw new NullPointerException();
+			int slot = hash & mask;
+			while (keys[3 * slot + 2] != 0) {
+				if (matches(slot, k0, k1, k2)) {
+					Exchange previous = values[slot];
+					if (!onlyIfAbsent)
+						values[slot] = exchange;
+					return previous;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (2 * (size + 1) > values.length) {
+				grow();
+				slot = hash & mask;
+				while (keys[3 * slot + 2] != 0)
+					slot = (slot + 1) & mask;
+			}
+			set(slot, k0, k1, k2, hash, exchange);
+			size++;
+			return null;
+		}
+
+		private synchronized Exchange remove(long k0, long k1, long k2, int hash) {
+			int slot = find(k0, k1, k2, hash);
+			if (slot < 0)
+				return null;
+			Exchange previous = values[slot];
+			delete(slot);
+			return previous;
+		}
+
+		private synchronized boolean remove(long k0, long k1, long k2, int hash, Exchange expected) {
+			int slot = find(k0, k1, k2, hash);
+			if (slot < 0 || values[slot] != expected)
+				return false;
+			delete(slot);
+			return true;
+		}
+
+		private synchronized int removeIf(Filter filter) {
+			int removed = 0;
+			for (int slot = 0; slot < values.length; slot++) {
+				// deletion may shift the next entry into this slot
+				while (values[slot] != null && filter.accept(values[slot])) {
+					delete(slot);
+					removed++;
+				}
+			}
+			return removed;
+		}
+
+		private synchronized void addValuesTo(List<Exchange> list) {
+			for (Exchange exchange:values)
+				if (exchange != null)
+					list.add(exchange);
+		}
+
+		private synchronized int size() {
+			return size;
+		}
+
+		private synchronized void clear() {
+			if (size > 0)
+				allocate(values.length);
+		}
+
+		private int find(long k0, long k1, long k2, int hash) {
+			int slot = hash & mask;
+			while (keys[3 * slot + 2] != 0) {
+				if (matches(slot, k0, k1, k2))
+					return slot;
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		private boolean matches(int slot, long k0, long k1, long k2) {
+			int i = 3 * slot;
+			return keys[i + 2] == k2 && keys[i] == k0 && keys[i + 1] == k1;
+		}
+
+		private void set(int slot, long k0, long k1, long k2, int hash, Exchange exchange) {
+			int i = 3 * slot;
+			keys[i] = k0;
+			keys[i + 1] = k1;
+			keys[i + 2] = k2;
+			hashes[slot] = hash;
+			values[slot] = exchange;
+		}
+
+		/*
+		 * Removes the entry in the slot and moves following entries of the
+		 * same probe sequence back so that no lookup stops at the new hole.
+		 */
+		private void delete(int slot) {
+			int hole = slot;
+			int next = slot;
+			while (true) {
+				next = (next + 1) & mask;
+				if (keys[3 * next + 2] == 0)
+					break;
+				int home = hashes[next] & mask;
+				// move the entry unless its home lies cyclically in (hole, next]
+				boolean stays = hole <= next
+						? hole < home && home <= next
+						: hole < home || home <= next;
+				if (!stays) {
+					set(hole, keys[3 * next], keys[3 * next + 1], keys[3 * next + 2], hashes[next], values[next]);
+					hole = next;
+				}
+			}
+			keys[3 * hole] = 0;
+			keys[3 * hole + 1] = 0;
+			keys[3 * hole + 2] = 0;
+			hashes[hole] = 0;
+			values[hole] = null;
+			size--;
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldHashes = hashes;
+			Exchange[] oldValues = values;
+			allocate(2 * oldValues.length);
+			for (int old = 0; old < oldValues.length; old++) {
+				if (oldValues[old] == null)
+					continue;
+				int slot = oldHashes[old] & mask;
+				while (keys[3 * slot + 2] != 0)
+					slot = (slot + 1) & mask;
+				set(slot, oldKeys[3 * old], oldKeys[3 * old + 1], oldKeys[3 * old + 2], oldHashes[old], oldValues[old]);
+				size++;
+			}
+		}
+	}
+}
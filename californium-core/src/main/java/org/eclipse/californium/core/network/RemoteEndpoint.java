@@ -18,9 +18,11 @@
 package org.eclipse.californium.core.network;
 
 import java.net.InetAddress;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.eclipse.californium.core.network.config.NetworkConfig;
 
@@ -33,17 +35,18 @@ public class RemoteEndpoint {
 	// A concurrent Hash Map that contains timestamp information for the exchanges
 	private ConcurrentHashMap<Exchange, exchangeInfo> exchangeInfoMap;
 	
-	//Overall RTO, Strong RTO, Strong RTT, Strong RTTVAR, to be used to set the retransmission timeout.
-	private long[] overallRTO;
-	private long[] RTOupdateTimestamp;
+	// The time of the last lookup by the RemoteEndpointManager
+	volatile long lastAccess;
 	
 	//Current RTO stores the latest updated value
 	private long currentRTO;
 	
 	private long meanOverallRTO;
-	private long[] xRTO;
-	private long[] xRTT;
-	private long[] xRTTVAR;
+	
+	// The estimator values and update timestamps of the overall (0), strong (1) and weak (2) RTO in primitive fields
+	private long overallRTO, overallRTT, overallRTTVAR, overallTimestamp;
+	private long strongRTO, strongRTT, strongRTTVAR, strongTimestamp;
+	private long weakRTO, weakRTT, weakRTTVAR, weakTimestamp;
 
 	/* Linux algorithm variables FOR TESTING ONLY*/
 	public long SRTT;
@@ -66,62 +69,64 @@ public class RemoteEndpoint {
 	public long RTO_min;
 	
 	
-	private int currentArrayElement;
 	private int nonConfirmableCounter;
 	
 	private boolean usesBlindEstimator;
 	private boolean isBlindStrong; // As long as no weak RTT measurement has been carried out, the RTO timers are calculated differently
 	private boolean isBlindWeak; // As long as no weak RTT measurement has been carried out, the RTO timers are calculated differently
 	
-	private boolean processingNON;
+	// 1 while the queue of non-confirmables is processed
+	private volatile int processingNON;
+	
+	// 1 while a drain of the queue of confirmables is scheduled
+	private volatile int drainScheduled;
+	
+	// The number of registered confirmable exchanges and of queued exchanges
+	private volatile int ongoing;
+	private volatile int confirmableSize;
+	private volatile int nonConfirmableSize;
 	
-	private final static int RTOARRAYSIZE 	= 1; 	// Amounts of elements in the RTO history length
+	private static final AtomicIntegerFieldUpdater<RemoteEndpoint> PROCESSING_NON = AtomicIntegerFieldUpdater.newUpdater(RemoteEndpoint.class, "processingNON");
+	private static final AtomicIntegerFieldUpdater<RemoteEndpoint> DRAIN_SCHEDULED = AtomicIntegerFieldUpdater.newUpdater(RemoteEndpoint.class, "drainScheduled");
+	private static final AtomicIntegerFieldUpdater<RemoteEndpoint> ONGOING = AtomicIntegerFieldUpdater.newUpdater(RemoteEndpoint.class, "ongoing");
+	private static final AtomicIntegerFieldUpdater<RemoteEndpoint> CONFIRMABLE_SIZE = AtomicIntegerFieldUpdater.newUpdater(RemoteEndpoint.class, "confirmableSize");
+	private static final AtomicIntegerFieldUpdater<RemoteEndpoint> NON_CONFIRMABLE_SIZE = AtomicIntegerFieldUpdater.newUpdater(RemoteEndpoint.class, "nonConfirmableSize");
 	
+	private final static int OVERALLRTOTYPE = 0;
 	private final static int STRONGRTOTYPE = 1;
 	private final static int WEAKRTOTYPE = 2;
 	private final static int NOESTIMATOR = 3;
 	
-	/* A queue for confirmable exchanges that need to be delayed due to the NSTART limitation*/
-	private Queue<Exchange> confirmableQueue; 
+	/* A lock-free queue for confirmable exchanges that need to be delayed due to the NSTART limitation*/
+	private volatile Queue<Exchange> confirmableQueue; 
 	
-	/* A queue for non-confirmable exchanges that need to be rate-controlled */
-	private Queue<Exchange> nonConfirmableQueue; 
+	/* A lock-free queue for non-confirmable exchanges that need to be rate-controlled */
+	private volatile Queue<Exchange> nonConfirmableQueue; 
 	
 	public RemoteEndpoint(int remotePort, InetAddress remoteAddress, NetworkConfig config){
 		Address = remoteAddress;
 		Port = remotePort;
 		
-		// Fill Array with initial values
-		overallRTO = new long[RTOARRAYSIZE];
-		for(int i=0; i < RTOARRAYSIZE; i++){
-			overallRTO[i] = config.getInt(NetworkConfig.Keys.ACK_TIMEOUT) ;
-		}
-		currentRTO =  config.getInt(NetworkConfig.Keys.ACK_TIMEOUT);
+		long ackTimeout = config.getInt(NetworkConfig.Keys.ACK_TIMEOUT);
+		currentRTO = ackTimeout;
 
-		xRTO = new long[3];
-		xRTT = new long[3];
-		xRTTVAR = new long[3];
-		RTOupdateTimestamp = new long[3];	
-		
+		long now = System.currentTimeMillis();
 		for(int i=0; i <= 2; i++){
-			setEstimatorValues(config.getInt(NetworkConfig.Keys.ACK_TIMEOUT), 0, 0, i);
-			setRTOtimestamp(System.currentTimeMillis(), i);
+			setEstimatorValues(ackTimeout, 0, 0, i);
+			setRTOtimestamp(now, i);
 		}
-		meanOverallRTO = config.getInt(NetworkConfig.Keys.ACK_TIMEOUT);
+		meanOverallRTO = ackTimeout;
 		
-		currentArrayElement = 0;
 		nonConfirmableCounter = 7;
 		
 		usesBlindEstimator = true;
 		isBlindStrong = true;
 		isBlindWeak = true;
 		
-		processingNON = false;
+		// NSTART keeps this map small, so a single segment suffices
+		exchangeInfoMap = new ConcurrentHashMap<Exchange, exchangeInfo>(4, 0.75f, 1);
 		
-		exchangeInfoMap = new ConcurrentHashMap<Exchange, exchangeInfo>();
-
-		confirmableQueue = new LinkedList<Exchange>();
-	    nonConfirmableQueue = new LinkedList<Exchange>();
+		// the queues are only created when needed
 	}
 
 	public int getRemotePort(){
@@ -145,23 +150,43 @@ public class RemoteEndpoint {
 	}
 	
 	public long getRTOtimestamp(int rtoType){
-		return RTOupdateTimestamp[rtoType];
+		switch (rtoType) {
+		case OVERALLRTOTYPE: return overallTimestamp;
+		case STRONGRTOTYPE: return strongTimestamp;
+		default: return weakTimestamp;
+		}
 	}
 	
 	public void setRTOtimestamp(long timestamp, int rtoType){
-		RTOupdateTimestamp[rtoType] = timestamp;
+		switch (rtoType) {
+		case OVERALLRTOTYPE: overallTimestamp = timestamp; break;
+		case STRONGRTOTYPE: strongTimestamp = timestamp; break;
+		default: weakTimestamp = timestamp;
+		}
 	}
 	
 	public long getxRTO(int rtoType){
-		return xRTO[rtoType];
+		switch (rtoType) {
+		case OVERALLRTOTYPE: return overallRTO;
+		case STRONGRTOTYPE: return strongRTO;
+		default: return weakRTO;
+		}
 	}
 	
 	public long getxRTT(int rttType){
-		return xRTT[rttType];
+		switch (rttType) {
+		case OVERALLRTOTYPE: return overallRTT;
+		case STRONGRTOTYPE: return strongRTT;
+		default: return weakRTT;
+		}
 	}
 	
 	public long getxRTTVAR(int rttvarType){
-		return xRTTVAR[rttvarType];
+		switch (rttvarType) {
+		case OVERALLRTOTYPE: return overallRTTVAR;
+		case STRONGRTOTYPE: return strongRTTVAR;
+		default: return weakRTTVAR;
+		}
 	}
 	
 	public void useBlindEstimator(){
@@ -185,30 +210,84 @@ public class RemoteEndpoint {
 	}
 	
 	public void setEstimatorValues(long rto, long rtt, long rttvar, int estimatorType){
-		xRTO[estimatorType] = rto;
-		xRTT[estimatorType] = rtt;
-		xRTTVAR[estimatorType] = rttvar;
+		switch (estimatorType) {
+		case OVERALLRTOTYPE: overallRTO = rto; overallRTT = rtt; overallRTTVAR = rttvar; break;
+		case STRONGRTOTYPE: strongRTO = rto; strongRTT = rtt; strongRTTVAR = rttvar; break;
+		default: weakRTO = rto; weakRTT = rtt; weakRTTVAR = rttvar;
+		}
 	}	
 	
-	public Queue<Exchange> getConfirmableQueue(){
-		return confirmableQueue;
+	/**
+	 * Queues a confirmable exchange that must wait for NSTART.
+	 * @param exchange the exchange
+	 * @param capacity the maximum number of queued confirmable exchanges
+	 * @return false if the queue is full
+	 */
+	public boolean offerConfirmableExchange(Exchange exchange, int capacity){
+		if (!reserve(CONFIRMABLE_SIZE, capacity))
+			return false;
+		getConfirmableQueue().offer(exchange);
+		return true;
 	}
 	
-	public Queue<Exchange> getNonConfirmableQueue(){
-		return nonConfirmableQueue;
+	public Exchange pollConfirmableExchange(){
+		Queue<Exchange> queue = confirmableQueue;
+		Exchange exchange = queue == null ? null : queue.poll();
+		if (exchange != null)
+			CONFIRMABLE_SIZE.decrementAndGet(this);
+		return exchange;
 	}
 	
-	public Exchange pollConfirmableExchange(){
-		return confirmableQueue.poll();
+	public int getConfirmableQueueSize(){
+		return confirmableSize;
 	}
 	
-	private void calculateMeanOverallRTO(){
-		long meanRTO = 0;
-		int i;
-		for(i=0; i < RTOARRAYSIZE; i++)
-			meanRTO += overallRTO[i];
-		
-		meanOverallRTO = meanRTO/RTOARRAYSIZE;		
+	/**
+	 * Queues a non-confirmable exchange for rate control.
+	 * @param exchange the exchange
+	 * @param capacity the maximum number of queued non-confirmable exchanges
+	 * @return false if the queue is full
+	 */
+	public boolean offerNonConfirmableExchange(Exchange exchange, int capacity){
+		if (!reserve(NON_CONFIRMABLE_SIZE, capacity))
+			return false;
+		getNonConfirmableQueue().offer(exchange);
+		return true;
+	}
+	
+	public Exchange pollNonConfirmableExchange(){
+		Queue<Exchange> queue = nonConfirmableQueue;
+		Exchange exchange = queue == null ? null : queue.poll();
+		if (exchange != null)
+			NON_CONFIRMABLE_SIZE.decrementAndGet(this);
+		return exchange;
+	}
+	
+	public int getNonConfirmableQueueSize(){
+		return nonConfirmableSize;
+	}
+	
+	private boolean reserve(AtomicIntegerFieldUpdater<RemoteEndpoint> size, int capacity){
+		int current;
+		do {
+			current = size.get(this);
+			if (current >= capacity)
+				return false;
+		} while (!size.compareAndSet(this, current, current + 1));
+		return true;
+	}
+	
+	// the queues are created when first needed
+	private synchronized Queue<Exchange> getConfirmableQueue(){
+		if (confirmableQueue == null)
+			confirmableQueue = new ConcurrentLinkedQueue<Exchange>();
+		return confirmableQueue;
+	}
+	
+	private synchronized Queue<Exchange> getNonConfirmableQueue(){
+		if (nonConfirmableQueue == null)
+			nonConfirmableQueue = new ConcurrentLinkedQueue<Exchange>();
+		return nonConfirmableQueue;
 	}
 	
 	public void setCurrentRTO(long currentRTO){
@@ -224,11 +303,34 @@ public class RemoteEndpoint {
 		currentRTO = meanOverallRTO;
 	}
 	public void setProcessingNON(boolean value){
-		processingNON = value;
+		processingNON = value ? 1 : 0;
 	}
 	
 	public boolean getProcessingNON(){
-		return processingNON;
+		return processingNON != 0;
+	}
+	
+	/**
+	 * Atomically marks the queue of non-confirmables as being processed.
+	 * @return true if it was not processed before
+	 */
+	public boolean startProcessingNON(){
+		return PROCESSING_NON.compareAndSet(this, 0, 1);
+	}
+	
+	/**
+	 * Atomically marks that a drain of the queue of confirmables is scheduled.
+	 * @return true if no drain was scheduled before
+	 */
+	public boolean scheduleDrain(){
+		return DRAIN_SCHEDULED.compareAndSet(this, 0, 1);
+	}
+	
+	/**
+	 * Marks that the scheduled drain of the queue of confirmables has run.
+	 */
+	public void drained(){
+		drainScheduled = 0;
 	}
 	
 	/**
@@ -277,9 +379,8 @@ public class RemoteEndpoint {
 	 * @param newRTO the new RTO value
 	 */
 	public void updateRTO(long newRTO){
-		overallRTO[currentArrayElement] = newRTO; 		
-		currentArrayElement = (currentArrayElement + 1)%RTOARRAYSIZE;
-		calculateMeanOverallRTO();
+		// the RTO history has a length of one, so the mean is the new RTO
+		meanOverallRTO = newRTO;
 		setCurrentRTO(newRTO);
 	}
 	
@@ -316,7 +417,24 @@ public class RemoteEndpoint {
 	 */
 	public void registerExchange(Exchange exchange, double vbf){
 		exchangeInfo newExchange = new exchangeInfo(System.currentTimeMillis(), vbf);
-		exchangeInfoMap.put(exchange, newExchange);
+		if (exchangeInfoMap.put(exchange, newExchange) == null)
+			ONGOING.incrementAndGet(this);
+	}
+	
+	/**
+	 * Registers the confirmable exchange if less than NSTART exchanges are
+	 * ongoing. Checking and registering is atomic.
+	 * @param exchange the exchange to register
+	 * @param vbf the variable back-off factor
+	 * @param nstart the maximum number of ongoing exchanges
+	 * @return true if the exchange has been registered
+	 */
+	public boolean registerExchange(Exchange exchange, double vbf, int nstart){
+		if (!reserve(ONGOING, nstart))
+			return false;
+		if (exchangeInfoMap.put(exchange, new exchangeInfo(System.currentTimeMillis(), vbf)) != null)
+			ONGOING.decrementAndGet(this); // was already registered
+		return true;
 	}
 	
 	/**
@@ -378,31 +496,56 @@ public class RemoteEndpoint {
 			return false;
 		}else{
 		//deleted exchange!
+		ONGOING.decrementAndGet(this);
 		return true;
 		}
 	}
 	
 	/**
-	 * Checks if an exchange in the list was was deleted
+	 * Removes the information of exchanges that have been registered longer
+	 * than the specified time ago, e.g., because the exchange was dropped
+	 * without ACK or timeout.
+	 * @param maxAge the maximum age in milliseconds
+	 * @return the number of removed exchanges
+	 */
+	public int removeExpiredExchanges(long maxAge){
+		long oldest = System.currentTimeMillis() - maxAge;
+		int removed = 0;
+		for (Iterator<Exchange> it = exchangeInfoMap.keySet().iterator(); it.hasNext();) {
+			Exchange exchange = it.next();
+			exchangeInfo info = exchangeInfoMap.get(exchange);
+			if (info != null && info.getTimestamp() < oldest && removeExchangeInfo(exchange))
+				removed++;
+		}
+		return removed;
+	}
+	
+	/**
+	 * Checks if the endpoint has neither ongoing nor queued exchanges, so
+	 * that it can be dropped without losing exchanges.
+	 * @return true if idle
 	 */
-	public void checkForDeletedExchanges(){
-		//System.out.println("Checking for old exchanges in remote Endpoints.");
-	    for (Object o : exchangeInfoMap.entrySet()){
-	    	if(o == null){
-	    		//System.out.println("Deleting old entry (null-entry).");
-	    		exchangeInfoMap.remove(o);
-	    	}
-	    }
+	public boolean isIdle(){
+		return ongoing == 0 && confirmableSize == 0 && nonConfirmableSize == 0;
 	}
 	
 	/**
 	 * Gets amount of currently active exchanges
-	 * @param exchange the exchange
 	 * @return the count
 	 */
-	public int getNumberOfOngoingExchanges(Exchange exchange){	
-		//System.out.println("Amount of exchanges: " + exchangeInfoMap.size() );
-		return exchangeInfoMap.size();
+	public int getNumberOfOngoingExchanges(){
+		return ongoing;
+	}
+	
+	/**
+	 * Gets amount of currently active exchanges
+	 * @param exchange ignored
+	 * @return the count
+	 * @deprecated use {@link #getNumberOfOngoingExchanges()}
+	 */
+	@Deprecated
+	public int getNumberOfOngoingExchanges(Exchange exchange){
+		return getNumberOfOngoingExchanges();
 	}
 	
 	public void printLinuxStats(){
@@ -18,18 +18,41 @@
 package org.eclipse.californium.core.network;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange.Origin;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 
+/**
+ * The RemoteEndpointManager keeps the congestion control state of the remote
+ * endpoints, identified by address and port. It keeps at most
+ * CONGESTION_CONTROL_REMOTE_ENDPOINTS endpoints and evicts the least recently
+ * used one when the limit is reached. Endpoints that have not been used for
+ * CONGESTION_CONTROL_REMOTE_ENDPOINT_LIFETIME are replaced by fresh ones.
+ * Endpoints with ongoing or queued exchanges are neither evicted nor
+ * replaced, since their exchanges would never be started or completed; the
+ * limit may be exceeded while too many endpoints are busy.
+ * <p>
+ * The endpoints are split into segments of access-ordered hash maps, each
+ * with its own lock, so that the manager can be used by all protocol threads.
+ * Small managers use a single segment and thus evict exactly in LRU order.
+ */
 public class RemoteEndpointManager {
 
-	// Maximum amount of destinations for which remote endpoint objects are maintained
-	private final int MAX_REMOTE_ENDPOINTS = 10;
-	
-	/** The list of remote endpoints */
-	private LimitedRemoteEndpointHashmap<InetAddress,RemoteEndpoint> remoteEndpointsList = new LimitedRemoteEndpointHashmap<InetAddress,RemoteEndpoint>(MAX_REMOTE_ENDPOINTS);//ArrayList<RemoteEndpoint>(0);
+	private static final int SEGMENTS = 16;
+
+	/** The number of endpoints checked for an idle one to evict */
+	private static final int EVICTION_SCAN = 16;
+
+	/** The segments with the remote endpoints */
+	private final LimitedRemoteEndpointHashmap[] segments;
+
+	/** The time in ms after which an unused remote endpoint expires */
+	private final long lifetime;
 
 	/** The configuration */ 
 	private NetworkConfig config;
@@ -41,42 +64,118 @@ public class RemoteEndpointManager {
 	 * @param config the network parameter configuration
 	 */
 	public RemoteEndpointManager(NetworkConfig config) {
+		this(config, config.getInt(NetworkConfig.Keys.CONGESTION_CONTROL_REMOTE_ENDPOINTS),
+				config.getLong(NetworkConfig.Keys.CONGESTION_CONTROL_REMOTE_ENDPOINT_LIFETIME));
+	}
+	
+	/**
+	 * Creates a new manager with the specified limits.
+	 * 
+	 * @param config the network parameter configuration
+	 * @param capacity the maximum number of remote endpoints
+	 * @param lifetime the time in ms after which an unused remote endpoint expires
+	 */
+	public RemoteEndpointManager(NetworkConfig config, int capacity, long lifetime) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity must be positive but is " + capacity);
 		this.config = config;
+		this.lifetime = lifetime;
+		int count = capacity < 64 * SEGMENTS ? 1 : SEGMENTS;
+		this.segments = new LimitedRemoteEndpointHashmap[count];
+		for (int i = 0; i < count; i++)
+			segments[i] = new LimitedRemoteEndpointHashmap(capacity / count);
 	}
 		
 	/**
-	 * Returns the endpoint responsible for the given exchange.
+	 * Returns the endpoint responsible for the given exchange, i.e., the
+	 * destination of a request from this endpoint or the source of a request
+	 * from a remote endpoint.
 	 * @param exchange the exchange
 	 * @return the endpoint for the exchange
 	 */
-	public RemoteEndpoint getRemoteEndpoint(Exchange exchange){ //int remotePort, InetAddress remoteAddress){
-		
-		InetAddress remoteAddress = exchange.getRequest().getDestination();
-		int remotePort = exchange.getRequest().getDestinationPort();
-		
-		// TODO: One IP-Address is considered to be a destination endpoint, for higher granularity (portnumber) changes are necessary
-		if (!remoteEndpointsList.containsKey(remoteAddress)){
-			RemoteEndpoint unusedRemoteEndpoint = new RemoteEndpoint(remotePort, remoteAddress, config);
-			remoteEndpointsList.put(remoteAddress,unusedRemoteEndpoint);
-			
-			//System.out.println("Number of RemoteEndpoint objects stored:" + remoteEndpointsList.size());
+	public RemoteEndpoint getRemoteEndpoint(Exchange exchange) {
+		Request request = exchange.getCurrentRequest();
+		if (exchange.getOrigin() == Origin.LOCAL)
+			return getRemoteEndpoint(request.getDestination(), request.getDestinationPort());
+		else
+			return getRemoteEndpoint(request.getSource(), request.getSourcePort());
+	}
+	
+	/**
+	 * Returns the endpoint with the specified address and port and creates
+	 * it if necessary.
+	 * @param remoteAddress the address
+	 * @param remotePort the port
+	 * @return the endpoint
+	 */
+	public RemoteEndpoint getRemoteEndpoint(InetAddress remoteAddress, int remotePort) {
+		InetSocketAddress key = new InetSocketAddress(remoteAddress, remotePort);
+		LimitedRemoteEndpointHashmap segment = segments.length == 1 ? segments[0]
+				: segments[(key.hashCode() ^ key.hashCode() >>> 16) & (SEGMENTS - 1)];
+		long now = System.currentTimeMillis();
+		synchronized (segment) {
+			RemoteEndpoint endpoint = segment.get(key);
+			if (endpoint == null || now - endpoint.lastAccess > lifetime && endpoint.isIdle()) {
+				endpoint = new RemoteEndpoint(remotePort, remoteAddress, config);
+				endpoint.lastAccess = now;
+				segment.put(key, endpoint);
+			} else {
+				endpoint.lastAccess = now;
+			}
+			return endpoint;
 		}
-		
-		return remoteEndpointsList.get(remoteAddress);
 	}
 	
-	public class LimitedRemoteEndpointHashmap<K, V> extends LinkedHashMap<K, V> {
+	/**
+	 * Returns the number of remote endpoints.
+	 * @return the number of remote endpoints
+	 */
+	public int size() {
+		int size = 0;
+		for (LimitedRemoteEndpointHashmap segment:segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * An access-ordered hash map that removes its least recently used idle
+	 * entry when it grows beyond its limit, and the least recently used entry
+	 * when it has expired and is idle.
+	 */
+	private class LimitedRemoteEndpointHashmap extends LinkedHashMap<InetSocketAddress, RemoteEndpoint> {
 
 		private static final long serialVersionUID = -7855412701242966797L;
 		private final int maxSize;
 
-	    public LimitedRemoteEndpointHashmap(int maxSize) {
-	        this.maxSize = maxSize;
-	    }
+		public LimitedRemoteEndpointHashmap(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = Math.max(1, maxSize);
+		}
 
-	    @Override
-	    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-	        return size() > maxSize;
-	    }
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, RemoteEndpoint> eldest) {
+			// an expired entry is only removed while others are added, so
+			// that the one that has just been added is never removed
+			if (eldest.getValue().isIdle())
+				return size() > maxSize || size() > 1 && System.currentTimeMillis() - eldest.getValue().lastAccess > lifetime;
+			if (size() > maxSize) {
+				// evict the least recently used of the next idle endpoints,
+				// but not the one that has just been added
+				int scanned = 0;
+				for (Iterator<RemoteEndpoint> it = values().iterator(); it.hasNext() && scanned < EVICTION_SCAN; scanned++) {
+					RemoteEndpoint endpoint = it.next();
+					if (!it.hasNext())
+						break;
+					if (endpoint.isIdle()) {
+						it.remove();
+						break;
+					}
+				}
+			}
+			return false;
+		}
 	}
 }
@@ -76,15 +76,30 @@ public class NetworkConfig {
 		
 		public static final String PREFERRED_BLOCK_SIZE = "PREFERRED_BLOCK_SIZE";
 		public static final String MAX_MESSAGE_SIZE = "MAX_MESSAGE_SIZE";
+		public static final String MAX_RESOURCE_BODY_SIZE = "MAX_RESOURCE_BODY_SIZE";
+		public static final String BLOCKWISE_SPILL_THRESHOLD = "BLOCKWISE_SPILL_THRESHOLD";
+		public static final String BLOCKWISE_MEMORY_LIMIT = "BLOCKWISE_MEMORY_LIMIT";
+		public static final String REPRESENTATION_CACHE_SIZE = "REPRESENTATION_CACHE_SIZE";
 		
 		public static final String NOTIFICATION_CHECK_INTERVAL_TIME = "NOTIFICATION_CHECK_INTERVAL";
 		public static final String NOTIFICATION_CHECK_INTERVAL_COUNT = "NOTIFICATION_CHECK_INTERVAL_COUNT";
 		public static final String NOTIFICATION_REREGISTRATION_BACKOFF = "NOTIFICATION_REREGISTRATION_BACKOFF";
+		public static final String NOTIFICATION_BATCH_SIZE = "NOTIFICATION_BATCH_SIZE";
+		public static final String NOTIFICATION_MIN_INTERVAL = "NOTIFICATION_MIN_INTERVAL";
+		public static final String NOTIFICATION_MAX_INTERVAL = "NOTIFICATION_MAX_INTERVAL";
 	
 		public static final String USE_CONGESTION_CONTROL = "USE_CONGESTION_CONTROL";
 		public static final String CONGESTION_CONTROL_ALGORITHM = "CONGESTION_CONTROL_ALGORITHM";
+		public static final String CONGESTION_CONTROL_REMOTE_ENDPOINTS = "CONGESTION_CONTROL_REMOTE_ENDPOINTS";
+		public static final String CONGESTION_CONTROL_REMOTE_ENDPOINT_LIFETIME = "CONGESTION_CONTROL_REMOTE_ENDPOINT_LIFETIME";
+		public static final String CONGESTION_CONTROL_QUEUE_CAPACITY = "CONGESTION_CONTROL_QUEUE_CAPACITY";
 		
 		public static final String PROTOCOL_STAGE_THREAD_COUNT = "PROTOCOL_STAGE_THREAD_COUNT";
+		public static final String HANDLER_EXECUTION = "HANDLER_EXECUTION";
+		public static final String HANDLER_EXECUTION_PROTOCOL_STAGE = "PROTOCOL_STAGE";
+		public static final String HANDLER_EXECUTION_ELASTIC = "ELASTIC";
+		public static final String HANDLER_THREAD_LIMIT = "HANDLER_THREAD_LIMIT";
+		public static final String HANDLER_THREAD_STACK_SIZE = "HANDLER_THREAD_STACK_SIZE";
 		public static final String NETWORK_STAGE_RECEIVER_THREAD_COUNT = "NETWORK_STAGE_RECEIVER_THREAD_COUNT";
 		public static final String NETWORK_STAGE_SENDER_THREAD_COUNT = "NETWORK_STAGE_SENDER_THREAD_COUNT";
 		
@@ -98,13 +113,31 @@ public class NetworkConfig {
 		public static final String MARK_AND_SWEEP_INTERVAL = "MARK_AND_SWEEP_INTERVAL";
 		public static final String DEDUPLICATOR_CROP_ROTATION = "DEDUPLICATOR_CROP_ROTATION";
 		public static final String CROP_ROTATION_PERIOD = "CROP_ROTATION_PERIOD";
+		public static final String DEDUPLICATOR_TIMING_WHEEL = "DEDUPLICATOR_TIMING_WHEEL";
+		public static final String TIMING_WHEEL_TICK = "TIMING_WHEEL_TICK";
+		public static final String TIMING_WHEEL_MAX_ENTRIES = "TIMING_WHEEL_MAX_ENTRIES";
 		public static final String NO_DEDUPLICATOR = "NO_DEDUPLICATOR";
 		
 		public static final String HTTP_PORT = "HTTP_PORT";
 		public static final String HTTP_SERVER_SOCKET_TIMEOUT = "HTTP_SERVER_SOCKET_TIMEOUT";
 		public static final String HTTP_SERVER_SOCKET_BUFFER_SIZE = "HTTP_SERVER_SOCKET_BUFFER_SIZE";
+		public static final String HTTP_SERVER_MAX_PENDING_REQUESTS = "HTTP_SERVER_MAX_PENDING_REQUESTS";
+		public static final String HTTP_CLIENT_MAX_CONNECTIONS = "HTTP_CLIENT_MAX_CONNECTIONS";
+		public static final String HTTP_CLIENT_MAX_CONNECTIONS_PER_ROUTE = "HTTP_CLIENT_MAX_CONNECTIONS_PER_ROUTE";
+		public static final String HTTP_CLIENT_CONNECT_TIMEOUT = "HTTP_CLIENT_CONNECT_TIMEOUT";
+		public static final String HTTP_CLIENT_SOCKET_TIMEOUT = "HTTP_CLIENT_SOCKET_TIMEOUT";
+		public static final String PROXY_COAP_RESPONSE_TIMEOUT = "PROXY_COAP_RESPONSE_TIMEOUT";
 		public static final String HTTP_CACHE_RESPONSE_MAX_AGE = "HTTP_CACHE_RESPONSE_MAX_AGE";
+		public static final String HTTP_CACHE_MAX_BYTES = "HTTP_CACHE_MAX_BYTES";
+		/**
+		 * @deprecated use HTTP_CACHE_MAX_BYTES. If set, it still bounds the
+		 *             number of responses in the proxy cache instead.
+		 */
+		@Deprecated
 		public static final String HTTP_CACHE_SIZE = "HTTP_CACHE_SIZE";
+		public static final String HTTP_CACHE_OBSERVE_THRESHOLD = "HTTP_CACHE_OBSERVE_THRESHOLD";
+		public static final String HTTP_CACHE_OBSERVE_PERIOD = "HTTP_CACHE_OBSERVE_PERIOD";
+		public static final String HTTP_CACHE_OBSERVE_MAX_RELATIONS = "HTTP_CACHE_OBSERVE_MAX_RELATIONS";
 		
 		public static final String HEALTH_STATUS_PRINT_LEVEL = "HEALTH_STATUS_PRINT_LEVEL";
 		public static final String HEALTH_STATUS_INTERVAL = "HEALTH_STATUS_INTERVAL";
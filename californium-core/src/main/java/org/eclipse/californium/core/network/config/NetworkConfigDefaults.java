@@ -56,15 +56,28 @@ public class NetworkConfigDefaults {
 
 		config.setInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE, 512);
 		config.setInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE, 1024);
+		config.setInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE, 16 * 1024 * 1024); // per transfer, 0 for no limit
+		config.setInt(NetworkConfig.Keys.BLOCKWISE_SPILL_THRESHOLD, 64 * 1024); // per transfer
+		config.setInt(NetworkConfig.Keys.BLOCKWISE_MEMORY_LIMIT, 8 * 1024 * 1024); // per endpoint
+		config.setInt(NetworkConfig.Keys.REPRESENTATION_CACHE_SIZE, 1024 * 1024); // per cache
 
 		config.setLong(NetworkConfig.Keys.NOTIFICATION_CHECK_INTERVAL_TIME, 24 * 60 * 60 * 1000); // ms
 		config.setInt(NetworkConfig.Keys.NOTIFICATION_CHECK_INTERVAL_COUNT, 100);
 		config.setLong(NetworkConfig.Keys.NOTIFICATION_REREGISTRATION_BACKOFF, 2000); // ms
+		config.setInt(NetworkConfig.Keys.NOTIFICATION_BATCH_SIZE, 64); // notifications per task
+		config.setLong(NetworkConfig.Keys.NOTIFICATION_MIN_INTERVAL, 0); // ms, 0 for no limit
+		config.setLong(NetworkConfig.Keys.NOTIFICATION_MAX_INTERVAL, 0); // ms, 0 for no limit
 		
 		config.setBoolean(NetworkConfig.Keys.USE_CONGESTION_CONTROL, false);
 		config.setString(NetworkConfig.Keys.CONGESTION_CONTROL_ALGORITHM, "Cocoa"); // see org.eclipse.californium.core.network.stack.congestioncontrol
+		config.setInt(NetworkConfig.Keys.CONGESTION_CONTROL_REMOTE_ENDPOINTS, 100000);
+		config.setLong(NetworkConfig.Keys.CONGESTION_CONTROL_REMOTE_ENDPOINT_LIFETIME, 10 * 60 * 1000); // ms
+		config.setInt(NetworkConfig.Keys.CONGESTION_CONTROL_QUEUE_CAPACITY, 50); // per remote endpoint
 		
 		config.setInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT, CORES);
+		config.setString(NetworkConfig.Keys.HANDLER_EXECUTION, NetworkConfig.Keys.HANDLER_EXECUTION_PROTOCOL_STAGE);
+		config.setInt(NetworkConfig.Keys.HANDLER_THREAD_LIMIT, 10000); // only for ELASTIC
+		config.setLong(NetworkConfig.Keys.HANDLER_THREAD_STACK_SIZE, 256 * 1024); // bytes, 0 for JVM default
 		config.setInt(NetworkConfig.Keys.NETWORK_STAGE_RECEIVER_THREAD_COUNT, WINDOWS ? CORES : 1);
 		config.setInt(NetworkConfig.Keys.NETWORK_STAGE_SENDER_THREAD_COUNT, WINDOWS ? CORES : 1);
 		
@@ -76,12 +89,23 @@ public class NetworkConfigDefaults {
 		config.setString(NetworkConfig.Keys.DEDUPLICATOR, NetworkConfig.Keys.DEDUPLICATOR_MARK_AND_SWEEP);
 		config.setLong(NetworkConfig.Keys.MARK_AND_SWEEP_INTERVAL, 10 * 1000);
 		config.setInt(NetworkConfig.Keys.CROP_ROTATION_PERIOD, 2000);
+		config.setLong(NetworkConfig.Keys.TIMING_WHEEL_TICK, 1000); // ms
+		config.setInt(NetworkConfig.Keys.TIMING_WHEEL_MAX_ENTRIES, 1 << 20);
 
 		config.setInt(NetworkConfig.Keys.HTTP_PORT, 8080);
 		config.setInt(NetworkConfig.Keys.HTTP_SERVER_SOCKET_TIMEOUT, 100000);
 		config.setInt(NetworkConfig.Keys.HTTP_SERVER_SOCKET_BUFFER_SIZE, 8192);
+		config.setInt(NetworkConfig.Keys.HTTP_SERVER_MAX_PENDING_REQUESTS, 10000);
+		config.setInt(NetworkConfig.Keys.HTTP_CLIENT_MAX_CONNECTIONS, 100);
+		config.setInt(NetworkConfig.Keys.HTTP_CLIENT_MAX_CONNECTIONS_PER_ROUTE, 20);
+		config.setInt(NetworkConfig.Keys.HTTP_CLIENT_CONNECT_TIMEOUT, 10000); // ms, also bounds the wait for a pooled connection
+		config.setInt(NetworkConfig.Keys.HTTP_CLIENT_SOCKET_TIMEOUT, 60000); // ms
+		config.setLong(NetworkConfig.Keys.PROXY_COAP_RESPONSE_TIMEOUT, 60000); // in ms
 		config.setInt(NetworkConfig.Keys.HTTP_CACHE_RESPONSE_MAX_AGE, 86400);
-		config.setInt(NetworkConfig.Keys.HTTP_CACHE_SIZE, 32);
+		config.setInt(NetworkConfig.Keys.HTTP_CACHE_MAX_BYTES, 1024 * 1024);
+		config.setInt(NetworkConfig.Keys.HTTP_CACHE_OBSERVE_THRESHOLD, 10); // 0 to disable
+		config.setInt(NetworkConfig.Keys.HTTP_CACHE_OBSERVE_PERIOD, 60); // s
+		config.setInt(NetworkConfig.Keys.HTTP_CACHE_OBSERVE_MAX_RELATIONS, 100);
 		
 		config.setString(NetworkConfig.Keys.HEALTH_STATUS_PRINT_LEVEL, "FINEST");
 		config.setInt(NetworkConfig.Keys.HEALTH_STATUS_INTERVAL, 60); // s
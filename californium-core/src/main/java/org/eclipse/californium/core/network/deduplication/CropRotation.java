@@ -19,7 +19,6 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network.deduplication;
 
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -27,7 +26,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.network.Exchange;
-import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.ExchangeStore;
+import org.eclipse.californium.core.network.PackedExchangeStore;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 
 
@@ -47,7 +47,7 @@ public class CropRotation implements Deduplicator {
 	
 	private ScheduledExecutorService executor;
 	
-	private ExchangeMap[] maps;
+	private ExchangeStore[] maps;
 	private int first;
 	private int second;
 	
@@ -58,10 +58,10 @@ public class CropRotation implements Deduplicator {
 	
 	public CropRotation(NetworkConfig config) {
 		this.rotation = new Rotation();
-		maps = new ExchangeMap[3];
-		maps[0] = new ExchangeMap();
-		maps[1] = new ExchangeMap();
-		maps[2] = new ExchangeMap();
+		maps = new ExchangeStore[3];
+		maps[0] = new PackedExchangeStore();
+		maps[1] = new PackedExchangeStore();
+		maps[2] = new PackedExchangeStore();
 		first = 0;
 		second = 1;
 		period = config.getInt(NetworkConfig.Keys.CROP_ROTATION_PERIOD);
@@ -90,27 +90,32 @@ public class CropRotation implements Deduplicator {
 	}
 
 	@Override
-	public Exchange findPrevious(KeyMID key, Exchange exchange) {
+	public Exchange findPrevious(int mid, byte[] address, int port, Exchange exchange) {
 		int f = first;
 		int s = second;
-		Exchange prev = maps[f].putIfAbsent(key, exchange);
+		Exchange prev = maps[f].putIfAbsent(mid, address, port, exchange);
 		if (prev != null || f==s) 
 			return prev;
-		prev = maps[s].putIfAbsent(key, exchange);
+		prev = maps[s].putIfAbsent(mid, address, port, exchange);
 		return prev;
 	}
 
 	@Override
-	public Exchange find(KeyMID key) {
+	public Exchange find(int mid, byte[] address, int port) {
 		int f = first;
 		int s = second;
-		Exchange prev = maps[f].get(key);
+		Exchange prev = maps[f].get(mid, address, port);
 		if (prev != null || f==s)
 			return prev;
-		prev = maps[s].get(key);
+		prev = maps[s].get(mid, address, port);
 		return prev;
 	}
 
+	@Override
+	public void completed(int mid, byte[] address, int port, Exchange exchange) {
+		// the exchange is kept until its map is cleared
+	}
+
 	@Override
 	public void clear() {
 		maps[0].clear();
@@ -156,8 +161,4 @@ public class CropRotation implements Deduplicator {
 				future.cancel(true);
 		}
 	}
-	
-	private static class ExchangeMap extends ConcurrentHashMap<KeyMID, Exchange> {
-		private static final long serialVersionUID = 1504940670839294042L;
-	}
 }
@@ -22,12 +22,15 @@ package org.eclipse.californium.core.network.deduplication;
 import java.util.concurrent.ScheduledExecutorService;
 
 import org.eclipse.californium.core.network.Exchange;
-import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.ExchangeStore;
 
 
 /**
  * The deduplicator has to detect duplicates. Notice that CONs and NONs can be
- * duplicates.
+ * duplicates. Messages are identified by their MID and the address and port of
+ * their source, which implementations typically use as key of an
+ * {@link ExchangeStore}. The MID of an ACK is from the local namespace and
+ * marked with {@link ExchangeStore#LOCAL_NAMESPACE}.
  */
 public interface Deduplicator {
 
@@ -49,8 +52,9 @@ public interface Deduplicator {
 	public void setExecutor(ScheduledExecutorService executor);
 	
 	/**
-	 * Checks if the specified key is already associated with a previous
-	 * exchange and otherwise associates the key with the exchange specified. 
+	 * Checks if the specified MID, address and port are already associated
+	 * with a previous exchange and otherwise associates them with the exchange
+	 * specified. 
 	 * This method can also be though of as 'put if absent'. This is equivalent 
 	 * to
      * <pre>
@@ -61,14 +65,37 @@ public interface Deduplicator {
      * </pre>
      * except that the action is performed atomically.
 	 * 
-	 * @param key the key
+	 * @param mid the message ID
+	 * @param address the source address
+	 * @param port the source port
 	 * @param exchange the exchange
 	 * @return the previous exchange associated with the specified key, or
      *         <tt>null</tt> if there was no mapping for the key.
 	 */
-	public Exchange findPrevious(KeyMID key, Exchange exchange);
+	public Exchange findPrevious(int mid, byte[] address, int port, Exchange exchange);
 	
-	public Exchange find(KeyMID key);
+	/**
+	 * Returns the exchange associated with the specified MID, address and port.
+	 * 
+	 * @param mid the message ID
+	 * @param address the source address
+	 * @param port the source port
+	 * @return the exchange or <tt>null</tt>
+	 */
+	public Exchange find(int mid, byte[] address, int port);
+	
+	/**
+	 * Informs the deduplicator that the exchange stored under the specified
+	 * MID, address and port has completed. A deduplicator can then replace
+	 * the exchange with the little state it needs to answer duplicates.
+	 * Deduplicators that keep the exchanges can ignore this.
+	 * 
+	 * @param mid the message ID
+	 * @param address the source address
+	 * @param port the source port
+	 * @param exchange the completed exchange
+	 */
+	public void completed(int mid, byte[] address, int port, Exchange exchange);
 	
 	/**
 	 * Clears the state of this deduplicator.
@@ -22,7 +22,6 @@ package org.eclipse.californium.core.network.deduplication;
 import java.util.concurrent.ScheduledExecutorService;
 
 import org.eclipse.californium.core.network.Exchange;
-import org.eclipse.californium.core.network.Exchange.KeyMID;
 
 
 /**
@@ -42,15 +41,18 @@ public class NoDeduplicator implements Deduplicator {
 	public void setExecutor(ScheduledExecutorService executor) { }
 
 	@Override
-	public Exchange findPrevious(KeyMID key, Exchange exchange) {
+	public Exchange findPrevious(int mid, byte[] address, int port, Exchange exchange) {
 		return null;
 	}
 
 	@Override
-	public Exchange find(KeyMID key) {
+	public Exchange find(int mid, byte[] address, int port) {
 		return null;
 	}
 
+	@Override
+	public void completed(int mid, byte[] address, int port, Exchange exchange) { }
+
 	@Override
 	public void clear() { }
 
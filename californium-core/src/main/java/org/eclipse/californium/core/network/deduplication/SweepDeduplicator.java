@@ -19,8 +19,6 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network.deduplication;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -28,12 +26,13 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.network.Exchange;
-import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.ExchangeStore;
+import org.eclipse.californium.core.network.PackedExchangeStore;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 
 
 /**
- * This deduplicator uses a hash map to store incoming messages. The
+ * This deduplicator uses an {@link ExchangeStore} to store incoming messages. The
  * deduplicator periodically iterates through all entries and removes obsolete
  * messages (exchanges).
  */
@@ -42,8 +41,8 @@ public class SweepDeduplicator implements Deduplicator {
 	/** The logger. */
 	private final static Logger LOGGER = Logger.getLogger(SweepDeduplicator.class.getCanonicalName());
 	
-	/** The hash map with all incoming messages. */
-	private ConcurrentHashMap<KeyMID, Exchange> incommingMessages;
+	/** The store with all incoming messages. */
+	private ExchangeStore incommingMessages;
 	
 	private NetworkConfig config;
 	private SweepAlgorithm algorithm;
@@ -54,7 +53,7 @@ public class SweepDeduplicator implements Deduplicator {
 	
 	public SweepDeduplicator(NetworkConfig config) {
 		this.config = config;
-		incommingMessages = new ConcurrentHashMap<KeyMID, Exchange>();
+		incommingMessages = new PackedExchangeStore();
 		algorithm = new SweepAlgorithm();
 	}
 	
@@ -76,18 +75,22 @@ public class SweepDeduplicator implements Deduplicator {
 	}
 	
 	/**
-	 * If the message with the specified {@link KeyMID} has already arrived
-	 * before, this method returns the corresponding exchange. If this
-	 * KeyMID has not yet arrived, this methos returns null, indicating that
-	 * the message with the KeyMID is not a duplicate.
+	 * If the message with the specified MID, address and port has already
+	 * arrived before, this method returns the corresponding exchange. If this
+	 * message has not yet arrived, this methos returns null, indicating that
+	 * the message is not a duplicate.
 	 */
-	public Exchange findPrevious(KeyMID key, Exchange exchange) {
-		Exchange previous = incommingMessages.putIfAbsent(key, exchange);
+	public Exchange findPrevious(int mid, byte[] address, int port, Exchange exchange) {
+		Exchange previous = incommingMessages.putIfAbsent(mid, address, port, exchange);
 		return previous;
 	}
 	
-	public Exchange find(KeyMID key) {
-		return incommingMessages.get(key);
+	public Exchange find(int mid, byte[] address, int port) {
+		return incommingMessages.get(mid, address, port);
+	}
+	
+	public void completed(int mid, byte[] address, int port, Exchange exchange) {
+		// the exchange is kept until it is swept
 	}
 	
 	public void clear() {
@@ -129,18 +132,17 @@ public class SweepDeduplicator implements Deduplicator {
 		 */
 		private void sweep() {
 			int lifecycle = config.getInt(NetworkConfig.Keys.EXCHANGE_LIFETIME);
-			long oldestAllowed = System.currentTimeMillis() - lifecycle;
+			final long oldestAllowed = System.currentTimeMillis() - lifecycle;
 			
-			// Notice that the guarantees from the ConcurrentHashMap guarantee
-			// the correctness for this iteration.
-			for (Map.Entry<?,Exchange> entry:incommingMessages.entrySet()) {
-				Exchange exchange = entry.getValue();
-				if (exchange.getTimestamp() < oldestAllowed) {
+			// The store locks one segment at a time while sweeping it.
+			int removed = incommingMessages.removeIf(new ExchangeStore.Filter() {
+				@Override
+				public boolean accept(Exchange exchange) {
 					//TODO check if exchange of observe relationship is periodically created and sweeped
-					LOGGER.finer("Mark-And-Sweep removes "+entry.getKey());
-					incommingMessages.remove(entry.getKey());
+					return exchange.getTimestamp() < oldestAllowed;
 				}
-			}
+			});
+			LOGGER.finer("Mark-And-Sweep removed "+removed+" entries");
 		}
 		
 		/**
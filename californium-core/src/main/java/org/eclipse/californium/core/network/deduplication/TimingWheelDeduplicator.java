@@ -0,0 +1,439 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network.deduplication;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.network.PackedExchangeStore;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.serialization.DataParser;
+
+
+/**
+ * This deduplicator remembers incoming messages in a timing wheel. The wheel
+ * has one bucket per tick of {@link NetworkConfig.Keys#TIMING_WHEEL_TICK}
+ * milliseconds and spans the EXCHANGE_LIFETIME. A message is appended to the
+ * bucket of the current tick. Each tick, the wheel advances by one bucket and
+ * drops the entries of the bucket it reaches, which are one lifetime old.
+ * Expiry therefore only touches expired entries and never iterates over all
+ * remembered messages like the {@link SweepDeduplicator}.
+ * <p>
+ * An entry only holds the exchange while it is in progress. When the exchange
+ * completes, the entry keeps just what is needed to answer a duplicate: the
+ * serialized response (or the response if it has not been serialized yet),
+ * or whether the request has been acknowledged or rejected. For a duplicate,
+ * the deduplicator then returns the new exchange with that state restored, so
+ * that the reliability layer can repeat the answer.
+ * <p>
+ * The number of entries is bounded by
+ * {@link NetworkConfig.Keys#TIMING_WHEEL_MAX_ENTRIES}. When the bound is
+ * reached, the oldest entry is evicted, i.e., the first entry of the oldest
+ * non-empty bucket. Its message is no longer recognized as duplicate.
+ * <p>
+ * The deduplicator is split into segments with their own wheel, index and
+ * lock, each holding a share of the entries.
+ */
+public class TimingWheelDeduplicator implements Deduplicator {
+
+	private final static Logger LOGGER = Logger.getLogger(TimingWheelDeduplicator.class.getCanonicalName());
+
+	private static final int SEGMENTS = 16;
+
+	/** The state of a completed exchange without answer to repeat */
+	private static final Object COMPLETED = new Object();
+
+	/** The state of a completed exchange whose request has been acknowledged */
+	private static final Object ACKNOWLEDGED = new Object();
+
+	/** The state of a completed exchange whose request has been rejected */
+	private static final Object REJECTED = new Object();
+
+	private final Segment[] segments;
+	private final long tick;
+	private final AtomicLong evictions = new AtomicLong();
+
+	private ScheduledExecutorService executor;
+	private ScheduledFuture<?> future;
+	private boolean started;
+
+	public TimingWheelDeduplicator(NetworkConfig config) {
+		this(config.getLong(NetworkConfig.Keys.EXCHANGE_LIFETIME),
+				config.getLong(NetworkConfig.Keys.TIMING_WHEEL_TICK),
+				config.getInt(NetworkConfig.Keys.TIMING_WHEEL_MAX_ENTRIES));
+	}
+
+	/**
+	 * Creates a new deduplicator.
+	 *
+	 * @param lifetime the time in milliseconds to remember a message
+	 * @param tick the time in milliseconds between two advances of the wheel
+	 * @param maxEntries the maximum number of remembered messages
+	 */
+	public TimingWheelDeduplicator(long lifetime, long tick, int maxEntries) {
+		if (tick <= 0)
+			throw new IllegalArgumentException("Tick must be positive but is " + tick);
+		if (maxEntries <= 0)
+			throw new IllegalArgumentException("Maximum number of entries must be positive but is " + maxEntries);
+		this.tick = tick;
+		// one bucket more so that an entry lives at least one lifetime
+		int buckets = (int) ((lifetime + tick - 1) / tick) + 1;
+		int capacity = Math.max(1, maxEntries / SEGMENTS);
+		this.segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(buckets, capacity);
+	}
+
+	@Override
+	public synchronized void start() {
+		started = true;
+		if (future == null && executor != null)
+			future = executor.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					try {
+						advance();
+					} catch (Throwable t) {
+						LOGGER.log(Level.WARNING, "Exception while advancing timing wheel", t);
+					}
+				}
+			}, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized void stop() {
+		started = false;
+		if (future != null) {
+			future.cancel(false);
+			future = null;
+		}
+	}
+
+	@Override
+	public synchronized void setExecutor(ScheduledExecutorService executor) {
+		boolean restart = started;
+		stop();
+		this.executor = executor;
+		if (restart)
+			start();
+	}
+
+	@Override
+	public Exchange findPrevious(int mid, byte[] address, int port, Exchange exchange) {
+		long k2 = PackedExchangeStore.midKey(mid, address, port);
+		long k0 = PackedExchangeStore.addressHigh(address);
+		long k1 = PackedExchangeStore.addressLow(address);
+		int hash = PackedExchangeStore.hash(k0, k1, k2);
+		Object previous = segmentFor(hash).putIfAbsent(k0, k1, k2, hash, exchange);
+		if (previous == null || previous instanceof Exchange)
+			return (Exchange) previous;
+		else
+			return restore(previous, exchange);
+	}
+
+	@Override
+	public Exchange find(int mid, byte[] address, int port) {
+		long k2 = PackedExchangeStore.midKey(mid, address, port);
+		long k0 = PackedExchangeStore.addressHigh(address);
+		long k1 = PackedExchangeStore.addressLow(address);
+		int hash = PackedExchangeStore.hash(k0, k1, k2);
+		Object previous = segmentFor(hash).get(k0, k1, k2, hash);
+		if (previous == null || previous instanceof Exchange) {
+			return (Exchange) previous;
+		} else {
+			// duplicates of responses are only acknowledged
+			return new Exchange(new Request(null), Origin.LOCAL);
+		}
+	}
+
+	@Override
+	public void completed(int mid, byte[] address, int port, Exchange exchange) {
+		long k2 = PackedExchangeStore.midKey(mid, address, port);
+		long k0 = PackedExchangeStore.addressHigh(address);
+		long k1 = PackedExchangeStore.addressLow(address);
+		int hash = PackedExchangeStore.hash(k0, k1, k2);
+		segmentFor(hash).replace(k0, k1, k2, hash, exchange, compact(exchange));
+	}
+
+	@Override
+	public void clear() {
+		for (Segment segment:segments)
+			segment.clear();
+	}
+
+	/**
+	 * Advances the wheel by one tick and drops the expired entries.
+	 *
+	 * @return the number of dropped entries
+	 */
+	int advance() {
+		int expired = 0;
+		for (Segment segment:segments)
+			expired += segment.advance();
+		if (LOGGER.isLoggable(Level.FINEST))
+			LOGGER.finest("Timing wheel expired " + expired + " entries");
+		return expired;
+	}
+
+	/**
+	 * Returns the number of remembered messages.
+	 *
+	 * @return the number of entries
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment:segments)
+			size += segment.size();
+		return size;
+	}
+
+	/**
+	 * Returns the number of entries that have been evicted before they
+	 * expired, because the maximum number of entries was reached.
+	 *
+	 * @return the number of evicted entries
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private Segment segmentFor(int hash) {
+		return segments[hash >>> 28];
+	}
+
+	/**
+	 * Returns the state of a completed exchange that suffices to answer a
+	 * duplicate of its message.
+	 */
+	private static Object compact(Exchange exchange) {
+		if (exchange.getOrigin() == Origin.LOCAL)
+			return COMPLETED;
+		Response response = exchange.getCurrentResponse();
+		if (response != null) {
+			byte[] bytes = response.getBytes();
+			return bytes != null ? bytes : response;
+		}
+		Request request = exchange.getCurrentRequest();
+		if (request.isRejected())
+			return REJECTED;
+		else if (request.isAcknowledged())
+			return ACKNOWLEDGED;
+		else
+			return COMPLETED;
+	}
+
+	/**
+	 * Restores the answer of a completed exchange into the exchange that has
+	 * been created for the duplicate.
+	 */
+	private static Exchange restore(Object state, Exchange exchange) {
+		if (exchange.getOrigin() == Origin.REMOTE) {
+			Request request = exchange.getCurrentRequest();
+			Response response = null;
+			if (state instanceof byte[]) {
+				byte[] bytes = (byte[]) state;
+				response = new DataParser(bytes).parseResponse();
+				response.setBytes(bytes);
+			} else if (state instanceof Response) {
+				response = (Response) state;
+			} else if (state == REJECTED) {
+				request.setRejected(true);
+			} else if (state == ACKNOWLEDGED) {
+				request.setAcknowledged(true);
+			}
+			if (response != null) {
+				response.setDestination(request.getSource());
+				response.setDestinationPort(request.getSourcePort());
+				exchange.setResponse(response);
+				exchange.setCurrentResponse(response);
+			}
+		}
+		return exchange;
+	}
+
+	/**
+	 * A remembered message. The entry is linked into the hash chain of the
+	 * index and into the list of its bucket.
+	 */
+	private static final class Entry {
+
+		private final long k0;
+		private final long k1;
+		private final long k2;
+		private final int hash;
+
+		/** The exchange or its compact state */
+		private Object value;
+
+		private Entry chain;
+		private Entry next;
+
+		private Entry(long k0, long k1, long k2, int hash, Object value) {
+			this.k0 = k0;
+			this.k1 = k1;
+			this.k2 = k2;
+			this.hash = hash;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * A segment has its own wheel and index. All methods synchronize on the
+	 * segment.
+	 */
+	private final class Segment {
+
+		/** The first (oldest) entry of each bucket */
+		private final Entry[] heads;
+		/** The last (newest) entry of each bucket */
+		private final Entry[] tails;
+		private final int capacity;
+
+		private Entry[] table;
+		private int size;
+		private int current;
+
+		private Segment(int buckets, int capacity) {
+			this.heads = new Entry[buckets];
+			this.tails = new Entry[buckets];
+			this.capacity = capacity;
+			this.table = new Entry[16];
+		}
+
+		private synchronized Object get(long k0, long k1, long k2, int hash) {
+			Entry entry = lookup(k0, k1, k2, hash);
+			return entry == null ? null : entry.value;
+		}
+
+		private synchronized Object putIfAbsent(long k0, long k1, long k2, int hash, Exchange exchange) {
+			Entry entry = lookup(k0, k1, k2, hash);
+			if (entry != null)
+				return entry.value;
+
+			if (size == capacity) {
+				evictOldest();
+				evictions.incrementAndGet();
+			}
+			entry = new Entry(k0, k1, k2, hash, exchange);
+			int index = hash & (table.length - 1);
+			entry.chain = table[index];
+			table[index] = entry;
+			if (tails[current] == null)
+				heads[current] = entry;
+			else
+				tails[current].next = entry;
+			tails[current] = entry;
+			if (++size > table.length * 3 / 4)
+				resize();
+			return null;
+		}
+
+		private synchronized void replace(long k0, long k1, long k2, int hash, Exchange expected, Object state) {
+			Entry entry = lookup(k0, k1, k2, hash);
+			if (entry != null && entry.value == expected)
+				entry.value = state;
+		}
+
+		private synchronized int advance() {
+			current = (current + 1) % heads.length;
+			int expired = 0;
+			for (Entry entry = heads[current]; entry != null; entry = entry.next) {
+				unlink(entry);
+				expired++;
+			}
+			heads[current] = null;
+			tails[current] = null;
+			return expired;
+		}
+
+		private synchronized int size() {
+			return size;
+		}
+
+		private synchronized void clear() {
+			for (int i = 0; i < heads.length; i++) {
+				heads[i] = null;
+				tails[i] = null;
+			}
+			table = new Entry[16];
+			size = 0;
+		}
+
+		private Entry lookup(long k0, long k1, long k2, int hash) {
+			for (Entry entry = table[hash & (table.length - 1)]; entry != null; entry = entry.chain) {
+				if (entry.k2 == k2 && entry.k1 == k1 && entry.k0 == k0)
+					return entry;
+			}
+			return null;
+		}
+
+		private void evictOldest() {
+			// the bucket after the current one is the oldest
+			for (int i = 1; i <= heads.length; i++) {
+				int bucket = (current + i) % heads.length;
+				Entry oldest = heads[bucket];
+				if (oldest != null) {
+					heads[bucket] = oldest.next;
+					if (oldest.next == null)
+						tails[bucket] = null;
+					unlink(oldest);
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Removes the entry from the index.
+		 */
+		private void unlink(Entry entry) {
+			int index = entry.hash & (table.length - 1);
+			Entry previous = null;
+			for (Entry e = table[index]; e != null; previous = e, e = e.chain) {
+				if (e == entry) {
+					if (previous == null)
+						table[index] = e.chain;
+					else
+						previous.chain = e.chain;
+					size--;
+					return;
+				}
+			}
+		}
+
+		private void resize() {
+			Entry[] old = table;
+			Entry[] grown = new Entry[old.length << 1];
+			for (Entry head:old) {
+				Entry entry = head;
+				while (entry != null) {
+					Entry chain = entry.chain;
+					int index = entry.hash & (grown.length - 1);
+					entry.chain = grown[index];
+					grown[index] = entry;
+					entry = chain;
+				}
+			}
+			table = grown;
+		}
+	}
+}
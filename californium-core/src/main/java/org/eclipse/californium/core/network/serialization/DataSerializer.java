@@ -19,20 +19,14 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network.serialization;
 
-import static org.eclipse.californium.core.coap.CoAP.MessageFormat.CODE_BITS;
-import static org.eclipse.californium.core.coap.CoAP.MessageFormat.MESSAGE_ID_BITS;
-import static org.eclipse.californium.core.coap.CoAP.MessageFormat.OPTION_DELTA_BITS;
-import static org.eclipse.californium.core.coap.CoAP.MessageFormat.OPTION_LENGTH_BITS;
 import static org.eclipse.californium.core.coap.CoAP.MessageFormat.PAYLOAD_MARKER;
-import static org.eclipse.californium.core.coap.CoAP.MessageFormat.TOKEN_LENGTH_BITS;
-import static org.eclipse.californium.core.coap.CoAP.MessageFormat.TYPE_BITS;
 import static org.eclipse.californium.core.coap.CoAP.MessageFormat.VERSION;
-import static org.eclipse.californium.core.coap.CoAP.MessageFormat.VERSION_BITS;
 
-import java.util.List;
+import java.nio.ByteBuffer;
 
+import org.eclipse.californium.core.coap.EmptyMessage;
 import org.eclipse.californium.core.coap.Message;
-import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.coap.CoAP.Code;
@@ -40,103 +34,143 @@ import org.eclipse.californium.core.coap.CoAP.Code;
 
 /**
  * The DataSerialized serializes outgoing messages to byte arrays.
+ * <p>
+ * The serializer first computes the exact length of the encoded message from
+ * the token, the {@link OptionSet} and the payload and then writes header,
+ * token, options and payload in a single pass into an array of that size. It
+ * holds no state and can be shared among threads.
  */
 // TODO: Should we call this "Encoder/Decoder"?
 public class DataSerializer {
 	
-	private DatagramWriter writer;
+	/** The length of the fixed CoAP header */
+	private static final int HEADER_LENGTH = 4;
 	
 	public byte[] serializeRequest(Request request) {
-		writer = new DatagramWriter();
-		Code code = request.getCode();
-		serializeMessage(request, code == null ? 0 : code.value);
-		return writer.toByteArray();
+		return serializeMessage(request, getCode(request));
 	}
 	
 	public byte[] serializeResponse(Response response) {
-		writer = new DatagramWriter();
-		serializeMessage(response, response.getCode().value);
-		return writer.toByteArray();
+		return serializeMessage(response, response.getCode().value);
 	}
 	
 	public byte[] serializeEmptyMessage(Message message) {
-		writer = new DatagramWriter();
-		serializeMessage(message, 0);
-		return writer.toByteArray();
+		return serializeMessage(message, 0);
 	}
 	
-	private void serializeMessage(Message message, int code) {
+	/**
+	 * Serializes the specified message into the specified buffer, starting at
+	 * the buffer's position. The position is advanced by the length of the
+	 * encoded message. This allows connectors that send from buffers to reuse
+	 * them across messages.
+	 * 
+	 * @param message the request, response or empty message
+	 * @param buffer the buffer
+	 * @return the number of bytes written
+	 * @throws java.nio.BufferOverflowException if the remaining space of the
+	 *             buffer is too small for the message
+	 */
+	public int serialize(Message message, ByteBuffer buffer) {
+		int code = getCode(message);
+		int length = getLength(message);
+		if (buffer.remaining() < length)
+			throw new java.nio.BufferOverflowException();
+		if (buffer.hasArray()) {
+			int offset = buffer.arrayOffset() + buffer.position();
+			write(message, code, buffer.array(), offset);
+			buffer.position(buffer.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			write(message, code, bytes, 0);
+			buffer.put(bytes);
+		}
+		return length;
+	}
+	
+	/**
+	 * Returns the exact number of bytes of the specified message when
+	 * serialized.
+	 * 
+	 * @param message the message
+	 * @return the length of the encoded message
+	 */
+	public int getLength(Message message) {
 		if (message.getToken() == null)
 			throw new NullPointerException("No Token has been set, not even an empty byte[0]");
-		writer.write(VERSION, VERSION_BITS);
-		writer.write(message.getType().value, TYPE_BITS);
-		writer.write(message.getToken().length, TOKEN_LENGTH_BITS);
-		writer.write(code, CODE_BITS);
-		writer.write(message.getMID(), MESSAGE_ID_BITS);
-		writer.writeBytes(message.getToken());
-		
-		List<Option> options = message.getOptions().asSortedList(); // already sorted
-		int lastOptionNumber = 0;
-		for (Option option:options) {
-			
-			// write 4-bit option delta
-			int optionDelta = option.getNumber() - lastOptionNumber;
-			int optionDeltaNibble = getOptionNibble(optionDelta);
-			writer.write(optionDeltaNibble, OPTION_DELTA_BITS);
-			
-			// write 4-bit option length
-			int optionLength = option.getLength();
-			int optionLengthNibble = getOptionNibble(optionLength);
-			writer.write(optionLengthNibble, OPTION_LENGTH_BITS);
-			
-			// write extended option delta field (0 - 2 bytes)
-			if (optionDeltaNibble == 13) {
-				writer.write(optionDelta - 13, 8);
-			} else if (optionDeltaNibble == 14) {
-				writer.write(optionDelta - 269, 16);
-			}
-			
-			// write extended option length field (0 - 2 bytes)
-			if (optionLengthNibble == 13) {
-				writer.write(optionLength - 13, 8);
-			} else if (optionLengthNibble == 14) {
-				writer.write(optionLength - 269, 16);
-			}
-
-			// write option value
-			writer.writeBytes(option.getValue());
-
-			// update last option number
-			lastOptionNumber = option.getNumber();
-		}
-		
-		byte[] payload = message.getPayload();
+		int length = HEADER_LENGTH + message.getToken().length + message.getOptions().getEncodedLength();
+		int payloadSize = message.getPayloadSize();
+		if (payloadSize > 0)
+			length += 1 + payloadSize;
+		return length;
+	}
+	
+	private byte[] serializeMessage(Message message, int code) {
+		byte[] bytes = new byte[getLength(message)];
+		write(message, code, bytes, 0);
+		return bytes;
+	}
+	
+	/*
+	 * Writes the message into the array which must be large enough.
+	 */
+	private int write(Message message, int code, byte[] bytes, int offset) {
+		byte[] token = message.getToken();
+		int position = writeHeader(bytes, offset, message.getType().value, token, code, message.getMID());
+		position = message.getOptions().encode(bytes, position);
+		return writePayload(bytes, position, message.getPayload());
+	}
+	
+	/**
+	 * Writes the 4-byte header followed by the token into the specified array.
+	 * 
+	 * @param bytes the destination array
+	 * @param offset the offset of the header
+	 * @param type the message type
+	 * @param token the token
+	 * @param code the message code
+	 * @param mid the message ID
+	 * @return the offset after the token
+	 */
+	static int writeHeader(byte[] bytes, int offset, int type, byte[] token, int code, int mid) {
+		bytes[offset] = (byte) (VERSION << 6 | type << 4 | token.length);
+		bytes[offset + 1] = (byte) code;
+		bytes[offset + 2] = (byte) (mid >> 8);
+		bytes[offset + 3] = (byte) mid;
+		System.arraycopy(token, 0, bytes, offset + HEADER_LENGTH, token.length);
+		return offset + HEADER_LENGTH + token.length;
+	}
+	
+	/**
+	 * Writes the payload marker and the payload into the specified array if
+	 * the payload is not empty.
+	 * 
+	 * @param bytes the destination array
+	 * @param offset the offset of the payload marker
+	 * @param payload the payload or null
+	 * @return the offset after the payload
+	 */
+	static int writePayload(byte[] bytes, int offset, byte[] payload) {
 		if (payload != null && payload.length > 0) {
 			// if payload is present and of non-zero length, it is prefixed by
 			// an one-byte Payload Marker (0xFF) which indicates the end of
 			// options and the start of the payload
-			writer.writeByte(PAYLOAD_MARKER);
-			writer.writeBytes(payload);
+			bytes[offset] = PAYLOAD_MARKER;
+			System.arraycopy(payload, 0, bytes, offset + 1, payload.length);
+			return offset + 1 + payload.length;
 		}
+		return offset;
 	}
 	
-	/**
-	 * Returns the 4-bit option header value.
-	 * 
-	 * @param optionValue
-	 *            the option value (delta or length) to be encoded.
-	 * @return the 4-bit option header value.
-	 */
-	private int getOptionNibble(int optionValue) {
-		if (optionValue <= 12) {
-			return optionValue;
-		} else if (optionValue <= 255 + 13) {
-			return 13;
-		} else if (optionValue <= 65535 + 269) {
-			return 14;
+	private static int getCode(Message message) {
+		if (message instanceof Request) {
+			Code code = ((Request) message).getCode();
+			return code == null ? 0 : code.value;
+		} else if (message instanceof Response) {
+			return ((Response) message).getCode().value;
+		} else if (message instanceof EmptyMessage) {
+			return 0;
 		} else {
-			throw new IllegalArgumentException("Unsupported option delta "+optionValue);
+			throw new IllegalArgumentException("Unknown message class "+message.getClass());
 		}
 	}
-	
 }
@@ -0,0 +1,404 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network.serialization;
+
+import static org.eclipse.californium.core.coap.CoAP.MessageFormat.EMPTY_CODE;
+import static org.eclipse.californium.core.coap.CoAP.MessageFormat.PAYLOAD_MARKER;
+import static org.eclipse.californium.core.coap.CoAP.MessageFormat.REQUEST_CODE_LOWER_BOUND;
+import static org.eclipse.californium.core.coap.CoAP.MessageFormat.REQUEST_CODE_UPPER_BOUNT;
+import static org.eclipse.californium.core.coap.CoAP.MessageFormat.RESPONSE_CODE_LOWER_BOUND;
+import static org.eclipse.californium.core.coap.CoAP.MessageFormat.RESPONSE_CODE_UPPER_BOUND;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Message;
+import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+
+/**
+ * The LazyDataParser parses incoming datagrams to messages directly on the
+ * byte array of the datagram. It offers the same contract as the
+ * {@link DataParser} but does not wrap the datagram in a stream and decodes the
+ * fixed 4-byte header with plain shifts. Integer options are decoded straight
+ * from the buffer without intermediate {@link Option} objects. String, opaque,
+ * and arbitrary options are only indexed (see
+ * {@link OptionSet#addEncodedOption(byte[], int, int, int)}) and the
+ * payload is handed to the message as a view on the datagram (see
+ * {@link Message#setPayload(byte[], int, int)}). It is only copied when a
+ * layer or resource actually reads it.
+ * <p>
+ * The parser keeps a reference to the datagram. The datagram must therefore
+ * not be modified after it has been parsed. A parser can be reused for the next
+ * datagram by calling {@link #setBytes(byte[], int, int)}.
+ */
+public class LazyDataParser {
+
+	/** The empty byte array used for empty tokens and payloads */
+	private static final byte[] EMPTY = new byte[0];
+
+	/** The length of the fixed CoAP header */
+	private static final int HEADER_LENGTH = 4;
+
+	private byte[] bytes;
+	private int offset;
+	private int end;
+
+	private int version;
+	private int type;
+	private int tokenlength;
+	private int code;
+	private int mid;
+
+	/**
+	 * Instantiates a new parser for the specified datagram.
+	 *
+	 * @param bytes the datagram
+	 */
+	public LazyDataParser(byte[] bytes) {
+		setBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Instantiates a new parser for the datagram in the specified region of a
+	 * byte array.
+	 *
+	 * @param bytes the byte array
+	 * @param offset the offset of the datagram
+	 * @param length the length of the datagram
+	 */
+	public LazyDataParser(byte[] bytes, int offset, int length) {
+		setBytes(bytes, offset, length);
+	}
+
+	/**
+	 * Instantiates a new parser for the remaining bytes of the specified
+	 * buffer. The position of the buffer is not changed. If the buffer is not
+	 * backed by an accessible array, the remaining bytes are copied once.
+	 *
+	 * @param buffer the buffer
+	 */
+	public LazyDataParser(ByteBuffer buffer) {
+		setBytes(buffer);
+	}
+
+	public void setBytes(byte[] bytes) {
+		setBytes(bytes, 0, bytes.length);
+	}
+
+	public void setBytes(ByteBuffer buffer) {
+		if (buffer.hasArray()) {
+			setBytes(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		} else {
+			byte[] copy = new byte[buffer.remaining()];
+			buffer.duplicate().get(copy);
+			setBytes(copy, 0, copy.length);
+		}
+	}
+
+	public void setBytes(byte[] bytes, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > bytes.length)
+			throw new IndexOutOfBoundsException("Datagram region "+offset+"+"+length+" exceeds array of "+bytes.length+" bytes");
+		this.bytes = bytes;
+		this.offset = offset;
+		this.end = offset + length;
+
+		if (length < HEADER_LENGTH) {
+			// too short to be a CoAP message, matches neither requests, responses nor empty messages
+			this.version = 0;
+			this.type = 0;
+			this.tokenlength = 0;
+			this.code = -1;
+			this.mid = 0;
+		} else {
+			int first = bytes[offset] & 0xFF;
+			this.version = first >>> 6;
+			this.type = (first >>> 4) & 0x03;
+			this.tokenlength = first & 0x0F;
+			this.code = bytes[offset + 1] & 0xFF;
+			this.mid = ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+		}
+	}
+
+	public boolean isWellFormed() {
+		return version == CoAP.VERSION;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public int getMID() {
+		return mid;
+	}
+
+	public boolean isReply() {
+		return type > CoAP.Type.NON.value;
+	}
+
+	public boolean isRequest() {
+		return code >= REQUEST_CODE_LOWER_BOUND &&
+				code <= REQUEST_CODE_UPPER_BOUNT;
+	}
+
+	public boolean isResponse() {
+		return code >= RESPONSE_CODE_LOWER_BOUND &&
+				code <= RESPONSE_CODE_UPPER_BOUND;
+	}
+
+	public boolean isEmpty() {
+		return code == EMPTY_CODE;
+	}
+
+	public Request parseRequest() {
+		assert(isRequest());
+		Request request = new Request(Code.valueOf(code));
+		parseMessage(request);
+		return request;
+	}
+
+	public Response parseResponse() {
+		assert(isResponse());
+		Response response = new Response(ResponseCode.valueOf(code));
+		parseMessage(response);
+		return response;
+	}
+
+	public EmptyMessage parseEmptyMessage() {
+		assert(!isRequest() && !isResponse());
+		EmptyMessage message = new EmptyMessage(Type.valueOf(type));
+		parseMessage(message);
+		return message;
+	}
+
+	/**
+	 * Parses token, options and payload into the specified message.
+	 *
+	 * @param message the message
+	 * @throws IllegalStateException if the message is not well-formed
+	 */
+	private void parseMessage(Message message) {
+		message.setType(Type.valueOf(type));
+		message.setMID(mid);
+
+		int position = offset + HEADER_LENGTH;
+
+		if (tokenlength > 8)
+			throw new IllegalStateException("Token length must be between 0 and 8 inclusive but was "+tokenlength);
+		if (position + tokenlength > end)
+			throw new IllegalStateException("Message too short for token of "+tokenlength+" bytes");
+		if (tokenlength > 0) {
+			message.setToken(Arrays.copyOfRange(bytes, position, position + tokenlength));
+			position += tokenlength;
+		} else {
+			message.setToken(EMPTY);
+		}
+
+		boolean payloadMarker = false;
+		int currentOption = 0;
+		// the Uri-Path options are contiguous and only decoded on demand
+		int uriPathStart = -1;
+		int uriPathEnd = -1;
+		int uriPathSize = 0;
+		while (position < end) {
+			int optionStart = position;
+			int nextByte = bytes[position++] & 0xFF;
+			if (nextByte == (PAYLOAD_MARKER & 0xFF)) {
+				payloadMarker = true;
+				break;
+			}
+
+			// the first 4 bits of the byte represent the option delta
+			int optionDeltaNibble = nextByte >>> 4;
+			// the second 4 bits represent the option length
+			int optionLengthNibble = nextByte & 0x0F;
+
+			// extended option delta field (0 - 2 bytes)
+			int optionDelta = optionDeltaNibble;
+			if (optionDeltaNibble == 13) {
+				optionDelta = readUnsigned(position, 1) + 13;
+				position += 1;
+			} else if (optionDeltaNibble == 14) {
+				optionDelta = readUnsigned(position, 2) + 269;
+				position += 2;
+			} else if (optionDeltaNibble == 15) {
+				throw new IllegalStateException("Option delta nibble 15 is reserved for the payload marker");
+			}
+
+			// extended option length field (0 - 2 bytes)
+			int optionLength = optionLengthNibble;
+			if (optionLengthNibble == 13) {
+				optionLength = readUnsigned(position, 1) + 13;
+				position += 1;
+			} else if (optionLengthNibble == 14) {
+				optionLength = readUnsigned(position, 2) + 269;
+				position += 2;
+			} else if (optionLengthNibble == 15) {
+				throw new IllegalStateException("Option length nibble 15 is reserved");
+			}
+
+			if (position + optionLength > end)
+				throw new IllegalStateException("Option "+(currentOption+optionDelta)+" exceeds message by "+(position + optionLength - end)+" bytes");
+
+			currentOption += optionDelta;
+			if (currentOption == OptionNumberRegistry.URI_PATH) {
+				if (optionLength > 255)
+					throw new IllegalArgumentException("Uri-Path option must be smaller or euqal to 255 bytes (UTF-8 encoded) but has "+optionLength);
+				if (uriPathStart < 0)
+					uriPathStart = optionStart;
+				uriPathEnd = position + optionLength;
+				uriPathSize += 1 + optionLength;
+			} else if (OptionSet.isDeferrable(currentOption)) {
+				// string and opaque values are only decoded when accessed
+				message.getOptions().addEncodedOption(bytes, currentOption, position, optionLength);
+			} else {
+				addOption(message.getOptions(), currentOption, position, optionLength);
+			}
+			position += optionLength;
+		}
+		if (uriPathStart >= 0)
+			message.getOptions().setEncodedUriPath(encodeUriPath(uriPathStart, uriPathEnd, uriPathSize));
+
+		if (payloadMarker) {
+			// the presence of a marker followed by a zero-length payload must be processed as a message format error
+			if (position == end)
+				throw new IllegalStateException("Payload marker followed by zero-length payload");
+
+			// payload is only copied when accessed
+			message.setPayload(bytes, position, end - position);
+		} else {
+			message.setPayload(EMPTY);
+		}
+	}
+
+	/**
+	 * Reads a 1 or 2 byte unsigned integer in network byte order.
+	 *
+	 * @param position the position of the first byte
+	 * @param length the number of bytes
+	 * @return the value
+	 * @throws IllegalStateException if the value exceeds the message
+	 */
+	private int readUnsigned(int position, int length) {
+		if (position + length > end)
+			throw new IllegalStateException("Message too short for extended option header");
+		if (length == 1)
+			return bytes[position] & 0xFF;
+		else
+			return ((bytes[position] & 0xFF) << 8) | (bytes[position + 1] & 0xFF);
+	}
+
+	/**
+	 * Decodes the option in the specified region of the datagram and adds it
+	 * to the specified option set. String and integer values are decoded
+	 * directly from the datagram, only opaque values are copied.
+	 *
+	 * @param options the option set
+	 * @param number the option number
+	 * @param position the position of the option value
+	 * @param length the length of the option value
+	 */
+	private void addOption(OptionSet options, int number, int position, int length) {
+		switch (number) {
+			case OptionNumberRegistry.IF_MATCH:       options.addIfMatch(copy(position, length)); break;
+			case OptionNumberRegistry.URI_HOST:       options.setUriHost(string(position, length)); break;
+			case OptionNumberRegistry.ETAG:           options.addETag(copy(position, length)); break;
+			case OptionNumberRegistry.IF_NONE_MATCH:  options.setIfNoneMatch(true); break;
+			case OptionNumberRegistry.URI_PORT:       options.setUriPort((int) uint(position, length)); break;
+			case OptionNumberRegistry.LOCATION_PATH:  options.addLocationPath(string(position, length)); break;
+			case OptionNumberRegistry.URI_PATH:       options.addUriPath(string(position, length)); break;
+			case OptionNumberRegistry.CONTENT_FORMAT: options.setContentFormat((int) uint(position, length)); break;
+			case OptionNumberRegistry.MAX_AGE:        options.setMaxAge(uint(position, length)); break;
+			case OptionNumberRegistry.URI_QUERY:      options.addUriQuery(string(position, length)); break;
+			case OptionNumberRegistry.ACCEPT:         options.setAccept((int) uint(position, length)); break;
+			case OptionNumberRegistry.LOCATION_QUERY: options.addLocationQuery(string(position, length)); break;
+			case OptionNumberRegistry.PROXY_URI:      options.setProxyUri(string(position, length)); break;
+			case OptionNumberRegistry.PROXY_SCHEME:   options.setProxyScheme(string(position, length)); break;
+			case OptionNumberRegistry.BLOCK1:         options.setBlock1(copy(position, length)); break;
+			case OptionNumberRegistry.BLOCK2:         options.setBlock2(copy(position, length)); break;
+			case OptionNumberRegistry.SIZE1:          options.setSize1((int) uint(position, length)); break;
+			case OptionNumberRegistry.SIZE2:          options.setSize2((int) uint(position, length)); break;
+			case OptionNumberRegistry.OBSERVE:        options.setObserve((int) uint(position, length)); break;
+			default: options.addOption(new Option(number, copy(position, length)));
+		}
+	}
+
+	/**
+	 * Copies the values of the Uri-Path options in the specified region of
+	 * the datagram into one array, each prefixed with its length (see
+	 * {@link OptionSet#getEncodedUriPath()}). The region has already been
+	 * checked by the option loop.
+	 *
+	 * @param position the position of the first Uri-Path option header
+	 * @param regionEnd the end of the last Uri-Path option value
+	 * @param size the size of the encoded Uri-Path
+	 * @return the encoded Uri-Path
+	 */
+	private byte[] encodeUriPath(int position, int regionEnd, int size) {
+		byte[] encoded = new byte[size];
+		int index = 0;
+		while (position < regionEnd) {
+			int header = bytes[position++] & 0xFF;
+			int deltaNibble = header >>> 4;
+			if (deltaNibble == 13)
+				position += 1;
+			else if (deltaNibble == 14)
+				position += 2;
+			int length = header & 0x0F;
+			if (length == 13) {
+				length = readUnsigned(position, 1) + 13;
+				position += 1;
+			} else if (length == 14) {
+				length = readUnsigned(position, 2) + 269;
+				position += 2;
+			}
+			encoded[index++] = (byte) length;
+			System.arraycopy(bytes, position, encoded, index, length);
+			index += length;
+			position += length;
+		}
+		return encoded;
+	}
+
+	private byte[] copy(int position, int length) {
+		if (length == 0)
+			return EMPTY;
+		return Arrays.copyOfRange(bytes, position, position + length);
+	}
+
+	private String string(int position, int length) {
+		return new String(bytes, position, length, CoAP.UTF8_CHARSET);
+	}
+
+	/*
+	 * Decodes an unsigned integer the same way as Option#getLongValue().
+	 */
+	private long uint(int position, int length) {
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			value = (value << 8) | (bytes[position + i] & 0xFF);
+		}
+		return value;
+	}
+}
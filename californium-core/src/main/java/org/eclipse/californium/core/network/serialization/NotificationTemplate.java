@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network.serialization;
+
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Response;
+
+/**
+ * A notification template holds the encoded form of a notification that is
+ * sent to many observers. Code, options (except Observe) and payload are
+ * encoded once when the template is created. Serializing the notification for
+ * one observer then only writes the header with type and MID, the token and
+ * the Observe option and copies the shared parts.
+ * <p>
+ * The options are split at the Observe option number: the options with a lower
+ * number are stored as they are, the options with a higher number are encoded
+ * relative to the Observe option, which every notification carries. A
+ * template is immutable and can be used by multiple threads.
+ */
+public class NotificationTemplate {
+
+	/** The length of the fixed CoAP header */
+	private static final int HEADER_LENGTH = 4;
+
+	/** The response code of the notification */
+	private final int code;
+
+	/** The encoded options with a number smaller than Observe */
+	private final byte[] head;
+
+	/** The number of the last option in {@link #head} or 0 if none */
+	private final int lastHeadOption;
+
+	/** The encoded options after Observe, the payload marker and the payload */
+	private final byte[] tail;
+
+	/**
+	 * Creates a new template from the specified notification. The type, MID,
+	 * token and Observe option of the notification are ignored.
+	 *
+	 * @param notification the notification
+	 */
+	public NotificationTemplate(Response notification) {
+		final int observe = OptionNumberRegistry.OBSERVE;
+		OptionSet options = notification.getOptions();
+		this.code = notification.getCode().value;
+
+		this.head = new byte[options.getEncodedLength(0, observe, 0)];
+		options.encode(head, 0, 0, observe, 0);
+		this.lastHeadOption = getLastOptionNumber(head);
+
+		byte[] payload = notification.getPayload();
+		int payloadLength = payload == null || payload.length == 0 ? 0 : 1 + payload.length;
+		int optionsLength = options.getEncodedLength(observe + 1, Integer.MAX_VALUE, observe);
+		this.tail = new byte[optionsLength + payloadLength];
+		int position = options.encode(tail, 0, observe + 1, Integer.MAX_VALUE, observe);
+		DataSerializer.writePayload(tail, position, payload);
+	}
+
+	/**
+	 * Serializes the notification for one observer.
+	 *
+	 * @param type the message type (CON or NON)
+	 * @param mid the message ID
+	 * @param token the token of the observe relation
+	 * @param observe the Observe sequence number
+	 * @return the encoded notification
+	 */
+	public byte[] serialize(Type type, int mid, byte[] token, int observe) {
+		if (token == null)
+			throw new NullPointerException("No Token has been set, not even an empty byte[0]");
+		if (observe < 0 || ((1 << 24) - 1) < observe)
+			throw new IllegalArgumentException("Observe option must be between 0 and "+((1<<24)-1)+" (3 bytes) inclusive but was "+observe);
+
+		int observeDelta = OptionNumberRegistry.OBSERVE - lastHeadOption;
+		int observeLength = OptionSet.getIntegerLength(observe);
+		int observeHeaderLength = OptionSet.encodeOptionHeader(null, 0, observeDelta, observeLength);
+
+		byte[] bytes = new byte[HEADER_LENGTH + token.length + head.length + observeHeaderLength + observeLength + tail.length];
+		int position = DataSerializer.writeHeader(bytes, 0, type.value, token, code, mid);
+		System.arraycopy(head, 0, bytes, position, head.length);
+		position += head.length;
+		position = OptionSet.encodeOptionHeader(bytes, position, observeDelta, observeLength);
+		position = OptionSet.encodeInteger(bytes, position, observe, observeLength);
+		System.arraycopy(tail, 0, bytes, position, tail.length);
+		return bytes;
+	}
+
+	/**
+	 * Serializes the notification for the observer of the specified response,
+	 * i.e., with its type, MID, token and Observe option. The response must
+	 * carry the same code, options and payload as the template. The encoded
+	 * bytes are stored in the response so that the {@link Serializer} does not
+	 * encode it again.
+	 *
+	 * @param response the notification for one observer
+	 * @return the encoded notification
+	 * @throws IllegalArgumentException if the response has no Observe option
+	 */
+	public byte[] serialize(Response response) {
+		Integer observe = response.getOptions().getObserve();
+		if (observe == null)
+			throw new IllegalArgumentException("Notification has no Observe option");
+		byte[] bytes = serialize(response.getType(), response.getMID(), response.getToken(), observe);
+		response.setBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of bytes that are encoded once and shared by all
+	 * notifications, i.e., the options except Observe and the payload.
+	 *
+	 * @return the length of the shared part of each notification
+	 */
+	public int getSharedLength() {
+		return head.length + tail.length;
+	}
+
+	/*
+	 * Walks through the option headers and sums up the deltas.
+	 */
+	private static int getLastOptionNumber(byte[] options) {
+		int number = 0;
+		int position = 0;
+		while (position < options.length) {
+			int deltaNibble = (options[position] & 0xF0) >> 4;
+			int lengthNibble = options[position] & 0x0F;
+			position++;
+			int delta = deltaNibble;
+			if (deltaNibble == 13) {
+				delta = (options[position] & 0xFF) + 13;
+				position += 1;
+			} else if (deltaNibble == 14) {
+				delta = ((options[position] & 0xFF) << 8 | (options[position + 1] & 0xFF)) + 269;
+				position += 2;
+			}
+			int length = lengthNibble;
+			if (lengthNibble == 13) {
+				length = (options[position] & 0xFF) + 13;
+				position += 1;
+			} else if (lengthNibble == 14) {
+				length = ((options[position] & 0xFF) << 8 | (options[position + 1] & 0xFF)) + 269;
+				position += 2;
+			}
+			number += delta;
+			position += length;
+		}
+		return number;
+	}
+}
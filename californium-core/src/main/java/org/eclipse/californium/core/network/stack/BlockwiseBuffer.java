@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network.stack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.PayloadSource;
+
+/**
+ * The blockwise buffer assembles the payload of a blockwise transfer. It keeps
+ * the payload in memory until it exceeds the spill threshold of the transfer
+ * or the memory limit that all buffers of an endpoint share. The payload is
+ * then moved to a temporary file, which is memory-mapped for reading. The
+ * buffer rejects blocks that would exceed the maximum size of the transfer.
+ * <p>
+ * The buffer is a {@link PayloadSource}, so that a resource can read a large
+ * body without loading it into the heap. Closing the buffer deletes the
+ * temporary file.
+ */
+public class BlockwiseBuffer implements PayloadSource {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(BlockwiseBuffer.class.getCanonicalName());
+
+	/** The maximum size of the payload or 0 for no limit */
+	private final int maxSize;
+
+	/** The size above which the payload is moved to a file */
+	private final int spillThreshold;
+
+	/** The memory that all buffers of the endpoint use */
+	private final AtomicInteger memory;
+
+	/** The limit for the memory of all buffers of the endpoint */
+	private final int memoryLimit;
+
+	/** The payload while it is in memory */
+	private byte[] bytes = new byte[0];
+
+	/** The size of the payload */
+	private int size;
+
+	/** The temporary file after the payload has been moved, or null */
+	private File file;
+	private RandomAccessFile access;
+	private FileChannel channel;
+
+	/** The read-only mapping of the file, renewed when it has grown */
+	private MappedByteBuffer mapped;
+
+	private boolean closed;
+
+	/**
+	 * Creates a new buffer.
+	 * 
+	 * @param maxSize the maximum size of the payload or 0 for no limit
+	 * @param spillThreshold the size above which the payload is moved to a
+	 *            file
+	 * @param memory the memory that all buffers of the endpoint use
+	 * @param memoryLimit the limit for the memory of all buffers
+	 */
+	public BlockwiseBuffer(int maxSize, int spillThreshold, AtomicInteger memory, int memoryLimit) {
+		if (memory == null)
+			throw new NullPointerException();
+		this.maxSize = maxSize;
+		this.spillThreshold = spillThreshold;
+		this.memory = memory;
+		this.memoryLimit = memoryLimit;
+	}
+
+	/**
+	 * Appends the specified block to the payload.
+	 * 
+	 * @param block the payload of the block
+	 * @return false if the block would exceed the maximum size; the block is
+	 *         not appended then
+	 * @throws IOException if the payload cannot be written to the file
+	 */
+	public synchronized boolean append(byte[] block) throws IOException {
+		if (closed)
+			throw new IOException("Blockwise buffer has been closed");
+		if (maxSize > 0 && size + block.length > maxSize)
+			return false;
+		if (channel == null && !ensureCapacity(size + block.length))
+			spill();
+		if (channel == null) {
+			System.arraycopy(block, 0, bytes, size, block.length);
+		} else {
+			ByteBuffer source = ByteBuffer.wrap(block);
+			int position = size;
+			while (source.hasRemaining())
+				position += channel.write(source, position);
+		}
+		size += block.length;
+		return true;
+	}
+
+	/*
+	 * Grows the array and reserves its memory. Returns false if the payload
+	 * must be moved to a file instead.
+	 */
+	private boolean ensureCapacity(int capacity) {
+		if (capacity <= bytes.length)
+			return true;
+		if (capacity > spillThreshold)
+			return false;
+		int grown = Math.min(spillThreshold, Math.max(capacity, bytes.length * 2));
+		int delta = grown - bytes.length;
+		int used;
+		do {
+			used = memory.get();
+			if (used + delta > memoryLimit)
+				return false;
+		} while (!memory.compareAndSet(used, used + delta));
+		byte[] array = new byte[grown];
+		System.arraycopy(bytes, 0, array, 0, size);
+		bytes = array;
+		return true;
+	}
+
+	private void spill() throws IOException {
+		file = File.createTempFile("californium-block", ".tmp");
+		access = new RandomAccessFile(file, "rw");
+		channel = access.getChannel();
+		// the file remains accessible through the channel where unlinking open files is allowed
+		if (file.delete())
+			file = null;
+		else
+			file.deleteOnExit();
+		channel.write(ByteBuffer.wrap(bytes, 0, size), 0);
+		memory.addAndGet(-bytes.length);
+		bytes = null;
+		LOGGER.fine("Moved blockwise payload of " + size + " bytes to a temporary file");
+	}
+
+	/**
+	 * Checks if the payload has been moved to a file.
+	 * 
+	 * @return true if the payload is in a file
+	 */
+	public synchronized boolean isSpilled() {
+		return channel != null;
+	}
+
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+
+	@Override
+	public synchronized int read(int position, byte[] buffer, int offset, int length) throws IOException {
+		if (closed)
+			throw new IOException("Blockwise buffer has been closed");
+		int count = Math.max(0, Math.min(length, size - position));
+		if (count == 0)
+			return 0;
+		if (channel == null) {
+			System.arraycopy(bytes, position, buffer, offset, count);
+		} else {
+			if (mapped == null || mapped.capacity() < size)
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			ByteBuffer view = mapped.duplicate();
+			view.position(position);
+			view.get(buffer, offset, count);
+		}
+		return count;
+	}
+
+	/**
+	 * Gets the payload as array. Use this method only for payloads that have
+	 * not been moved to a file.
+	 * 
+	 * @return the payload
+	 * @throws IOException if the payload cannot be read
+	 */
+	public synchronized byte[] toByteArray() throws IOException {
+		byte[] payload = new byte[size];
+		read(0, payload, 0, size);
+		return payload;
+	}
+
+	/**
+	 * Releases the memory and deletes the temporary file of this buffer.
+	 */
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (bytes != null) {
+			memory.addAndGet(-bytes.length);
+			bytes = null;
+		}
+		mapped = null;
+		if (access != null) {
+			try {
+				access.close();
+			} catch (IOException e) {
+				LOGGER.warning("Cannot close temporary blockwise file: " + e.getMessage());
+			}
+		}
+		if (file != null && !file.delete())
+			LOGGER.fine("Temporary blockwise file " + file + " is deleted on exit");
+	}
+
+	@Override
+	public String toString() {
+		return "BlockwiseBuffer[" + size + " bytes" + (channel != null ? " in file" : "") + "]";
+	}
+}
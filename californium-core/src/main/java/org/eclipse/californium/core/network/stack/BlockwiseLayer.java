@@ -19,6 +19,8 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network.stack;
 
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.coap.BlockOption;
@@ -26,6 +28,7 @@ import org.eclipse.californium.core.coap.EmptyMessage;
 import org.eclipse.californium.core.coap.Message;
 import org.eclipse.californium.core.coap.MessageObserverAdapter;
 import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.PayloadSource;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.coap.CoAP.Code;
@@ -42,7 +45,7 @@ public class BlockwiseLayer extends AbstractLayer {
 	protected final static Logger LOGGER = Logger.getLogger(BlockwiseLayer.class.getCanonicalName());
 	
 	// TODO: Size Option. Include only in first block.
-	// TODO: DoS: server should have max allowed blocks/bytes/time to allocate.
+	// TODO: DoS: server should have max allowed time to allocate.
 	// TODO: Random access for Cf servers: The draft still needs to specify a reaction to "overshoot"
 	// TODO: Blockwise with separate response or NONs. Not yet mentioned in draft.
 	// TODO: How should our client deal with a server that handles blocks non-atomic?
@@ -83,6 +86,12 @@ public class BlockwiseLayer extends AbstractLayer {
 	
 	private int max_message_size;
 	private int preferred_block_size;
+	private int max_resource_body_size;
+	private int spill_threshold;
+	private int memory_limit;
+	
+	/** The memory that the buffers of all transfers of this endpoint use */
+	private final AtomicInteger memory = new AtomicInteger();
 	
 	/**
 	 * Constructs a new blockwise layer.
@@ -92,6 +101,9 @@ public class BlockwiseLayer extends AbstractLayer {
 	public BlockwiseLayer(NetworkConfig config) {
 		this.max_message_size = config.getInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE);
 		this.preferred_block_size = config.getInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE);
+		this.max_resource_body_size = config.getInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE);
+		this.spill_threshold = config.getInt(NetworkConfig.Keys.BLOCKWISE_SPILL_THRESHOLD);
+		this.memory_limit = config.getInt(NetworkConfig.Keys.BLOCKWISE_MEMORY_LIMIT);
 		LOGGER.config("BlockwiseLayer uses MAX_MESSAGE_SIZE: "+max_message_size+" and DEFAULT_BLOCK_SIZE: "+preferred_block_size);
 		
 		config.addConfigObserver(new NetworkConfigObserverAdapter() {
@@ -101,6 +113,12 @@ public class BlockwiseLayer extends AbstractLayer {
 					max_message_size = value;
 				if (NetworkConfig.Keys.PREFERRED_BLOCK_SIZE.equals(key))
 					preferred_block_size = value;
+				if (NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE.equals(key))
+					max_resource_body_size = value;
+				if (NetworkConfig.Keys.BLOCKWISE_SPILL_THRESHOLD.equals(key))
+					spill_threshold = value;
+				if (NetworkConfig.Keys.BLOCKWISE_MEMORY_LIMIT.equals(key))
+					memory_limit = value;
 			}
 		});
 	}
@@ -129,6 +147,8 @@ public class BlockwiseLayer extends AbstractLayer {
 			BlockwiseStatus status = findRequestBlockStatus(exchange, request);
 			
 			Request block = getNextRequestBlock(request, status);
+			if (block == null)
+				return;
 			
 			exchange.setRequestBlockStatus(status);
 			exchange.setCurrentRequest(block);
@@ -147,18 +167,37 @@ public class BlockwiseLayer extends AbstractLayer {
 			BlockOption block1 = request.getOptions().getBlock1();
 			LOGGER.fine("Request contains block1 option "+block1);
 			
+			if (block1.getNum() == 0 && request.getOptions().hasSize1()
+					&& exceedsMaxBodySize(request.getOptions().getSize1())) {
+				// the client has announced the size of the body
+				sendEntityTooLarge(exchange, request, block1);
+				return;
+			}
+			
 			BlockwiseStatus status = findRequestBlockStatus(exchange, request);
 			if (block1.getNum() == 0 && status.getCurrentNum() > 0) {
 				// reset the blockwise transfer
 				LOGGER.finer("Block1 num is 0, the client has restarted the blockwise transfer. Reset status.");
+				status.close();
 				status = new BlockwiseStatus(request.getOptions().getContentFormat());
 				exchange.setRequestBlockStatus(status);
 			}
+			if (status.getBuffer() == null)
+				status.setBuffer(newBuffer());
 			
 			if (block1.getNum() == status.getCurrentNum()) {
 				
 				if (request.getOptions().getContentFormat()==status.getContentFormat()) {
-					status.addBlock(request.getPayload());
+					try {
+						if (!status.addBlock(request.getPayload())) {
+							sendEntityTooLarge(exchange, request, block1);
+							return;
+						}
+					} catch (IOException e) {
+						LOGGER.warning("Cannot store request block: "+e.getMessage());
+						sendBlockError(exchange, request, block1, ResponseCode.INTERNAL_SERVER_ERROR, "Cannot store block");
+						return;
+					}
 				} else {
 					Response error = Response.createPiggybackedResponse(request, ResponseCode.REQUEST_ENTITY_INCOMPLETE);
 					error.getOptions().setBlock1(block1.getSzx(), block1.isM(), block1.getNum());
@@ -194,7 +233,13 @@ public class BlockwiseLayer extends AbstractLayer {
 					
 					// Assemble and deliver
 					Request assembled = new Request(request.getCode()); // getAssembledRequest(status, request);
-					assembleMessage(status, assembled, request);
+					try {
+						assembleMessage(status, assembled, request, true);
+					} catch (IOException e) {
+						LOGGER.warning("Cannot assemble request: "+e.getMessage());
+						sendBlockError(exchange, request, block1, ResponseCode.INTERNAL_SERVER_ERROR, "Cannot assemble body");
+						return;
+					}
 //					assembled.setAcknowledged(true); // TODO: prevents accept from sending ACK. Maybe the resource uses separate...
 					exchange.setRequest(assembled);
 					super.receiveRequest(exchange, assembled);
@@ -292,7 +337,15 @@ public class BlockwiseLayer extends AbstractLayer {
 			LOGGER.finer("Response acknowledges block "+block1);
 			
 			BlockwiseStatus status = exchange.getRequestBlockStatus();
-			if (! status.isComplete()) {
+			if (!status.isComplete() && !ResponseCode.isSuccess(response.getCode())) {
+				// The server has failed the transfer, e.g., with 4.13 (Request Entity Too Large)
+				LOGGER.fine("Server rejected block "+block1+" with "+response.getCode());
+				status.setComplete(true);
+				exchange.setResponse(response);
+				super.receiveResponse(exchange, response);
+				return;
+				
+			} else if (! status.isComplete()) {
 				// TODO: the response code should be CONTINUE. Otherwise deliver
 				// Send next block
 				int currentSize = 1 << (4 + status.getCurrentSzx());
@@ -301,6 +354,8 @@ public class BlockwiseLayer extends AbstractLayer {
 				status.setCurrentNum(nextNum);
 				status.setCurrentSzx(block1.getSzx());
 				Request nextBlock = getNextRequestBlock(exchange.getRequest(), status);
+				if (nextBlock == null)
+					return;
 				if (nextBlock.getToken() == null)
 					nextBlock.setToken(response.getToken()); // reuse same token
 				exchange.setCurrentRequest(nextBlock);
@@ -320,9 +375,23 @@ public class BlockwiseLayer extends AbstractLayer {
 			BlockOption block2 = response.getOptions().getBlock2();
 			BlockwiseStatus status = findResponseBlockStatus(exchange, response);
 			
+			if (status.getBuffer() == null)
+				status.setBuffer(newBuffer());
+			
 			if (block2.getNum() == status.getCurrentNum()) {
 				// We got the block we expected :-)
-				status.addBlock(response.getPayload());
+				boolean stored;
+				try {
+					stored = status.addBlock(response.getPayload());
+				} catch (IOException e) {
+					LOGGER.warning("Cannot store response block: "+e.getMessage());
+					stored = false;
+				}
+				if (!stored) {
+					LOGGER.warning("Response exceeds the maximum body size of "+max_resource_body_size+" bytes. Reject response; exchange has failed.");
+					rejectResponse(exchange, response);
+					return;
+				}
 				if (response.getOptions().hasObserve())
 					status.setObserve(response.getOptions().getObserve());
 				
@@ -364,7 +433,13 @@ public class BlockwiseLayer extends AbstractLayer {
 				} else {
 					LOGGER.finer("We have received all "+status.getBlockCount()+" blocks of the response. Assemble and deliver");
 					Response assembled = new Response(response.getCode());
-					assembleMessage(status, assembled, response);
+					try {
+						assembleMessage(status, assembled, response, false);
+					} catch (IOException e) {
+						LOGGER.warning("Cannot assemble response: "+e.getMessage());
+						rejectResponse(exchange, response);
+						return;
+					}
 					assembled.setType(response.getType());
 					
 					// set overall transfer RTT
@@ -389,11 +464,7 @@ public class BlockwiseLayer extends AbstractLayer {
 				// TODO: This scenario is not specified in the draft.
 				// Currently, we reject it and cancel the request.
 				LOGGER.warning("Wrong block number. Expected "+status.getCurrentNum()+" but received "+block2.getNum()+". Reject response; exchange has failed.");
-				if (response.getType()==Type.CON) {
-					EmptyMessage rst = EmptyMessage.newRST(response);
-					super.sendEmptyMessage(exchange, rst);
-				}
-				exchange.getRequest().cancel();
+				rejectResponse(exchange, response);
 			}
 		}
 	}
@@ -410,6 +481,64 @@ public class BlockwiseLayer extends AbstractLayer {
 	
 	/////////// HELPER METHODS //////////
 	
+	private BlockwiseBuffer newBuffer() {
+		return new BlockwiseBuffer(max_resource_body_size, spill_threshold, memory, memory_limit);
+	}
+	
+	private boolean exceedsMaxBodySize(int size) {
+		return max_resource_body_size > 0 && size > max_resource_body_size;
+	}
+	
+	private void sendEntityTooLarge(Exchange exchange, Request request, BlockOption block1) {
+		LOGGER.warning("Request body exceeds the maximum size of "+max_resource_body_size+" bytes. Respond with 4.13 (Request Entity Too Large)");
+		Response error = Response.createPiggybackedResponse(request, ResponseCode.REQUEST_ENTITY_TOO_LARGE);
+		error.getOptions().setBlock1(block1.getSzx(), block1.isM(), block1.getNum());
+		error.getOptions().setSize1(max_resource_body_size);
+		error.setPayload("Body too large");
+		request.setAcknowledged(true);
+		exchange.setCurrentResponse(error);
+		super.sendResponse(exchange, error);
+	}
+	
+	private void sendBlockError(Exchange exchange, Request request, BlockOption block1, ResponseCode code, String message) {
+		Response error = Response.createPiggybackedResponse(request, code);
+		error.getOptions().setBlock1(block1.getSzx(), block1.isM(), block1.getNum());
+		error.setPayload(message);
+		request.setAcknowledged(true);
+		exchange.setCurrentResponse(error);
+		super.sendResponse(exchange, error);
+	}
+	
+	private void rejectResponse(Exchange exchange, Response response) {
+		if (response.getType()==Type.CON) {
+			EmptyMessage rst = EmptyMessage.newRST(response);
+			super.sendEmptyMessage(exchange, rst);
+		}
+		BlockwiseStatus status = exchange.getResponseBlockStatus();
+		if (status != null)
+			status.close();
+		exchange.getRequest().cancel();
+	}
+	
+	/*
+	 * Reads the payload of a block from the byte array or the source of the
+	 * specified message.
+	 */
+	private static byte[] readBlock(Message message, int from, int length) throws IOException {
+		byte[] block = new byte[length];
+		PayloadSource source = message.getPayloadSource();
+		if (source != null) {
+			int position = 0, count;
+			while (position < length && (count = source.read(from + position, block, position, length - position)) > 0)
+				position += count;
+			if (position < length)
+				throw new IOException("Payload source ended at "+(from + position)+" of "+source.size()+" bytes");
+		} else {
+			System.arraycopy(message.getPayload(), from, block, 0, length);
+		}
+		return block;
+	}
+	
 	private void earlyBlock2Negotiation(Exchange exchange, Request request) {
 		// Call this method when a request has completely arrived (might have
 		// been sent in one piece without blockwise).
@@ -463,9 +592,13 @@ public class BlockwiseLayer extends AbstractLayer {
 		int from = num * currentSize;
 		int to = Math.min((num + 1) * currentSize, request.getPayloadSize());
 		int length = to - from;
-		byte[] blockPayload = new byte[length];
-		System.arraycopy(request.getPayload(), from, blockPayload, 0, length);
-		block.setPayload(blockPayload);
+		try {
+			block.setPayload(readBlock(request, from, length));
+		} catch (IOException e) {
+			LOGGER.warning("Cannot read request block from payload source: "+e.getMessage());
+			request.cancel();
+			return null;
+		}
 		
 		boolean m = (to < request.getPayloadSize());
 		block.getOptions().setBlock1(szx, m, num);
@@ -492,9 +625,19 @@ public class BlockwiseLayer extends AbstractLayer {
 		if (0 < payloadsize && from < payloadsize) {
 			int to = Math.min((num + 1) * currentSize, response.getPayloadSize());
 			int length = to - from;
-			byte[] blockPayload = new byte[length];
-			System.arraycopy(response.getPayload(), from, blockPayload, 0, length);
-			block.setPayload(blockPayload);
+			try {
+				block.setPayload(readBlock(response, from, length));
+			} catch (IOException e) {
+				LOGGER.warning("Cannot read response block from payload source: "+e.getMessage());
+				Response error = new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+				error.setDestination(response.getDestination());
+				error.setDestinationPort(response.getDestinationPort());
+				error.setToken(response.getToken());
+				error.addMessageObserver(new TimeoutForwarder(response));
+				error.setLast(true);
+				status.setComplete(true);
+				return error;
+			}
 			
 			boolean m = (to < response.getPayloadSize());
 			block.getOptions().setBlock2(szx, m, num);
@@ -509,7 +652,13 @@ public class BlockwiseLayer extends AbstractLayer {
 		return block;
 	}
 	
-	private void assembleMessage(BlockwiseStatus status, Message message, Message last) {
+	/*
+	 * Sets the assembled body as payload of the message. A spilled request
+	 * body stays in its file and is closed when the exchange completes. A
+	 * response body is always read onto the heap, since nothing closes the
+	 * responses that are handed to the application.
+	 */
+	private void assembleMessage(BlockwiseStatus status, Message message, Message last, boolean keepSpilled) throws IOException {
 		// The assembled request will contain the options of the last block
 		message.setMID(last.getMID());
 		message.setSource(last.getSource());
@@ -518,18 +667,13 @@ public class BlockwiseLayer extends AbstractLayer {
 		message.setType(last.getType());
 		message.setOptions(new OptionSet(last.getOptions()));
 		
-		int length = 0;
-		for (byte[] block:status.getBlocks())
-			length += block.length;
-		
-		byte[] payload = new byte[length];
-		int offset = 0;
-		for (byte[] block:status.getBlocks()) {
-			System.arraycopy(block, 0, payload, offset, block.length);
-			offset += block.length;
+		BlockwiseBuffer buffer = status.getBuffer();
+		if (keepSpilled && buffer.isSpilled()) {
+			message.setPayloadSource(buffer);
+		} else {
+			message.setPayload(buffer.toByteArray());
+			buffer.close();
 		}
-		
-		message.setPayload(payload);
 	}
 	
 	private boolean requiresBlockwise(Request request) {
@@ -570,5 +714,10 @@ public class BlockwiseLayer extends AbstractLayer {
 		public void onTimeout() {
 			message.setTimedOut(true);
 		}
+		
+		@Override
+		public void onOverload() {
+			message.setOverloaded(true);
+		}
 	}
 }
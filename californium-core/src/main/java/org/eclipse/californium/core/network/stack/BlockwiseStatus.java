@@ -19,8 +19,7 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network.stack;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 
 /**
  * This class represents the status of a blockwise transfer of a request or a
@@ -57,19 +56,14 @@ public class BlockwiseStatus {
 	private int observe = NO_OBSERVE;
 
 	/*
-	 * Unfortunately, we cannot use a ByteBuffer and just insert one payload
-	 * after another. If a blockwise request is answered with a blockwise
-	 * response, the first and second payload blocks are sent concurrently
-	 * (blockwise-11). They might arrive out of order. If the first block goes
-	 * lost, the client resends the last request block. Until the first response
-	 * block arrives we might already have collected several response blocks.
-	 * This is also the reason, why synchronization is required. (=>TODO)
-	 * This might change in a future draft.
-	 * UPDATE: This is no longer true since block-14.
-	 */
-	// Container for the payload of all blocks
-	/** The blocks. */
-	private ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+	 * Since block-14, the blocks of a transfer arrive in order, so that the
+	 * payload of one block is simply appended after another.
+	 */
+	/** The assembled payload of the received blocks or null if not receiving. */
+	private BlockwiseBuffer buffer;
+
+	/** The number of received blocks. */
+	private int blockCount;
 
 	/**
 	 * Instantiates a new blockwise status.
@@ -157,12 +151,20 @@ public class BlockwiseStatus {
 	}
 	
 	/**
-	 * Adds the specified block to the current list of blocks.
+	 * Appends the specified block to the buffer.
 	 *
 	 * @param block the block
+	 * @return false if the block exceeds the maximum size of the transfer
+	 * @throws IOException if the buffer cannot store the block
+	 * @throws IllegalStateException if the status has no buffer
 	 */
-	public void addBlock(byte[] block) {
-		blocks.add(block);
+	public boolean addBlock(byte[] block) throws IOException {
+		if (buffer == null)
+			throw new IllegalStateException("Blockwise status has no buffer");
+		if (!buffer.append(block))
+			return false;
+		blockCount++;
+		return true;
 	}
 	
 	/**
@@ -171,16 +173,33 @@ public class BlockwiseStatus {
 	 * @return the block count
 	 */
 	public int getBlockCount() {
-		return blocks.size();
+		return blockCount;
 	}
 	
 	/**
-	 * Gets the list of blocks.
+	 * Gets the buffer that assembles the received blocks.
 	 *
-	 * @return the blocks
+	 * @return the buffer or null
+	 */
+	public BlockwiseBuffer getBuffer() {
+		return buffer;
+	}
+	
+	/**
+	 * Sets the buffer that assembles the received blocks.
+	 *
+	 * @param buffer the buffer
+	 */
+	public void setBuffer(BlockwiseBuffer buffer) {
+		this.buffer = buffer;
+	}
+	
+	/**
+	 * Releases the buffer of this status.
 	 */
-	public List<byte[]> getBlocks() {
-		return blocks;
+	public void close() {
+		if (buffer != null)
+			buffer.close();
 	}
 	
 	public int getObserve() {
@@ -24,6 +24,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
@@ -86,6 +87,7 @@ public class CoapStack {
 	private Outbox outbox;
 	private StackTopAdapter top;
 	private StackBottomAdapter bottom;
+	private ReliabilityLayer reliability;
 	private MessageDeliverer deliverer;
 	
 	public CoapStack(NetworkConfig config, Outbox outbox) {
@@ -106,7 +108,7 @@ public class CoapStack {
 				.add(new ObserveLayer(config))
 				.add(new BlockwiseLayer(config))
 				.add(new TokenLayer(config))
-				.add(reliabilityLayer)
+				.add(reliability = reliabilityLayer)
 				.add(bottom = new StackBottomAdapter())
 				.create();
 		
@@ -156,6 +158,13 @@ public class CoapStack {
 		
 		public void sendRequest(Request request) {
 			Exchange exchange = new Exchange(request, Origin.LOCAL);
+			// an observe request keeps its exchange to reject further notifications
+			if (request.isCompleteOnCancel() && !request.getOptions().hasObserve())
+				request.addMessageObserver(new CancelCompletion(exchange));
+			if (request.isCanceled()) {
+				LOGGER.fine("Request has been canceled before it was sent");
+				return;
+			}
 			sendRequest(exchange, request); // layer method
 		}
 		
@@ -187,6 +196,8 @@ public class CoapStack {
 		public void receiveResponse(Exchange exchange, Response response) {
 			if (!response.getOptions().hasObserve())
 				exchange.setComplete();
+			else if (exchange.getResponseTimeoutHandle() != null)
+				exchange.setResponseTimeoutHandle(null);
 			if (deliverer != null) {
 				deliverer.deliverResponse(exchange, response); // notify request that response has arrived
 			} else {
@@ -200,6 +211,29 @@ public class CoapStack {
 		}
 	}
 	
+	/**
+	 * Completes the exchange of a canceled request, so that the matcher
+	 * forgets it, no retransmission is pending, and an unacknowledged request
+	 * no longer occupies an NSTART slot of the remote endpoint.
+	 */
+	private class CancelCompletion extends MessageObserverAdapter {
+		
+		private final Exchange exchange;
+		
+		private CancelCompletion(Exchange exchange) {
+			this.exchange = exchange;
+		}
+		
+		@Override
+		public void onCancel() {
+			if (!exchange.isComplete()) {
+				exchange.setRetransmissionHandle(null);
+				reliability.transmissionEnded(exchange);
+				exchange.setComplete();
+			}
+		}
+	}
+	
 	private class StackBottomAdapter extends AbstractLayer {
 	
 		@Override
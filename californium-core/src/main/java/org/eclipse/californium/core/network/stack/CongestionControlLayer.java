@@ -17,11 +17,11 @@
  
 package org.eclipse.californium.core.network.stack;
 
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.coap.EmptyMessage;
+import org.eclipse.californium.core.coap.Message;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
@@ -59,7 +59,8 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 	protected final static int WEAKRTOTYPE = 2;
 	protected final static int NOESTIMATOR = 3;
 		
-	private final static int EXCHANGELIMIT = 50;    // An upper limit for the queue size of confirmables and non-confirmables (separate queues)
+	private final int nstart;         // The maximum number of ongoing confirmable exchanges per remote endpoint
+	private final int queueCapacity;  // An upper limit for the queue size of confirmables and non-confirmables (separate queues)
 	
 	private final static int MAX_RTO = 60000;
 	 
@@ -74,6 +75,8 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 	public CongestionControlLayer(NetworkConfig config) {
 		super(config);
 		this.config = config;
+		this.nstart = config.getInt(NetworkConfig.Keys.NSTART);
+		this.queueCapacity = config.getInt(NetworkConfig.Keys.CONGESTION_CONTROL_QUEUE_CAPACITY);
 	    this.remoteEndpointmanager = new RemoteEndpointManager(config);
 	    setDithering(false);
 	}
@@ -105,6 +108,7 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 	 * 	   the bucket thread is not running, it is started
 	 * 3.) Checks if message is confirmable and if the NSTART rule is followed. If more than NSTART exchanges are running, the Request is enqueued.
 	 *     If the NSTART limit is respected, the message is passed on to the reliability layer.
+	 * If a queue is full, the message is marked as overloaded and dropped.
 	 */
 	private boolean processMessage(Exchange exchange, Object message) {
 		Type messageType;
@@ -140,20 +144,13 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 			}
 		} else {
 			// Check of if there's space to queue a NON
-			if (getRemoteEndpoint(exchange).getNonConfirmableQueue().size() == EXCHANGELIMIT) {
-				// System.out.println("Non-confirmable exchange queue limit reached!");
-				// TODO: Drop packet -> Notify upper layers?
-			} else {
-				getRemoteEndpoint(exchange).getNonConfirmableQueue().add(
-						exchange);
-
-				// Check if NONs are already processed, if not, start bucket
-				// Thread
-				if (!getRemoteEndpoint(exchange).getProcessingNON()) {
-					executor.schedule(new bucketThread(
-							getRemoteEndpoint(exchange)), 0,
-							TimeUnit.MILLISECONDS);
-				}
+			RemoteEndpoint endpoint = getRemoteEndpoint(exchange);
+			if (!endpoint.offerNonConfirmableExchange(exchange, queueCapacity)) {
+				LOGGER.fine("Non-confirmable exchange queue limit reached for " + endpoint.getRemoteAddress());
+				((Message) message).setOverloaded(true);
+			} else if (endpoint.startProcessingNON()) {
+				// NONs were not processed yet, start bucket thread
+				executor.execute(new bucketThread(endpoint));
 			}
 			return false;
 		}
@@ -165,42 +162,37 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 	 * Check if the limit of exchanges towards the remote endpoint has reached NSTART.
 	 */
 	private boolean checkNSTART(Exchange exchange) {
-		getRemoteEndpoint(exchange).checkForDeletedExchanges();
-		if (getRemoteEndpoint(exchange).getNumberOfOngoingExchanges(exchange) < config
-				.getInt("NSTART")) {
-			// System.out.println("Processing exchange (NSTART OK!)");
-
+		RemoteEndpoint endpoint = getRemoteEndpoint(exchange);
+		// Exchanges that ended without ACK or timeout are deleted after 255 s TODO:
+		// should this value be calculated dynamically
+		endpoint.removeExpiredExchanges(MAX_REMOTE_TRANSACTION_DURATION);
+		
+		if (endpoint.registerExchange(exchange, calculateVBF(endpoint.getRTO()), nstart)) {
 			// NSTART allows to start the exchange, proceed normally
-			getRemoteEndpoint(exchange).registerExchange(exchange,
-					calculateVBF(getRemoteEndpoint(exchange).getRTO()));
-
-			// The exchange needs to be deleted after at least 255 s TODO:
-			// should this value be calculated dynamically
-			executor.schedule(new SweepCheckTask(getRemoteEndpoint(exchange),
-					exchange), MAX_REMOTE_TRANSACTION_DURATION,
-					TimeUnit.MILLISECONDS);
 			return true;
-		} else {
+			
+		} else if (!endpoint.offerConfirmableExchange(exchange, queueCapacity)) {
 			// NSTART does not allow any further parallel exchanges towards the
-			// remote endpoint
-			// System.out.println("Nstart does not allow further exchanges with "
-			// + getRemoteEndpoint(exchange).getRemoteAddress().toString());
-
-			// Check if the queue limit for exchanges is already reached
-			if (getRemoteEndpoint(exchange).getConfirmableQueue().size() == EXCHANGELIMIT) {
-				// Request cannot be queued TODO: does this trigger some
-				// feedback for other layers?
-				// System.out.println("Confirmable exchange queue limit reached! Message dropped...");
-
-			} else {
-				// Queue exchange in the CON-Queue
-				getRemoteEndpoint(exchange).getConfirmableQueue().add(exchange);
-				// System.out.println("Added exchange to the queue (NSTART limit reached)");
-			}
+			// remote endpoint and the queue limit is reached
+			LOGGER.fine("Confirmable exchange queue limit reached for " + endpoint.getRemoteAddress());
+			Message message = exchange.getCurrentResponse() != null ? exchange.getCurrentResponse() : exchange.getCurrentRequest();
+			message.setOverloaded(true);
+		} else {
+			scheduleDrain(endpoint);
 		}
 		return false;
 	}
 	
+	/*
+	 * Schedules a drain of the queued exchanges of the endpoint for the case
+	 * that the ongoing exchanges end without ACK or timeout. By then, all
+	 * exchanges that are ongoing now have expired.
+	 */
+	private void scheduleDrain(RemoteEndpoint endpoint) {
+		if (timer != null && endpoint.scheduleDrain())
+			timer.schedule(new DrainTask(endpoint), MAX_REMOTE_TRANSACTION_DURATION + 1);
+	}
+	
 	/*
 	 * When a response or an ACK was received, update the RTO values with the measured RTT.
 	 */
@@ -276,11 +268,19 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 	 * Gets a request or response from the dedicated queue and polls it
 	 */
 	private void checkRemoteEndpointQueue(Exchange exchange) {
-		// 0 = empty queue | 1 = response | 2 = request
-		if (!getRemoteEndpoint(exchange).getConfirmableQueue().isEmpty()) {
+		checkRemoteEndpointQueue(getRemoteEndpoint(exchange));
+	}
+	
+	private void checkRemoteEndpointQueue(RemoteEndpoint endpoint) {
+		Exchange queuedExchange;
+		// skip exchanges canceled while they were queued
+		do {
+			queuedExchange = endpoint.pollConfirmableExchange();
+		} while (queuedExchange != null && queuedExchange.getCurrentRequest().isCanceled());
+		
+		if (queuedExchange != null) {
 			// We have some exchanges that need to be processed; is it a
 			// response or a request?
-			Exchange queuedExchange = getRemoteEndpoint(exchange).getConfirmableQueue().poll();
 			if (queuedExchange.getCurrentResponse() != null) {
 				// it's a response
 				sendResponse(queuedExchange, queuedExchange.getCurrentResponse());
@@ -352,8 +352,8 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 		exchange.setCurrentTimeout(timeout);
 		//expectedmaxduration = calculateMaxTransactionDuration(exchange); //FIXME what was this for?
 		//System.out.println("Sending MSG (timeout;timestamp:" + timeout + ";" + System.currentTimeMillis() + ")");
-		ScheduledFuture<?> f = executor.schedule(task , timeout, TimeUnit.MILLISECONDS);
-		exchange.setRetransmissionHandle(f);	
+		timer.schedule(task, timeout);
+		exchange.setRetransmissionHandle(task);
 	}
 	
 	@Override
@@ -383,6 +383,17 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 		checkRemoteEndpointQueue(exchange);
 	}	
 	
+	/**
+	 * If the retransmission timed out or was canceled, free the NSTART slot of
+	 * the exchange.
+	 */
+	@Override
+	protected void transmissionEnded(Exchange exchange) {
+		if (getRemoteEndpoint(exchange).removeExchangeInfo(exchange)) {
+			checkRemoteEndpointQueue(exchange);
+		}
+	}
+	
 	/**
 	 * Method to send NON packets chosen by the bucket Thread (no reliability)
 	 * 
@@ -417,13 +428,10 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 		
 		@Override
 		public void run() {
-			if (!endpoint.getNonConfirmableQueue().isEmpty()) {
-				endpoint.setProcessingNON(true);
-
-				Exchange exchange = endpoint.getNonConfirmableQueue().poll();
-
-				if (getRemoteEndpoint(exchange).getNonConfirmableCounter() <= MAX_SUCCESSIVE_NONS) {
-					getRemoteEndpoint(exchange).increaseNonConfirmableCounter();
+			Exchange exchange = endpoint.pollNonConfirmableExchange();
+			if (exchange != null) {
+				if (endpoint.getNonConfirmableCounter() <= MAX_SUCCESSIVE_NONS) {
+					endpoint.increaseNonConfirmableCounter();
 					if (exchange.getCurrentRequest().getDestinationPort() != 0) {
 						// it's a response
 						sendBucketRequest(exchange, exchange.getCurrentRequest());
@@ -433,39 +441,38 @@ public abstract class CongestionControlLayer extends ReliabilityLayer {
 					}
 				}
 				// schedule next transmission of a NON based on the RTO value (rate = 1/RTO)
-				executor.schedule(
-						new bucketThread(getRemoteEndpoint(exchange)),
-						getRemoteEndpoint(exchange).getRTO(),
-						TimeUnit.MILLISECONDS);
+				executor.schedule(this, endpoint.getRTO(), TimeUnit.MILLISECONDS);
 
 			} else {
 				endpoint.setProcessingNON(false);
+				// a NON might have been queued before the flag was cleared
+				if (endpoint.getNonConfirmableQueueSize() > 0 && endpoint.startProcessingNON())
+					executor.execute(this);
 			}
 		}		
 	}
 	
 	/*
-	 * Task that deletes old exchanges from the remote endpoint list
+	 * Removes the expired exchanges of the endpoint and starts as many
+	 * queued exchanges as NSTART allows then.
 	 */
-	private class SweepCheckTask implements Runnable {
+	private class DrainTask extends RetransmissionTimer.Timeout {
 		
-		RemoteEndpoint endpoint;
-		Exchange exchange;
-
-		public SweepCheckTask(RemoteEndpoint endpoint, Exchange exchange) {
+		private final RemoteEndpoint endpoint;
+		
+		private DrainTask(RemoteEndpoint endpoint) {
 			this.endpoint = endpoint;
-			this.exchange = exchange;
 		}
-
+		
 		@Override
 		public void run() {
-			if (endpoint.removeExchangeInfo(exchange) == false) {
-				// The entry already was removed
-			} else {
-				// Entry was removed, check if there are more messages in the
-				// queue
-				checkRemoteEndpointQueue(exchange);
-			}
+			endpoint.removeExpiredExchanges(MAX_REMOTE_TRANSACTION_DURATION);
+			int free = nstart - endpoint.getNumberOfOngoingExchanges();
+			for (int i = 0; i < free && endpoint.getConfirmableQueueSize() > 0; i++)
+				checkRemoteEndpointQueue(endpoint);
+			endpoint.drained();
+			if (endpoint.getConfirmableQueueSize() > 0)
+				scheduleDrain(endpoint);
 		}
 	}
 	
@@ -19,6 +19,9 @@
  ******************************************************************************/
 package org.eclipse.californium.core.network.stack;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
 import org.eclipse.californium.core.coap.EmptyMessage;
 import org.eclipse.californium.core.coap.Message;
 import org.eclipse.californium.core.coap.MessageObserverAdapter;
@@ -29,6 +32,7 @@ import org.eclipse.californium.core.coap.CoAP.Type;
 import org.eclipse.californium.core.network.Exchange;
 import org.eclipse.californium.core.network.Exchange.Origin;
 import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.observe.NotificationPolicy;
 import org.eclipse.californium.core.observe.ObserveRelation;
 
 
@@ -47,69 +51,115 @@ public class ObserveLayer extends AbstractLayer {
 	public void sendResponse(final Exchange exchange, final Response response) {
 		final ObserveRelation relation = exchange.getRelation();
 		if (relation != null && relation.isEstablished()) {
-			
-			if (exchange.getRequest().isAcknowledged() || exchange.getRequest().getType()==Type.NON) {
-				// Transmit errors as CON
-				if (!ResponseCode.isSuccess(response.getCode())) {
-					LOGGER.fine("Response has error code "+response.getCode()+" and must be sent as CON");
+			if (ResponseCode.isSuccess(response.getCode()) && !passRateLimit(exchange, relation, response)) {
+				// the latest notification is sent when the minimum interval has passed
+				return;
+			}
+			sendNotification(exchange, relation, response);
+		} else {
+			// no observe was requested or the resource does not allow it
+			super.sendResponse(exchange, response);
+		}
+	}
+	
+	private void sendNotification(final Exchange exchange, final ObserveRelation relation, final Response response) {
+		if (exchange.getRequest().isAcknowledged() || exchange.getRequest().getType()==Type.NON) {
+			// Transmit errors as CON
+			if (!ResponseCode.isSuccess(response.getCode())) {
+				LOGGER.fine("Response has error code "+response.getCode()+" and must be sent as CON");
+				response.setType(Type.CON);
+				relation.cancel();
+			} else {
+				// Make sure that every now and than a CON is mixed within
+				if (relation.check()) {
+					LOGGER.fine("The observe relation check requires the notification to be sent as CON");
 					response.setType(Type.CON);
-					relation.cancel();
 				} else {
-					// Make sure that every now and than a CON is mixed within
-					if (relation.check()) {
-						LOGGER.fine("The observe relation check requires the notification to be sent as CON");
-						response.setType(Type.CON);
-					} else {
-						// By default use NON, but do not override resource decision
-						if (response.getType()==null) response.setType(Type.NON);
-					}
+					// By default use NON, but do not override resource decision
+					if (response.getType()==null) response.setType(Type.NON);
 				}
 			}
-			
-			// This is a notification
-			response.setLast(false);
-			
-			/*
-			 * The matcher must be able to find the NON notifications to remove
-			 * them from the exchangesByMID hashmap
-			 */
-			if (response.getType() == Type.NON) {
-				relation.addNotification(response);
+		}
+		
+		// This is a notification
+		response.setLast(false);
+		
+		/*
+		 * The matcher must be able to find the NON notifications to remove
+		 * them from the exchangesByMID hashmap
+		 */
+		if (response.getType() == Type.NON) {
+			relation.addNotification(response);
+		}
+		
+		/*
+		 * Only one Confirmable message is allowed to be in transit. A CON
+		 * is in transit as long as it has not been acknowledged, rejected,
+		 * or timed out. All further notifications are postponed here. If a
+		 * former CON is acknowledged or timeouts, it starts the freshest
+		 * notification (In case of a timeout, it keeps the retransmission
+		 * counter). When a fresh/younger notification arrives but must be
+		 * postponed we forget any former notification.
+		 */
+		if (response.getType() == Type.CON) {
+			prepareSelfReplacement(exchange, response);
+		}
+		
+		// The decision whether to postpone this notification or not and the
+		// decision which notification is the freshest to send next must be
+		// synchronized
+		synchronized (exchange) {
+			Response current = relation.getCurrentControlNotification();
+			if (current != null && isInTransit(current)) {
+				LOGGER.fine("A former notification is still in transit. Postpone " + response);
+				// use the same MID
+				response.setMID(current.getMID());
+				relation.setNextControlNotification(response);
+				// do not send now
+				return;
+			} else {
+				relation.setCurrentControlNotification(response);
+				relation.setNextControlNotification(null);
 			}
-			
-			/*
-			 * Only one Confirmable message is allowed to be in transit. A CON
-			 * is in transit as long as it has not been acknowledged, rejected,
-			 * or timed out. All further notifications are postponed here. If a
-			 * former CON is acknowledged or timeouts, it starts the freshest
-			 * notification (In case of a timeout, it keeps the retransmission
-			 * counter). When a fresh/younger notification arrives but must be
-			 * postponed we forget any former notification.
-			 */
-			if (response.getType() == Type.CON) {
-				prepareSelfReplacement(exchange, response);
+		}
+		
+		super.sendResponse(exchange, response);
+	}
+	
+	/**
+	 * Returns true if the specified notification may be sent now. If the
+	 * minimum interval of the relation's policy has not passed yet, the
+	 * notification replaces any notification that is still pending and is
+	 * sent when the interval has passed. The first notification that passes
+	 * also starts to watch the maximum interval.
+	 */
+	private boolean passRateLimit(Exchange exchange, ObserveRelation relation, Response response) {
+		NotificationPolicy policy = relation.getNotificationPolicy();
+		if (policy.getMinInterval() == 0 && policy.getMaxInterval() == 0)
+			return true;
+		
+		long now = System.currentTimeMillis();
+		synchronized (exchange) {
+			long delay = relation.getLastNotificationTime() + policy.getMinInterval() - now;
+			if (delay <= 0) {
+				// a fresher notification replaces the pending one
+				relation.setPendingNotification(null);
+				relation.setLastNotificationTime(now);
+				if (policy.getMaxInterval() > 0 && !relation.isRefreshScheduled()) {
+					relation.setRefreshScheduled(true);
+					executor.schedule(new RefreshTask(exchange), policy.getMaxInterval(), TimeUnit.MILLISECONDS);
+				}
+				return true;
 			}
 			
-			// The decision whether to postpone this notification or not and the
-			// decision which notification is the freshest to send next must be
-			// synchronized
-			synchronized (exchange) {
-				Response current = relation.getCurrentControlNotification();
-				if (current != null && isInTransit(current)) {
-					LOGGER.fine("A former notification is still in transit. Postpone " + response);
-					// use the same MID
-					response.setMID(current.getMID());
-					relation.setNextControlNotification(response);
-					// do not send now
-					return;
-				} else {
-					relation.setCurrentControlNotification(response);
-					relation.setNextControlNotification(null);
-				}
+			if (relation.getPendingNotification() == null) {
+				executor.schedule(new PendingNotificationSender(exchange), delay, TimeUnit.MILLISECONDS);
+			} else {
+				LOGGER.finer("Replace pending notification with fresher one " + response);
 			}
-
-		} // else no observe was requested or the resource does not allow it
-		super.sendResponse(exchange, response);
+			relation.setPendingNotification(response);
+			return false;
+		}
 	}
 	
 	/**
@@ -157,6 +207,75 @@ public class ObserveLayer extends AbstractLayer {
 		response.addMessageObserver(new NotificationController(exchange, response));
 	}
 	
+	/**
+	 * Sends the pending notification of a relation when its minimum interval
+	 * has passed.
+	 */
+	private class PendingNotificationSender implements Runnable {
+		
+		private final Exchange exchange;
+		
+		public PendingNotificationSender(Exchange exchange) {
+			this.exchange = exchange;
+		}
+		
+		public void run() {
+			ObserveRelation relation = exchange.getRelation();
+			Response next;
+			synchronized (exchange) {
+				next = relation.getPendingNotification();
+				if (next == null) return; // a fresher one has already been sent
+				relation.setPendingNotification(null);
+				relation.setLastNotificationTime(System.currentTimeMillis());
+			}
+			if (relation.isEstablished()) {
+				sendNotification(exchange, relation, next);
+			}
+		}
+	}
+	
+	/**
+	 * Makes the resource notify the observer again when there has been no
+	 * notification within the maximum interval of the relation.
+	 */
+	private class RefreshTask implements Runnable {
+		
+		private final Exchange exchange;
+		
+		public RefreshTask(Exchange exchange) {
+			this.exchange = exchange;
+		}
+		
+		public void run() {
+			final ObserveRelation relation = exchange.getRelation();
+			long maxInterval = relation.getNotificationPolicy().getMaxInterval();
+			synchronized (exchange) {
+				if (!relation.isEstablished() || maxInterval == 0) {
+					relation.setRefreshScheduled(false);
+					return;
+				}
+				long idle = System.currentTimeMillis() - relation.getLastNotificationTime();
+				if (idle < maxInterval) {
+					executor.schedule(this, maxInterval - idle, TimeUnit.MILLISECONDS);
+					return;
+				}
+				// the refreshed notification schedules the next check
+				relation.setRefreshScheduled(false);
+			}
+			LOGGER.fine("No notification within " + maxInterval + " ms, refreshing observe relation " + relation.getKey());
+			Executor resourceExecutor = relation.getResource().getExecutor();
+			if (resourceExecutor == null) {
+				relation.notifyObservers();
+			} else {
+				resourceExecutor.execute(new Runnable() {
+					public void run() {
+						relation.notifyObservers();
+					}
+				});
+			}
+		}
+	}
+	
 	/**
 	 * Sends the next CON as soon as the former CON is no longer in transit.
 	 */
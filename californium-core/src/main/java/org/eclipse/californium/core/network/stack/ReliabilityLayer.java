@@ -20,8 +20,7 @@
 package org.eclipse.californium.core.network.stack;
 
 import java.util.Random;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Logger;
 
 import org.eclipse.californium.core.coap.EmptyMessage;
@@ -51,6 +50,15 @@ public class ReliabilityLayer extends AbstractLayer {
 	private float ack_timeout_scale;
 	private int max_retransmit;
 	
+	/** The number of buckets of the retransmission timer */
+	private static final int TIMER_BUCKETS = 512;
+	
+	/** The tick of the retransmission timer in ms */
+	private final long timer_tick;
+	
+	/** The timer for the retransmission tasks */
+	protected RetransmissionTimer timer;
+	
 	/**
 	 * Constructs a new reliability layer.
 	 * Changes to the configuration are observed and automatically applied.
@@ -62,6 +70,7 @@ public class ReliabilityLayer extends AbstractLayer {
 		ack_random_factor = config.getFloat(NetworkConfig.Keys.ACK_RANDOM_FACTOR);
 		ack_timeout_scale = config.getFloat(NetworkConfig.Keys.ACK_TIMEOUT_SCALE);
 		max_retransmit = config.getInt(NetworkConfig.Keys.MAX_RETRANSMIT);
+		timer_tick = Math.max(1, ack_timeout / 20);
 		
 		LOGGER.config("ReliabilityLayer uses ACK_TIMEOUT: "+ack_timeout+", ACK_RANDOM_FACTOR: "+ack_random_factor+", and ACK_TIMEOUT_SCALE: "+ack_timeout_scale);
 		
@@ -83,6 +92,17 @@ public class ReliabilityLayer extends AbstractLayer {
 		});
 	}
 	
+	/**
+	 * Creates the retransmission timer for the specified executor.
+	 */
+	@Override
+	public void setExecutor(ScheduledExecutorService executor) {
+		super.setExecutor(executor);
+		if (timer != null)
+			timer.stop();
+		timer = new RetransmissionTimer(executor, timer_tick, TIMER_BUCKETS);
+	}
+	
 	/**
 	 * Schedules a retransmission for confirmable messages. 
 	 */
@@ -101,6 +121,14 @@ public class ReliabilityLayer extends AbstractLayer {
 				}
 			});
 		}
+		
+		// the response timeout covers the whole exchange of the original request
+		Request original = exchange.getRequest();
+		if (original.getResponseTimeout() > 0 && exchange.getResponseTimeoutHandle() == null && !executor.isShutdown()) {
+			ResponseTimeout timeout = new ResponseTimeout(exchange, original);
+			exchange.setResponseTimeoutHandle(timeout);
+			timer.schedule(timeout, original.getResponseTimeout());
+		}
 		super.sendRequest(exchange, request);
 	}
 
@@ -181,8 +209,8 @@ public class ReliabilityLayer extends AbstractLayer {
 			timeout = (int) (ack_timeout_scale * exchange.getCurrentTimeout());
 		}
 		exchange.setCurrentTimeout(timeout);
-		ScheduledFuture<?> f = executor.schedule(task , timeout, TimeUnit.MILLISECONDS);
-		exchange.setRetransmissionHandle(f);
+		timer.schedule(task, timeout);
+		exchange.setRetransmissionHandle(task);
 	}
 	
 	/**
@@ -298,13 +326,23 @@ public class ReliabilityLayer extends AbstractLayer {
 		return min + rand.nextInt(max - min);
 	}
 	
+	/**
+	 * Called when the retransmission of a confirmable message ends without
+	 * ACK or RST, i.e., because it timed out or has been canceled.
+	 * 
+	 * @param exchange the exchange
+	 */
+	protected void transmissionEnded(Exchange exchange) {
+		// nothing to clean up
+	}
+	
 	/*
 	 * The main reason to create this class was to enable the methods
 	 * sendRequest and sendResponse to use the same code for sending messages
 	 * but where the retransmission method calls sendRequest and sendResponse
 	 * respectively.
 	 */
-	 protected abstract class RetransmissionTask implements Runnable {
+	 protected abstract class RetransmissionTask extends RetransmissionTimer.Timeout {
 		
 		private Exchange exchange;
 		private Message message;
@@ -335,6 +373,7 @@ public class ReliabilityLayer extends AbstractLayer {
 					
 				} else if (message.isCanceled()) {
 					LOGGER.finest("Timeout: canceled (MID="+message.getMID()+"), do not retransmit");
+					transmissionEnded(exchange);
 					return;
 					
 				} else if (failedCount <= max_retransmit) {
@@ -351,6 +390,7 @@ public class ReliabilityLayer extends AbstractLayer {
 					LOGGER.info("Timeout: retransmission limit reached, exchange failed, message: "+message);
 					exchange.setTimedOut();
 					message.setTimedOut(true);
+					transmissionEnded(exchange);
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -360,4 +400,31 @@ public class ReliabilityLayer extends AbstractLayer {
 		public abstract void retransmit();
 	}
 	
+	/*
+	 * Times out a request that has not received a response in time. The
+	 * timeout stops the retransmission, ends the transmission of an
+	 * unacknowledged request, and completes the exchange.
+	 */
+	protected class ResponseTimeout extends RetransmissionTimer.Timeout {
+		
+		private final Exchange exchange;
+		private final Request request;
+		
+		public ResponseTimeout(Exchange exchange, Request request) {
+			this.exchange = exchange;
+			this.request = request;
+		}
+		
+		@Override
+		public void run() {
+			if (exchange.isComplete() || request.isCanceled() || exchange.getResponseTimeoutHandle() != this)
+				return;
+			LOGGER.fine("Timeout: no response within "+request.getResponseTimeout()+" ms, message: "+request);
+			exchange.setRetransmissionHandle(null);
+			exchange.setTimedOut();
+			request.setTimedOut(true);
+			transmissionEnded(exchange);
+		}
+	}
+	
 }
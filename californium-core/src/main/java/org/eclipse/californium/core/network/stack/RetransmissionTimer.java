@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network.stack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The retransmission timer is a hashed timing wheel for the retransmission
+ * timeouts of confirmable messages. Instead of one scheduled future per
+ * message, the timer has a single periodic task that advances the wheel by
+ * one bucket per tick and passes the expired timeouts in batches to the
+ * executor.
+ * <p>
+ * Scheduling and cancelling lock only the bucket of the timeout. A cancelled
+ * timeout is unlinked from its bucket right away, so that the wheel does not
+ * keep it and what it references until its deadline. Timeouts fire up to
+ * one tick late, so the tick should be small compared to the ACK_TIMEOUT.
+ */
+public class RetransmissionTimer {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(RetransmissionTimer.class.getCanonicalName());
+
+	/** The number of expired timeouts that one task of the executor runs */
+	private static final int BATCH_SIZE = 64;
+
+	private final ScheduledExecutorService executor;
+	private final long tick;
+	private final Bucket[] wheel;
+	private final int mask;
+
+	/** The current tick. Only the ticker writes it. */
+	private volatile long current;
+
+	private ScheduledFuture<?> ticker;
+
+	/**
+	 * Creates a new timer.
+	 *
+	 * @param executor the executor for the ticker and the expired timeouts
+	 * @param tick the duration of a tick in milliseconds
+	 * @param buckets the number of buckets (rounded up to a power of two)
+	 */
+	public RetransmissionTimer(ScheduledExecutorService executor, long tick, int buckets) {
+		if (tick <= 0)
+			throw new IllegalArgumentException("Tick must be positive but is " + tick);
+		int size = Integer.highestOneBit(Math.max(2, buckets));
+		if (size < buckets)
+			size <<= 1;
+		this.executor = executor;
+		this.tick = tick;
+		this.wheel = new Bucket[size];
+		this.mask = size - 1;
+		for (int i = 0; i < size; i++)
+			wheel[i] = new Bucket();
+	}
+
+	/**
+	 * Schedules the timeout to run after the specified delay. A timeout can
+	 * only be scheduled once.
+	 *
+	 * @param timeout the timeout
+	 * @param delay the delay in milliseconds
+	 */
+	public void schedule(Timeout timeout, long delay) {
+		startTicker();
+		long ticks = Math.max(1, (delay + tick - 1) / tick);
+		long deadline = current + ticks;
+		timeout.deadline = deadline;
+		Bucket bucket = wheel[(int) (deadline & mask)];
+		bucket.add(timeout);
+
+		if (timeout.isCancelled()) {
+			// cancelled before it has been linked
+			bucket.remove(timeout);
+		} else if (current >= deadline && timeout.expire()) {
+			// the ticker has passed the bucket in the meantime
+			bucket.remove(timeout);
+			dispatch(timeout);
+		}
+	}
+
+	/**
+	 * Stops the ticker. Pending timeouts fire when the timer is used again.
+	 */
+	public synchronized void stop() {
+		if (ticker != null) {
+			ticker.cancel(false);
+			ticker = null;
+		}
+	}
+
+	/**
+	 * Advances the wheel by one tick and dispatches the expired timeouts.
+	 *
+	 * @return the number of expired timeouts
+	 */
+	int advance() {
+		long now = current + 1;
+		current = now;
+		List<Timeout> expired = wheel[(int) (now & mask)].expire(now);
+		if (expired == null)
+			return 0;
+
+		for (int from = 0; from < expired.size(); from += BATCH_SIZE)
+			dispatch(new Batch(expired.subList(from, Math.min(expired.size(), from + BATCH_SIZE))));
+		return expired.size();
+	}
+
+	/**
+	 * Returns the number of timeouts in the wheel.
+	 *
+	 * @return the number of timeouts
+	 */
+	int size() {
+		int size = 0;
+		for (Bucket bucket:wheel)
+			size += bucket.size();
+		return size;
+	}
+
+	private synchronized void startTicker() {
+		if (ticker == null) {
+			ticker = executor.scheduleAtFixedRate(new Runnable() {
+				public void run() {
+					try {
+						advance();
+					} catch (Throwable t) {
+						LOGGER.log(Level.WARNING, "Exception while advancing retransmission timer", t);
+					}
+				}
+			}, tick, tick, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void dispatch(Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			LOGGER.fine("Executor has been shut down: skipping retransmission");
+		}
+	}
+
+	/**
+	 * A timeout of the timer. The timeout is its own entry in the list of its
+	 * bucket, so that scheduling does not allocate. The links are guarded by
+	 * the bucket.
+	 */
+	public static abstract class Timeout implements Runnable {
+
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		private volatile int state;
+		private long deadline;
+		private volatile Bucket bucket;
+		private Timeout previous;
+		private Timeout next;
+
+		/**
+		 * Cancels this timeout if it has not expired yet and removes it from
+		 * the timer.
+		 *
+		 * @return true if the timeout has been cancelled
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, PENDING, CANCELLED))
+				return false;
+			Bucket bucket = this.bucket;
+			if (bucket != null)
+				bucket.remove(this);
+			return true;
+		}
+
+		/**
+		 * Checks if this timeout has been cancelled.
+		 *
+		 * @return true if cancelled
+		 */
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		private boolean expire() {
+			return STATE.compareAndSet(this, PENDING, EXPIRED);
+		}
+	}
+
+	/**
+	 * A bucket is a doubly linked list of timeouts. All methods synchronize on
+	 * the bucket.
+	 */
+	private static final class Bucket {
+
+		private Timeout head;
+		private int size;
+
+		private synchronized void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.previous = null;
+			timeout.next = head;
+			if (head != null)
+				head.previous = timeout;
+			head = timeout;
+			size++;
+		}
+
+		private synchronized void remove(Timeout timeout) {
+			if (timeout.bucket == this)
+				unlink(timeout);
+		}
+
+		/*
+		 * Unlinks the timeouts of the current round and the cancelled ones,
+		 * and returns the timeouts that have expired or null if none. The
+		 * timeouts of later rounds stay in the bucket.
+		 */
+		private synchronized List<Timeout> expire(long now) {
+			List<Timeout> expired = null;
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.isCancelled()) {
+					unlink(timeout);
+				} else if (timeout.deadline <= now) {
+					unlink(timeout);
+					if (timeout.expire()) {
+						if (expired == null)
+							expired = new ArrayList<Timeout>();
+						expired.add(timeout);
+					}
+				}
+				timeout = next;
+			}
+			return expired;
+		}
+
+		private synchronized int size() {
+			return size;
+		}
+
+		private void unlink(Timeout timeout) {
+			if (timeout.previous != null)
+				timeout.previous.next = timeout.next;
+			else
+				head = timeout.next;
+			if (timeout.next != null)
+				timeout.next.previous = timeout.previous;
+			timeout.previous = null;
+			timeout.next = null;
+			timeout.bucket = null;
+			size--;
+		}
+	}
+
+	/**
+	 * Runs a batch of expired timeouts.
+	 */
+	private static final class Batch implements Runnable {
+
+		private final List<Timeout> timeouts;
+
+		private Batch(List<Timeout> timeouts) {
+			this.timeouts = timeouts;
+		}
+
+		public void run() {
+			for (Timeout timeout:timeouts) {
+				try {
+					timeout.run();
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception in retransmission timeout", t);
+				}
+			}
+		}
+	}
+}
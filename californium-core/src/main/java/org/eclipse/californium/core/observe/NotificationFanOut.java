@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.observe;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.Utils;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.BatchEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.serialization.NotificationTemplate;
+
+/**
+ * The notification fan-out notifies many observe relations of a resource
+ * with a single representation. Instead of reprocessing the request of each
+ * relation, the resource handles the request once per group of relations that
+ * ask for the same representation, i.e., with the same URI query, Accept and
+ * ETag options. Each relation then gets a copy of the response with its own
+ * Observe number, token and MID, which share the payload and one
+ * {@link NotificationTemplate} for the encoding.
+ * <p>
+ * The notifications are handed to the endpoints in batches, so that one task
+ * of the protocol stage sends many notifications. They still pass the whole
+ * stack, so that the {@link org.eclipse.californium.core.network.stack.ObserveLayer}
+ * decides for each relation whether to send a CON or NON.
+ */
+public class NotificationFanOut {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(NotificationFanOut.class.getCanonicalName());
+
+	/**
+	 * The maximum number of notifications per task of the protocol stage or
+	 * 0 for the batch size of the endpoint
+	 */
+	private final int batchSize;
+
+	/**
+	 * Creates a new fan-out that uses the NOTIFICATION_BATCH_SIZE from the
+	 * configuration of the endpoint of each relation.
+	 */
+	public NotificationFanOut() {
+		this.batchSize = 0;
+	}
+
+	/**
+	 * Creates a new fan-out with the specified batch size.
+	 *
+	 * @param batchSize the maximum number of notifications per task
+	 */
+	public NotificationFanOut(int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Batch size must be positive but is " + batchSize);
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Notifies the specified relations of the resource. The resource handles
+	 * one request per group of relations that ask for the same representation.
+	 *
+	 * @param resource the resource
+	 * @param relations the observe relations of the resource
+	 */
+	public void notifyRelations(CoapResource resource, Iterable<ObserveRelation> relations) {
+		Map<String, List<ObserveRelation>> groups = new LinkedHashMap<String, List<ObserveRelation>>();
+		for (ObserveRelation relation:relations) {
+			String key = getRepresentationKey(relation.getExchange().getRequest());
+			List<ObserveRelation> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<ObserveRelation>();
+				groups.put(key, group);
+			}
+			group.add(relation);
+		}
+		for (List<ObserveRelation> group:groups.values()) {
+			Request request = group.get(0).getExchange().getRequest();
+			resource.handleRequest(new RepresentationExchange(resource, request, group));
+		}
+	}
+
+	/**
+	 * Sends a copy of the specified representation to each relation.
+	 *
+	 * @param resource the resource
+	 * @param relations the relations that asked for the representation
+	 * @param representation the response of the resource
+	 */
+	protected void fanOut(CoapResource resource, List<ObserveRelation> relations, Response representation) {
+		LOGGER.fine("Fan out notification to " + relations.size() + " observers of " + resource.getURI());
+		byte[] payload = representation.getPayload();
+		NotificationTemplate template = null;
+		Map<Endpoint, Batch> batches = new HashMap<Endpoint, Batch>();
+		for (ObserveRelation relation:relations) {
+			Exchange exchange = relation.getExchange();
+			Response response = new Response(representation.getCode());
+			response.setType(representation.getType());
+			response.setOptions(new OptionSet(representation.getOptions()));
+			response.setPayload(payload);
+			resource.checkObserveRelation(exchange, response);
+
+			// all successful notifications share the encoding
+			if (ResponseCode.isSuccess(response.getCode())) {
+				if (template == null)
+					template = new NotificationTemplate(response);
+				response.setNotificationTemplate(template);
+			}
+
+			Request request = exchange.getRequest();
+			response.setDestination(request.getSource());
+			response.setDestinationPort(request.getSourcePort());
+			exchange.setResponse(response);
+
+			Endpoint endpoint = exchange.getEndpoint();
+			Batch batch = batches.get(endpoint);
+			if (batch == null) {
+				batch = new Batch(batchSize > 0 ? batchSize : endpoint.getConfig().getInt(NetworkConfig.Keys.NOTIFICATION_BATCH_SIZE));
+				batches.put(endpoint, batch);
+			}
+			batch.add(exchange, response);
+			if (batch.exchanges.size() >= batch.size) {
+				batch.send(endpoint);
+				batches.remove(endpoint);
+			}
+		}
+		for (Map.Entry<Endpoint, Batch> entry:batches.entrySet())
+			entry.getValue().send(entry.getKey());
+	}
+
+	/*
+	 * Relations with the same key get the same representation from the
+	 * resource.
+	 */
+	private static String getRepresentationKey(Request request) {
+		OptionSet options = request.getOptions();
+		StringBuilder key = new StringBuilder(options.getUriQueryString());
+		key.append('#').append(options.getAccept());
+		for (byte[] etag:options.getETags())
+			key.append('#').append(Utils.toHexString(etag));
+		return key.toString();
+	}
+
+	/**
+	 * The notifications for one endpoint.
+	 */
+	private static final class Batch {
+
+		private final int size;
+		private final List<Exchange> exchanges = new ArrayList<Exchange>();
+		private final List<Response> responses = new ArrayList<Response>();
+
+		private Batch(int size) {
+			this.size = size;
+		}
+
+		private void add(Exchange exchange, Response response) {
+			exchanges.add(exchange);
+			responses.add(response);
+		}
+
+		/*
+		 * Sends the notifications in one task of an endpoint that supports
+		 * batches and one by one otherwise.
+		 */
+		private void send(Endpoint endpoint) {
+			if (endpoint instanceof BatchEndpoint) {
+				((BatchEndpoint) endpoint).sendResponses(exchanges, responses);
+			} else {
+				for (int i = 0; i < exchanges.size(); i++)
+					endpoint.sendResponse(exchanges.get(i), responses.get(i));
+			}
+		}
+	}
+
+	/**
+	 * The exchange that the resource handles once for a group of relations.
+	 * The response of the resource is not sent but fanned out to the
+	 * relations, also when the resource responds later from another thread.
+	 */
+	private final class RepresentationExchange extends Exchange {
+
+		private final CoapResource resource;
+		private final List<ObserveRelation> relations;
+
+		private RepresentationExchange(CoapResource resource, Request request, List<ObserveRelation> relations) {
+			super(request, Origin.REMOTE);
+			setRequest(request);
+			this.resource = resource;
+			this.relations = relations;
+		}
+
+		@Override
+		public void sendAccept() {
+			// the relations have already been acknowledged
+		}
+
+		@Override
+		public void sendReject() {
+			LOGGER.fine("Resource " + resource.getURI() + " rejected the notification request");
+		}
+
+		@Override
+		public void sendResponse(Response response) {
+			setResponse(response);
+			fanOut(resource, relations, response);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.observe;
+
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+/**
+ * The notification policy limits the rate of notifications of an observe
+ * relation. The minimum interval (pmin) is the time that must pass between
+ * two notifications. Changes within this interval are coalesced: only the
+ * latest notification is sent when the interval has passed. The maximum
+ * interval (pmax) is the time after which the server notifies the observer
+ * even if the resource has not changed. A value of 0 disables the
+ * respective limit. A policy is immutable.
+ */
+public class NotificationPolicy {
+
+	/** The policy without limits */
+	public static final NotificationPolicy NONE = new NotificationPolicy(0, 0);
+
+	/** The minimum interval between two notifications in milliseconds */
+	private final long minInterval;
+
+	/** The maximum interval between two notifications in milliseconds */
+	private final long maxInterval;
+
+	/**
+	 * Creates a new policy.
+	 *
+	 * @param minInterval the minimum interval in milliseconds or 0
+	 * @param maxInterval the maximum interval in milliseconds or 0
+	 * @throws IllegalArgumentException if an interval is negative or the
+	 *             maximum interval is smaller than the minimum interval
+	 */
+	public NotificationPolicy(long minInterval, long maxInterval) {
+		if (minInterval < 0 || maxInterval < 0)
+			throw new IllegalArgumentException("Notification intervals must not be negative but are " + minInterval + " and " + maxInterval);
+		if (maxInterval > 0 && maxInterval < minInterval)
+			throw new IllegalArgumentException("Maximum notification interval " + maxInterval + " is smaller than minimum interval " + minInterval);
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+	}
+
+	/**
+	 * Creates the policy from the values in the specified configuration.
+	 *
+	 * @param config the configuration
+	 * @return the policy
+	 */
+	public static NotificationPolicy fromConfig(NetworkConfig config) {
+		long minInterval = config.getLong(NetworkConfig.Keys.NOTIFICATION_MIN_INTERVAL);
+		long maxInterval = config.getLong(NetworkConfig.Keys.NOTIFICATION_MAX_INTERVAL);
+		if (minInterval == 0 && maxInterval == 0)
+			return NONE;
+		return new NotificationPolicy(minInterval, maxInterval);
+	}
+
+	/**
+	 * Gets the minimum interval between two notifications.
+	 *
+	 * @return the minimum interval in milliseconds or 0 if not limited
+	 */
+	public long getMinInterval() {
+		return minInterval;
+	}
+
+	/**
+	 * Gets the maximum interval between two notifications.
+	 *
+	 * @return the maximum interval in milliseconds or 0 if not limited
+	 */
+	public long getMaxInterval() {
+		return maxInterval;
+	}
+
+	@Override
+	public String toString() {
+		return "pmin=" + minInterval + "ms, pmax=" + maxInterval + "ms";
+	}
+}
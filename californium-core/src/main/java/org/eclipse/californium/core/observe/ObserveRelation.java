@@ -39,8 +39,8 @@ public class ObserveRelation {
 	/** The logger. */
 	private final static Logger LOGGER = Logger.getLogger(ObserveRelation.class.getCanonicalName());
 	
-	private final long CHECK_INTERVAL_TIME = NetworkConfig.getStandard().getLong(NetworkConfig.Keys.NOTIFICATION_CHECK_INTERVAL_TIME);
-	private final int CHECK_INTERVAL_COUNT = NetworkConfig.getStandard().getInt(NetworkConfig.Keys.NOTIFICATION_CHECK_INTERVAL_COUNT);
+	private final long CHECK_INTERVAL_TIME;
+	private final int CHECK_INTERVAL_COUNT;
 	
 	private final ObservingEndpoint endpoint;
 
@@ -53,6 +53,21 @@ public class ObserveRelation {
 	private Response recentControlNotification;
 	private Response nextControlNotification;
 	
+	/** The rate limits for notifications */
+	private volatile NotificationPolicy policy;
+	
+	/** The time when the last notification passed the rate limit */
+	private long lastNotificationTime;
+	
+	/** The latest notification that waits for the minimum interval to pass */
+	private Response pendingNotification;
+	
+	/** Indicates if the maximum interval is being watched */
+	private boolean refreshScheduled;
+	
+	/** The Observe number of the latest notification */
+	private volatile int observeNumber = -1;
+	
 	private String key = null;
 
 	/*
@@ -69,13 +84,28 @@ public class ObserveRelation {
 	private ConcurrentLinkedQueue<Response> notifications = new ConcurrentLinkedQueue<Response>();
 	
 	/**
-	 * Constructs a new observe relation.
+	 * Constructs a new observe relation with the configuration of the
+	 * endpoint that has received the request of the exchange, or the standard
+	 * configuration if the exchange has no endpoint.
 	 * 
 	 * @param endpoint the observing endpoint
 	 * @param resource the observed resource
 	 * @param exchange the exchange that tries to establish the observe relation
 	 */
 	public ObserveRelation(ObservingEndpoint endpoint, Resource resource, Exchange exchange) {
+		this(endpoint, resource, exchange, exchange.getEndpoint() != null ? exchange.getEndpoint().getConfig() : NetworkConfig.getStandard());
+	}
+	
+	/**
+	 * Constructs a new observe relation that takes the notification policy
+	 * and the check intervals from the specified configuration.
+	 * 
+	 * @param endpoint the observing endpoint
+	 * @param resource the observed resource
+	 * @param exchange the exchange that tries to establish the observe relation
+	 * @param config the configuration
+	 */
+	public ObserveRelation(ObservingEndpoint endpoint, Resource resource, Exchange exchange, NetworkConfig config) {
 		if (endpoint == null)
 			throw new NullPointerException();
 		if (resource == null)
@@ -86,6 +116,9 @@ public class ObserveRelation {
 		this.resource = resource;
 		this.exchange = exchange;
 		this.established = false;
+		this.CHECK_INTERVAL_TIME = config.getLong(NetworkConfig.Keys.NOTIFICATION_CHECK_INTERVAL_TIME);
+		this.CHECK_INTERVAL_COUNT = config.getInt(NetworkConfig.Keys.NOTIFICATION_CHECK_INTERVAL_COUNT);
+		this.policy = NotificationPolicy.fromConfig(config);
 		
 		this.key = getSource().toString() + "#" + exchange.getRequest().getTokenString();
 	}
@@ -135,6 +168,44 @@ public class ObserveRelation {
 		resource.handleRequest(exchange);
 	}
 	
+	/**
+	 * Gets the policy that limits the rate of notifications.
+	 *
+	 * @return the notification policy
+	 */
+	public NotificationPolicy getNotificationPolicy() {
+		return policy;
+	}
+	
+	/**
+	 * Sets the policy that limits the rate of notifications.
+	 *
+	 * @param policy the notification policy
+	 */
+	public void setNotificationPolicy(NotificationPolicy policy) {
+		if (policy == null)
+			throw new NullPointerException();
+		this.policy = policy;
+	}
+	
+	/**
+	 * Gets the Observe number of the latest notification of this relation.
+	 *
+	 * @return the Observe number or -1 if none has been assigned yet
+	 */
+	public int getObserveNumber() {
+		return observeNumber;
+	}
+	
+	/**
+	 * Sets the Observe number of the latest notification of this relation.
+	 *
+	 * @param observeNumber the Observe number
+	 */
+	public void setObserveNumber(int observeNumber) {
+		this.observeNumber = observeNumber;
+	}
+	
 	/**
 	 * Gets the resource.
 	 *
@@ -189,6 +260,35 @@ public class ObserveRelation {
 		this.nextControlNotification = nextControlNotification;
 	}
 	
+	/*
+	 * The following state of the rate limit is guarded by the exchange of
+	 * this relation.
+	 */
+	
+	public long getLastNotificationTime() {
+		return lastNotificationTime;
+	}
+	
+	public void setLastNotificationTime(long lastNotificationTime) {
+		this.lastNotificationTime = lastNotificationTime;
+	}
+	
+	public Response getPendingNotification() {
+		return pendingNotification;
+	}
+	
+	public void setPendingNotification(Response pendingNotification) {
+		this.pendingNotification = pendingNotification;
+	}
+	
+	public boolean isRefreshScheduled() {
+		return refreshScheduled;
+	}
+	
+	public void setRefreshScheduled(boolean refreshScheduled) {
+		this.refreshScheduled = refreshScheduled;
+	}
+	
 	public void addNotification(Response notification) {
 		notifications.add(notification);
 	}
@@ -20,13 +20,16 @@
 package org.eclipse.californium.core.server;
 
 import java.net.InetSocketAddress;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.logging.Logger;
 
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
@@ -65,8 +68,7 @@ public class ServerMessageDeliverer implements MessageDeliverer {
 	@Override
 	public void deliverRequest(final Exchange exchange) {
 		Request request = exchange.getRequest();
-		List<String> path = request.getOptions().getUriPath();
-		final Resource resource = findResource(path);
+		final Resource resource = findResource(request.getOptions());
 		if (resource != null) {
 			checkForObserveOption(exchange, resource);
 			
@@ -82,7 +84,7 @@ public class ServerMessageDeliverer implements MessageDeliverer {
 				resource.handleRequest(exchange);
 			}
 		} else {
-			LOGGER.info("Did not find resource " + path.toString());
+			LOGGER.info("Did not find resource " + request.getOptions().getUriPath());
 			exchange.sendResponse(new Response(ResponseCode.NOT_FOUND));
 		}
 	}
@@ -127,22 +129,45 @@ public class ServerMessageDeliverer implements MessageDeliverer {
 	}
 
 	/**
-	 * Searches in the resource tree for the specified path. A parent resource
-	 * may accept requests to subresources, e.g., to allow addresses with
-	 * wildcards like <code>coap://example.com:5683/devices/*</code>
+	 * Searches in the resource tree for the Uri-Path of the specified options.
+	 * A parent resource may accept requests to subresources, e.g., to allow
+	 * addresses with wildcards like
+	 * <code>coap://example.com:5683/devices/*</code>. The Uri-Path of a
+	 * parsed request is resolved from its encoded form without decoding the
+	 * segments (see {@link CoapResource#getChild(byte[], int, int)}).
 	 * 
-	 * @param list the path as list of resource names
+	 * @param options the options of the request
 	 * @return the resource or null if not found
 	 */
-	private Resource findResource(List<String> list) {
-		LinkedList<String> path = new LinkedList<String>(list);
+	private Resource findResource(OptionSet options) {
+		byte[] encoded = options.getEncodedUriPath();
+		if (encoded == null)
+			return findResource(options.getUriPath());
+		
 		Resource current = root;
-		while (!path.isEmpty() && current != null) {
-			String name = path.removeFirst();
-			current = current.getChild(name);
+		for (int position = 0; position < encoded.length && current != null;) {
+			int length = encoded[position++] & 0xFF;
+			if (current instanceof CoapResource)
+				current = ((CoapResource) current).getChild(encoded, position, length);
+			else
+				current = current.getChild(new String(encoded, position, length, CoAP.UTF8_CHARSET));
+			position += length;
 		}
 		return current;
 	}
+	
+	/**
+	 * Searches in the resource tree for the specified path.
+	 * 
+	 * @param path the path as list of resource names
+	 * @return the resource or null if not found
+	 */
+	private Resource findResource(List<String> path) {
+		Resource current = root;
+		for (Iterator<String> names = path.iterator(); names.hasNext() && current != null;)
+			current = current.getChild(names.next());
+		return current;
+	}
 
 	/* (non-Javadoc)
 	 * @see ch.inf.vs.californium.MessageDeliverer#deliverResponse(ch.inf.vs.californium.network.Exchange, ch.inf.vs.californium.coap.Response)
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.server.resources;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.eclipse.californium.core.coap.CoAP;
+
+/**
+ * The child index maps the UTF-8 encoded names of the children of a resource
+ * to the children. It finds a child by a region of a byte array, e.g., a
+ * segment of an encoded Uri-Path, without decoding the name to a string. The
+ * index is an open addressing hash table and immutable; a resource builds a
+ * new index when its children have changed.
+ * <p>
+ * A child whose name is a parameter in curly braces, e.g., <code>{id}</code>,
+ * matches every name that no other child has. A single resource can thus
+ * serve a whole level of the resource tree, e.g.,
+ * <code>/device/{id}/obj</code>. If there are several parameter children,
+ * one of them is used.
+ */
+public final class ChildIndex {
+
+	/** The index without children */
+	public static final ChildIndex EMPTY = new ChildIndex(Collections.<Resource>emptyList());
+
+	private final byte[][] names;
+	private final Resource[] children;
+	private final int mask;
+
+	/** The child with a parameter name or null */
+	private final Resource parameter;
+
+	/**
+	 * Creates a new index for the specified children.
+	 *
+	 * @param resources the children
+	 */
+	public ChildIndex(Collection<Resource> resources) {
+		int size = Integer.highestOneBit(Math.max(2, resources.size() * 2 - 1)) << 1;
+		this.names = new byte[size][];
+		this.children = new Resource[size];
+		this.mask = size - 1;
+		Resource parameter = null;
+		for (Resource child:resources) {
+			String name = child.getName();
+			if (isParameter(name))
+				parameter = child;
+			byte[] bytes = name.getBytes(CoAP.UTF8_CHARSET);
+			int slot = hash(bytes, 0, bytes.length) & mask;
+			while (names[slot] != null)
+				slot = (slot + 1) & mask;
+			names[slot] = bytes;
+			children[slot] = child;
+		}
+		this.parameter = parameter;
+	}
+
+	/**
+	 * Gets the child with the UTF-8 encoded name in the specified region. If
+	 * there is no child with this name, the parameter child is returned.
+	 *
+	 * @param buffer the array holding the name
+	 * @param offset the offset of the name
+	 * @param length the length of the name
+	 * @return the child or null if not found
+	 */
+	public Resource get(byte[] buffer, int offset, int length) {
+		int slot = hash(buffer, offset, length) & mask;
+		byte[] name;
+		while ((name = names[slot]) != null) {
+			if (matches(name, buffer, offset, length))
+				return children[slot];
+			slot = (slot + 1) & mask;
+		}
+		return parameter;
+	}
+
+	/**
+	 * Gets the child with a parameter name.
+	 *
+	 * @return the parameter child or null if none
+	 */
+	public Resource getParameter() {
+		return parameter;
+	}
+
+	/**
+	 * Checks if the specified resource name is a parameter, i.e., enclosed in
+	 * curly braces.
+	 *
+	 * @param name the name
+	 * @return true if the name is a parameter
+	 */
+	public static boolean isParameter(String name) {
+		return name.length() >= 2 && name.charAt(0) == '{' && name.charAt(name.length() - 1) == '}';
+	}
+
+	private static boolean matches(byte[] name, byte[] buffer, int offset, int length) {
+		if (name.length != length)
+			return false;
+		for (int i = 0; i < length; i++)
+			if (name[i] != buffer[offset + i])
+				return false;
+		return true;
+	}
+
+	private static int hash(byte[] buffer, int offset, int length) {
+		int hash = 1;
+		for (int i = offset; i < offset + length; i++)
+			hash = 31 * hash + buffer[i];
+		// spread the higher bits as in java.util.HashMap
+		return hash ^ (hash >>> 16);
+	}
+}
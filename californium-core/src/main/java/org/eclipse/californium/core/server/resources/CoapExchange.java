@@ -19,6 +19,8 @@
  ******************************************************************************/
 package org.eclipse.californium.core.server.resources;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.InetAddress;
 
 import org.eclipse.californium.core.CoapResource;
@@ -26,6 +28,9 @@ import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.PayloadSource;
+import org.eclipse.californium.core.coap.PayloadSourceStream;
+import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
 
@@ -108,6 +113,23 @@ public class CoapExchange {
 		return exchange.getRequest().getPayload();
 	}
 	
+	/**
+	 * Gets the request payload as stream. Large bodies that have been
+	 * assembled from blocks are read from their temporary file, so that they
+	 * do not have to fit into memory. The body is released when the exchange
+	 * has completed, i.e., it must be read before responding.
+	 *
+	 * @return the stream of the request payload
+	 */
+	public InputStream getRequestPayloadStream() {
+		Request request = exchange.getRequest();
+		PayloadSource source = request.getPayloadSource();
+		if (source != null)
+			return new PayloadSourceStream(source);
+		byte[] payload = request.getPayload();
+		return new ByteArrayInputStream(payload == null ? new byte[0] : payload);
+	}
+	
 	/**
 	 * Gets the request payload as string.
 	 *
@@ -269,6 +291,22 @@ public class CoapExchange {
 		respond(response);
 	}
 	
+	/**
+	 * Respond with the specified response code and the payload from the
+	 * specified source. If the payload requires a blockwise transfer, only the
+	 * requested blocks are read from the source. The source is not closed.
+	 *
+	 * @param code the response code
+	 * @param source the source of the payload
+	 * @param contentFormat the Content-Format of the payload
+	 */
+	public void respond(ResponseCode code, PayloadSource source, int contentFormat) {
+		Response response = new Response(code);
+		response.setPayloadSource(source);
+		response.getOptions().setContentFormat(contentFormat);
+		respond(response);
+	}
+	
 	/**
 	 * Respond with the specified response.
 	 * @param response the response
@@ -287,6 +325,10 @@ public class CoapExchange {
 		
 		resource.checkObserveRelation(exchange, response);
 		
+		RepresentationCache cache = resource.getRepresentationCache();
+		if (cache != null)
+			cache.put(resource, exchange.getRequest(), response);
+		
 		exchange.sendResponse(response);
 	}
 	
@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.server.resources;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.OptionSet;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+
+/**
+ * The representation cache keeps large representations of resources, so that
+ * requests for further blocks of a representation (Block2 with a block number
+ * greater than 0) are answered by slicing the cached bytes instead of invoking
+ * the handler again. This matters when the exchange of the transfer has gone,
+ * e.g., for clients that request blocks with new exchanges or after the
+ * exchange lifetime. One cache can be shared by many resources (see
+ * {@link org.eclipse.californium.core.CoapResource#setRepresentationCache(RepresentationCache)}).
+ * <p>
+ * A representation is identified by the resource, the URI query and the
+ * Accept option of the request. The cached representation keeps its ETag and
+ * Content-Format, so that each block carries the same validator. A resource
+ * invalidates its representations when it has changed. Representations also
+ * expire after their Max-Age. When the size of all representations exceeds
+ * the capacity, the least recently used ones are evicted.
+ */
+public class RepresentationCache {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(RepresentationCache.class.getCanonicalName());
+
+	/** The maximum size of all representations in bytes */
+	private final int capacity;
+
+	/** Smaller representations are cached only if requested blockwise */
+	private final int minSize;
+
+	/** The representations in least recently used order */
+	private final LinkedHashMap<Key, Representation> representations = new LinkedHashMap<Key, Representation>(16, 0.75f, true);
+
+	/** The size of all representations in bytes */
+	private int size;
+
+	/**
+	 * Creates a new cache with the capacity and the maximum message size from
+	 * the standard configuration.
+	 */
+	public RepresentationCache() {
+		this(NetworkConfig.getStandard().getInt(NetworkConfig.Keys.REPRESENTATION_CACHE_SIZE),
+				NetworkConfig.getStandard().getInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE));
+	}
+
+	/**
+	 * Creates a new cache.
+	 * 
+	 * @param capacity the maximum size of all representations in bytes
+	 * @param minSize the size above which representations are cached even if
+	 *            they have not been requested blockwise
+	 */
+	public RepresentationCache(int capacity, int minSize) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity must not be negative but is " + capacity);
+		this.capacity = capacity;
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Gets the cached representation for a request for a further block.
+	 * 
+	 * @param resource the target resource
+	 * @param request the request
+	 * @return a new response with the cached representation or null if the
+	 *         request is not for a further block or there is no fresh
+	 *         representation
+	 */
+	public Response get(Resource resource, Request request) {
+		OptionSet options = request.getOptions();
+		if (!options.hasBlock2() || options.getBlock2().getNum() == 0 || !isCacheable(request))
+			return null;
+		Key key = new Key(resource, options);
+		long now = System.currentTimeMillis();
+		Representation representation;
+		synchronized (this) {
+			representation = representations.get(key);
+			if (representation == null)
+				return null;
+			if (representation.expires <= now) {
+				remove(key);
+				return null;
+			}
+		}
+		Response response = new Response(representation.code);
+		response.setOptions(representation.options);
+		response.getOptions().setMaxAge((representation.expires - now + 999) / 1000);
+		response.setPayload(representation.payload);
+		return response;
+	}
+
+	/**
+	 * Caches the specified response if it is a large representation.
+	 * 
+	 * @param resource the resource that has responded
+	 * @param request the request
+	 * @param response the response of the resource
+	 */
+	public void put(Resource resource, Request request, Response response) {
+		if (response.getCode() != ResponseCode.CONTENT || !isCacheable(request)
+				|| response.getPayloadSource() != null || response.getOptions().hasObserve())
+			return;
+		int length = response.getPayloadSize();
+		if (length > capacity || (length <= minSize && !request.getOptions().hasBlock2()))
+			return;
+		OptionSet options = new OptionSet(response.getOptions());
+		options.removeBlock2();
+		long expires = System.currentTimeMillis() + options.getMaxAge() * 1000;
+		Representation representation = new Representation(response.getCode(), options, response.getPayload().clone(), expires);
+		Key key = new Key(resource, request.getOptions());
+		synchronized (this) {
+			remove(key);
+			representations.put(key, representation);
+			size += length;
+			Iterator<Map.Entry<Key, Representation>> eldest = representations.entrySet().iterator();
+			while (size > capacity && eldest.hasNext()) {
+				size -= eldest.next().getValue().payload.length;
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all representations of the specified resource.
+	 * 
+	 * @param resource the resource
+	 */
+	public synchronized void invalidate(Resource resource) {
+		for (Iterator<Map.Entry<Key, Representation>> it = representations.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Key, Representation> entry = it.next();
+			if (entry.getKey().resource == resource) {
+				size -= entry.getValue().payload.length;
+				it.remove();
+			}
+		}
+		LOGGER.finer("Invalidated cached representations of " + resource.getURI());
+	}
+
+	/**
+	 * Gets the size of all cached representations.
+	 * 
+	 * @return the size in bytes
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	private void remove(Key key) {
+		Representation previous = representations.remove(key);
+		if (previous != null)
+			size -= previous.payload.length;
+	}
+
+	/*
+	 * Conditional requests and observe requests are always handled by the
+	 * resource.
+	 */
+	private static boolean isCacheable(Request request) {
+		OptionSet options = request.getOptions();
+		return request.getCode() == Code.GET && !options.hasObserve() && options.getETagCount() == 0
+				&& options.getIfMatchCount() == 0 && !options.hasIfNoneMatch();
+	}
+
+	/**
+	 * The identity of a representation.
+	 */
+	private static final class Key {
+
+		private final Resource resource;
+		private final String query;
+		private final int accept;
+		private final int hash;
+
+		private Key(Resource resource, OptionSet options) {
+			this.resource = resource;
+			this.query = options.getUriQueryString();
+			this.accept = options.getAccept();
+			this.hash = (System.identityHashCode(resource) * 31 + query.hashCode()) * 31 + accept;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key key = (Key) o;
+			return resource == key.resource && accept == key.accept && query.equals(key.query);
+		}
+	}
+
+	/**
+	 * An immutable representation.
+	 */
+	private static final class Representation {
+
+		private final ResponseCode code;
+		private final OptionSet options;
+		private final byte[] payload;
+		private final long expires;
+
+		private Representation(ResponseCode code, OptionSet options, byte[] payload, long expires) {
+			this.code = code;
+			this.options = options;
+			this.payload = payload;
+			this.expires = expires;
+		}
+	}
+}
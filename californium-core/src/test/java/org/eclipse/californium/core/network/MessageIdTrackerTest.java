@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.eclipse.californium.core.coap.Message;
+import org.junit.Test;
+
+public class MessageIdTrackerTest {
+
+	@Test
+	public void testSkipsMessageIdsInUse() {
+		MessageIdTracker tracker = new MessageIdTracker(65534, 0);
+		assertEquals(65534, tracker.getNextMessageId());
+		assertEquals(65535, tracker.getNextMessageId());
+		// wraps around
+		assertEquals(0, tracker.getNextMessageId());
+		assertEquals(3, tracker.getInUseCount());
+
+		// an explicitly set MID is skipped
+		assertTrue(tracker.acquire(1));
+		assertFalse(tracker.acquire(1));
+		assertEquals(2, tracker.getNextMessageId());
+
+		tracker.release(65535);
+		assertFalse(tracker.isInUse(65535));
+		assertTrue(tracker.isInUse(2));
+		assertEquals(4, tracker.getInUseCount());
+	}
+
+	@Test
+	public void testExhaustion() {
+		MessageIdTracker tracker = new MessageIdTracker(0, 0);
+		for (int i = 0; i < 1 << 16; i++)
+			assertEquals(i, tracker.getNextMessageId());
+		assertEquals(Message.NONE, tracker.getNextMessageId());
+
+		tracker.release(4711);
+		assertEquals(4711, tracker.getNextMessageId());
+	}
+
+	@Test
+	public void testReleasedMessageIdReservedForLifetime() throws Exception {
+		MessageIdTracker tracker = new MessageIdTracker(0, 200);
+		for (int i = 0; i < 1 << 16; i++)
+			assertEquals(i, tracker.getNextMessageId());
+		tracker.release(4711);
+		tracker.release(4712);
+		assertFalse(tracker.isInUse(4711));
+		assertEquals(65534, tracker.getInUseCount());
+
+		// released, but not free before the exchange lifetime has passed
+		assertEquals(Message.NONE, tracker.getNextMessageId());
+		assertFalse(tracker.acquire(4711));
+		Thread.sleep(100);
+		assertEquals(Message.NONE, tracker.getNextMessageId());
+
+		Thread.sleep(150);
+		assertEquals(4711, tracker.getNextMessageId());
+		assertEquals(4712, tracker.getNextMessageId());
+		assertEquals(Message.NONE, tracker.getNextMessageId());
+	}
+
+	@Test
+	public void testRetire() {
+		MessageIdTracker tracker = new MessageIdTracker(0, 0);
+		int mid = tracker.getNextMessageId();
+		assertFalse(tracker.retire());
+		tracker.release(mid);
+		assertTrue(tracker.retire());
+		assertEquals(MessageIdTracker.RETIRED, tracker.getNextMessageId());
+		assertFalse(tracker.acquire(7));
+	}
+
+	@Test
+	public void testConcurrentAllocation() throws Exception {
+		final MessageIdTracker tracker = new MessageIdTracker(100, 0);
+		final AtomicIntegerArray allocated = new AtomicIntegerArray(1 << 16);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						int mid = tracker.getNextMessageId();
+						allocated.incrementAndGet(mid);
+						if (i % 2 == 0)
+							tracker.release(mid);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread:threads)
+			thread.join();
+
+		// MIDs still in use have been handed out exactly once
+		int inUse = 0;
+		for (int mid = 0; mid < 1 << 16; mid++) {
+			if (tracker.isInUse(mid)) {
+				assertEquals(1, allocated.get(mid));
+				inUse++;
+			}
+		}
+		assertEquals(threads.length * 5000, inUse);
+		assertEquals(inUse, tracker.getInUseCount());
+	}
+}
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.Exchange.KeyToken;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.junit.Test;
+
+public class PackedExchangeStoreTest {
+
+	private static final byte[] IPV4 = new byte[] {10, 0, 0, 1};
+	private static final byte[] IPV6 = new byte[] {0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1};
+
+	@Test
+	public void testMIDKeys() {
+		ExchangeStore store = new PackedExchangeStore();
+		Exchange local = newExchange();
+		Exchange remote4 = newExchange();
+		Exchange remote6 = newExchange();
+
+		assertNull(store.put(17, null, 0, local));
+		assertNull(store.putIfAbsent(17, IPV4, 5683, remote4));
+		assertNull(store.putIfAbsent(17, IPV6, 5683, remote6));
+		assertSame(remote4, store.putIfAbsent(17, IPV4.clone(), 5683, newExchange()));
+		assertEquals(3, store.size());
+
+		assertSame(local, store.get(17, null, 0));
+		assertSame(remote4, store.get(17, IPV4, 5683));
+		assertSame(remote6, store.get(17, IPV6, 5683));
+		assertNull(store.get(17, IPV4, 5684));
+		assertNull(store.get(18, IPV4, 5683));
+
+		assertSame(remote4, store.remove(17, IPV4, 5683));
+		assertNull(store.get(17, IPV4, 5683));
+		assertEquals(2, store.size());
+	}
+
+	@Test
+	public void testTokenKeys() {
+		ExchangeStore store = new PackedExchangeStore();
+		Exchange empty = newExchange();
+		Exchange zero = newExchange();
+		Exchange long8 = newExchange();
+
+		store.put(new byte[0], empty);
+		store.put(new byte[] {0}, zero);
+		store.put(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, long8);
+
+		// tokens of different length differ even if their bytes are zero
+		assertSame(empty, store.get(new byte[0]));
+		assertSame(zero, store.get(new byte[] {0}));
+		assertNull(store.get(new byte[] {0, 0}));
+		assertSame(long8, store.get(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}));
+		assertSame(zero, store.remove(new byte[] {0}));
+		assertEquals(2, store.size());
+	}
+
+	@Test
+	public void testPrecomputedKeys() {
+		ExchangeStore store = new PackedExchangeStore();
+		Exchange exchange = newExchange();
+		KeyMID idByMID = new KeyMID(17, IPV4, 5683);
+		KeyToken idByToken = new KeyToken(new byte[] {1, 2});
+
+		// precomputed keys address the same entries as the message fields
+		assertNull(store.put(idByMID, exchange));
+		assertNull(store.put(idByToken, exchange));
+		assertSame(exchange, store.get(17, IPV4.clone(), 5683));
+		assertSame(exchange, store.get(new byte[] {1, 2}));
+		assertSame(exchange, store.get(idByMID.withMID(17)));
+		assertNull(store.get(idByMID.withMID(18)));
+		assertEquals(new KeyMID(17, IPV4.clone(), 5683), idByMID);
+		assertEquals(new KeyToken(new byte[] {1, 2}), idByToken);
+
+		assertFalse(store.remove(idByMID, newExchange()));
+		assertTrue(store.remove(idByMID, exchange));
+		assertTrue(store.remove(idByToken, exchange));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void testManyEntries() {
+		ExchangeStore store = new PackedExchangeStore(4, 4);
+		Exchange[] exchanges = new Exchange[5000];
+		for (int i = 0; i < exchanges.length; i++) {
+			exchanges[i] = newExchange();
+			store.put(i, IPV4, i % 7, exchanges[i]);
+		}
+		assertEquals(exchanges.length, store.size());
+
+		// remove in random order and check the others remain reachable
+		Random random = new Random(42);
+		int removed = 0;
+		for (int i = 0; i < exchanges.length; i++) {
+			int index = random.nextInt(exchanges.length);
+			if (exchanges[index] != null) {
+				assertSame(exchanges[index], store.remove(index, IPV4, index % 7));
+				exchanges[index] = null;
+				removed++;
+			}
+		}
+		assertEquals(exchanges.length - removed, store.size());
+		for (int i = 0; i < exchanges.length; i++)
+			assertSame(exchanges[i], store.get(i, IPV4, i % 7));
+	}
+
+	@Test
+	public void testRemoveIf() {
+		ExchangeStore store = new PackedExchangeStore(2, 4);
+		final Exchange[] exchanges = new Exchange[1000];
+		for (int i = 0; i < exchanges.length; i++) {
+			exchanges[i] = newExchange(i);
+			store.put(i, null, 0, exchanges[i]);
+		}
+
+		int removed = store.removeIf(new ExchangeStore.Filter() {
+			public boolean accept(Exchange exchange) {
+				return exchange.getCurrentRequest().getMID() % 3 == 0;
+			}
+		});
+		assertEquals(334, removed);
+		assertEquals(666, store.size());
+		for (int i = 0; i < exchanges.length; i++)
+			assertSame(i % 3 == 0 ? null : exchanges[i], store.get(i, null, 0));
+
+		store.clear();
+		assertEquals(0, store.size());
+		assertEquals(0, store.values().size());
+	}
+
+	private static Exchange newExchange() {
+		return newExchange(0);
+	}
+
+	private static Exchange newExchange(int mid) {
+		Request request = new Request(Code.GET);
+		request.setMID(mid);
+		return new Exchange(request, Origin.LOCAL);
+	}
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.junit.Test;
+
+public class RemoteEndpointManagerTest {
+
+	private static final NetworkConfig CONFIG = new NetworkConfig();
+
+	@Test
+	public void testKeyedByAddressAndPort() throws Exception {
+		RemoteEndpointManager manager = new RemoteEndpointManager(CONFIG);
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+
+		Request outgoing = new Request(Code.GET);
+		outgoing.setDestination(address);
+		outgoing.setDestinationPort(5683);
+		RemoteEndpoint endpoint = manager.getRemoteEndpoint(new Exchange(outgoing, Origin.LOCAL));
+
+		// a request from the same peer maps to the same endpoint
+		Request incoming = new Request(Code.GET);
+		incoming.setSource(address);
+		incoming.setSourcePort(5683);
+		assertSame(endpoint, manager.getRemoteEndpoint(new Exchange(incoming, Origin.REMOTE)));
+
+		assertNotSame(endpoint, manager.getRemoteEndpoint(address, 5684));
+		assertEquals(2, manager.size());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		RemoteEndpointManager manager = new RemoteEndpointManager(CONFIG, 2, 60 * 1000);
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		RemoteEndpoint first = manager.getRemoteEndpoint(address, 1);
+		RemoteEndpoint second = manager.getRemoteEndpoint(address, 2);
+
+		assertSame(first, manager.getRemoteEndpoint(address, 1));
+		manager.getRemoteEndpoint(address, 3);
+		assertEquals(2, manager.size());
+		assertSame(first, manager.getRemoteEndpoint(address, 1));
+		assertNotSame(second, manager.getRemoteEndpoint(address, 2));
+	}
+
+	@Test
+	public void testKeepsEndpointsWithExchanges() throws Exception {
+		RemoteEndpointManager manager = new RemoteEndpointManager(CONFIG, 2, 60 * 1000);
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		RemoteEndpoint ongoing = manager.getRemoteEndpoint(address, 1);
+		RemoteEndpoint queued = manager.getRemoteEndpoint(address, 2);
+		assertTrue(ongoing.registerExchange(new Exchange(new Request(Code.GET), Origin.LOCAL), 2, 1));
+		assertTrue(queued.offerConfirmableExchange(new Exchange(new Request(Code.GET), Origin.LOCAL), 10));
+
+		// the busy endpoints are kept beyond the limit
+		RemoteEndpoint idle = manager.getRemoteEndpoint(address, 3);
+		assertEquals(3, manager.size());
+		assertSame(ongoing, manager.getRemoteEndpoint(address, 1));
+		assertSame(queued, manager.getRemoteEndpoint(address, 2));
+
+		// the idle one is evicted instead
+		manager.getRemoteEndpoint(address, 4);
+		assertEquals(3, manager.size());
+		assertNotSame(idle, manager.getRemoteEndpoint(address, 3));
+		assertSame(ongoing, manager.getRemoteEndpoint(address, 1));
+	}
+
+	@Test
+	public void testKeepsExpiredEndpointsWithExchanges() throws Exception {
+		RemoteEndpointManager manager = new RemoteEndpointManager(CONFIG, 10, 1);
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		RemoteEndpoint endpoint = manager.getRemoteEndpoint(address, 1);
+		Exchange exchange = new Exchange(new Request(Code.GET), Origin.LOCAL);
+		assertTrue(endpoint.registerExchange(exchange, 2, 1));
+		Thread.sleep(10);
+		assertSame(endpoint, manager.getRemoteEndpoint(address, 1));
+
+		endpoint.removeExchangeInfo(exchange);
+		Thread.sleep(10);
+		assertNotSame(endpoint, manager.getRemoteEndpoint(address, 1));
+	}
+
+	@Test
+	public void testExpiresUnusedEndpoints() throws Exception {
+		RemoteEndpointManager manager = new RemoteEndpointManager(CONFIG, 10, 1);
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		RemoteEndpoint endpoint = manager.getRemoteEndpoint(address, 1);
+		Thread.sleep(10);
+		assertNotSame(endpoint, manager.getRemoteEndpoint(address, 1));
+		assertEquals(1, manager.size());
+	}
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.junit.Test;
+
+public class RemoteEndpointTest {
+
+	@Test
+	public void testAdmission() throws Exception {
+		RemoteEndpoint endpoint = new RemoteEndpoint(5683, InetAddress.getByName("127.0.0.1"), new NetworkConfig());
+		Exchange first = newExchange();
+		Exchange second = newExchange();
+		assertTrue(endpoint.registerExchange(first, 2, 1));
+		assertFalse(endpoint.registerExchange(second, 2, 1));
+		assertEquals(1, endpoint.getNumberOfOngoingExchanges());
+
+		assertTrue(endpoint.removeExchangeInfo(first));
+		assertFalse(endpoint.removeExchangeInfo(first));
+		assertTrue(endpoint.registerExchange(second, 2, 1));
+		assertEquals(1, endpoint.getNumberOfOngoingExchanges());
+	}
+
+	@Test
+	public void testBoundedQueue() throws Exception {
+		RemoteEndpoint endpoint = new RemoteEndpoint(5683, InetAddress.getByName("127.0.0.1"), new NetworkConfig());
+		Exchange first = newExchange();
+		Exchange second = newExchange();
+		assertNull(endpoint.pollConfirmableExchange());
+		assertTrue(endpoint.offerConfirmableExchange(first, 2));
+		assertTrue(endpoint.offerConfirmableExchange(second, 2));
+		assertFalse(endpoint.offerConfirmableExchange(newExchange(), 2));
+		assertEquals(2, endpoint.getConfirmableQueueSize());
+
+		assertSame(first, endpoint.pollConfirmableExchange());
+		assertTrue(endpoint.offerConfirmableExchange(first, 2));
+		assertSame(second, endpoint.pollConfirmableExchange());
+		assertSame(first, endpoint.pollConfirmableExchange());
+		assertEquals(0, endpoint.getConfirmableQueueSize());
+		assertEquals(0, endpoint.getNonConfirmableQueueSize());
+	}
+
+	@Test
+	public void testOverloadedRequestDoesNotBlock() throws Exception {
+		Request request = new Request(Code.GET);
+		request.setOverloaded(true);
+		assertNull(request.waitForResponse(10000));
+		assertTrue(request.isOverloaded());
+	}
+
+	private static Exchange newExchange() {
+		return new Exchange(new Request(Code.GET), Origin.LOCAL);
+	}
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network.deduplication;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.network.serialization.Serializer;
+import org.junit.Test;
+
+public class TimingWheelDeduplicatorTest {
+
+	private static final byte[] ADDRESS = {10, 0, 0, 1};
+	private static final int PORT = 5683;
+
+	@Test
+	public void testExpiresAfterLifetime() {
+		TimingWheelDeduplicator deduplicator = new TimingWheelDeduplicator(3000, 1000, 100);
+		Exchange exchange = newExchange(1);
+		assertNull(deduplicator.findPrevious(1, ADDRESS, PORT, exchange));
+		assertSame(exchange, deduplicator.findPrevious(1, ADDRESS, PORT, newExchange(1)));
+		assertSame(exchange, deduplicator.find(1, ADDRESS, PORT));
+
+		// the same MID from another port is no duplicate
+		assertNull(deduplicator.findPrevious(1, ADDRESS, PORT + 1, newExchange(1)));
+
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, deduplicator.advance());
+			assertSame(exchange, deduplicator.find(1, ADDRESS, PORT));
+		}
+		assertEquals(2, deduplicator.advance());
+		assertNull(deduplicator.find(1, ADDRESS, PORT));
+		assertEquals(0, deduplicator.size());
+	}
+
+	@Test
+	public void testEvictsOldestWhenFull() {
+		// 16 segments with one entry each
+		TimingWheelDeduplicator deduplicator = new TimingWheelDeduplicator(10000, 1000, 16);
+		int count = 1000;
+		for (int mid = 0; mid < count; mid++) {
+			assertNull(deduplicator.findPrevious(mid, ADDRESS, PORT, newExchange(mid)));
+			if (mid % 100 == 0)
+				deduplicator.advance();
+		}
+		assertTrue(deduplicator.size() <= 16);
+		assertEquals(count - deduplicator.size(), deduplicator.getEvictionCount());
+		// the newest message is always remembered
+		assertNotNull(deduplicator.find(count - 1, ADDRESS, PORT));
+	}
+
+	@Test
+	public void testCompletedExchangeRepeatsResponse() throws Exception {
+		TimingWheelDeduplicator deduplicator = new TimingWheelDeduplicator(10000, 1000, 100);
+		Exchange exchange = newExchange(7);
+		assertNull(deduplicator.findPrevious(7, ADDRESS, PORT, exchange));
+
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setType(Type.ACK);
+		response.setMID(7);
+		response.setToken(new byte[] {1, 2});
+		response.setPayload("hello");
+		response.setDestination(InetAddress.getByAddress(ADDRESS));
+		response.setDestinationPort(PORT);
+		byte[] bytes = new Serializer().serialize(response).getBytes();
+		exchange.setResponse(response);
+		exchange.setCurrentResponse(response);
+		deduplicator.completed(7, ADDRESS, PORT, exchange);
+
+		Exchange duplicate = newExchange(7);
+		assertSame(duplicate, deduplicator.findPrevious(7, ADDRESS, PORT, duplicate));
+		Response repeated = duplicate.getCurrentResponse();
+		assertNotNull(repeated);
+		assertEquals(ResponseCode.CONTENT, repeated.getCode());
+		assertEquals("hello", repeated.getPayloadString());
+		assertArrayEquals(bytes, repeated.getBytes());
+		assertEquals(PORT, repeated.getDestinationPort());
+	}
+
+	@Test
+	public void testCompletedExchangeRepeatsRejection() {
+		TimingWheelDeduplicator deduplicator = new TimingWheelDeduplicator(10000, 1000, 100);
+		Exchange exchange = newExchange(8);
+		assertNull(deduplicator.findPrevious(8, ADDRESS, PORT, exchange));
+		exchange.getCurrentRequest().setRejected(true);
+
+		// only the stored exchange is compacted
+		deduplicator.completed(8, ADDRESS, PORT, newExchange(8));
+		assertSame(exchange, deduplicator.find(8, ADDRESS, PORT));
+
+		deduplicator.completed(8, ADDRESS, PORT, exchange);
+		Exchange duplicate = newExchange(8);
+		assertSame(duplicate, deduplicator.findPrevious(8, ADDRESS, PORT, duplicate));
+		assertTrue(duplicate.getCurrentRequest().isRejected());
+	}
+
+	private static Exchange newExchange(int mid) {
+		try {
+			Request request = new Request(Code.GET);
+			request.setMID(mid);
+			request.setSource(InetAddress.getByAddress(ADDRESS));
+			request.setSourcePort(PORT);
+			return new Exchange(request, Origin.REMOTE);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network.stack;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class BlockwiseBufferTest {
+
+	@Test
+	public void testSpillsAboveThreshold() throws Exception {
+		AtomicInteger memory = new AtomicInteger();
+		BlockwiseBuffer buffer = new BlockwiseBuffer(0, 100, memory, 1000);
+		byte[] expected = new byte[250];
+		for (int i = 0; i < 5; i++) {
+			byte[] block = block(i, 50);
+			System.arraycopy(block, 0, expected, i * 50, 50);
+			assertTrue(buffer.append(block));
+			assertEquals(i >= 2, buffer.isSpilled());
+		}
+		assertEquals(0, memory.get());
+		assertEquals(250, buffer.size());
+
+		byte[] part = new byte[60];
+		assertEquals(60, buffer.read(120, part, 0, 60));
+		assertEquals(expected[120], part[0]);
+		assertEquals(10, buffer.read(240, part, 0, 60));
+		assertArrayEquals(expected, buffer.toByteArray());
+		buffer.close();
+	}
+
+	@Test
+	public void testSharedMemoryLimit() throws Exception {
+		AtomicInteger memory = new AtomicInteger();
+		BlockwiseBuffer first = new BlockwiseBuffer(0, 100, memory, 120);
+		BlockwiseBuffer second = new BlockwiseBuffer(0, 100, memory, 120);
+		assertTrue(first.append(block(1, 100)));
+		assertEquals(100, memory.get());
+		assertTrue(second.append(block(2, 50)));
+		assertTrue(second.isSpilled());
+		assertFalse(first.isSpilled());
+
+		first.close();
+		second.close();
+		assertEquals(0, memory.get());
+	}
+
+	@Test
+	public void testMaxSize() throws Exception {
+		BlockwiseBuffer buffer = new BlockwiseBuffer(100, 1000, new AtomicInteger(), 1000);
+		assertTrue(buffer.append(block(1, 64)));
+		assertFalse(buffer.append(block(2, 64)));
+		assertEquals(64, buffer.size());
+		buffer.close();
+	}
+
+	private static byte[] block(int seed, int length) {
+		byte[] block = new byte[length];
+		for (int i = 0; i < length; i++)
+			block[i] = (byte) (seed * 31 + i);
+		return block;
+	}
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network.stack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that a request that ends without ACK frees its NSTART slot
+ * right away, so that the next request to the same peer is sent at once.
+ */
+public class CongestionControlLayerTest {
+
+	private DatagramSocket peer;
+	private CoAPEndpoint client;
+
+	@Before
+	public void setupEndpoints() throws Exception {
+		// a peer that never answers
+		peer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		peer.setSoTimeout(1000);
+
+		NetworkConfig config = new NetworkConfig()
+			.setBoolean(NetworkConfig.Keys.USE_CONGESTION_CONTROL, true)
+			.setInt(NetworkConfig.Keys.NSTART, 1)
+			.setInt(NetworkConfig.Keys.ACK_TIMEOUT, 5000);
+		client = new CoAPEndpoint(config);
+		client.start();
+	}
+
+	@After
+	public void shutdownEndpoints() {
+		client.destroy();
+		peer.close();
+	}
+
+	@Test
+	public void testCanceledRequestFreesSlot() throws Exception {
+		// as for the request of a CoapFuture
+		Request first = newPost("first");
+		first.setCompleteOnCancel(true);
+		first.send(client);
+		assertReceived("first");
+
+		Request second = newPost("second");
+		second.send(client);
+		first.cancel();
+		assertReceived("second");
+	}
+
+	@Test
+	public void testTimedOutRequestFreesSlot() throws Exception {
+		Request first = newPost("first");
+		first.setResponseTimeout(200);
+		first.send(client);
+		assertReceived("first");
+
+		Request second = newPost("second");
+		second.send(client);
+		assertReceived("second");
+		assertTrue(first.isTimedOut());
+	}
+
+	private Request newPost(String payload) {
+		Request request = new Request(Code.POST, Type.CON);
+		request.setDestination(peer.getLocalAddress());
+		request.setDestinationPort(peer.getLocalPort());
+		request.setPayload(payload);
+		return request;
+	}
+
+	private void assertReceived(String payload) throws Exception {
+		DatagramPacket packet = new DatagramPacket(new byte[256], 256);
+		peer.receive(packet);
+		String datagram = new String(packet.getData(), 0, packet.getLength(), "UTF-8");
+		assertEquals(payload, datagram.substring(datagram.length() - payload.length()));
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.network.stack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.network.stack.RetransmissionTimer.Timeout;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetransmissionTimerTest {
+
+	private ScheduledExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = new ScheduledThreadPoolExecutor(2);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testExpiresAfterDelay() {
+		// the ticker only advances manually within an hour
+		RetransmissionTimer timer = new RetransmissionTimer(executor, 3600 * 1000, 4);
+		CountingTimeout first = new CountingTimeout(null);
+		CountingTimeout later = new CountingTimeout(null);
+		CountingTimeout cancelled = new CountingTimeout(null);
+		timer.schedule(first, 1);
+		// more ticks than buckets
+		timer.schedule(later, 6 * 3600 * 1000);
+		timer.schedule(cancelled, 1);
+		assertTrue(cancelled.cancel());
+
+		assertEquals(1, timer.advance());
+		for (int i = 2; i < 6; i++)
+			assertEquals(0, timer.advance());
+		assertEquals(1, timer.advance());
+		assertFalse(later.cancel());
+		assertTrue(cancelled.isCancelled());
+	}
+
+	@Test
+	public void testRemovesCancelledTimeouts() {
+		RetransmissionTimer timer = new RetransmissionTimer(executor, 3600 * 1000, 4);
+		CountingTimeout first = new CountingTimeout(null);
+		CountingTimeout second = new CountingTimeout(null);
+		CountingTimeout third = new CountingTimeout(null);
+		timer.schedule(first, 6 * 3600 * 1000);
+		timer.schedule(second, 6 * 3600 * 1000);
+		timer.schedule(third, 6 * 3600 * 1000);
+		assertEquals(3, timer.size());
+
+		// the timer does not keep cancelled timeouts until their deadline
+		assertTrue(second.cancel());
+		assertEquals(2, timer.size());
+		assertTrue(third.cancel());
+		assertTrue(first.cancel());
+		assertEquals(0, timer.size());
+		assertFalse(first.cancel());
+
+		CountingTimeout cancelled = new CountingTimeout(null);
+		assertTrue(cancelled.cancel());
+		timer.schedule(cancelled, 1);
+		assertEquals(0, timer.size());
+		assertEquals(0, timer.advance());
+	}
+
+	@Test
+	public void testRunsTimeouts() throws Exception {
+		RetransmissionTimer timer = new RetransmissionTimer(executor, 5, 16);
+		int count = 1000;
+		CountDownLatch latch = new CountDownLatch(count);
+		CountingTimeout[] timeouts = new CountingTimeout[2 * count];
+		for (int i = 0; i < timeouts.length; i++) {
+			timeouts[i] = new CountingTimeout(latch);
+			// cancel every second timeout
+			if (i % 2 == 1)
+				assertTrue(timeouts[i].cancel());
+			timer.schedule(timeouts[i], i % 200);
+		}
+
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		for (int i = 0; i < timeouts.length; i++)
+			assertEquals(i % 2 == 0 ? 1 : 0, timeouts[i].runs.get());
+		timer.stop();
+	}
+
+	private static class CountingTimeout extends Timeout {
+
+		private final AtomicInteger runs = new AtomicInteger();
+		private final CountDownLatch latch;
+
+		private CountingTimeout(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		public void run() {
+			runs.incrementAndGet();
+			if (latch != null)
+				latch.countDown();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapBatch;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoapBatchTest {
+
+	private static final int DEVICES = 5;
+
+	private CoapServer server;
+	private int serverPort;
+	private CoAPEndpoint clientEndpoint;
+	private ScheduledExecutorService responder;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+
+	@Before
+	public void startupServer() throws Exception {
+		responder = Executors.newSingleThreadScheduledExecutor();
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		server = new CoapServer();
+		for (int i = 0; i < DEVICES; i++)
+			server.add(new DeviceResource("device" + i));
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+
+		clientEndpoint = new CoAPEndpoint(0);
+		clientEndpoint.start();
+	}
+
+	@After
+	public void shutdownServer() {
+		clientEndpoint.destroy();
+		server.destroy();
+		responder.shutdownNow();
+	}
+
+	@Test
+	public void testRespectsNSTART() throws Exception {
+		String[] paths = new String[DEVICES];
+		for (int i = 0; i < DEVICES; i++)
+			paths[i] = "device" + i;
+		final CountDownLatch completed = new CountDownLatch(1);
+		CoapBatch batch = newClient().getAll(paths).addHandler(new CoapBatch.Handler() {
+			public void onComplete(CoapBatch batch) {
+				completed.countDown();
+			}
+		});
+
+		List<CoapResponse> responses = batch.get(10, TimeUnit.SECONDS);
+		assertEquals(DEVICES, responses.size());
+		for (int i = 0; i < DEVICES; i++)
+			assertEquals("device" + i, responses.get(i).getResponseText());
+		assertTrue(completed.await(1, TimeUnit.SECONDS));
+		// NSTART is 1 by default
+		assertEquals(1, maxInFlight.get());
+	}
+
+	@Test
+	public void testCancelPendingRequests() throws Exception {
+		CoapBatch batch = newClient().getAll("device0", "device1", "device2");
+		batch.cancel(true);
+		List<CoapResponse> responses = batch.get(5, TimeUnit.SECONDS);
+		assertTrue(batch.isCancelled());
+		// the requests that waited for NSTART have not been sent
+		assertNull(responses.get(2));
+		assertTrue(batch.getFutures().get(2).isCancelled());
+	}
+
+	private CoapClient newClient() {
+		CoapClient client = new CoapClient("coap://localhost:" + serverPort + "/");
+		client.setEndpoint(clientEndpoint);
+		return client;
+	}
+
+	private class DeviceResource extends CoapResource {
+
+		private DeviceResource(String name) {
+			super(name);
+		}
+
+		@Override
+		public void handleGET(final CoapExchange exchange) {
+			int current = inFlight.incrementAndGet();
+			int max;
+			while ((max = maxInFlight.get()) < current && !maxInFlight.compareAndSet(max, current));
+			responder.schedule(new Runnable() {
+				public void run() {
+					inFlight.decrementAndGet();
+					exchange.respond(ResponseCode.CONTENT, getName());
+				}
+			}, 20, TimeUnit.MILLISECONDS);
+		}
+	}
+}
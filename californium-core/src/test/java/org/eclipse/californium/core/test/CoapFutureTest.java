@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapFuture;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CoapFutureTest {
+
+	private CoapServer server;
+	private int serverPort;
+	private CoAPEndpoint clientEndpoint;
+	private CountDownLatch silentRequests;
+	private CoapResource observable;
+
+	@Before
+	public void startupServer() throws Exception {
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		silentRequests = new CountDownLatch(1);
+		server = new CoapServer();
+		server.add(new CoapResource("hello") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CONTENT, "world");
+			}
+		});
+		server.add(new CoapResource("silent") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				// acknowledge but never respond
+				exchange.accept();
+				silentRequests.countDown();
+			}
+		});
+		observable = new CoapResource("observable") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CONTENT, "value");
+			}
+		};
+		observable.setObservable(true);
+		server.add(observable);
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+
+		clientEndpoint = new CoAPEndpoint(0);
+		clientEndpoint.start();
+	}
+
+	@After
+	public void shutdownServer() {
+		clientEndpoint.destroy();
+		server.destroy();
+	}
+
+	@Test
+	public void testCompletesWithResponse() throws Exception {
+		Handler handler = new Handler();
+		CoapFuture future = newClient("hello").getAsync().addHandler(handler);
+		CoapResponse response = future.get(5, TimeUnit.SECONDS);
+		assertEquals("world", response.getResponseText());
+		assertTrue(future.isDone());
+		assertFalse(future.cancel(true));
+		assertTrue(handler.latch.await(1, TimeUnit.SECONDS));
+		assertEquals(1, handler.loads.get());
+
+		// late handlers are invoked immediately
+		Handler late = new Handler();
+		future.addHandler(late);
+		assertEquals(1, late.loads.get());
+	}
+
+	@Test
+	public void testCancelForgetsExchange() throws Exception {
+		CoapClient client = newClient("silent").setTimeout(0);
+		Handler handler = new Handler();
+		CoapFuture future = client.getAsync().addHandler(handler);
+		assertTrue(silentRequests.await(5, TimeUnit.SECONDS));
+		assertTrue(future.cancel(true));
+		assertTrue(future.isCancelled());
+		assertNull(future.waitForResponse());
+		try {
+			future.get();
+			fail("Canceled future returned a response");
+		} catch (CancellationException e) {
+			// expected
+		}
+		assertEquals(1, handler.errors.get());
+		assertTrue(future.getRequest().isCanceled());
+		new EndpointSurveillant("client", clientEndpoint).assertHashMapsEmpty();
+	}
+
+	@Test
+	public void testTimesOutOnStackTimer() throws Exception {
+		Handler handler = new Handler();
+		CoapFuture future = newClient("silent").setTimeout(300).getAsync().addHandler(handler);
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Failed future returned a response");
+		} catch (ExecutionException e) {
+			// expected
+		}
+		assertTrue(future.isFailed());
+		assertEquals(CoapFuture.Failure.TIMEOUT, future.getFailure());
+		assertNull(future.waitForResponse());
+		assertTrue(future.getRequest().isTimedOut());
+		assertTrue(handler.latch.await(1, TimeUnit.SECONDS));
+		assertEquals(1, handler.errors.get());
+		new EndpointSurveillant("client", clientEndpoint).assertHashMapsEmpty();
+	}
+
+	@Test
+	public void testCancelAfterNotificationCancelsRelation() throws Exception {
+		CoapFuture future = newClient("observable").observeAsync(new Handler());
+		CoapResponse response = future.get(5, TimeUnit.SECONDS);
+		assertEquals("value", response.getResponseText());
+		assertEquals(1, observable.getObserverCount());
+
+		// the future has responded, but the relation is still canceled
+		assertFalse(future.cancel(true));
+		assertTrue(future.getRelation().isCanceled());
+		for (int i = 0; i < 50 && observable.getObserverCount() > 0; i++)
+			Thread.sleep(100);
+		assertEquals(0, observable.getObserverCount());
+	}
+
+	@Test
+	public void testReportsOverload() throws Exception {
+		// a peer that never acknowledges keeps the NSTART slot occupied
+		DatagramSocket peer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		NetworkConfig config = new NetworkConfig()
+			.setBoolean(NetworkConfig.Keys.USE_CONGESTION_CONTROL, true)
+			.setInt(NetworkConfig.Keys.NSTART, 1)
+			.setInt(NetworkConfig.Keys.CONGESTION_CONTROL_QUEUE_CAPACITY, 1);
+		CoAPEndpoint endpoint = new CoAPEndpoint(config);
+		try {
+			endpoint.start();
+			CoapClient client = new CoapClient("coap://127.0.0.1:" + peer.getLocalPort() + "/silent");
+			client.setEndpoint(endpoint);
+			CoapFuture ongoing = client.getAsync();
+			CoapFuture queued = client.getAsync();
+			CoapFuture dropped = client.getAsync();
+			try {
+				dropped.get(5, TimeUnit.SECONDS);
+				fail("Dropped future returned a response");
+			} catch (ExecutionException e) {
+				// expected
+			}
+			assertEquals(CoapFuture.Failure.OVERLOAD, dropped.getFailure());
+			assertFalse(ongoing.isDone());
+			assertFalse(queued.isDone());
+		} finally {
+			endpoint.destroy();
+			peer.close();
+		}
+	}
+
+	private CoapClient newClient(String path) {
+		CoapClient client = new CoapClient("coap://localhost:" + serverPort + "/" + path);
+		client.setEndpoint(clientEndpoint);
+		return client;
+	}
+
+	private static class Handler implements CoapHandler {
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private final AtomicInteger loads = new AtomicInteger();
+		private final AtomicInteger errors = new AtomicInteger();
+
+		@Override
+		public void onLoad(CoapResponse response) {
+			loads.incrementAndGet();
+			latch.countDown();
+		}
+
+		@Override
+		public void onError() {
+			errors.incrementAndGet();
+			latch.countDown();
+		}
+	}
+}
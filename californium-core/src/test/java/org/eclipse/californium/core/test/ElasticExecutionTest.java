@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.ElasticExecutor;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that blocking handlers do not starve the protocol stage
+ * when the server runs handlers on an elastic executor.
+ */
+public class ElasticExecutionTest {
+
+	private static final int BLOCKED_REQUESTS = 20;
+
+	private CoapServer server;
+	private String uri;
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final CountDownLatch blocked = new CountDownLatch(BLOCKED_REQUESTS);
+
+	@Before
+	public void startupServer() {
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT, 1)
+			.setString(NetworkConfig.Keys.HANDLER_EXECUTION, NetworkConfig.Keys.HANDLER_EXECUTION_ELASTIC);
+		CoAPEndpoint endpoint = new CoAPEndpoint(0, config);
+		server = new CoapServer(config);
+		server.add(new CoapResource("slow") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				blocked.countDown();
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				exchange.respond("slow");
+			}
+		});
+		server.add(new CoapResource("fast") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond("fast");
+			}
+		});
+		server.addEndpoint(endpoint);
+		server.start();
+		uri = "coap://localhost:" + endpoint.getAddress().getPort() + "/";
+	}
+
+	@After
+	public void shutdownServer() {
+		release.countDown();
+		server.destroy();
+	}
+
+	@Test
+	public void testBlockingHandlersDoNotStarveProtocolStage() throws Exception {
+		List<Request> requests = new ArrayList<Request>();
+		for (int i = 0; i < BLOCKED_REQUESTS; i++) {
+			Request request = Request.newGet().setURI(uri + "slow");
+			requests.add(request);
+			request.send();
+		}
+		assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+		Response fast = Request.newGet().setURI(uri + "fast").send().waitForResponse(2000);
+		assertNotNull(fast);
+		assertEquals("fast", fast.getPayloadString());
+
+		release.countDown();
+		for (Request request:requests) {
+			Response response = request.waitForResponse(5000);
+			assertNotNull(response);
+			assertEquals(ResponseCode.CONTENT, response.getCode());
+		}
+	}
+
+	@Test
+	public void testReusesIdleThreads() throws Exception {
+		ElasticExecutor executor = new ElasticExecutor(10, 0, "test");
+		try {
+			for (int i = 0; i < 5; i++) {
+				final CountDownLatch done = new CountDownLatch(1);
+				executor.execute(new Runnable() {
+					public void run() {
+						done.countDown();
+					}
+				});
+				assertTrue(done.await(1, TimeUnit.SECONDS));
+				// give the thread the time to become idle again
+				Thread.sleep(50);
+			}
+			assertEquals(1, executor.getLargestPoolSize());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testQueuesTasksAtThreadLimit() throws Exception {
+		ElasticExecutor executor = new ElasticExecutor(2, 0, "test");
+		final CountDownLatch done = new CountDownLatch(6);
+		try {
+			for (int i = 0; i < 6; i++) {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							release.await(10, TimeUnit.SECONDS);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						done.countDown();
+					}
+				});
+			}
+			assertEquals(2, executor.getPoolSize());
+			release.countDown();
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(2, executor.getLargestPoolSize());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testRunsAllTasksWhileThreadsBecomeIdle() throws Exception {
+		final ElasticExecutor executor = new ElasticExecutor(2, 0, "test");
+		final int submitters = 4;
+		final int tasks = 5000;
+		final CountDownLatch done = new CountDownLatch(submitters * tasks);
+		final Runnable task = new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		};
+		try {
+			// tasks are handed over and overflow while threads become idle
+			for (int i = 0; i < submitters; i++) {
+				new Thread() {
+					public void run() {
+						for (int j = 0; j < tasks; j++) {
+							executor.execute(task);
+						}
+					}
+				}.start();
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(2, executor.getLargestPoolSize());
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -2,6 +2,7 @@ package org.eclipse.californium.core.test;
 
 
 import java.lang.reflect.Field;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -11,9 +12,8 @@ import junit.framework.Assert;
 
 import org.eclipse.californium.core.network.CoAPEndpoint;
 import org.eclipse.californium.core.network.Exchange;
-import org.eclipse.californium.core.network.Exchange.KeyMID;
-import org.eclipse.californium.core.network.Exchange.KeyToken;
-import org.eclipse.californium.core.network.Exchange.KeyUri;
+import org.eclipse.californium.core.network.Exchange.KeyBlockwise;
+import org.eclipse.californium.core.network.ExchangeStore;
 import org.eclipse.californium.core.network.Matcher;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.network.deduplication.SweepDeduplicator;
@@ -24,10 +24,10 @@ public class EndpointSurveillant {
 	private String name;
 
 	// The HashMaps that have been extracted from the endpoint:
-	private ConcurrentHashMap<KeyMID, Exchange> exchangesByMID; // Outgoing to match with inc ACK/RST
-	private ConcurrentHashMap<KeyToken, Exchange> exchangesByToken; // Outgoing to match with inc responses
-	private ConcurrentHashMap<KeyUri, Exchange> ongoingExchanges; // for blockwise
-	private ConcurrentHashMap<KeyMID, Exchange> incommingMessages; // for deduplication
+	private ExchangeStore exchangesByMID; // Outgoing to match with inc ACK/RST
+	private ExchangeStore exchangesByToken; // Outgoing to match with inc responses
+	private ConcurrentHashMap<KeyBlockwise, Exchange> ongoingExchanges; // for blockwise
+	private ExchangeStore incommingMessages; // for deduplication
 
 	private int exchangeLifecycle;
 	private int sweepDuplicatorInterval;
@@ -107,6 +107,17 @@ public class EndpointSurveillant {
 		System.out.println(buffer.toString());
 	}
 	
+	private void printContent(ExchangeStore store, StringBuffer buffer) {
+		List<Exchange> exchanges = store.values();
+		buffer.append(exchanges.size()).append(" elements");
+		int counter = 0 ;
+		for (Exchange exchange: exchanges) {
+			buffer.append("\n  ").append(counter++).append(" ")
+			      .append("Request:  ").append(exchange.getRequest())
+			      .append(" || Response: ").append(exchange.getResponse());
+		}
+	}
+	
 	private <T> void  printContent(ConcurrentHashMap<T, Exchange> map, StringBuffer buffer) {
 		Set<Entry<T, Exchange>> entrySet = map.entrySet();
 		buffer.append(entrySet.size()).append(" elements");
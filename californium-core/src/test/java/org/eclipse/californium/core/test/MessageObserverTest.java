@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MessageObserver;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.junit.Test;
+
+public class MessageObserverTest {
+
+	@Test
+	public void testAddAndRemove() {
+		Request request = Request.newGet();
+		assertTrue(request.getMessageObservers().isEmpty());
+		Counter first = new Counter();
+		Counter second = new Counter();
+		request.addMessageObserver(first);
+		request.addMessageObserver(second);
+		List<MessageObserver> snapshot = request.getMessageObservers();
+
+		request.removeMessageObserver(first);
+		assertEquals(2, snapshot.size());
+		assertEquals(1, request.getMessageObservers().size());
+		assertSame(second, request.getMessageObservers().get(0));
+
+		request.setCanceled(true);
+		assertEquals(0, first.events.get());
+		assertEquals(1, second.events.get());
+
+		request.removeMessageObserver(second);
+		assertTrue(request.getMessageObservers().isEmpty());
+	}
+
+	@Test
+	public void testFaultyObserverDoesNotStopOthers() {
+		Request request = Request.newGet();
+		request.addMessageObserver(new MessageObserverAdapter() {
+			@Override
+			public void onResponse(Response response) {
+				throw new IllegalStateException("faulty");
+			}
+		});
+		Counter counter = new Counter();
+		request.addMessageObserver(counter);
+		request.setResponse(new Response(ResponseCode.CONTENT));
+		request.setAcknowledged(true);
+		request.setTimedOut(true);
+		assertEquals(3, counter.events.get());
+	}
+
+	@Test
+	public void testConcurrentAdd() throws Exception {
+		final Request request = Request.newGet();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < 100; j++)
+						request.addMessageObserver(new Counter());
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread:threads)
+			thread.join();
+		assertEquals(400, request.getMessageObservers().size());
+	}
+
+	@Test
+	public void testOverloadOnlyReachesOverloadObservers() {
+		Request request = Request.newGet();
+		// an observer that predates the overload event
+		final AtomicInteger cancels = new AtomicInteger();
+		request.addMessageObserver(new MessageObserver() {
+			public void onRetransmission() { }
+			public void onResponse(Response response) { }
+			public void onAcknowledgement() { }
+			public void onReject() { }
+			public void onTimeout() { }
+			public void onCancel() {
+				cancels.incrementAndGet();
+			}
+		});
+		Counter counter = new Counter();
+		request.addMessageObserver(counter);
+		request.setOverloaded(true);
+		request.cancel();
+		assertEquals(2, counter.events.get());
+		assertEquals(1, cancels.get());
+	}
+
+	private static class Counter extends MessageObserverAdapter {
+
+		private final AtomicInteger events = new AtomicInteger();
+
+		@Override
+		public void onResponse(Response response) {
+			events.incrementAndGet();
+		}
+
+		@Override
+		public void onAcknowledgement() {
+			events.incrementAndGet();
+		}
+
+		@Override
+		public void onTimeout() {
+			events.incrementAndGet();
+		}
+
+		@Override
+		public void onCancel() {
+			events.incrementAndGet();
+		}
+
+		@Override
+		public void onOverload() {
+			events.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ObserveFanOutTest {
+
+	private static final String TARGET = "sensor";
+	private static final int OBSERVERS = 5;
+
+	private CoapServer server;
+	private int serverPort;
+	private SensorResource resource;
+
+	@Before
+	public void startupServer() {
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		resource = new SensorResource();
+		server = new CoapServer();
+		server.add(resource);
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+	}
+
+	@Test
+	public void testHandlesChangeOncePerRepresentation() throws Exception {
+		String uri = "coap://localhost:" + serverPort + "/" + TARGET;
+		List<CoapObserveRelation> relations = new ArrayList<CoapObserveRelation>();
+		List<Observer> observers = new ArrayList<Observer>();
+		for (int i = 0; i < OBSERVERS; i++) {
+			// one observer asks for another representation
+			Observer observer = i == 0 ? new Observer("19.5 C", "20.0 C") : new Observer("19.5", "20.0");
+			observers.add(observer);
+			CoapClient client = new CoapClient(i == 0 ? uri + "?unit" : uri);
+			relations.add(client.observeAndWait(observer));
+		}
+		assertEquals(OBSERVERS, resource.getObserverCount());
+		assertEquals(OBSERVERS, resource.requests.get());
+
+		resource.value = "20.0";
+		resource.changed();
+		for (Observer observer:observers) {
+			assertTrue(observer.latch.await(5, TimeUnit.SECONDS));
+			assertEquals(0, observer.failures.get());
+		}
+		// one request per representation instead of one per observer
+		assertEquals(OBSERVERS + 2, resource.requests.get());
+
+		for (CoapObserveRelation relation:relations)
+			relation.reactiveCancel();
+	}
+
+	private static class SensorResource extends CoapResource {
+
+		private final AtomicInteger requests = new AtomicInteger();
+		private volatile String value = "19.5";
+
+		private SensorResource() {
+			super(TARGET);
+			setObservable(true);
+			setNotificationFanOut(true);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			requests.incrementAndGet();
+			if (exchange.getRequestOptions().getUriQuery().contains("unit"))
+				exchange.respond(ResponseCode.CONTENT, value + " C");
+			else
+				exchange.respond(ResponseCode.CONTENT, value);
+		}
+	}
+
+	private static class Observer implements CoapHandler {
+
+		private final String initial;
+		private final String expected;
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private final AtomicInteger failures = new AtomicInteger();
+
+		private Observer(String initial, String expected) {
+			this.initial = initial;
+			this.expected = expected;
+		}
+
+		@Override
+		public void onLoad(CoapResponse response) {
+			String text = response.getResponseText();
+			if (expected.equals(text))
+				latch.countDown();
+			else if (!initial.equals(text))
+				failures.incrementAndGet();
+		}
+
+		@Override
+		public void onError() {
+			failures.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.observe.NotificationPolicy;
+import org.eclipse.californium.core.observe.ObserveRelation;
+import org.eclipse.californium.core.observe.ObservingEndpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ObserveRateLimitTest {
+
+	private static final String TARGET = "counter";
+
+	private CoapServer server;
+	private String uri;
+	private CounterResource resource;
+
+	@Before
+	public void startupServer() {
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		resource = new CounterResource();
+		server = new CoapServer();
+		server.add(resource);
+		server.addEndpoint(endpoint);
+		server.start();
+		uri = "coap://localhost:" + endpoint.getAddress().getPort() + "/" + TARGET;
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+	}
+
+	@Test
+	public void testUsesConfigurationOfEndpoint() throws Exception {
+		NetworkConfig config = new NetworkConfig();
+		config.setLong(NetworkConfig.Keys.NOTIFICATION_MIN_INTERVAL, 1234);
+		config.setLong(NetworkConfig.Keys.NOTIFICATION_MAX_INTERVAL, 5678);
+		Request request = Request.newGet();
+		request.setToken(new byte[] {1});
+		Exchange exchange = new Exchange(request, Origin.REMOTE);
+		exchange.setRequest(request);
+		exchange.setEndpoint(new CoAPEndpoint(0, config));
+		ObserveRelation relation = new ObserveRelation(new ObservingEndpoint(new InetSocketAddress(5683)), resource, exchange);
+		assertEquals(1234, relation.getNotificationPolicy().getMinInterval());
+		assertEquals(5678, relation.getNotificationPolicy().getMaxInterval());
+	}
+
+	@Test
+	public void testCoalescesWithinMinimumInterval() throws Exception {
+		resource.setNotificationPolicy(new NotificationPolicy(300, 0));
+		Observer observer = new Observer();
+		CoapObserveRelation relation = new CoapClient(uri).observeAndWait(observer);
+
+		for (int i = 0; i < 100; i++) {
+			resource.counter.incrementAndGet();
+			resource.changed();
+		}
+		Thread.sleep(800);
+
+		// the response to the registration and the first change pass, the
+		// others wait and only the latest is sent
+		assertTrue(observer.notifications.get() <= 3);
+		assertEquals("100", observer.last);
+		relation.reactiveCancel();
+	}
+
+	@Test
+	public void testRefreshesAfterMaximumInterval() throws Exception {
+		resource.setNotificationPolicy(new NotificationPolicy(0, 100));
+		Observer observer = new Observer();
+		CoapObserveRelation relation = new CoapClient(uri).observeAndWait(observer);
+
+		Thread.sleep(550);
+
+		// the client only delivers notifications with a fresh Observe number
+		assertTrue(observer.notifications.get() >= 4);
+		assertEquals("0", observer.last);
+		relation.reactiveCancel();
+	}
+
+	private static class CounterResource extends CoapResource {
+
+		private final AtomicInteger counter = new AtomicInteger();
+
+		private CounterResource() {
+			super(TARGET);
+			setObservable(true);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			exchange.respond(ResponseCode.CONTENT, Integer.toString(counter.get()));
+		}
+	}
+
+	private static class Observer implements CoapHandler {
+
+		private final AtomicInteger notifications = new AtomicInteger();
+		private volatile String last;
+
+		@Override
+		public void onLoad(CoapResponse response) {
+			notifications.incrementAndGet();
+			last = response.getResponseText();
+		}
+
+		@Override
+		public void onError() { }
+	}
+}
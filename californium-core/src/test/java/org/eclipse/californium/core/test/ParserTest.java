@@ -21,16 +21,31 @@ package org.eclipse.californium.core.test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Message;
 import org.eclipse.californium.core.coap.Option;
+import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.CoAP.Type;
+import org.eclipse.californium.core.network.Exchange.KeyBlockwise;
 import org.eclipse.californium.core.network.serialization.DataParser;
 import org.eclipse.californium.core.network.serialization.DataSerializer;
+import org.eclipse.californium.core.network.serialization.DatagramWriter;
+import org.eclipse.californium.core.network.serialization.LazyDataParser;
+import org.eclipse.californium.core.network.serialization.NotificationTemplate;
 import org.junit.Test;
 
 
@@ -112,4 +127,346 @@ public class ParserTest {
 		assertEquals("ვეპხის=யாமறிந்த&⠊⠀⠉⠁⠝=⠑⠁⠞⠀⠛⠇⠁⠎⠎", response.getOptions().getLocationQueryString());
 		assertEquals("⠊⠀⠉⠁⠝⠀⠑⠁⠞⠀⠛⠇⠁⠎⠎⠀⠁⠝⠙⠀⠊⠞⠀⠙⠕⠑⠎⠝⠞⠀⠓⠥⠗⠞⠀⠍⠑", result.getPayloadString());
 	}
+	
+	@Test
+	public void testLazyParserMatchesDataParser() {
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setType(Type.CON);
+		response.setMID(65535);
+		response.setToken(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+		response.getOptions().addETag(new byte[] {1, 0, 0, 0, 0, 1})
+							.setContentFormat(41)
+							.setMaxAge(86400)
+							.setObserve(0xFFFFFF)
+							.setBlock2(6, true, 4000)
+							.addLocationPath("one")
+							.addLocationPath("")
+							.addOption(new Option(57453, "Arbitrary".hashCode()))
+							.addOption(new Option(19205, new String(new char[300]).replace('\0', 'x')));
+		response.setPayload("payload");
+		
+		byte[] bytes = new DataSerializer().serializeResponse(response);
+		
+		Response expected = new DataParser(bytes).parseResponse();
+		LazyDataParser parser = new LazyDataParser(bytes);
+		assertTrue(parser.isResponse());
+		assertTrue(parser.isWellFormed());
+		
+		Response result = parser.parseResponse();
+		assertEquals(expected.getType(), result.getType());
+		assertEquals(expected.getMID(), result.getMID());
+		assertArrayEquals(expected.getToken(), result.getToken());
+		assertEquals(expected.getOptions().asSortedList(), result.getOptions().asSortedList());
+		assertEquals(expected.getPayloadSize(), result.getPayloadSize());
+		assertEquals("payload", result.getPayloadString());
+		assertArrayEquals(expected.getPayload(), result.getPayload());
+	}
+	
+	@Test
+	public void testLazyParserDefersUriPath() {
+		String longSegment = new String(new char[255]).replace('\0', 'y');
+		Request request = new Request(Code.GET);
+		request.setType(Type.CON);
+		request.setMID(17);
+		request.setToken(new byte[0]);
+		request.getOptions().setUriHost("example.com")
+							.addUriPath("")
+							.addUriPath("sensors")
+							.addUriPath("temperature-with-a-long-name")
+							.addUriPath(longSegment)
+							.addUriQuery("unit=C");
+		byte[] bytes = new DataSerializer().serializeRequest(request);
+		
+		Request result = new LazyDataParser(bytes).parseRequest();
+		byte[] encoded = result.getOptions().getEncodedUriPath();
+		assertEquals(4 + 7 + 28 + 255, encoded.length);
+		assertEquals(0, encoded[0]);
+		assertEquals(7, encoded[1]);
+		assertEquals(request.getOptions().asSortedList(), new OptionSet(result.getOptions()).asSortedList());
+		
+		assertEquals(Arrays.asList("", "sensors", "temperature-with-a-long-name", longSegment), result.getOptions().getUriPath());
+		assertNull(result.getOptions().getEncodedUriPath());
+		assertArrayEquals(bytes, new DataSerializer().serializeRequest(result));
+	}
+	
+	@Test
+	public void testCopyHasOwnEncodedIndex() {
+		byte[] bytes = "xyz".getBytes(CoAP.UTF8_CHARSET);
+		OptionSet origin = new OptionSet().addEncodedOption(bytes, OptionNumberRegistry.URI_QUERY, 0, 1);
+		OptionSet copy = new OptionSet(origin);
+		
+		// both append to their index in the same slot
+		origin.addEncodedOption(bytes, OptionNumberRegistry.URI_QUERY, 1, 1);
+		copy.addEncodedOption(bytes, OptionNumberRegistry.LOCATION_QUERY, 2, 1);
+		
+		assertEquals(Arrays.asList("x", "y"), origin.getUriQuery());
+		assertEquals(0, origin.getLocationQueryCount());
+		assertEquals(Arrays.asList("x"), copy.getUriQuery());
+		assertEquals(Arrays.asList("z"), copy.getLocationQuery());
+	}
+	
+	@Test
+	public void testLazyParserDefersOptions() {
+		Request request = new Request(Code.GET);
+		request.setType(Type.CON);
+		request.setMID(19);
+		request.setToken(new byte[] {5});
+		request.getOptions().addIfMatch(new byte[] {1, 2})
+							.setUriHost("example.com")
+							.addETag(new byte[] {3})
+							.addETag(new byte[] {4, 5})
+							.setUriPort(5684)
+							.addUriPath("proxy")
+							.setAccept(50)
+							.addUriQuery("a=1")
+							.addUriQuery("b=2")
+							.setProxyUri("coap://[::1]/temp")
+							.addOption(new Option(57453, "Arbitrary".hashCode()));
+		byte[] bytes = new DataSerializer().serializeRequest(request);
+		
+		// serialized again straight from the datagram
+		Request result = new LazyDataParser(bytes).parseRequest();
+		assertArrayEquals(bytes, new DataSerializer().serializeRequest(result));
+		assertEquals(request.getOptions().asSortedList(), result.getOptions().asSortedList());
+		
+		// a copy decodes independently of its origin
+		OptionSet copy = new OptionSet(result.getOptions());
+		assertEquals(Arrays.asList("a=1", "b=2"), copy.getUriQuery());
+		copy.setUriHost("example.org");
+		assertEquals("example.com", result.getOptions().getUriHost());
+		assertEquals("example.org", copy.getUriHost());
+		assertEquals(2, result.getOptions().getETagCount());
+		assertTrue(result.getOptions().containsETag(new byte[] {4, 5}));
+		assertTrue(result.getOptions().isIfMatch(new byte[] {1, 2}));
+		assertTrue(result.getOptions().hasOption(57453));
+		assertEquals("coap://[::1]/temp", copy.getProxyUri());
+		assertArrayEquals(bytes, new DataSerializer().serializeRequest(result));
+		
+		// decoded and still encoded options are merged in order
+		result = new LazyDataParser(bytes).parseRequest();
+		result.getOptions().addETag(new byte[] {6}).removeProxyUri();
+		request.getOptions().addETag(new byte[] {6}).removeProxyUri();
+		assertArrayEquals(new DataSerializer().serializeRequest(request), new DataSerializer().serializeRequest(result));
+		
+		// lengths are checked when parsed like by the setters
+		try {
+			new LazyDataParser(new byte[] {0x40, 0x01, 0x00, 0x01, 0x19, 1, 2, 3, 4, 5, 6, 7, 8, 9}).parseRequest();
+			assertTrue("If-Match longer than 8 bytes not detected", false);
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testBlockwiseKeyOfEncodedUriPath() throws Exception {
+		Request request = new Request(Code.GET);
+		request.setType(Type.CON);
+		request.setMID(18);
+		request.setToken(new byte[0]);
+		request.getOptions().addUriPath("sensors").addUriPath("temperature").addUriQuery("unit=C");
+		byte[] bytes = new DataSerializer().serializeRequest(request);
+		InetAddress address = InetAddress.getByName("127.0.0.1");
+		
+		Request encoded = new LazyDataParser(bytes).parseRequest();
+		encoded.setSource(address);
+		encoded.setSourcePort(5683);
+		Request decoded = new LazyDataParser(bytes).parseRequest();
+		decoded.setSource(address);
+		decoded.setSourcePort(5683);
+		decoded.getOptions().getUriPath();
+		assertNull(decoded.getOptions().getEncodedUriPath());
+		assertEquals(KeyBlockwise.fromRequest(encoded), KeyBlockwise.fromRequest(decoded));
+		
+		decoded.getOptions().setUriQuery("unit=F");
+		assertFalse(KeyBlockwise.fromRequest(encoded).equals(KeyBlockwise.fromRequest(decoded)));
+		decoded.getOptions().setUriQuery("unit=C");
+		decoded.setSourcePort(5684);
+		assertFalse(KeyBlockwise.fromRequest(encoded).equals(KeyBlockwise.fromRequest(decoded)));
+	}
+	
+	@Test
+	public void testLazyParserRegion() {
+		Request request = new Request(Code.PUT);
+		request.setType(Type.NON);
+		request.setMID(4711);
+		request.setToken(new byte[] {42});
+		request.getOptions().setUriPath("/device/17/obj");
+		request.setPayload(new byte[] {9, 8, 7});
+		byte[] bytes = new DataSerializer().serializeRequest(request);
+		
+		// embed the datagram into a larger buffer
+		byte[] buffer = new byte[bytes.length + 10];
+		System.arraycopy(bytes, 0, buffer, 5, bytes.length);
+		
+		ByteBuffer view = ByteBuffer.wrap(buffer, 5, bytes.length);
+		Request result = new LazyDataParser(view).parseRequest();
+		assertEquals(4711, result.getMID());
+		assertEquals("device/17/obj", result.getOptions().getUriPathString());
+		assertEquals(3, result.getPayloadSize());
+		assertArrayEquals(new byte[] {9, 8, 7}, result.getPayload());
+		
+		// the payload has been copied out of the datagram
+		buffer[buffer.length - 6] = 0;
+		assertArrayEquals(new byte[] {9, 8, 7}, result.getPayload());
+	}
+	
+	@Test
+	public void testLazyPayloadConcurrentAccess() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			final Message message = new Request(Code.PUT);
+			message.setPayload(new byte[] {0, 1, 2, 3, 4}, 1, 3);
+			final byte[][] results = new byte[4][];
+			Thread[] threads = new Thread[results.length];
+			for (int t = 0; t < threads.length; t++) {
+				final int index = t;
+				threads[t] = new Thread() {
+					public void run() {
+						results[index] = message.getPayload();
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread thread:threads)
+				thread.join();
+			for (byte[] result:results) {
+				assertArrayEquals(new byte[] {1, 2, 3}, result);
+				assertTrue(result == results[0]);
+			}
+		}
+	}
+	
+	@Test
+	public void testLazyParserFormatErrors() {
+		LazyDataParser parser = new LazyDataParser(new byte[] {0x40, 0x01});
+		assertFalse(parser.isRequest());
+		assertFalse(parser.isResponse());
+		assertFalse(parser.isEmpty());
+		
+		// payload marker followed by zero-length payload
+		assertFormatError(new byte[] {0x40, 0x01, 0x00, 0x01, (byte) 0xFF});
+		// token exceeds datagram
+		assertFormatError(new byte[] {0x44, 0x01, 0x00, 0x01, 0x01});
+		// option exceeds datagram
+		assertFormatError(new byte[] {0x40, 0x01, 0x00, 0x01, (byte) 0xB3, 'a'});
+		// reserved option length nibble
+		assertFormatError(new byte[] {0x40, 0x01, 0x00, 0x01, (byte) 0xBF});
+	}
+	
+	@Test
+	public void testSerializerMatchesSortedOptions() {
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setType(Type.ACK);
+		response.setMID(1234);
+		response.setToken(new byte[] {5, 6});
+		response.getOptions().addETag(new byte[] {1, 2, 3})
+							.setContentFormat(0)
+							.setMaxAge(0xFFFFFFFFL)
+							.setObserve(300)
+							.setBlock2(2, true, 70000)
+							.setBlock1(0, false, 0)
+							.setSize1(1 << 20)
+							.addLocationPath("γλώσσα")
+							.addLocationQuery("a=\uD800")
+							.setProxyUri("coap://example.com/" + new String(new char[600]).replace('\0', 'p'))
+							.addOption(new Option(2, new byte[] {7}))
+							.addOption(new Option(57453, "Arbitrary".hashCode()))
+							.addOption(new Option(19205, new String(new char[300]).replace('\0', 'x')));
+		response.setPayload("payload");
+		
+		byte[] bytes = new DataSerializer().serializeResponse(response);
+		assertArrayEquals(serializeSortedOptions(response), bytes);
+		
+		// into a buffer at an offset
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 7);
+		buffer.position(3);
+		assertEquals(bytes.length, new DataSerializer().serialize(response, buffer));
+		assertEquals(bytes.length + 3, buffer.position());
+		byte[] region = new byte[bytes.length];
+		System.arraycopy(buffer.array(), 3, region, 0, bytes.length);
+		assertArrayEquals(bytes, region);
+		
+		try {
+			new DataSerializer().serialize(response, ByteBuffer.allocate(bytes.length - 1));
+			assertTrue("Buffer overflow not detected", false);
+		} catch (BufferOverflowException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testNotificationTemplate() {
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setType(Type.CON);
+		response.getOptions().addETag(new byte[] {1, 2, 3, 4})
+							.setContentFormat(50)
+							.setMaxAge(30)
+							.addOption(new Option(57453, "Arbitrary".hashCode()));
+		response.setPayload("{\"temp\":21.5}");
+		NotificationTemplate template = new NotificationTemplate(response);
+		
+		int[] observes = {0, 1, 255, 256, 70000, (1 << 24) - 1};
+		for (int i = 0; i < observes.length; i++) {
+			response.setMID(i * 1000);
+			response.setToken(new byte[i]);
+			response.getOptions().setObserve(observes[i]);
+			assertArrayEquals(new DataSerializer().serializeResponse(response),
+					template.serialize(response.getType(), response.getMID(), response.getToken(), observes[i]));
+		}
+		
+		// without options before Observe and without payload
+		Response plain = new Response(ResponseCode.CHANGED);
+		plain.setType(Type.NON);
+		plain.setMID(17);
+		plain.setToken(new byte[] {9});
+		plain.getOptions().setObserve(5).setSize2(100);
+		byte[] bytes = new NotificationTemplate(plain).serialize(plain);
+		assertArrayEquals(new DataSerializer().serializeResponse(plain), bytes);
+		assertArrayEquals(bytes, plain.getBytes());
+	}
+	
+	/*
+	 * Encodes the message option by option from the sorted option list.
+	 */
+	private static byte[] serializeSortedOptions(Message message) {
+		DatagramWriter writer = new DatagramWriter();
+		writer.write(1, 2);
+		writer.write(message.getType().value, 2);
+		writer.write(message.getToken().length, 4);
+		writer.write(message instanceof Response ? ((Response) message).getCode().value : 0, 8);
+		writer.write(message.getMID(), 16);
+		writer.writeBytes(message.getToken());
+		int last = 0;
+		for (Option option : message.getOptions().asSortedList()) {
+			int delta = option.getNumber() - last;
+			int length = option.getLength();
+			writer.write(nibble(delta), 4);
+			writer.write(nibble(length), 4);
+			if (nibble(delta) == 13) writer.write(delta - 13, 8);
+			if (nibble(delta) == 14) writer.write(delta - 269, 16);
+			if (nibble(length) == 13) writer.write(length - 13, 8);
+			if (nibble(length) == 14) writer.write(length - 269, 16);
+			writer.writeBytes(option.getValue());
+			last = option.getNumber();
+		}
+		if (message.getPayloadSize() > 0) {
+			writer.writeByte((byte) 0xFF);
+			writer.writeBytes(message.getPayload());
+		}
+		return writer.toByteArray();
+	}
+	
+	private static int nibble(int value) {
+		return value <= 12 ? value : value <= 268 ? 13 : 14;
+	}
+	
+	private static void assertFormatError(byte[] bytes) {
+		LazyDataParser parser = new LazyDataParser(bytes);
+		assertTrue(parser.isRequest());
+		try {
+			parser.parseRequest();
+			assertTrue("Format error not detected", false);
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
 }
@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.BlockOption;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.RepresentationCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RepresentationCacheTest {
+
+	private static final String TARGET = "config";
+	private static final byte[] ETAG = new byte[] { 1, 2 };
+
+	private CoapServer server;
+	private String uri;
+	private ConfigResource resource;
+
+	@Before
+	public void startupServer() {
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		resource = new ConfigResource();
+		resource.setRepresentationCache(new RepresentationCache(4096, 1024));
+		server = new CoapServer();
+		server.add(resource);
+		server.addEndpoint(endpoint);
+		server.start();
+		uri = "coap://localhost:" + endpoint.getAddress().getPort() + "/" + TARGET;
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+	}
+
+	@Test
+	public void testFurtherBlocksFromCache() throws Exception {
+		assertBlock(1, "first");
+		assertEquals(1, resource.requests.get());
+		assertBlock(3, "first");
+		assertBlock(2, "first");
+		assertEquals(1, resource.requests.get());
+
+		resource.value = "second";
+		resource.changed();
+		assertEquals(0, resource.getRepresentationCache().size());
+		assertBlock(2, "second");
+		assertEquals(2, resource.requests.get());
+		assertBlock(1, "second");
+		assertEquals(2, resource.requests.get());
+	}
+
+	private void assertBlock(int num, String value) throws Exception {
+		int szx = BlockOption.size2Szx(16);
+		Request request = Request.newGet().setURI(uri);
+		request.getOptions().setBlock2(szx, false, num);
+		// each block from another client, which has no ongoing exchange
+		CoAPEndpoint client = new CoAPEndpoint();
+		client.start();
+		Response response = request.send(client).waitForResponse(1000);
+		client.destroy();
+		assertNotNull(response);
+		assertEquals(ResponseCode.CONTENT, response.getCode());
+		assertEquals(num, response.getOptions().getBlock2().getNum());
+		assertArrayEquals(ETAG, response.getOptions().getETags().get(0));
+		String expected = representation(value);
+		assertEquals(expected.substring(num * 16, Math.min(expected.length(), num * 16 + 16)), response.getPayloadString());
+	}
+
+	private static String representation(String value) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 8; i++)
+			builder.append(value).append('-').append(i).append(';');
+		return builder.toString();
+	}
+
+	private static class ConfigResource extends CoapResource {
+
+		private final AtomicInteger requests = new AtomicInteger();
+		private volatile String value = "first";
+
+		private ConfigResource() {
+			super(TARGET);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			requests.incrementAndGet();
+			exchange.setETag(ETAG);
+			exchange.respond(representation(value));
+		}
+	}
+}
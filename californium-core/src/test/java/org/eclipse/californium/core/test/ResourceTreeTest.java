@@ -21,10 +21,12 @@ package org.eclipse.californium.core.test;
 
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.network.CoAPEndpoint;
 import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -43,6 +45,10 @@ public class ResourceTreeTest {
 	public static final String CHILD = "child";
 	public static final String CHILD_PAYLOAD = "It is too cold";
 	
+	public static final String DEVICE = "device";
+	public static final String OBJECT = "obj";
+	public static final String WILDCARD = "wildcard";
+	
 	private CoapServer server;
 	private int serverPort;
 	
@@ -96,6 +102,51 @@ public class ResourceTreeTest {
 		Assert.assertEquals(ResponseCode.NOT_FOUND, code2);
 	}
 	
+	@Test
+	public void testParameterResource() throws Exception {
+		String base = "coap://localhost:"+serverPort+"/"+DEVICE+"/";
+		
+		// one resource serves all device IDs
+		String resp1 = Request.newGet().setURI(base+"17/"+OBJECT).send().waitForResponse(100).getPayloadString();
+		Assert.assertEquals("17", resp1);
+		String resp2 = Request.newGet().setURI(base+"42/"+OBJECT).send().waitForResponse(100).getPayloadString();
+		Assert.assertEquals("42", resp2);
+		
+		// a child with the exact name takes precedence
+		String resp3 = Request.newGet().setURI(base+NAME_1).send().waitForResponse(100).getPayloadString();
+		Assert.assertEquals(PAYLOAD, resp3);
+		
+		ResponseCode code = Request.newGet().setURI(base+"17/unknown").send().waitForResponse(100).getCode();
+		Assert.assertEquals(ResponseCode.NOT_FOUND, code);
+	}
+	
+	@Test
+	public void testCustomChildLookup() throws Exception {
+		String base = "coap://localhost:"+serverPort+"/"+WILDCARD+"/";
+		
+		// a subclass overriding getChild(String) still resolves all names
+		String resp1 = Request.newGet().setURI(base+"anything").send().waitForResponse(100).getPayloadString();
+		Assert.assertEquals(PAYLOAD, resp1);
+		String resp2 = Request.newGet().setURI(base+"42").send().waitForResponse(100).getPayloadString();
+		Assert.assertEquals(PAYLOAD, resp2);
+	}
+	
+	@Test
+	public void testGetChildFallsBackToParameter() {
+		CoapResource device = new CoapResource(DEVICE);
+		CoapResource first = new CoapResource(NAME_1);
+		device.add(first);
+		Assert.assertNull(device.getChild("17"));
+		
+		CoapResource parameter = new CoapResource("{id}");
+		device.add(parameter);
+		Assert.assertSame(first, device.getChild(NAME_1));
+		Assert.assertSame(parameter, device.getChild("17"));
+		
+		byte[] name = "42".getBytes(CoAP.UTF8_CHARSET);
+		Assert.assertSame(parameter, device.getChild(name, 0, name.length));
+	}
+	
 	private void createServer() {
 		CoAPEndpoint endpoint = new CoAPEndpoint(0);
 		
@@ -106,12 +157,46 @@ public class ResourceTreeTest {
 				.add(new CoapResource(RES_AA)
 					.add(resource
 						.add(new TestResource(CHILD, CHILD_PAYLOAD)))));
+		server
+			.add(new CoapResource(DEVICE)
+				.add(new TestResource(NAME_1, PAYLOAD))
+				.add(new CoapResource("{id}")
+					.add(new DeviceObjectResource())));
+		server.add(new WildcardResource());
 
 		server.addEndpoint(endpoint);
 		server.start();
 		serverPort = endpoint.getAddress().getPort();
 	}
 	
+	private class WildcardResource extends CoapResource {
+		
+		private final Resource any = new TestResource(NAME_1, PAYLOAD);
+		
+		public WildcardResource() {
+			super(WILDCARD);
+			any.setParent(this);
+		}
+		
+		@Override
+		public Resource getChild(String name) {
+			return any;
+		}
+	}
+	
+	private class DeviceObjectResource extends CoapResource {
+		
+		public DeviceObjectResource() {
+			super(OBJECT);
+		}
+		
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			// the device ID is the second segment of the path
+			exchange.respond(ResponseCode.CONTENT, exchange.getRequestOptions().getUriPath().get(1));
+		}
+	}
+	
 	private class TestResource extends CoapResource {
 		
 		private String payload;
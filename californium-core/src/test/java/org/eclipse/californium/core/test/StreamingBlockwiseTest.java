@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.core.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.PayloadSource;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test uploads and downloads bodies that are larger than the spill
+ * threshold of the blockwise layer and checks the limit for the body size.
+ */
+public class StreamingBlockwiseTest {
+
+	private static final int BODY_SIZE = 3000;
+	private static final int MAX_BODY_SIZE = 4000;
+	private static final int DOWNLOADS = 10;
+
+	private CoapServer server;
+	private CoAPEndpoint client;
+	private String uri;
+	private UploadResource upload;
+
+	@Before
+	public void startupServer() throws IOException {
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfig.Keys.PREFERRED_BLOCK_SIZE, 64)
+			.setInt(NetworkConfig.Keys.MAX_MESSAGE_SIZE, 64)
+			.setInt(NetworkConfig.Keys.BLOCKWISE_SPILL_THRESHOLD, 256)
+			.setInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE, MAX_BODY_SIZE);
+		CoAPEndpoint endpoint = new CoAPEndpoint(0, config);
+		upload = new UploadResource();
+		server = new CoapServer();
+		server.add(upload);
+		server.add(new DownloadResource());
+		server.addEndpoint(endpoint);
+		server.start();
+		uri = "coap://localhost:" + endpoint.getAddress().getPort() + "/";
+
+		client = new CoAPEndpoint(config);
+		client.start();
+	}
+
+	@After
+	public void shutdownServer() {
+		client.destroy();
+		server.destroy();
+	}
+
+	@Test
+	public void testUploadIsStreamedFromFile() throws Exception {
+		Request request = Request.newPost().setURI(uri + "upload");
+		request.setPayload(body(BODY_SIZE));
+		request.send(client);
+		Response response = request.waitForResponse(5000);
+		assertNotNull(response);
+		assertEquals(ResponseCode.CHANGED, response.getCode());
+		assertEquals(String.valueOf(BODY_SIZE), response.getPayloadString());
+		assertEquals(1, upload.streamed.get());
+	}
+
+	@Test
+	public void testUploadTooLarge() throws Exception {
+		Request request = Request.newPost().setURI(uri + "upload");
+		request.setPayload(body(MAX_BODY_SIZE + 100));
+		request.send(client);
+		Response response = request.waitForResponse(5000);
+		assertNotNull(response);
+		assertEquals(ResponseCode.REQUEST_ENTITY_TOO_LARGE, response.getCode());
+		assertEquals(MAX_BODY_SIZE, response.getOptions().getSize1().intValue());
+	}
+
+	@Test
+	public void testDownloadFromSource() throws Exception {
+		Request request = Request.newGet().setURI(uri + "download");
+		request.send(client);
+		Response response = request.waitForResponse(5000);
+		assertNotNull(response);
+		assertEquals(ResponseCode.CONTENT, response.getCode());
+		assertArrayEquals(body(BODY_SIZE), response.getPayload());
+	}
+
+	@Test
+	public void testDownloadReleasesFile() throws Exception {
+		// the first download loads the classes it needs
+		download();
+		int files = countTemporaryFiles();
+		int descriptors = countOpenFiles();
+		for (int i = 0; i < DOWNLOADS; i++)
+			download();
+		assertEquals(files, countTemporaryFiles());
+		// a leak would hold one descriptor per download
+		if (descriptors >= 0)
+			assertTrue(countOpenFiles() < descriptors + DOWNLOADS / 2);
+	}
+
+	private void download() throws Exception {
+		Request request = Request.newGet().setURI(uri + "download");
+		request.send(client);
+		Response response = request.waitForResponse(5000);
+		assertNotNull(response);
+		// the spilled body has been read onto the heap
+		assertNull(response.getPayloadSource());
+		assertEquals(BODY_SIZE, response.getPayloadSize());
+	}
+
+	private static int countTemporaryFiles() {
+		String[] files = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith("californium-block");
+			}
+		});
+		return files == null ? 0 : files.length;
+	}
+
+	/*
+	 * Counts the open file descriptors of this process where /proc is
+	 * available or returns -1.
+	 */
+	private static int countOpenFiles() {
+		String[] descriptors = new File("/proc/self/fd").list();
+		return descriptors == null ? -1 : descriptors.length;
+	}
+
+	private static byte[] body(int size) {
+		byte[] body = new byte[size];
+		for (int i = 0; i < size; i++)
+			body[i] = (byte) i;
+		return body;
+	}
+
+	private static class UploadResource extends CoapResource {
+
+		private final AtomicInteger streamed = new AtomicInteger();
+
+		private UploadResource() {
+			super("upload");
+		}
+
+		@Override
+		public void handlePOST(CoapExchange exchange) {
+			if (exchange.advanced().getRequest().getPayloadSource() != null)
+				streamed.incrementAndGet();
+			try {
+				InputStream in = exchange.getRequestPayloadStream();
+				byte[] buffer = new byte[100];
+				int count, size = 0;
+				while ((count = in.read(buffer)) >= 0) {
+					for (int i = 0; i < count; i++)
+						if (buffer[i] != (byte) (size + i)) {
+							exchange.respond(ResponseCode.BAD_REQUEST, "Corrupted at " + (size + i));
+							return;
+						}
+					size += count;
+				}
+				exchange.respond(ResponseCode.CHANGED, String.valueOf(size));
+			} catch (IOException e) {
+				exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR, e.getMessage());
+			}
+		}
+	}
+
+	private static class DownloadResource extends CoapResource {
+
+		private final byte[] image = body(BODY_SIZE);
+
+		private DownloadResource() {
+			super("download");
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			exchange.respond(ResponseCode.CONTENT, new PayloadSource() {
+				@Override
+				public int size() {
+					return image.length;
+				}
+
+				@Override
+				public int read(int position, byte[] buffer, int offset, int length) {
+					int count = Math.max(0, Math.min(length, image.length - position));
+					System.arraycopy(image, position, buffer, offset, count);
+					return count;
+				}
+
+				@Override
+				public void close() { }
+			}, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+		}
+	}
+}
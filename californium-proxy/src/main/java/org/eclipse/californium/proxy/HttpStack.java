@@ -21,10 +21,11 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Exchanger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.apache.http.HttpException;
@@ -37,6 +38,7 @@ import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.client.protocol.RequestAcceptEncoding;
 import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.concurrent.Cancellable;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.EnglishReasonPhraseCatalog;
@@ -68,6 +70,7 @@ import org.apache.http.protocol.ResponseContent;
 import org.apache.http.protocol.ResponseDate;
 import org.apache.http.protocol.ResponseServer;
 
+import org.eclipse.californium.core.Utils;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.config.NetworkConfig;
@@ -75,20 +78,25 @@ import org.eclipse.californium.core.network.config.NetworkConfig;
 
 /**
  * Class encapsulating the logic of a http server. The class create a receiver
- * thread that it is always blocked on the listen primitive. For each connection
- * this thread creates a new thread that handles the client/server dialog.
+ * thread that it is always blocked on the listen primitive. The I/O reactor
+ * translates each http request into a coap request and hands it to the
+ * {@link RequestHandler}. No thread waits for the coap response: the thread
+ * that produces it translates it and submits the http response, or a shared
+ * timer answers with a gateway timeout. The number of pending requests is
+ * bounded by HTTP_SERVER_MAX_PENDING_REQUESTS. {@link #stop()} shuts down the
+ * listener and the timer.
  */
 public class HttpStack {
 	
 	private static final Logger LOGGER = Logger.getLogger(HttpStack.class.getCanonicalName());
 	
-	private static final Response Response_NULL = new Response(null); // instead of Response.NULL // TODO
-	
 	private static final int SOCKET_TIMEOUT = NetworkConfig.getStandard().getInt(
 			NetworkConfig.Keys.HTTP_SERVER_SOCKET_TIMEOUT);
 	private static final int SOCKET_BUFFER_SIZE = NetworkConfig.getStandard().getInt(
 			NetworkConfig.Keys.HTTP_SERVER_SOCKET_BUFFER_SIZE);
 	private static final int GATEWAY_TIMEOUT = SOCKET_TIMEOUT * 3 / 4;
+	private static final int MAX_PENDING_REQUESTS = NetworkConfig.getStandard().getInt(
+			NetworkConfig.Keys.HTTP_SERVER_MAX_PENDING_REQUESTS);
 	private static final String SERVER_NAME = "Californium Http Proxy";
 	
 	/**
@@ -107,9 +115,17 @@ public class HttpStack {
 	 */
 	public static final String LOCAL_RESOURCE_NAME = "local";
 
-	private final ConcurrentHashMap<Request, Exchanger<Response>> exchangeMap = new ConcurrentHashMap<Request, Exchanger<Response>>();
+	private final ConcurrentHashMap<Request, PendingRequest> pendingRequests = new ConcurrentHashMap<Request, PendingRequest>();
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	
+	/** The gateway timeouts of all pending requests */
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new Utils.DaemonThreadFactory());
+
+	/** The reactor of the http listener, null if it could not be created */
+	private volatile ListeningIOReactor reactor;
 
 	private RequestHandler requestHandler;
+	private volatile int maxPendingRequests = MAX_PENDING_REQUESTS;
 	
 	/**
 	 * Instantiates a new http stack on the requested port. It creates an http
@@ -125,7 +141,23 @@ public class HttpStack {
 	}
 
 	/**
-	 * Checks if a thread is waiting for the arrive of a specific response.
+	 * Stops the http listener and the gateway timer. Requests that still wait
+	 * for a coap response are not answered anymore.
+	 */
+	public void stop() {
+		timer.shutdownNow();
+		ListeningIOReactor reactor = this.reactor;
+		if (reactor != null) {
+			try {
+				reactor.shutdown();
+			} catch (IOException e) {
+				LOGGER.warning("Failed to shut down the http listener: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Checks if a http request is waiting for the arrive of a specific response.
 	 * 
 	 * @param request
 	 *            the request
@@ -155,7 +187,7 @@ public class HttpStack {
 		// return responseMap.containsKey(request) &&
 		// semaphoreMap.containsKey(request);
 
-		return exchangeMap.containsKey(request);
+		return pendingRequests.containsKey(request);
 	}
 
 	/**
@@ -185,39 +217,30 @@ public class HttpStack {
 //		if (Bench_Help.DO_LOG) 
 			LOGGER.fine("Handling response for request: " + request);
 
-		// fill the exchanger with the incoming response
-		Exchanger<Response> exchanger = exchangeMap.get(request);
-		if (exchanger != null) {
-			try {
-				exchanger.exchange(response);
-//				if (Bench_Help.DO_LOG) 
-					LOGGER.info("Exchanged correctly");
-			} catch (InterruptedException e) {
-				LOGGER.log(Level.WARNING, "Exchange interrupted", e);
-
-				// remove the entry from the map
-				exchangeMap.remove(request);
-				return;
-			}
+		// answer the http request on this thread
+		PendingRequest pending = pendingRequests.get(request);
+		if (pending != null) {
+			pending.respond(response);
 		} else {
-			LOGGER.warning("exchanger was null for request "+request+" with hash "+request.hashCode());
+			LOGGER.warning("No pending http request for request "+request+" with hash "+request.hashCode());
 		}
 	}
 
 	/**
-	 * The Class CoapResponseWorker. This thread waits a response from the lower
-	 * layers. It is the consumer of the producer/consumer pattern.
+	 * The Class PendingRequest links a coap request to the http exchange that
+	 * waits for its response. The request completes exactly once, either with
+	 * the coap response, when the gateway timeout expires, or when the http
+	 * client cancels the exchange.
 	 */
-	private final class CoapResponseWorker extends Thread {
+	private final class PendingRequest implements Runnable {
 		private final HttpAsyncExchange httpExchange;
 		private final HttpRequest httpRequest;
 		private final Request coapRequest;
+		private volatile ScheduledFuture<?> timeout;
 
 		/**
-		 * Instantiates a new coap response worker.
+		 * Instantiates a new pending request.
 		 * 
-		 * @param name
-		 *            the name
 		 * @param coapRequest
 		 *            the coap request
 		 * @param httpExchange
@@ -225,50 +248,22 @@ public class HttpStack {
 		 * @param httpRequest
 		 *            the http request
 		 */
-		public CoapResponseWorker(String name, Request coapRequest, HttpAsyncExchange httpExchange, HttpRequest httpRequest) {
-			super(name);
+		public PendingRequest(Request coapRequest, HttpAsyncExchange httpExchange, HttpRequest httpRequest) {
 			this.coapRequest = coapRequest;
 			this.httpExchange = httpExchange;
 			this.httpRequest = httpRequest;
 		}
 
-		/*
-		 * (non-Javadoc)
-		 * @see java.lang.Thread#run()
+		/**
+		 * Translates the coap response and submits it on the http exchange.
+		 * 
+		 * @param coapResponse
+		 *            the coap response
 		 */
-		@Override
-		public void run() {
-			// get the exchanger
-			Exchanger<Response> exchanger = exchangeMap.get(coapRequest);
-
-			// if the map does not contain the key, send an error response
-			if (exchanger == null) {
-				LOGGER.warning("exchanger == null");
-				sendSimpleHttpResponse(httpExchange, HttpStatus.SC_INTERNAL_SERVER_ERROR);
-				return;
-			}
-
-			// get the response
-			Response coapResponse = null;
-			try {
-				coapResponse = exchanger.exchange(Response_NULL, GATEWAY_TIMEOUT, TimeUnit.MILLISECONDS);
-			} catch (TimeoutException e) {
-				LOGGER.warning("Timeout occurred");
-				// send the timeout error message
-				sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_TIMEOUT);
+		private void respond(Response coapResponse) {
+			if (!complete()) {
+				LOGGER.fine("Http request already completed");
 				return;
-			} catch (InterruptedException e) {
-				// if the thread is interrupted, terminate
-				if (isInterrupted()) {
-					LOGGER.warning("Thread interrupted");
-					sendSimpleHttpResponse(httpExchange, HttpStatus.SC_INTERNAL_SERVER_ERROR);
-					return;
-				}
-			} finally {
-				// remove the entry from the map
-				exchangeMap.remove(coapRequest);
-//				if (Bench_Help.DO_LOG) 
-					LOGGER.finer("Entry removed from map");
 			}
 
 			if (coapResponse == null) {
@@ -295,6 +290,46 @@ public class HttpStack {
 			// send the response
 			httpExchange.submitResponse();
 		}
+
+		/*
+		 * The gateway timeout has expired.
+		 */
+		@Override
+		public void run() {
+			if (complete()) {
+				LOGGER.warning("Timeout occurred");
+				// send the timeout error message
+				sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_TIMEOUT);
+			}
+		}
+
+		/*
+		 * The http client has closed the connection.
+		 */
+		private void abort() {
+			if (complete()) {
+				LOGGER.fine("Http request cancelled");
+				coapRequest.cancel();
+			}
+		}
+
+		/*
+		 * Removes the entry from the map and frees its slot. Only the first
+		 * caller succeeds.
+		 */
+		private boolean complete() {
+			if (!pendingRequests.remove(coapRequest, this))
+				return false;
+			pendingCount.decrementAndGet();
+			// a timeout that is not scheduled yet finds the entry removed
+			ScheduledFuture<?> timeout = this.timeout;
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+//			if (Bench_Help.DO_LOG) 
+				LOGGER.finer("Entry removed from map");
+			return true;
+		}
 	}
 
 	private class HttpServer {
@@ -337,6 +372,7 @@ public class HttpStack {
 				// Listen of the given port
 				LOGGER.info("HttpStack listening on port "+httpPort);
 				ioReactor.listen(new InetSocketAddress(httpPort));
+				reactor = ioReactor;
 
 				// create the listener thread
 				Thread listener = new Thread("HttpStack listener") {
@@ -433,23 +469,35 @@ public class HttpStack {
 //					if (Bench_Help.DO_LOG) 
 						LOGGER.info("Received HTTP request and translate to "+coapRequest);
 
-					// fill the maps
-					exchangeMap.put(coapRequest, new Exchanger<Response>());
-//					if (Bench_Help.DO_LOG) 
-						LOGGER.finer("Fill exchange with: " + coapRequest+" with hash="+coapRequest.hashCode());
-
-					// the new thread will wait for the completion of
-					// the coap request
-					Thread worker = new CoapResponseWorker("HttpStack Worker", coapRequest, httpExchange, httpRequest);
+					// bound the number of requests waiting for a response
+					if (pendingCount.incrementAndGet() > maxPendingRequests) {
+						pendingCount.decrementAndGet();
+						LOGGER.warning("Too many pending requests, rejecting " + httpRequest.getRequestLine());
+						sendSimpleHttpResponse(httpExchange, HttpStatus.SC_SERVICE_UNAVAILABLE);
+						return;
+					}
 
-					// starting the "consumer thread" that will sleep waiting
-					// for the producer
-					worker.start();
+					// fill the map before the response can arrive
+					final PendingRequest pending = new PendingRequest(coapRequest, httpExchange, httpRequest);
+					pendingRequests.put(coapRequest, pending);
 //					if (Bench_Help.DO_LOG) 
-						LOGGER.finer("Started thread 'httpStack worker' to wait the response");
+						LOGGER.finer("Fill exchange with: " + coapRequest+" with hash="+coapRequest.hashCode());
+					httpExchange.setCallback(new Cancellable() {
+						@Override
+						public boolean cancel() {
+							pending.abort();
+							return true;
+						}
+					});
+					pending.timeout = timer.schedule(pending, GATEWAY_TIMEOUT, TimeUnit.MILLISECONDS);
 
 					// send the coap request to the upper layers
-					doReceiveMessage(coapRequest);
+					try {
+						doReceiveMessage(coapRequest);
+					} catch (RuntimeException e) {
+						pending.complete();
+						throw e;
+					}
 				} catch (InvalidMethodException e) {
 					LOGGER.warning("Method not implemented" + e.getMessage());
 					sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_WRONG_METHOD);
@@ -497,4 +545,17 @@ public class HttpStack {
 		this.requestHandler = requestHandler;
 	}
 
+	/**
+	 * Sets the number of http requests that may wait for a coap response at
+	 * the same time, overriding HTTP_SERVER_MAX_PENDING_REQUESTS. Further
+	 * requests are answered with 503.
+	 *
+	 * @param max the maximum number of pending requests
+	 */
+	public void setMaxPendingRequests(int max) {
+		if (max <= 0)
+			throw new IllegalArgumentException("Max pending requests must be positive but is " + max);
+		this.maxPendingRequests = max;
+	}
+
 }
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,7 +33,9 @@ import org.eclipse.californium.core.coap.Response;
 import org.eclipse.californium.core.network.Exchange;
 import org.eclipse.californium.core.network.Exchange.Origin;
 import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.proxy.resources.ForwardingResource;
 import org.eclipse.californium.proxy.resources.ProxyCacheResource;
+import org.eclipse.californium.proxy.resources.ProxyCoapClientResource;
 import org.eclipse.californium.proxy.resources.StatsResource;
 
 
@@ -86,6 +89,8 @@ public class ProxyHttpServer {
 		
 		LOGGER.info("ProxyEndpoint handles request "+request);
 		
+		// only the responses to forwarded requests pass the cache
+		final AtomicBoolean forwarded = new AtomicBoolean();
 		Exchange exchange = new Exchange(request, Origin.REMOTE) {
 			@Override public void sendResponse(Response response) {
 				// Redirect the response to the HttpStack instead of a normal
@@ -94,7 +99,8 @@ public class ProxyHttpServer {
 				// redirect the responses a little more elegantly.
 				try {
 					request.setResponse(response);
-					responseProduced(request, response);
+					if (forwarded.get())
+						response = responseProduced(request, response);
 					httpStack.doSendResponse(request, response);
 				} catch (Exception e) {
 					LOGGER.log(Level.WARNING, "Exception while responding to Http request", e);
@@ -136,10 +142,17 @@ public class ProxyHttpServer {
 					LOGGER.warning(String.format("Proxy-uri malformed: %s", request.getOptions().getProxyUri()));
 
 					exchange.sendResponse(new Response(ResponseCode.BAD_OPTION));
+					return;
 				}
 			}
 
+			// wait for the response of an identical request
+			if (cacheResource.joinPendingRequest(exchange)) {
+				return;
+			}
+
 			// handle the request as usual
+			forwarded.set(true);
 			proxyCoapResolver.forwardRequest(exchange);
 			/*
 			 * Martin:
@@ -183,14 +196,15 @@ public class ProxyHttpServer {
 		
 	}
 
-	protected void responseProduced(Request request, Response response) {
+	protected Response responseProduced(Request request, Response response) {
 		// check if the proxy-uri is defined
 		if (request.getOptions().hasProxyUri()) {
 				LOGGER.info("Cache response");
 			// insert the response in the cache
-			cacheResource.cacheResponse(request, response);
+			return cacheResource.cacheResponse(request, response);
 		} else {
 				LOGGER.info("Do not cache response");
+			return response;
 		}
 	}
 
@@ -200,6 +214,19 @@ public class ProxyHttpServer {
 
 	public void setProxyCoapResolver(ProxyCoAPResolver proxyCoapResolver) {
 		this.proxyCoapResolver = proxyCoapResolver;
+		// the cache observes resources over the same endpoint
+		if (proxyCoapResolver instanceof DirectProxyCoAPResolver) {
+			ForwardingResource resource = ((DirectProxyCoAPResolver) proxyCoapResolver).getProxyCoapClientResource();
+			if (resource instanceof ProxyCoapClientResource)
+				cacheResource.setOutgoingEndpoint(((ProxyCoapClientResource) resource).getOutgoingEndpoint());
+		}
+	}
+
+	/**
+	 * Stops the http stack.
+	 */
+	public void stop() {
+		httpStack.stop();
 	}
 	
 }
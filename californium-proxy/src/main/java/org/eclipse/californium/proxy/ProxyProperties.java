@@ -186,19 +186,47 @@ public class ProxyProperties extends java.util.Properties {
 		// buffer size for the http server
 		set("HTTP_SERVER_SOCKET_BUFFER_SIZE", 8 * 1024);
 
+		// maximum number of http requests waiting for a coap response
+		set("HTTP_SERVER_MAX_PENDING_REQUESTS", 10000);
+
 		// number of threads that are handling the resource dispatching
 		set("THREAD_POOL_SIZE", 10);
 
 		// number of millis to maintain open the http client connection
 		set("HTTP_CLIENT_KEEP_ALIVE", 5000);
 
+		// maximum number of pooled http client connections in total and per
+		// http server
+		set("HTTP_CLIENT_MAX_CONNECTIONS", 100);
+		set("HTTP_CLIENT_MAX_CONNECTIONS_PER_ROUTE", 20);
+
+		// number of millis to connect to an http server or to wait for a
+		// pooled connection, and to wait for data on a connection
+		set("HTTP_CLIENT_CONNECT_TIMEOUT", 10000);
+		set("HTTP_CLIENT_SOCKET_TIMEOUT", 60000);
+
+		// number of millis to wait for the response of a forwarded coap request
+		set("PROXY_COAP_RESPONSE_TIMEOUT", 60000);
+
 		// number of seconds before a cached request becomes available for the
 		// eviction
 		// 60 * 60 * 24 => 1 day
 		set("CACHE_RESPONSE_MAX_AGE", 60 * 60 * 24);
 
-		// number of entries contained in the cache
-		set("CACHE_SIZE", 10000);
+		// number of bytes of the responses contained in the cache
+		set("CACHE_MAX_BYTES", 1024 * 1024);
+
+		// number of requests within the observe period after which the cache
+		// observes a coap resource (0 disables observing)
+		set("CACHE_OBSERVE_THRESHOLD", 10);
+
+		// number of seconds without requests after which the cache stops
+		// observing a coap resource
+		set("CACHE_OBSERVE_PERIOD", 60);
+
+		// maximum number of coap resources that the cache observes at the
+		// same time
+		set("CACHE_OBSERVE_MAX_RELATIONS", 100);
 
 		// the number of notifications until a CON notification will be used
 		set("OBSERVING_REFRESH_INTERVAL", 10);
@@ -26,9 +26,16 @@ import com.google.common.cache.CacheStats;
 public interface CacheResource {
 
 	/**
+	 * Caches the response to the request or updates the cached response.
 	 * 
+	 * @param request
+	 *            the forwarded request
+	 * @param response
+	 *            the response to the forwarded request
+	 * @return the response for the client, which is the cached response if
+	 *         the response has only validated it
 	 */
-	public void cacheResponse(Request request, Response response);
+	public Response cacheResponse(Request request, Response response);
 
 	public CacheStats getCacheStats();
 
@@ -20,62 +20,163 @@ package org.eclipse.californium.proxy.resources;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
 import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.Utils;
+import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
-import org.eclipse.californium.core.coap.OptionNumberRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.proxy.CoapTranslator;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheStats;
-import com.google.common.cache.LoadingCache;
-import com.google.common.primitives.Ints;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
 
 
 /**
  * Resource to handle the caching in the proxy.
+ * <p>
+ * Each cached response is fresh for its own Max-Age. A response without
+ * ETag is removed when it becomes stale. A stale response with ETag stays in
+ * the cache: the next request for it is forwarded with the ETag, and a 2.03
+ * Valid response refreshes the entry, so that the payload is not
+ * transferred again. The size of the cache is bounded by the bytes of the
+ * cached responses. Concurrent requests for a representation that is not
+ * cached wait for the response of the first one.
+ * <p>
+ * A coap resource that is requested often is observed: once it has been
+ * requested a number of times within the observe period, the cache
+ * establishes a single observe relation with the resource and each
+ * notification replaces the cached response. The relation is cancelled when
+ * the resource has not been requested for an observe period.
  */
 public class ProxyCacheResource extends CoapResource implements CacheResource {
-	
+
 	/**
 	 * The time after which an entry is removed. Since it is not possible to set
 	 * the expiration for the single instances, this constant represent the
 	 * upper bound for the cache. The real lifetime will be handled explicitly
 	 * with the max-age option.
 	 */
-	private static final int CACHE_RESPONSE_MAX_AGE = 
+	private static final int CACHE_RESPONSE_MAX_AGE =
 			NetworkConfig.getStandard().getInt(NetworkConfig.Keys.HTTP_CACHE_RESPONSE_MAX_AGE);
 
 	/**
-	 * Maximum size for the cache.
+	 * Maximum size for the cache in bytes.
+	 */
+	private static final long CACHE_MAX_BYTES =
+			NetworkConfig.getStandard().getInt(NetworkConfig.Keys.HTTP_CACHE_MAX_BYTES);
+
+	/**
+	 * Maximum number of responses in the cache if the deprecated
+	 * HTTP_CACHE_SIZE is set, 0 otherwise.
 	 */
-	private static final long CACHE_SIZE = 
+	@SuppressWarnings("deprecation")
+	private static final long CACHE_MAX_ENTRIES =
+			NetworkConfig.getStandard().getString(NetworkConfig.Keys.HTTP_CACHE_SIZE) == null ? 0 :
 			NetworkConfig.getStandard().getInt(NetworkConfig.Keys.HTTP_CACHE_SIZE);
 
+	/**
+	 * The time after which a request that others wait for is considered lost
+	 * and the waiting requests are answered with 5.04 (Gateway Timeout).
+	 */
+	private static final long PENDING_TIMEOUT =
+			NetworkConfig.getStandard().getLong(NetworkConfig.Keys.PROXY_COAP_RESPONSE_TIMEOUT);
+
+	/**
+	 * The number of requests within the observe period after which a coap
+	 * resource is observed. Zero disables observing.
+	 */
+	private static final int OBSERVE_THRESHOLD =
+			NetworkConfig.getStandard().getInt(NetworkConfig.Keys.HTTP_CACHE_OBSERVE_THRESHOLD);
+
+	/**
+	 * The time in seconds in which the requests for a resource are counted
+	 * and after which an unused observe relation is cancelled.
+	 */
+	private static final int OBSERVE_PERIOD =
+			NetworkConfig.getStandard().getInt(NetworkConfig.Keys.HTTP_CACHE_OBSERVE_PERIOD);
+
+	/** The maximum number of resources that are observed at the same time. */
+	private static final int OBSERVE_MAX_RELATIONS =
+			NetworkConfig.getStandard().getInt(NetworkConfig.Keys.HTTP_CACHE_OBSERVE_MAX_RELATIONS);
+
+	/** The maximum number of resources whose requests are counted. */
+	private static final int MAX_COUNTED_RESOURCES = 1000;
+
+	/** The estimated size of a cache entry without its payload and URI. */
+	private static final int ENTRY_OVERHEAD = 128;
+
+	/**
+	 * The timer that removes the entries when their Max-Age has elapsed. It
+	 * is shared by all caches and runs on a daemon thread.
+	 */
+	private static final ScheduledExecutorService EXPIRY_TIMER =
+			Executors.newSingleThreadScheduledExecutor(new Utils.DaemonThreadFactory());
+
 	/**
 	 * The cache. http://code.google.com/p/guava-libraries/wiki/CachesExplained
 	 */
-	private final LoadingCache<CacheKey, Response> responseCache;
+	private final Cache<CacheKey, CacheEntry> responseCache;
+
+	/** The stale entries that forwarded requests revalidate. */
+	private final Cache<Request, CacheEntry> revalidations = CacheBuilder.newBuilder().weakKeys().build();
+
+	/** The forwarded requests that further identical requests wait for. */
+	private final ConcurrentMap<CacheKey, PendingRequest> pendingRequests = new ConcurrentHashMap<CacheKey, PendingRequest>();
+
+	/** The number of requests for the resources in the current period. */
+	private final Cache<CacheKey, AtomicInteger> requestCounts = CacheBuilder.newBuilder()
+			.maximumSize(MAX_COUNTED_RESOURCES).expireAfterWrite(OBSERVE_PERIOD, TimeUnit.SECONDS).build();
+
+	/** The observed resources. */
+	private final ConcurrentMap<CacheKey, Observation> observations = new ConcurrentHashMap<CacheKey, Observation>();
 
 	private boolean enabled = false;
 
+	/** The time in ms after which a request that others wait for is lost */
+	private volatile long pendingTimeout = PENDING_TIMEOUT;
+
+	private volatile int observeThreshold = OBSERVE_THRESHOLD;
+	private volatile int observePeriod = OBSERVE_PERIOD;
+	private volatile int maxObservations = OBSERVE_MAX_RELATIONS;
+
+	/** The endpoint for the observe requests or null for the default one */
+	private volatile Endpoint outgoingEndpoint;
+
 	/**
 	 * Instantiates a new proxy cache resource.
 	 */
 	public ProxyCacheResource() {
 		this(false);
 	}
-	
+
 	/**
 	 * Instantiates a new proxy cache resource.
 	 */
@@ -84,26 +185,30 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 		this.enabled = enabled;
 
 		// builds a new cache that:
-		// - has a limited size of CACHE_SIZE entries
+		// - has a limited size of CACHE_MAX_BYTES bytes, or of
+		// CACHE_MAX_ENTRIES entries for old configurations
 		// - removes entries after CACHE_RESPONSE_MAX_AGE seconds from the last
 		// write
 		// - record statistics
-		responseCache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).recordStats().expireAfterWrite(CACHE_RESPONSE_MAX_AGE, TimeUnit.SECONDS).build(new CacheLoader<CacheKey, Response>() {
+		RemovalListener<CacheKey, CacheEntry> listener = new RemovalListener<CacheKey, CacheEntry>() {
 			@Override
-			public Response load(CacheKey request) throws NullPointerException {
-				// retreive the response from the incoming request, no
-				// exceptions are thrown
-				Response cachedResponse = request.getResponse();
-
-				// check for null and raise an exception that clients must
-				// handle
-				if (cachedResponse == null) {
-					throw new NullPointerException();
-				}
-
-				return cachedResponse;
+			public void onRemoval(RemovalNotification<CacheKey, CacheEntry> notification) {
+				notification.getValue().expiry.cancel();
 			}
-		});
+		};
+		CacheBuilder<CacheKey, CacheEntry> builder;
+		if (CACHE_MAX_ENTRIES > 0) {
+			LOGGER.warning("HTTP_CACHE_SIZE is deprecated, use HTTP_CACHE_MAX_BYTES");
+			builder = CacheBuilder.newBuilder().maximumSize(CACHE_MAX_ENTRIES).removalListener(listener);
+		} else {
+			builder = CacheBuilder.newBuilder().maximumWeight(CACHE_MAX_BYTES).weigher(new Weigher<CacheKey, CacheEntry>() {
+				@Override
+				public int weigh(CacheKey key, CacheEntry entry) {
+					return entry.size;
+				}
+			}).removalListener(listener);
+		}
+		responseCache = builder.recordStats().expireAfterWrite(CACHE_RESPONSE_MAX_AGE, TimeUnit.SECONDS).build();
 	}
 
 	/**
@@ -114,71 +219,70 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 	 * the response with the max-age option provided. In case of 2.05 it creates
 	 * the key and caches the response if the max-age option is higher than
 	 * zero.
+	 * <p>
+	 * If the request has revalidated a stale response that the client does
+	 * not know, the 2.03 response is replaced with the refreshed response.
+	 * The requests that wait for the request receive a copy of the response.
 	 */
 	@Override
-	public void cacheResponse(Request request, Response response) {
+	public Response cacheResponse(Request request, Response response) {
+		long now = System.nanoTime();
+		CacheEntry revalidated = revalidations.asMap().remove(request);
+		if (revalidated != null) {
+			// the client has not sent the etag
+			request.getOptions().removeETag(revalidated.getETag());
+			if (response.getCode() == ResponseCode.VALID) {
+				LOGGER.finer("Revalidated cached response");
+				CacheEntry refreshed = revalidated.refresh(response, now);
+				responseCache.asMap().replace(revalidated.key, revalidated, refreshed);
+				response = refreshed.getResponse(now);
+				completePendingRequest(request, response);
+				return response;
+			}
+		}
+
+		completePendingRequest(request, response);
+
 		// enable or disable the caching (debug purposes)
 		if (!enabled) {
-			return;
+			return response;
 		}
 
 		// only the response with success codes should be cached
 		ResponseCode code = response.getCode();
 		if (ResponseCode.isSuccess(code)) {
-			// get the request
-//			Request request = response.getRequest();
-			CacheKey cacheKey = null;
-			try {
-				cacheKey = CacheKey.fromContentTypeOption(request);
-			} catch (URISyntaxException e) {
-				LOGGER.warning("Cannot create the cache key: " + e.getMessage());
-			}
-
 			if (code == ResponseCode.CREATED || code == ResponseCode.DELETED || code == ResponseCode.CHANGED) {
 				// the stored response should be invalidated if the response has
 				// codes: 2.01, 2.02, 2.04.
-				invalidateRequest(cacheKey);
+				invalidateRequest(request);
 			} else if (code == ResponseCode.VALID) {
-				// increase the max-age value according to the new response
-//				Option maxAgeOption = response.getFirstOption(OptionNumberRegistry.MAX_AGE);
-				Long maxAgeOption = response.getOptions().getMaxAge();
-				if (maxAgeOption != null) {
-					// get the cached response
-					Response cachedResponse = responseCache.getUnchecked(cacheKey);
-
-					// calculate the new parameters
-					long newCurrentTime = response.getTimestamp();
-					long newMaxAge = maxAgeOption.longValue();
-
-					// set the new parameters
-					cachedResponse.getOptions().setMaxAge(newMaxAge);
-					cachedResponse.setTimestamp(newCurrentTime);
-
-					LOGGER.finer("Updated cached response");
-				} else {
-					LOGGER.warning("No max-age option set in response: " + response);
+				// increase the max-age value of the cached response with the
+				// validated etag according to the new response
+				if (revalidated == null && response.getOptions().getETagCount() > 0) {
+					byte[] etag = response.getOptions().getETags().get(0);
+					try {
+						for (CacheKey cacheKey : CacheKey.fromAcceptOptions(request)) {
+							CacheEntry entry = responseCache.getIfPresent(cacheKey);
+							if (entry != null && Arrays.equals(etag, entry.getETag())) {
+								responseCache.asMap().replace(cacheKey, entry, entry.refresh(response, now));
+								LOGGER.finer("Updated cached response");
+							}
+						}
+					} catch (URISyntaxException e) {
+						LOGGER.warning("Cannot create the cache key: " + e.getMessage());
+					}
 				}
 			} else if (code == ResponseCode.CONTENT) {
-				// set max-age if not set
-//				Option maxAgeOption = response.getFirstOption(OptionNumberRegistry.MAX_AGE);
-				Long maxAgeOption = response.getOptions().getMaxAge();
-				if (maxAgeOption == null) {
-					response.getOptions().setMaxAge(OptionNumberRegistry.Defaults.MAX_AGE);
-				}
-
-				if (maxAgeOption > 0) {
+				// Max-Age defaults to 60 seconds if not set
+				if (response.getOptions().getMaxAge() > 0 || response.getOptions().getETagCount() > 0) {
 					// cache the request
 					try {
-						// Caches loaded by a CacheLoader will call
-						// CacheLoader.load(K) to load new values into the cache
-						// when used the get method.
-						Response responseInserted = responseCache.get(cacheKey);
-						if (responseInserted != null) {
-//							if (Bench_Help.DO_LOG) 
-								LOGGER.finer("Cached response");
-						} else {
-							LOGGER.warning("Failed to insert the response in the cache");
-						}
+						CacheKey cacheKey = CacheKey.fromContentTypeOption(request, response);
+						CacheEntry entry = new CacheEntry(cacheKey, response, now);
+						responseCache.put(cacheKey, entry);
+						entry.scheduleExpiry();
+//						if (Bench_Help.DO_LOG)
+							LOGGER.finer("Cached response");
 					} catch (Exception e) {
 						// swallow
 						LOGGER.log(Level.WARNING, "Exception while inserting the response in the cache", e);
@@ -193,6 +297,7 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 				LOGGER.severe("Code not recognized: " + code);
 			}
 		}
+		return response;
 	}
 
 	@Override
@@ -204,10 +309,15 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 	 * Retrieves the response in the cache that matches the request passed, null
 	 * otherwise. The method creates the key for the cache starting from the
 	 * request and checks if the cache contains it. If present, the method
-	 * updates the max-age of the linked response to consider the time passed in
-	 * the cache (according to the freshness model) and returns it. On the
-	 * contrary, if the response has passed its expiration time, it is
-	 * invalidated and the method returns null.
+	 * returns a copy of the response with the max-age reduced by the time
+	 * passed in the cache (according to the freshness model). On the
+	 * contrary, if the response has passed its expiration time, the method
+	 * returns null. If the stale response has an etag, the method adds it to
+	 * the request so that forwarding the request revalidates the response;
+	 * otherwise, the response is invalidated.
+	 * <p>
+	 * The request is counted so that frequently requested coap resources are
+	 * observed.
 	 */
 	@Override
 	public Response getResponse(Request request) {
@@ -215,59 +325,171 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 			return null;
 		}
 
+		observeIfHot(request);
+
 		// search the desired representation
-		Response response = null;
-		CacheKey cacheKey = null;
+		CacheEntry entry = null;
 		try {
 			for (CacheKey acceptKey : CacheKey.fromAcceptOptions(request)) {
-				response = responseCache.getIfPresent(acceptKey);
-				cacheKey = acceptKey;
+				entry = responseCache.getIfPresent(acceptKey);
 
-				if (response != null) {
+				if (entry != null) {
 					break;
 				}
 			}
 		} catch (URISyntaxException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			LOGGER.warning("Cannot create the cache key: " + e.getMessage());
 		}
 
 		// if the response is not null, manage the cached response
-		if (response != null) {
-			LOGGER.finer("Cache hit");
-
-			// check if the response is expired
-			long currentTime = System.nanoTime();
-			long nanosLeft = getRemainingLifetime(response, currentTime);
-			if (nanosLeft > 0) {
-				// if the response can be used, then update its max-age to
-				// consider the aging of the response while in the cache
-				response.getOptions().setMaxAge(nanosLeft);
-				// set the current time as the response timestamp
-				response.setTimestamp(currentTime);
-			} else {
-				LOGGER.finer("Expired response");
+		if (entry == null) {
+			return null;
+		}
+		LOGGER.finer("Cache hit");
 
-				// try to validate the response
-				response = validate(cacheKey);
-				if (response != null) {
-					LOGGER.finer("Validation successful");
-				} else {
-					invalidateRequest(cacheKey);
-				}
+		// check if the response is expired
+		long currentTime = System.nanoTime();
+		if (entry.isFresh(currentTime)) {
+			return entry.getResponse(currentTime);
+		}
+
+		LOGGER.finer("Expired response");
+		if (entry.getETag() != null && request.getCode() == Code.GET && request.getOptions().getETagCount() == 0) {
+			// try to validate the response
+			request.getOptions().addETag(entry.getETag());
+			revalidations.put(request, entry);
+		} else {
+			responseCache.asMap().remove(entry.key, entry);
+		}
+		return null;
+	}
+
+	/**
+	 * Lets the exchange wait for the response of an identical request that has
+	 * already been forwarded. If there is no such request, the request of the
+	 * exchange becomes the one that others wait for until its response
+	 * passes {@link #cacheResponse(Request, Response)}.
+	 * <p>
+	 * Requests with their own etags, a block2 option, or an observe option
+	 * are always forwarded on their own, since their responses, e.g., 2.03
+	 * without payload, do not answer plain requests. Only the etag that the
+	 * cache has added to revalidate a stale response is allowed.
+	 *
+	 * @param exchange
+	 *            the exchange of a request that the cache could not answer
+	 * @return true if the exchange waits for another request, false if its
+	 *         request must be forwarded
+	 */
+	public boolean joinPendingRequest(Exchange exchange) {
+		Request request = exchange.getRequest();
+		if (!enabled || request.getCode() != Code.GET || !request.getOptions().hasProxyUri()) {
+			return false;
+		}
+		OptionSet options = request.getOptions();
+		if (options.hasBlock2() || options.hasObserve()
+				|| options.getETagCount() > 0 && !revalidations.asMap().containsKey(request)) {
+			return false;
+		}
+
+		CacheKey key;
+		try {
+			key = CacheKey.fromRequest(request);
+		} catch (URISyntaxException e) {
+			return false;
+		}
+		PendingRequest pending = new PendingRequest(key, request);
+		PendingRequest existing;
+		while ((existing = pendingRequests.putIfAbsent(key, pending)) != null) {
+			if (existing.join(exchange)) {
+				LOGGER.finer("Waiting for pending request");
+				return true;
 			}
+			// the request has completed or got lost in the meantime
+			pendingRequests.remove(key, existing);
 		}
+		// release the waiting requests if the response never arrives
+		pending.schedule(pendingTimeout);
+		return false;
+	}
 
-		return response;
+	/*
+	 * Counts the request and starts observing the resource when it has been
+	 * requested OBSERVE_THRESHOLD times within the observe period, unless
+	 * OBSERVE_MAX_RELATIONS resources are already observed.
+	 */
+	private void observeIfHot(Request request) {
+		if (observeThreshold <= 0 || request.getCode() != Code.GET || !request.getOptions().hasProxyUri()
+				|| request.getOptions().hasObserve()) {
+			return;
+		}
+		String proxyUri = request.getOptions().getProxyUri();
+		if (!proxyUri.regionMatches(true, 0, "coap://", 0, 7)) {
+			return;
+		}
+
+		CacheKey key;
+		try {
+			key = CacheKey.fromRequest(request);
+		} catch (URISyntaxException e) {
+			return;
+		}
+		Observation observation = observations.get(key);
+		if (observation != null) {
+			observation.lastRequest = System.nanoTime();
+			return;
+		}
+
+		AtomicInteger count = requestCounts.asMap().get(key);
+		if (count == null) {
+			count = new AtomicInteger();
+			AtomicInteger existing = requestCounts.asMap().putIfAbsent(key, count);
+			if (existing != null) {
+				count = existing;
+			}
+		}
+		if (count.incrementAndGet() < observeThreshold) {
+			return;
+		}
+		if (observations.size() >= maxObservations) {
+			LOGGER.fine("Not observing " + proxyUri + ", " + maxObservations + " resources are already observed");
+			return;
+		}
+		requestCounts.asMap().remove(key, count);
+
+		observation = new Observation(key, proxyUri, request.getOptions().getAccept());
+		if (observations.putIfAbsent(key, observation) == null) {
+			LOGGER.fine("Observing " + proxyUri);
+			observation.start();
+		}
 	}
-	
+
+	private void completePendingRequest(Request request, Response response) {
+		CacheKey key;
+		try {
+			key = CacheKey.fromRequest(request);
+		} catch (URISyntaxException e) {
+			return;
+		}
+		PendingRequest pending = pendingRequests.get(key);
+		if (pending == null || pending.request != request) {
+			return;
+		}
+		pendingRequests.remove(key, pending);
+		pending.cancel();
+		List<Exchange> exchanges = pending.complete();
+		if (exchanges != null) {
+			for (Exchange exchange : exchanges) {
+				exchange.sendResponse(CoapTranslator.getResponse(response));
+			}
+		}
+	}
+
 	@Override
 	public void invalidateRequest(Request request) {
 		try {
 			invalidateRequest(CacheKey.fromAcceptOptions(request));
 		} catch (URISyntaxException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			LOGGER.warning("Cannot create the cache key: " + e.getMessage());
 		}
 		LOGGER.finer("Invalidated request");
 	}
@@ -285,11 +507,12 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 
 		// get cache values
 		builder.append("\nCached values:\n");
-		for (CacheKey cachedRequest : responseCache.asMap().keySet()) {
-			Response response = responseCache.asMap().get(cachedRequest);
+		long currentTime = System.nanoTime();
+		for (CacheEntry entry : responseCache.asMap().values()) {
+			CacheKey cachedRequest = entry.key;
 
-			builder.append(cachedRequest.getProxyUri().toString() + " (" + 
-					MediaTypeRegistry.toString(cachedRequest.getMediaType()) + ") > " + getRemainingLifetime(response) + " seconds | (" + cachedRequest.getMediaType() + ")\n");
+			builder.append(cachedRequest.getProxyUri().toString() + " (" +
+					MediaTypeRegistry.toString(cachedRequest.getMediaType()) + ") > " + entry.getRemainingLifetime(currentTime) + " seconds | (" + cachedRequest.getMediaType() + ")\n");
 		}
 
 		exchange.respond(ResponseCode.CONTENT, builder.toString());
@@ -302,49 +525,266 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 		exchange.respond(ResponseCode.CHANGED, content);
 	}
 
-	private long getRemainingLifetime(Response response) {
-		return getRemainingLifetime(response, System.nanoTime());
+	private void invalidateRequest(List<CacheKey> cacheKeys) {
+		responseCache.invalidateAll(cacheKeys);
+	}
+
+	/**
+	 * A cached response and the time until which it is fresh. Entries are
+	 * not modified; a revalidation replaces the entry with a new one.
+	 */
+	private final class CacheEntry {
+		private final CacheKey key;
+		private final Response response;
+		private final long received;
+		private final long expires;
+		private final int size;
+		private final Expiry expiry;
+
+		private CacheEntry(CacheKey key, Response response, long received) {
+			this.key = key;
+			this.response = response;
+			this.received = received;
+			this.expires = received + TimeUnit.SECONDS.toNanos(response.getOptions().getMaxAge());
+			this.size = ENTRY_OVERHEAD + response.getPayloadSize() + key.getProxyUri().length();
+			this.expiry = new Expiry(key);
+		}
+
+		/*
+		 * Creates the entry with the freshness of a 2.03 response.
+		 */
+		private CacheEntry refresh(Response valid, long now) {
+			Response refreshed = CoapTranslator.getResponse(response);
+			refreshed.getOptions().setMaxAge(valid.getOptions().getMaxAge());
+			CacheEntry entry = new CacheEntry(key, refreshed, now);
+			entry.scheduleExpiry();
+			return entry;
+		}
+
+		private void scheduleExpiry() {
+			expiry.schedule(TimeUnit.NANOSECONDS.toMillis(expires - received));
+		}
+
+		private boolean isFresh(long now) {
+			return now - expires < 0;
+		}
+
+		private byte[] getETag() {
+			return response.getOptions().getETagCount() > 0 ? response.getOptions().getETags().get(0) : null;
+		}
+
+		/**
+		 * Gets the remaining lifetime of the response in seconds.
+		 */
+		private long getRemainingLifetime(long now) {
+			return Math.max(0, TimeUnit.NANOSECONDS.toSeconds(expires - now));
+		}
+
+		/*
+		 * Copies the response with the max-age reduced by the time that the
+		 * response has spent in the cache.
+		 */
+		private Response getResponse(long now) {
+			Response copy = CoapTranslator.getResponse(response);
+			copy.getOptions().setMaxAge(getRemainingLifetime(now));
+			copy.setTimestamp(now);
+			return copy;
+		}
 	}
 
 	/**
-	 * Method that checks if the lifetime allowed for the response if expired.
-	 * The result is calculated with the initial timestamp (when the response
-	 * has been received) and the max-age option compared against the current
-	 * timestamp. If the max-age option is not specified, it will be assumed the
-	 * default (60 seconds).
-	 * 
-	 * @param response
-	 *            the response
-	 * @param currentTime
-	 * @return true, if is expired
+	 * A task of the expiry timer that can be cancelled once it has been
+	 * scheduled.
 	 */
-	private long getRemainingLifetime(Response response, long currentTime) {
-		// get the timestamp
-		long arriveTime = response.getTimestamp();
-		
-		Long maxAgeOption = response.getOptions().getMaxAge();
-		long oldMaxAge = OptionNumberRegistry.Defaults.MAX_AGE;
-		if (maxAgeOption != null) {
-			oldMaxAge = maxAgeOption.longValue();
-		}
-
-		// calculate the time that the response has spent in the cache
-		double secondsInCache = TimeUnit.NANOSECONDS.toSeconds(currentTime - arriveTime);
-		int cacheTime = Ints.checkedCast(Math.round(secondsInCache));
-		return oldMaxAge - cacheTime;
+	private static abstract class Timeout implements Runnable {
+		private volatile ScheduledFuture<?> future;
+
+		protected void schedule(long delay) {
+			future = EXPIRY_TIMER.schedule(this, delay, TimeUnit.MILLISECONDS);
+		}
+
+		/*
+		 * A timeout cancelled before it has been scheduled still runs, so
+		 * run() must check that it is still current.
+		 */
+		protected void cancel() {
+			ScheduledFuture<?> future = this.future;
+			if (future != null) {
+				future.cancel(false);
+			}
+		}
 	}
 
-	private void invalidateRequest(CacheKey cacheKey) {
-		responseCache.invalidate(cacheKey);
+	/**
+	 * Removes a response without etag when it becomes stale. The expiry does
+	 * not reference the entry, so that an evicted entry is not retained until
+	 * its expiry has passed.
+	 */
+	private final class Expiry extends Timeout {
+		private final CacheKey key;
+
+		private Expiry(CacheKey key) {
+			this.key = key;
+		}
+
+		@Override
+		public void run() {
+			CacheEntry entry = responseCache.getIfPresent(key);
+			if (entry != null && entry.expiry == this && entry.getETag() == null) {
+				responseCache.asMap().remove(key, entry);
+			}
+		}
 	}
 
-	private void invalidateRequest(List<CacheKey> cacheKeys) {
-		responseCache.invalidateAll(cacheKeys);
+	/**
+	 * An observe relation with a frequently requested resource whose
+	 * notifications replace the cached response.
+	 */
+	private final class Observation implements CoapHandler {
+		private final CacheKey key;
+		private final String uri;
+		private final int accept;
+
+		/** The time of the last request for the resource */
+		private volatile long lastRequest = System.nanoTime();
+		private volatile CoapObserveRelation relation;
+		private volatile boolean stopped;
+
+		private Observation(CacheKey key, String uri, int accept) {
+			this.key = key;
+			this.uri = uri;
+			this.accept = accept;
+		}
+
+		private void start() {
+			CoapClient client = new CoapClient(uri);
+			Endpoint endpoint = outgoingEndpoint;
+			if (endpoint != null) {
+				client.setEndpoint(endpoint);
+			}
+			relation = accept == MediaTypeRegistry.UNDEFINED ? client.observe(this) : client.observe(this, accept);
+			if (stopped) {
+				relation.reactiveCancel();
+			}
+			scheduleIdleCheck(TimeUnit.SECONDS.toMillis(observePeriod));
+		}
+
+		/*
+		 * Forgets the relation if the resource cannot be observed. The
+		 * observation stays registered until the idle check, so that the
+		 * resource is not observed again immediately.
+		 */
+		private void stop() {
+			stopped = true;
+			CoapObserveRelation relation = this.relation;
+			if (relation != null && !relation.isCanceled()) {
+				relation.reactiveCancel();
+			}
+		}
+
+		@Override
+		public void onLoad(CoapResponse coapResponse) {
+			Response notification = coapResponse.advanced();
+			if (stopped) {
+				return;
+			}
+			if (notification.getCode() != ResponseCode.CONTENT || !notification.getOptions().hasObserve()) {
+				LOGGER.fine("Cannot observe " + uri + ": " + notification.getCode());
+				stop();
+				return;
+			}
+			if (!enabled) {
+				return;
+			}
+
+			Response response = CoapTranslator.getResponse(notification);
+			response.getOptions().removeObserve();
+			int mediaType = response.getOptions().getContentFormat();
+			if (mediaType == MediaTypeRegistry.UNDEFINED) {
+				mediaType = MediaTypeRegistry.TEXT_PLAIN;
+			}
+			CacheKey cacheKey = new CacheKey(key.proxyUri, mediaType, key.payload);
+			CacheEntry entry = new CacheEntry(cacheKey, response, System.nanoTime());
+			responseCache.put(cacheKey, entry);
+			entry.scheduleExpiry();
+			LOGGER.finer("Cached notification");
+		}
+
+		@Override
+		public void onError() {
+			LOGGER.fine("Observing " + uri + " failed");
+			stop();
+		}
+
+		private void scheduleIdleCheck(long delay) {
+			EXPIRY_TIMER.schedule(new Runnable() {
+				@Override
+				public void run() {
+					long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRequest);
+					long period = TimeUnit.SECONDS.toMillis(observePeriod);
+					if (idle < period) {
+						scheduleIdleCheck(period - idle);
+						return;
+					}
+					observations.remove(key, Observation.this);
+					if (!stopped) {
+						LOGGER.fine("Cancelling observation of " + uri);
+						stopped = true;
+						relation.proactiveCancel();
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
 	}
 
-	private Response validate(CacheKey cachedRequest) {
-		// TODO
-		return null;
+	/**
+	 * A forwarded request and the exchanges that wait for its response. If
+	 * the response does not arrive within the pending timeout, e.g., because
+	 * the forwarded exchange has failed without a response, the timeout
+	 * removes the request and answers the waiting exchanges with 5.04
+	 * (Gateway Timeout).
+	 */
+	private final class PendingRequest extends Timeout {
+		private final CacheKey key;
+		private final Request request;
+		private final long started = System.nanoTime();
+
+		/** The waiting exchanges, null when completed; guarded by this */
+		private List<Exchange> exchanges = new ArrayList<Exchange>(2);
+
+		private PendingRequest(CacheKey key, Request request) {
+			this.key = key;
+			this.request = request;
+		}
+
+		@Override
+		public void run() {
+			pendingRequests.remove(key, this);
+			List<Exchange> exchanges = complete();
+			if (exchanges != null && !exchanges.isEmpty()) {
+				LOGGER.fine("No response for " + exchanges.size() + " waiting requests");
+				for (Exchange exchange : exchanges) {
+					exchange.sendResponse(new Response(ResponseCode.GATEWAY_TIMEOUT));
+				}
+			}
+		}
+
+		/*
+		 * Adds the exchange unless the request has completed or got lost.
+		 */
+		private synchronized boolean join(Exchange exchange) {
+			if (exchanges == null || System.nanoTime() - started > TimeUnit.MILLISECONDS.toNanos(pendingTimeout)) {
+				return false;
+			}
+			exchanges.add(exchange);
+			return true;
+		}
+
+		private synchronized List<Exchange> complete() {
+			List<Exchange> exchanges = this.exchanges;
+			this.exchanges = null;
+			return exchanges;
+		}
 	}
 
 	/**
@@ -354,9 +794,9 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 	 * that with or without the accept options produce the same response).
 	 */
 	private static final class CacheKey {
+
 		private final String proxyUri;
 		private final int mediaType;
-		private Response response;
 		private final byte[] payload;
 
 		/**
@@ -365,7 +805,7 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 		 * wildcards in the cache (text/* means: text/plain, text/html,
 		 * text/xml, text/csv, etc.). If the accept option is not set, it simply
 		 * gives back the keys for every representation.
-		 * 
+		 *
 		 * @param request
 		 * @return
 		 * @throws URISyntaxException
@@ -376,19 +816,12 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 			}
 
 			List<CacheKey> cacheKeys = new LinkedList<ProxyCacheResource.CacheKey>();
-			String proxyUri = request.getOptions().getProxyUri();
-			try {
-				proxyUri = URLEncoder.encode(proxyUri, "ISO-8859-1");
-			} catch (UnsupportedEncodingException e) {
-				LOGGER.warning("ISO-8859-1 do not support this encoding: " + e.getMessage());
-				throw new URISyntaxException("ISO-8859-1 do not support this encoding", e.getMessage());
-			}
+			String proxyUri = encode(request.getOptions().getProxyUri());
 			byte[] payload = request.getPayload();
-			
+
 			// Implementation in new Cf (Only one accept option allowed)
-			Integer accept = request.getOptions().getAccept();
-			if (accept != null) {
-				int mediaType = accept.intValue();
+			if (request.getOptions().hasAccept()) {
+				int mediaType = request.getOptions().getAccept();
 				CacheKey cacheKey = new CacheKey(proxyUri, mediaType, payload);
 				cacheKeys.add(cacheKey);
 			} else {
@@ -406,32 +839,49 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 		/**
 		 * Create a key for the cache starting from a request and the
 		 * content-type of the corresponding response.
-		 * 
+		 *
 		 * @param request
+		 * @param response
 		 * @return
 		 * @throws URISyntaxException
 		 */
-		private static CacheKey fromContentTypeOption(Request request) throws URISyntaxException {
+		private static CacheKey fromContentTypeOption(Request request, Response response) throws URISyntaxException {
 			if (request == null) {
 				throw new IllegalArgumentException("request == null");
 			}
 
-			Response response = request.getResponse();
-			if (response == null) {
-				return fromAcceptOptions(request).get(0);
-			}
-
-			String proxyUri = request.getOptions().getProxyUri();
-			Integer mediaType = response.getOptions().getContentFormat();
-			if (mediaType == null) 
+			String proxyUri = encode(request.getOptions().getProxyUri());
+			int mediaType = response.getOptions().getContentFormat();
+			if (mediaType == MediaTypeRegistry.UNDEFINED)
 				mediaType = MediaTypeRegistry.TEXT_PLAIN;
 			byte[] payload = request.getPayload();
 
 			// create the new cacheKey
-			CacheKey cacheKey = new CacheKey(proxyUri, mediaType, payload);
-			cacheKey.setResponse(response);
+			return new CacheKey(proxyUri, mediaType, payload);
+		}
 
-			return cacheKey;
+		/**
+		 * Create a key that identifies identical requests, i.e., with the
+		 * same accept option or without one.
+		 *
+		 * @param request
+		 * @return
+		 * @throws URISyntaxException
+		 */
+		private static CacheKey fromRequest(Request request) throws URISyntaxException {
+			String proxyUri = encode(request.getOptions().getProxyUri());
+			// the media type is undefined without accept option
+			int mediaType = request.getOptions().getAccept();
+			return new CacheKey(proxyUri, mediaType, request.getPayload());
+		}
+
+		private static String encode(String proxyUri) throws URISyntaxException {
+			try {
+				return URLEncoder.encode(proxyUri, "ISO-8859-1");
+			} catch (UnsupportedEncodingException e) {
+				LOGGER.warning("ISO-8859-1 do not support this encoding: " + e.getMessage());
+				throw new URISyntaxException("ISO-8859-1 do not support this encoding", e.getMessage());
+			}
 		}
 
 		public CacheKey(String proxyUri, int mediaType, byte[] payload) {
@@ -486,13 +936,6 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 			return proxyUri;
 		}
 
-		/**
-		 * @return the response
-		 */
-		public Response getResponse() {
-			return response;
-		}
-
 		/*
 		 * (non-Javadoc)
 		 * @see java.lang.Object#hashCode()
@@ -506,11 +949,6 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 			result = prime * result + (proxyUri == null ? 0 : proxyUri.hashCode());
 			return result;
 		}
-
-		private void setResponse(Response response) {
-			this.response = response;
-
-		}
 	}
 
 	public boolean isEnabled() {
@@ -520,4 +958,47 @@ public class ProxyCacheResource extends CoapResource implements CacheResource {
 	public void setEnabled(boolean enabled) {
 		this.enabled = enabled;
 	}
+
+	/**
+	 * Sets the time after which a forwarded request that others wait for is
+	 * considered lost, overriding PROXY_COAP_RESPONSE_TIMEOUT.
+	 *
+	 * @param timeout the timeout in ms
+	 */
+	public void setPendingTimeout(long timeout) {
+		if (timeout <= 0)
+			throw new IllegalArgumentException("Pending timeout must be positive but is " + timeout);
+		this.pendingTimeout = timeout;
+	}
+
+	/**
+	 * Sets the endpoint over which the cache observes coap resources, e.g.,
+	 * the outgoing endpoint of the {@link ProxyCoapClientResource}. Without
+	 * an endpoint, the default endpoint is used.
+	 *
+	 * @param endpoint the endpoint or null
+	 */
+	public void setOutgoingEndpoint(Endpoint endpoint) {
+		this.outgoingEndpoint = endpoint;
+	}
+
+	/**
+	 * Sets when the cache observes coap resources, overriding
+	 * HTTP_CACHE_OBSERVE_THRESHOLD, HTTP_CACHE_OBSERVE_PERIOD, and
+	 * HTTP_CACHE_OBSERVE_MAX_RELATIONS. The period applies to relations that
+	 * are established afterwards.
+	 *
+	 * @param threshold the number of requests after which a resource is
+	 *            observed or 0 to disable observing
+	 * @param period the time in seconds without requests after which a
+	 *            relation is cancelled
+	 * @param maxRelations the maximum number of observed resources
+	 */
+	public void setObservePolicy(int threshold, int period, int maxRelations) {
+		if (threshold < 0 || period <= 0 || maxRelations < 0)
+			throw new IllegalArgumentException("Invalid observe policy " + threshold + ", " + period + "s, " + maxRelations);
+		this.observeThreshold = threshold;
+		this.observePeriod = period;
+		this.maxObservations = maxRelations;
+	}
 }
@@ -17,9 +17,24 @@
  ******************************************************************************/
 package org.eclipse.californium.proxy.resources;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MessageObserverAdapter;
+import org.eclipse.californium.core.coap.Option;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.proxy.CoapTranslator;
 import org.eclipse.californium.proxy.TranslationException;
 
@@ -27,81 +42,367 @@ import org.eclipse.californium.proxy.TranslationException;
 /**
  * Resource that forwards a coap request with the proxy-uri option set to the
  * desired coap server.
+ * <p>
+ * The resource accepts the incoming exchange, sends the translated request
+ * over its own outgoing endpoint, and responds from the message observer of
+ * the outgoing request. No thread waits for the coap server. If the server
+ * does not respond within the response timeout of its address, the resource
+ * responds with {@link CoapTranslator#STATUS_TIMEOUT}. Concurrent GET
+ * requests for the same target and options share one outgoing request.
+ * <p>
+ * A resource that creates its own endpoint starts it right away and
+ * destroys it in {@link #destroy()}, which the application calls when the
+ * proxy stops. An endpoint that is passed in belongs to the caller.
  */
 public class ProxyCoapClientResource extends ForwardingResource {
-	
+
+	/** The endpoint that sends the forwarded requests. */
+	private final Endpoint outgoingEndpoint;
+
+	/** Indicates whether the resource has created the endpoint. */
+	private final boolean ownsEndpoint;
+
+	/** The response timeout for addresses without a specific timeout. */
+	private volatile long responseTimeout = NetworkConfig.getStandard().getLong(
+			NetworkConfig.Keys.PROXY_COAP_RESPONSE_TIMEOUT);
+
+	/** The response timeouts of specific addresses. */
+	private final ConcurrentHashMap<InetSocketAddress, Long> responseTimeouts = new ConcurrentHashMap<InetSocketAddress, Long>();
+
+	/** The outgoing GET requests that further identical requests join. */
+	private final ConcurrentHashMap<ForwardKey, Forward> pendingForwards = new ConcurrentHashMap<ForwardKey, Forward>();
+
 	public ProxyCoapClientResource() {
 		this("coapClient");
-	} 
-	
+	}
+
 	public ProxyCoapClientResource(String name) {
+		this(name, new CoAPEndpoint(0), true);
+		try {
+			startOutgoingEndpoint();
+		} catch (IOException e) {
+			// the first forwarded request tries again
+			LOGGER.warning("Cannot start outgoing endpoint of " + name + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Instantiates a new resource that forwards the requests over the
+	 * specified endpoint. The resource starts the endpoint if necessary.
+	 *
+	 * @param name the name of the resource
+	 * @param outgoingEndpoint the endpoint for the forwarded requests
+	 */
+	public ProxyCoapClientResource(String name, Endpoint outgoingEndpoint) {
+		this(name, outgoingEndpoint, false);
+	}
+
+	private ProxyCoapClientResource(String name, Endpoint outgoingEndpoint, boolean ownsEndpoint) {
 		// set the resource hidden
 		super(name, true);
 		getAttributes().setTitle("Forward the requests to a CoAP server.");
+		this.outgoingEndpoint = outgoingEndpoint;
+		this.ownsEndpoint = ownsEndpoint;
+	}
+
+	/**
+	 * Cancels the pending GET requests, which are answered with 5.00
+	 * (Internal Server Error), and destroys the outgoing endpoint if this
+	 * resource has created it.
+	 */
+	public void destroy() {
+		for (Forward forward:pendingForwards.values())
+			forward.request.cancel();
+		if (ownsEndpoint) {
+			LOGGER.info("Destroying outgoing endpoint of " + getName());
+			outgoingEndpoint.destroy();
+		}
+	}
+
+	/**
+	 * Gets the endpoint that sends the forwarded requests.
+	 *
+	 * @return the outgoing endpoint
+	 */
+	public Endpoint getOutgoingEndpoint() {
+		return outgoingEndpoint;
+	}
+
+	/**
+	 * Sets the response timeout for addresses without a specific timeout.
+	 *
+	 * @param timeout the response timeout in ms
+	 */
+	public void setResponseTimeout(long timeout) {
+		if (timeout <= 0)
+			throw new IllegalArgumentException("Response timeout must be positive but is " + timeout);
+		this.responseTimeout = timeout;
 	}
 
+	/**
+	 * Sets the response timeout for the coap server at the specified address.
+	 *
+	 * @param address the address of the coap server
+	 * @param timeout the response timeout in ms or 0 to use the default
+	 */
+	public void setResponseTimeout(InetSocketAddress address, long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Response timeout must not be negative but is " + timeout);
+		if (timeout == 0)
+			responseTimeouts.remove(address);
+		else
+			responseTimeouts.put(address, timeout);
+	}
+
+	/**
+	 * Gets the response timeout for the coap server at the specified address.
+	 *
+	 * @param address the address of the coap server
+	 * @return the response timeout in ms
+	 */
+	public long getResponseTimeout(InetSocketAddress address) {
+		Long timeout = responseTimeouts.get(address);
+		return timeout != null ? timeout : responseTimeout;
+	}
+
+	/**
+	 * Forwards the request and responds with a separate response from the
+	 * message observer of the outgoing request.
+	 */
+	@Override
+	public void handleRequest(Exchange exchange) {
+		final CoapExchange coapExchange = new CoapExchange(exchange, this);
+		Request incomingRequest = exchange.getRequest();
+		LOGGER.info("ProxyCoAP2CoAP forwards "+incomingRequest);
+
+		Request outgoingRequest;
+		try {
+			outgoingRequest = translate(incomingRequest);
+		} catch (TranslationException e) {
+			LOGGER.warning("Proxy-uri option malformed: " + e.getMessage());
+			coapExchange.respond(CoapTranslator.STATUS_FIELD_MALFORMED);
+			return;
+		}
+		if (outgoingRequest == null) {
+			coapExchange.respond(ResponseCode.BAD_OPTION);
+			return;
+		}
+
+		// accept the request sending a separate response to avoid the
+		// timeout in the requesting client
+		coapExchange.accept();
+		LOGGER.finer("Acknowledge message sent");
+
+		if (outgoingRequest.getCode() == Code.GET && !outgoingRequest.getOptions().hasObserve()) {
+			// join an identical request that is still in progress
+			ForwardKey key = new ForwardKey(outgoingRequest);
+			Forward forward = new Forward(outgoingRequest, key, coapExchange);
+			Forward pending;
+			while ((pending = pendingForwards.putIfAbsent(key, forward)) != null) {
+				if (pending.join(coapExchange)) {
+					LOGGER.finer("Joined pending coap request " + pending.request);
+					return;
+				}
+				// the pending request has just completed
+				pendingForwards.remove(key, pending);
+			}
+			send(forward);
+		} else {
+			send(new Forward(outgoingRequest, null, coapExchange));
+		}
+	}
+
+	/**
+	 * Forwards the request and waits for the response at most for the
+	 * response timeout of the coap server.
+	 */
 	@Override
 	public Response forwardRequest(Request request) {
 		LOGGER.info("ProxyCoAP2CoAP forwards "+request);
-		Request incomingRequest = request;
+		Request outgoingRequest;
+		try {
+			outgoingRequest = translate(request);
+		} catch (TranslationException e) {
+			LOGGER.warning("Proxy-uri option malformed: " + e.getMessage());
+			return new Response(CoapTranslator.STATUS_FIELD_MALFORMED);
+		}
+		if (outgoingRequest == null)
+			return new Response(ResponseCode.BAD_OPTION);
+
+		Forward forward = new Forward(outgoingRequest, null, null);
+		send(forward);
+		try {
+			return forward.waitForResponse();
+		} catch (InterruptedException e) {
+			LOGGER.warning("Receiving of response interrupted: " + e.getMessage());
+			outgoingRequest.cancel();
+			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+		}
+	}
 
+	/*
+	 * Creates the outgoing request or returns null if the proxy-uri is
+	 * missing.
+	 */
+	private Request translate(Request incomingRequest) throws TranslationException {
 		// check the invariant: the request must have the proxy-uri set
 		if (!incomingRequest.getOptions().hasProxyUri()) {
 			LOGGER.warning("Proxy-uri option not set.");
-			return new Response(ResponseCode.BAD_OPTION);
+			return null;
 		}
 
 		// remove the fake uri-path
 		// FIXME: HACK // TODO: why? still necessary in new Cf?
 		incomingRequest.getOptions().clearUriPath();
 
-		// create a new request to forward to the requested coap server
-		Request outgoingRequest = null;
+		// create the new request from the original
+		Request outgoingRequest = CoapTranslator.getRequest(incomingRequest);
+		InetSocketAddress address = new InetSocketAddress(outgoingRequest.getDestination(), outgoingRequest.getDestinationPort());
+		outgoingRequest.setResponseTimeout(getResponseTimeout(address));
+		return outgoingRequest;
+	}
+
+	private void send(Forward forward) {
+		Request outgoingRequest = forward.request;
+		outgoingRequest.addMessageObserver(forward);
 		try {
-			// create the new request from the original
-			outgoingRequest = CoapTranslator.getRequest(incomingRequest);
+			if (!outgoingEndpoint.isStarted())
+				startOutgoingEndpoint();
+			LOGGER.finer("Sending coap request.");
+			outgoingRequest.send(outgoingEndpoint);
+		} catch (Exception e) {
+			LOGGER.warning("Failed to execute request: " + e.getMessage());
+			forward.complete(new Response(ResponseCode.INTERNAL_SERVER_ERROR));
+		}
+	}
 
-//			// enable response queue for blocking I/O
-//			outgoingRequest.enableResponseQueue(true);
+	private synchronized void startOutgoingEndpoint() throws IOException {
+		if (!outgoingEndpoint.isStarted()) {
+			LOGGER.info("Starting outgoing endpoint of " + getName());
+			outgoingEndpoint.start();
+		}
+	}
 
-			// get the token from the manager // TODO: necessary?
-//			outgoingRequest.setToken(TokenManager.getInstance().acquireToken());
+	/**
+	 * A Forward is an outgoing request and the incoming exchanges that wait
+	 * for its response. Each exchange receives its own copy of the response.
+	 */
+	private final class Forward extends MessageObserverAdapter {
 
-			// execute the request
-			LOGGER.finer("Sending coap request.");
-//			outgoingRequest.execute();
-			LOGGER.info("ProxyCoapClient received CoAP request and sends a copy to CoAP target");
-			outgoingRequest.send();
+		private final Request request;
+		private final ForwardKey key;
 
-			// accept the request sending a separate response to avoid the
-			// timeout in the requesting client
-			LOGGER.finer("Acknowledge message sent");
-		} catch (TranslationException e) {
-			LOGGER.warning("Proxy-uri option malformed: " + e.getMessage());
-			return new Response(CoapTranslator.STATUS_FIELD_MALFORMED);
-		} catch (Exception e) {
-			LOGGER.warning("Failed to execute request: " + e.getMessage());
-			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+		/** The waiting exchanges, null when completed; guarded by this */
+		private List<CoapExchange> exchanges = new ArrayList<CoapExchange>(1);
+
+		/** The response for a blocking caller; guarded by this */
+		private Response response;
+
+		private Forward(Request request, ForwardKey key, CoapExchange exchange) {
+			this.request = request;
+			this.key = key;
+			if (exchange != null)
+				exchanges.add(exchange);
 		}
 
-		try {
-			// receive the response // TODO: don't wait for ever
-			Response receivedResponse = outgoingRequest.waitForResponse();
+		/*
+		 * Adds the exchange unless the response has already been sent.
+		 */
+		private synchronized boolean join(CoapExchange exchange) {
+			if (exchanges == null)
+				return false;
+			exchanges.add(exchange);
+			return true;
+		}
 
-			if (receivedResponse != null) {
-				LOGGER.finer("Coap response received.");
+		private synchronized Response waitForResponse() throws InterruptedException {
+			while (exchanges != null)
+				wait();
+			return response;
+		}
 
-				// create the real response for the original request
-				Response outgoingResponse = CoapTranslator.getResponse(receivedResponse);
+		@Override
+		public void onResponse(Response response) {
+			LOGGER.finer("Coap response received.");
+			complete(response);
+		}
+
+		@Override
+		public void onTimeout() {
+			LOGGER.warning("No response received.");
+			complete(new Response(CoapTranslator.STATUS_TIMEOUT));
+		}
+
+		@Override
+		public void onReject() {
+			complete(new Response(ResponseCode.BAD_GATEWAY));
+		}
 
-				return outgoingResponse;
-			} else {
-				LOGGER.warning("No response received.");
-				return new Response(CoapTranslator.STATUS_TIMEOUT);
+		@Override
+		public void onOverload() {
+			complete(new Response(ResponseCode.SERVICE_UNAVAILABLE));
+		}
+
+		@Override
+		public void onCancel() {
+			complete(new Response(ResponseCode.INTERNAL_SERVER_ERROR));
+		}
+
+		/*
+		 * Responds to all waiting exchanges once. Further notifications of
+		 * the coap server are ignored.
+		 */
+		private void complete(Response receivedResponse) {
+			List<CoapExchange> exchanges;
+			synchronized (this) {
+				if (this.exchanges == null)
+					return;
+				exchanges = this.exchanges;
+				this.exchanges = null;
+				// create the real response for the original request
+				this.response = CoapTranslator.getResponse(receivedResponse);
+				notifyAll();
 			}
-		} catch (InterruptedException e) {
-			LOGGER.warning("Receiving of response interrupted: " + e.getMessage());
-			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+			if (key != null)
+				pendingForwards.remove(key, this);
+			for (CoapExchange exchange:exchanges) {
+				try {
+					exchange.respond(CoapTranslator.getResponse(receivedResponse));
+				} catch (RuntimeException e) {
+					LOGGER.warning("Failed to respond to forwarded request: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Identifies GET requests to the same coap server with the same options.
+	 */
+	private static final class ForwardKey {
+
+		private final InetAddress address;
+		private final int port;
+		private final List<Option> options;
+		private final int hash;
+
+		private ForwardKey(Request request) {
+			this.address = request.getDestination();
+			this.port = request.getDestinationPort();
+			this.options = request.getOptions().asSortedList();
+			this.hash = (address.hashCode() * 31 + port) * 31 + options.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ForwardKey))
+				return false;
+			ForwardKey key = (ForwardKey) o;
+			return hash == key.hash && port == key.port && address.equals(key.address) && options.equals(key.options);
 		}
 	}
 }
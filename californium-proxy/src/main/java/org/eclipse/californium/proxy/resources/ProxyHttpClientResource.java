@@ -18,74 +18,156 @@
 package org.eclipse.californium.proxy.resources;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.protocol.RequestAcceptEncoding;
-import org.apache.http.client.protocol.ResponseContentEncoding;
-import org.apache.http.impl.client.AbstractHttpClient;
-import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.protocol.HttpContext;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.nio.DefaultHttpClientIODispatch;
+import org.apache.http.impl.nio.pool.BasicNIOConnPool;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestExecutor;
+import org.apache.http.nio.protocol.HttpAsyncRequester;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.SyncBasicHttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.ImmutableHttpProcessor;
 import org.apache.http.protocol.RequestConnControl;
+import org.apache.http.protocol.RequestContent;
 import org.apache.http.protocol.RequestDate;
 import org.apache.http.protocol.RequestExpectContinue;
 import org.apache.http.protocol.RequestTargetHost;
 import org.apache.http.protocol.RequestUserAgent;
+import org.eclipse.californium.core.Utils;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.proxy.CoapTranslator;
 import org.eclipse.californium.proxy.HttpTranslator;
 import org.eclipse.californium.proxy.InvalidFieldException;
 import org.eclipse.californium.proxy.TranslationException;
 
-
+/**
+ * The ProxyHttpClientResource forwards CoAP requests to HTTP servers. The
+ * requests are executed asynchronously on the I/O reactor of httpcore-nio
+ * over a pool of persistent connections. The handler thread only translates
+ * the request and accepts the exchange; the HTTP response is translated and
+ * sent as separate CoAP response on the reactor thread when it arrives.
+ * Requests that time out while waiting for a pooled connection, while
+ * connecting, or while waiting for the HTTP response are answered with 5.04
+ * (Gateway Timeout).
+ */
 public class ProxyHttpClientResource extends ForwardingResource {
-	
+
 	private static final int KEEP_ALIVE = 5000;
 	// TODO: Properties.std.getInt("HTTP_CLIENT_KEEP_ALIVE");
-	
+
+	private static final int MAX_CONNECTIONS = NetworkConfig.getStandard().getInt(
+			NetworkConfig.Keys.HTTP_CLIENT_MAX_CONNECTIONS);
+	private static final int MAX_CONNECTIONS_PER_ROUTE = NetworkConfig.getStandard().getInt(
+			NetworkConfig.Keys.HTTP_CLIENT_MAX_CONNECTIONS_PER_ROUTE);
+	private static final int CONNECT_TIMEOUT = NetworkConfig.getStandard().getInt(
+			NetworkConfig.Keys.HTTP_CLIENT_CONNECT_TIMEOUT);
+	private static final int SOCKET_TIMEOUT = NetworkConfig.getStandard().getInt(
+			NetworkConfig.Keys.HTTP_CLIENT_SOCKET_TIMEOUT);
+
+	/** The interval to fail requests that wait too long for a connection */
+	private static final int LEASE_CHECK_INTERVAL = 1000; // ms
+
+	/** The pool of connections to the HTTP servers, keyed by host. */
+	private static final BasicNIOConnPool CONNECTION_POOL;
+
 	/**
-	 * DefaultHttpClient is thread safe. It is recommended that the same
-	 * instance of this class is reused for multiple request executions.
+	 * HttpAsyncRequester is thread safe. The same instance is reused for
+	 * all request executions.
 	 */
-	private static final AbstractHttpClient HTTP_CLIENT = new DefaultHttpClient();
+	private static final HttpAsyncRequester HTTP_REQUESTER;
 
 	// http client static configuration
 	static {
+		HttpParams params = new SyncBasicHttpParams();
+		// the pool also waits at most this long for a free connection
+		HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+
 		// request interceptors
-		HTTP_CLIENT.addRequestInterceptor(new RequestAcceptEncoding());
-		HTTP_CLIENT.addRequestInterceptor(new RequestConnControl());
-		// HTTP_CLIENT.addRequestInterceptor(new RequestContent());
-		HTTP_CLIENT.addRequestInterceptor(new RequestDate());
-		HTTP_CLIENT.addRequestInterceptor(new RequestExpectContinue());
-		HTTP_CLIENT.addRequestInterceptor(new RequestTargetHost());
-		HTTP_CLIENT.addRequestInterceptor(new RequestUserAgent());
-
-		// response intercptors
-		HTTP_CLIENT.addResponseInterceptor(new ResponseContentEncoding());
-
-		HTTP_CLIENT.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
-			@Override
-			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
-				long keepAlive = super.getKeepAliveDuration(response, context);
-				if (keepAlive == -1) {
-					// Keep connections alive if a keep-alive value
-					// has not be explicitly set by the server
-					keepAlive = KEEP_ALIVE;
+		HttpProcessor httpProcessor = new ImmutableHttpProcessor(new HttpRequestInterceptor[] {
+				new RequestContent(),
+				new RequestTargetHost(),
+				new RequestConnControl(),
+				new RequestUserAgent(),
+				new RequestExpectContinue(),
+				new RequestDate() });
+		HTTP_REQUESTER = new HttpAsyncRequester(httpProcessor, new DefaultConnectionReuseStrategy(), params);
+
+		final DefaultConnectingIOReactor ioReactor;
+		try {
+			IOReactorConfig reactorConfig = new IOReactorConfig();
+			reactorConfig.setConnectTimeout(CONNECT_TIMEOUT);
+			reactorConfig.setSoTimeout(SOCKET_TIMEOUT);
+			ioReactor = new DefaultConnectingIOReactor(reactorConfig, new Utils.DaemonThreadFactory());
+		} catch (IOReactorException e) {
+			throw new IllegalStateException("Cannot create the I/O reactor of the http client", e);
+		}
+
+		CONNECTION_POOL = new BasicNIOConnPool(ioReactor, params);
+		CONNECTION_POOL.setMaxTotal(MAX_CONNECTIONS);
+		CONNECTION_POOL.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+
+		final IOEventDispatch ioEventDispatch = new DefaultHttpClientIODispatch(new HttpAsyncRequestExecutor(), params);
+		Thread reactorThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					ioReactor.execute(ioEventDispatch);
+				} catch (InterruptedIOException e) {
+					LOGGER.severe("Interrupted");
+				} catch (IOException e) {
+					LOGGER.severe("I/O error: " + e.getMessage());
 				}
-				return keepAlive;
+				LOGGER.info("Shutdown http client");
 			}
+		}, "HttpClient");
+		reactorThread.setDaemon(true);
+		reactorThread.start();
 
-		});
+		// close connections that have not been reused for a while
+		ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new Utils.DaemonThreadFactory());
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				CONNECTION_POOL.closeExpired();
+				CONNECTION_POOL.closeIdle(KEEP_ALIVE, TimeUnit.MILLISECONDS);
+			}
+		}, KEEP_ALIVE, KEEP_ALIVE, TimeUnit.MILLISECONDS);
+		// the pool checks the lease timeout only when a connection is released
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				CONNECTION_POOL.validatePendingRequests();
+			}
+		}, LEASE_CHECK_INTERVAL, LEASE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
 	}
 
 	public ProxyHttpClientResource() {
@@ -100,14 +182,80 @@ public class ProxyHttpClientResource extends ForwardingResource {
 		getAttributes().setTitle("Forward the requests to a HTTP client.");
 	}
 
+	/**
+	 * Sets the maximum number of connections to the specified HTTP server,
+	 * overriding the default of HTTP_CLIENT_MAX_CONNECTIONS_PER_ROUTE.
+	 *
+	 * @param host the HTTP server
+	 * @param max the maximum number of connections
+	 */
+	public static void setMaxConnectionsPerRoute(HttpHost host, int max) {
+		CONNECTION_POOL.setMaxPerRoute(host, max);
+	}
+
+	/**
+	 * Forwards the request and responds with a separate response when the
+	 * HTTP response arrives. The calling thread does not wait for the HTTP
+	 * server.
+	 */
+	@Override
+	public void handleRequest(Exchange exchange) {
+		final CoapExchange coapExchange = new CoapExchange(exchange, this);
+		forwardRequest(exchange.getRequest(), new FutureCallback<Response>() {
+			public void completed(Response response) {
+				coapExchange.respond(response);
+			}
+			public void failed(Exception e) {
+				LOGGER.warning("Failed to get the http response: " + e.getMessage());
+				coapExchange.respond(getFailureCode(e));
+			}
+			public void cancelled() {
+				coapExchange.respond(ResponseCode.INTERNAL_SERVER_ERROR);
+			}
+		}, coapExchange);
+	}
+
+	/**
+	 * Forwards the request and waits for the response of the HTTP server.
+	 */
 	@Override
 	public Response forwardRequest(Request request) {
+		BasicFuture<Response> future = forwardRequest(request, null, null);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+		} catch (ExecutionException e) {
+			LOGGER.warning("Failed to get the http response: " + e.getCause().getMessage());
+			return new Response(getFailureCode(e.getCause()));
+		}
+	}
+
+	/*
+	 * Gets the response code for a request that has failed with the
+	 * specified exception.
+	 */
+	private static ResponseCode getFailureCode(Throwable cause) {
+		if (cause instanceof TimeoutException || cause instanceof SocketTimeoutException)
+			return ResponseCode.GATEWAY_TIMEOUT;
+		return ResponseCode.INTERNAL_SERVER_ERROR;
+	}
+
+	/*
+	 * Translates the request, accepts the exchange if present, and executes
+	 * the http request. The future completes with the translated response or
+	 * with an error response if the request cannot be translated.
+	 */
+	private BasicFuture<Response> forwardRequest(Request request, FutureCallback<Response> callback, CoapExchange coapExchange) {
 		final Request incomingCoapRequest = request;
-		
+		final BasicFuture<Response> future = new BasicFuture<Response>(callback);
+
 		// check the invariant: the request must have the proxy-uri set
 		if (!incomingCoapRequest.getOptions().hasProxyUri()) {
 			LOGGER.warning("Proxy-uri option not set.");
-			return new Response(ResponseCode.BAD_OPTION);
+			future.completed(new Response(ResponseCode.BAD_OPTION));
+			return future;
 		}
 
 		// remove the fake uri-path // TODO: why? still necessary in new Cf?
@@ -121,10 +269,12 @@ public class ProxyHttpClientResource extends ForwardingResource {
 			proxyUri = new URI(proxyUriString);
 		} catch (UnsupportedEncodingException e) {
 			LOGGER.warning("Proxy-uri option malformed: " + e.getMessage());
-			return new Response(CoapTranslator.STATUS_FIELD_MALFORMED);
+			future.completed(new Response(CoapTranslator.STATUS_FIELD_MALFORMED));
+			return future;
 		} catch (URISyntaxException e) {
 			LOGGER.warning("Proxy-uri option malformed: " + e.getMessage());
-			return new Response(CoapTranslator.STATUS_FIELD_MALFORMED);
+			future.completed(new Response(CoapTranslator.STATUS_FIELD_MALFORMED));
+			return future;
 		}
 
 		// get the requested host, if the port is not specified, the constructor
@@ -138,15 +288,25 @@ public class ProxyHttpClientResource extends ForwardingResource {
 			LOGGER.finer("Outgoing http request: " + httpRequest.getRequestLine());
 		} catch (InvalidFieldException e) {
 			LOGGER.warning("Problems during the http/coap translation: " + e.getMessage());
-			return new Response(CoapTranslator.STATUS_FIELD_MALFORMED);
+			future.completed(new Response(CoapTranslator.STATUS_FIELD_MALFORMED));
+			return future;
 		} catch (TranslationException e) {
 			LOGGER.warning("Problems during the http/coap translation: " + e.getMessage());
-			return new Response(CoapTranslator.STATUS_TRANSLATION_ERROR);
+			future.completed(new Response(CoapTranslator.STATUS_TRANSLATION_ERROR));
+			return future;
 		}
 
-		ResponseHandler<Response> httpResponseHandler = new ResponseHandler<Response>() {
-			@Override
-			public Response handleResponse(HttpResponse httpResponse) throws ClientProtocolException, IOException {
+		// accept the request sending a separate response to avoid the timeout
+		// in the requesting client
+		if (coapExchange != null) {
+			coapExchange.accept();
+			LOGGER.finer("Acknowledge message sent");
+		}
+
+		// execute the request, the callback runs on the reactor thread
+		HTTP_REQUESTER.execute(new BasicAsyncRequestProducer(httpHost, httpRequest), new BasicAsyncResponseConsumer(),
+				CONNECTION_POOL, new BasicHttpContext(), new FutureCallback<HttpResponse>() {
+			public void completed(HttpResponse httpResponse) {
 				long timestamp = System.nanoTime();
 				LOGGER.finer("Incoming http response: " + httpResponse.getStatusLine());
 				// the entity of the response, if non repeatable, could be
@@ -157,30 +317,23 @@ public class ProxyHttpClientResource extends ForwardingResource {
 				try {
 					Response coapResponse = HttpTranslator.getCoapResponse(httpResponse, incomingCoapRequest);
 					coapResponse.setTimestamp(timestamp);
-					return coapResponse;
+					future.completed(coapResponse);
 				} catch (InvalidFieldException e) {
 					LOGGER.warning("Problems during the http/coap translation: " + e.getMessage());
-					return new Response(CoapTranslator.STATUS_FIELD_MALFORMED);
+					future.completed(new Response(CoapTranslator.STATUS_FIELD_MALFORMED));
 				} catch (TranslationException e) {
 					LOGGER.warning("Problems during the http/coap translation: " + e.getMessage());
-					return new Response(CoapTranslator.STATUS_TRANSLATION_ERROR);
+					future.completed(new Response(CoapTranslator.STATUS_TRANSLATION_ERROR));
 				}
 			}
-		};
-
-		// accept the request sending a separate response to avoid the timeout
-		// in the requesting client
-		LOGGER.finer("Acknowledge message sent");
-
-		Response coapResponse = null;
-		try {
-			// execute the request
-			coapResponse = HTTP_CLIENT.execute(httpHost, httpRequest, httpResponseHandler, null);
-		} catch (IOException e) {
-			LOGGER.warning("Failed to get the http response: " + e.getMessage());
-			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
-		}
+			public void failed(Exception e) {
+				future.failed(e);
+			}
+			public void cancelled() {
+				future.cancel();
+			}
+		});
 
-		return coapResponse;
+		return future;
 	}
 }
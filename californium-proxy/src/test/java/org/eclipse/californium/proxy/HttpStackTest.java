@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.junit.Test;
+
+/**
+ * This test checks that the http stack rejects requests with 503 when too
+ * many requests wait for a coap response and that stopping the stack releases
+ * its port.
+ */
+public class HttpStackTest {
+
+	private static final String REQUEST = "GET /proxy/localhost/resource HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+	@Test
+	public void testRejectsRequestsAboveMaxPendingRequests() throws Exception {
+		final BlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+		int port = getFreePort();
+		HttpStack stack = new HttpStack(port);
+		try {
+			stack.setMaxPendingRequests(2);
+			stack.setRequestHandler(new RequestHandler() {
+				@Override
+				public void handleRequest(Request request) {
+					requests.add(request);
+				}
+			});
+
+			// two requests wait for their coap response
+			Socket first = send(port);
+			Request firstRequest = requests.poll(5, TimeUnit.SECONDS);
+			assertNotNull(firstRequest);
+			Socket second = send(port);
+			Request secondRequest = requests.poll(5, TimeUnit.SECONDS);
+			assertNotNull(secondRequest);
+
+			// the third request is rejected without reaching the handler
+			Socket third = send(port);
+			assertEquals("HTTP/1.1 503 Service Unavailable", readStatusLine(third));
+			assertEquals(0, requests.size());
+
+			// answering a pending request frees its slot
+			stack.doSendResponse(firstRequest, newContent());
+			assertEquals("HTTP/1.1 200 OK", readStatusLine(first));
+			Socket fourth = send(port);
+			assertNotNull(requests.poll(5, TimeUnit.SECONDS));
+
+			stack.doSendResponse(secondRequest, newContent());
+			assertEquals("HTTP/1.1 200 OK", readStatusLine(second));
+
+			first.close();
+			second.close();
+			third.close();
+			fourth.close();
+		} finally {
+			stack.stop();
+		}
+	}
+
+	@Test
+	public void testStopReleasesPort() throws Exception {
+		int port = getFreePort();
+		HttpStack stack = new HttpStack(port);
+		connect(port).close();
+		stack.stop();
+
+		for (int i = 0; ; i++) {
+			try {
+				new ServerSocket(port).close();
+				return;
+			} catch (BindException e) {
+				if (i == 50)
+					throw e;
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	private static int getFreePort() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+	private static Socket send(int port) throws Exception {
+		Socket socket = connect(port);
+		socket.setSoTimeout(5000);
+		OutputStream out = socket.getOutputStream();
+		out.write(REQUEST.getBytes("US-ASCII"));
+		out.flush();
+		return socket;
+	}
+
+	/*
+	 * The http stack binds its port asynchronously in the listener thread.
+	 */
+	private static Socket connect(int port) throws Exception {
+		for (int i = 0; ; i++) {
+			try {
+				return new Socket("localhost", port);
+			} catch (ConnectException e) {
+				if (i == 50)
+					throw e;
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	private static String readStatusLine(Socket socket) throws Exception {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+		return reader.readLine();
+	}
+
+	private static Response newContent() {
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setPayload("content");
+		return response;
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.proxy.resources.ProxyCacheResource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that the proxy cache observes frequently requested coap
+ * resources over its outgoing endpoint and cancels unused relations.
+ */
+public class ProxyCacheObserveTest {
+
+	private CoapServer server;
+	private CoAPEndpoint outgoing;
+	private ObservableResource first;
+	private ObservableResource second;
+	private String base;
+	private ProxyCacheResource cache;
+
+	@Before
+	public void startupServer() throws Exception {
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		first = new ObservableResource("first");
+		second = new ObservableResource("second");
+		server = new CoapServer();
+		server.add(first);
+		server.add(second);
+		server.addEndpoint(endpoint);
+		server.start();
+		base = "coap://localhost:" + endpoint.getAddress().getPort() + "/";
+
+		outgoing = new CoAPEndpoint(0);
+		outgoing.start();
+		cache = new ProxyCacheResource(true);
+		cache.setOutgoingEndpoint(outgoing);
+	}
+
+	@After
+	public void shutdownServer() {
+		outgoing.destroy();
+		server.destroy();
+	}
+
+	@Test
+	public void testObservesOverOutgoingEndpoint() throws Exception {
+		cache.setObservePolicy(2, 60, 10);
+		request("first");
+		request("first");
+		waitForObservers(first, 1);
+		assertEquals(outgoing.getAddress().getPort(), first.sourcePort);
+
+		// the notification replaces the cached response
+		Response cached = null;
+		for (int i = 0; i < 50 && cached == null; i++) {
+			Thread.sleep(100);
+			cached = cache.getResponse(newGet("first"));
+		}
+		assertNotNull(cached);
+		assertEquals("first", cached.getPayloadString());
+	}
+
+	@Test
+	public void testCancelsRelationWhenIdle() throws Exception {
+		cache.setObservePolicy(2, 1, 10);
+		request("first");
+		request("first");
+		waitForObservers(first, 1);
+
+		// no further requests within the observe period
+		waitForObservers(first, 0);
+	}
+
+	@Test
+	public void testLimitsNumberOfRelations() throws Exception {
+		cache.setObservePolicy(2, 60, 1);
+		request("first");
+		request("first");
+		waitForObservers(first, 1);
+
+		request("second");
+		request("second");
+		request("second");
+		Thread.sleep(500);
+		assertEquals(0, second.getObserverCount());
+		assertEquals(1, first.getObserverCount());
+	}
+
+	private void request(String path) {
+		cache.getResponse(newGet(path));
+	}
+
+	private Request newGet(String path) {
+		Request request = Request.newGet();
+		request.getOptions().setProxyUri(base + path);
+		return request;
+	}
+
+	private static void waitForObservers(CoapResource resource, int count) throws InterruptedException {
+		for (int i = 0; i < 50 && resource.getObserverCount() != count; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(count, resource.getObserverCount());
+	}
+
+	private static class ObservableResource extends CoapResource {
+
+		private volatile int sourcePort;
+
+		private ObservableResource(String name) {
+			super(name);
+			setObservable(true);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			sourcePort = exchange.getSourcePort();
+			exchange.setMaxAge(60);
+			exchange.respond(ResponseCode.CONTENT, getName());
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.proxy.resources.ProxyCacheResource;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks the freshness model of the proxy cache and the collapsing
+ * of identical requests.
+ */
+public class ProxyCacheResourceTest {
+
+	private static final String URI = "http://localhost/resource";
+	private static final byte[] ETAG = new byte[] {1, 2};
+
+	private ProxyCacheResource cache;
+
+	@Before
+	public void setupCache() {
+		cache = new ProxyCacheResource(true);
+	}
+
+	@Test
+	public void testResponseExpiresAfterMaxAge() throws Exception {
+		Response content = newContent(1);
+		cache.cacheResponse(newGet(), content);
+
+		Response cached = cache.getResponse(newGet());
+		assertNotNull(cached);
+		assertEquals(ResponseCode.CONTENT, cached.getCode());
+		assertEquals("content", cached.getPayloadString());
+		assertTrue(cached.getOptions().getMaxAge() <= 1);
+
+		Thread.sleep(1100);
+		assertNull(cache.getResponse(newGet()));
+	}
+
+	@Test
+	public void testRevalidationReturnsCachedContent() throws Exception {
+		Response content = newContent(1);
+		content.getOptions().addETag(ETAG);
+		cache.cacheResponse(newGet(), content);
+		Thread.sleep(1100);
+
+		// the stale response is revalidated with its etag
+		Request request = newGet();
+		assertNull(cache.getResponse(request));
+		assertEquals(1, request.getOptions().getETagCount());
+		assertArrayEquals(ETAG, request.getOptions().getETags().get(0));
+
+		// the client has not sent the etag and receives the cached content
+		Response valid = new Response(ResponseCode.VALID);
+		valid.getOptions().setMaxAge(60);
+		valid.getOptions().addETag(ETAG);
+		Response response = cache.cacheResponse(request, valid);
+		assertEquals(ResponseCode.CONTENT, response.getCode());
+		assertEquals("content", response.getPayloadString());
+		assertEquals(0, request.getOptions().getETagCount());
+
+		// the refreshed response is fresh again
+		Response cached = cache.getResponse(newGet());
+		assertNotNull(cached);
+		assertEquals("content", cached.getPayloadString());
+		assertTrue(cached.getOptions().getMaxAge() > 1);
+	}
+
+	@Test
+	public void testIdenticalRequestsWaitForPendingRequest() throws Exception {
+		TestExchange leader = new TestExchange(newGet());
+		TestExchange follower = new TestExchange(newGet());
+		assertFalse(cache.joinPendingRequest(leader));
+		assertTrue(cache.joinPendingRequest(follower));
+
+		cache.cacheResponse(leader.getRequest(), newContent(60));
+		Response response = follower.responses.poll(1, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertEquals(ResponseCode.CONTENT, response.getCode());
+		assertEquals("content", response.getPayloadString());
+
+		// the next request is forwarded again
+		assertFalse(cache.joinPendingRequest(new TestExchange(newGet())));
+	}
+
+	@Test
+	public void testConditionalRequestsAreForwardedAlone() throws Exception {
+		// a plain request must not receive the 2.03 of a conditional one
+		Request conditional = newGet();
+		conditional.getOptions().addETag(ETAG);
+		assertFalse(cache.joinPendingRequest(new TestExchange(conditional)));
+		TestExchange plain = new TestExchange(newGet());
+		assertFalse(cache.joinPendingRequest(plain));
+
+		// and conditional or block requests do not wait for plain ones
+		Request block = newGet();
+		block.getOptions().setBlock2(2, false, 1);
+		assertFalse(cache.joinPendingRequest(new TestExchange(block)));
+		Request another = newGet();
+		another.getOptions().addETag(ETAG);
+		assertFalse(cache.joinPendingRequest(new TestExchange(another)));
+
+		// identical plain requests still wait
+		assertTrue(cache.joinPendingRequest(new TestExchange(newGet())));
+		cache.cacheResponse(plain.getRequest(), newContent(60));
+	}
+
+	@Test
+	public void testRevalidationCollapsesIdenticalRequests() throws Exception {
+		Response content = newContent(1);
+		content.getOptions().addETag(ETAG);
+		cache.cacheResponse(newGet(), content);
+		Thread.sleep(1100);
+
+		// the etag of the cache does not prevent waiting for the request
+		TestExchange leader = new TestExchange(newGet());
+		assertNull(cache.getResponse(leader.getRequest()));
+		assertFalse(cache.joinPendingRequest(leader));
+		TestExchange follower = new TestExchange(newGet());
+		assertTrue(cache.joinPendingRequest(follower));
+
+		Response valid = new Response(ResponseCode.VALID);
+		valid.getOptions().setMaxAge(60);
+		valid.getOptions().addETag(ETAG);
+		cache.cacheResponse(leader.getRequest(), valid);
+		Response response = follower.responses.poll(1, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertEquals(ResponseCode.CONTENT, response.getCode());
+		assertEquals("content", response.getPayloadString());
+	}
+
+	@Test
+	public void testWaitingRequestsReleasedWhenLeaderIsLost() throws Exception {
+		cache.setPendingTimeout(200);
+		TestExchange leader = new TestExchange(newGet());
+		TestExchange follower = new TestExchange(newGet());
+		assertFalse(cache.joinPendingRequest(leader));
+		assertTrue(cache.joinPendingRequest(follower));
+
+		// the response of the leader never arrives
+		Response response = follower.responses.poll(5, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertEquals(ResponseCode.GATEWAY_TIMEOUT, response.getCode());
+		assertTrue(leader.responses.isEmpty());
+
+		// the next request is forwarded again
+		assertFalse(cache.joinPendingRequest(new TestExchange(newGet())));
+	}
+
+	private static Request newGet() {
+		Request request = Request.newGet();
+		request.getOptions().setProxyUri(URI);
+		return request;
+	}
+
+	private static Response newContent(long maxAge) {
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setPayload("content");
+		response.getOptions().setMaxAge(maxAge);
+		return response;
+	}
+
+	/**
+	 * An exchange that records its responses instead of sending them.
+	 */
+	private static class TestExchange extends Exchange {
+
+		private final BlockingQueue<Response> responses = new LinkedBlockingQueue<Response>();
+
+		private TestExchange(Request request) {
+			super(request, Origin.REMOTE);
+			setRequest(request);
+		}
+
+		@Override
+		public void sendResponse(Response response) {
+			responses.add(response);
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.CoapServer;
+import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.CoAPEndpoint;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.proxy.resources.ProxyCoapClientResource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This test checks that concurrent identical GET requests share one request
+ * to the coap server.
+ */
+public class ProxyCoapClientResourceTest {
+
+	private CoapServer server;
+	private CoAPEndpoint outgoing;
+	private SlowResource resource;
+	private String base;
+	private ProxyCoapClientResource proxy;
+
+	@Before
+	public void startupServer() throws Exception {
+		CoAPEndpoint endpoint = new CoAPEndpoint(0);
+		resource = new SlowResource("slow");
+		server = new CoapServer();
+		server.add(resource);
+		server.addEndpoint(endpoint);
+		server.start();
+		base = "coap://localhost:" + endpoint.getAddress().getPort() + "/";
+
+		outgoing = new CoAPEndpoint(0);
+		proxy = new ProxyCoapClientResource("coapClient", outgoing);
+	}
+
+	@After
+	public void shutdownServer() {
+		resource.release.countDown();
+		proxy.destroy();
+		outgoing.destroy();
+		server.destroy();
+	}
+
+	@Test
+	public void testCoalescesIdenticalGetRequests() throws Exception {
+		TestExchange first = new TestExchange(newGet("slow"));
+		TestExchange second = new TestExchange(newGet("slow"));
+		TestExchange third = new TestExchange(newGet("slow"));
+		proxy.handleRequest(first);
+		assertTrue(resource.received.await(5, TimeUnit.SECONDS));
+
+		// the coap server has not responded yet
+		proxy.handleRequest(second);
+		proxy.handleRequest(third);
+		resource.release.countDown();
+
+		assertContent(first);
+		assertContent(second);
+		assertContent(third);
+		assertEquals(1, resource.count.get());
+
+		// the next request is forwarded again
+		TestExchange fourth = new TestExchange(newGet("slow"));
+		proxy.handleRequest(fourth);
+		assertContent(fourth);
+		assertEquals(2, resource.count.get());
+	}
+
+	private static void assertContent(TestExchange exchange) throws InterruptedException {
+		Response response = exchange.responses.poll(5, TimeUnit.SECONDS);
+		assertNotNull(response);
+		assertEquals(ResponseCode.CONTENT, response.getCode());
+		assertEquals("slow", response.getPayloadString());
+		assertTrue(exchange.responses.isEmpty());
+	}
+
+	private Request newGet(String path) {
+		Request request = Request.newGet();
+		request.getOptions().setProxyUri(base + path);
+		return request;
+	}
+
+	/**
+	 * A resource that counts its requests and holds the responses until it
+	 * is released.
+	 */
+	private static class SlowResource extends CoapResource {
+
+		private final AtomicInteger count = new AtomicInteger();
+		private final CountDownLatch received = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		private SlowResource(String name) {
+			super(name);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			count.incrementAndGet();
+			received.countDown();
+			try {
+				release.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			exchange.respond(ResponseCode.CONTENT, getName());
+		}
+	}
+
+	/**
+	 * An exchange that records its responses instead of sending them.
+	 */
+	private static class TestExchange extends Exchange {
+
+		private final BlockingQueue<Response> responses = new LinkedBlockingQueue<Response>();
+
+		private TestExchange(Request request) {
+			super(request, Origin.REMOTE);
+			setRequest(request);
+		}
+
+		@Override
+		public void sendAccept() { }
+
+		@Override
+		public void sendResponse(Response response) {
+			responses.add(response);
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (c) 2015 Institute for Pervasive Computing, ETH Zurich and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Eclipse Distribution License v1.0 which accompany this distribution.
+ *
+ * The Eclipse Public License is available at
+ *    http://www.eclipse.org/legal/epl-v10.html
+ * and the Eclipse Distribution License is available at
+ *    http://www.eclipse.org/org/documents/edl-v10.html.
+ *
+ * Contributors:
+ *    Matthias Kovatsch - creator and main architect
+ ******************************************************************************/
+package org.eclipse.californium.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP.Code;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.Exchange.KeyToken;
+import org.eclipse.californium.core.network.Exchange.Origin;
+import org.eclipse.californium.core.network.ExchangeStore;
+import org.eclipse.californium.core.network.PackedExchangeStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the {@link PackedExchangeStore} of the matcher and deduplicators
+ * with the previous {@link ConcurrentHashMap}s keyed by KeyMID and KeyToken.
+ * The baseline uses copies of the previous key classes, since the keys of
+ * the {@link Exchange} are now packed like in the store. Each operation
+ * looks up a MID from a remote peer and a token and replaces the entry of a
+ * MID, like the matcher does for a request/response pair. The last
+ * benchmark performs the same operations with the keys that the exchange
+ * keeps, and compares them with the previous operations on the store that
+ * pack the address on every call. Run with
+ * <pre>
+ * java -cp cf-benchmark-1.0.0-SNAPSHOT.jar org.eclipse.californium.benchmark.ExchangeStoreBenchmark
+ * </pre>
+ * and use <code>-prof gc</code> through the JMH command line to compare the
+ * allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(4)
+public class ExchangeStoreBenchmark {
+
+	/** Number of stored exchanges */
+	@Param({"1000", "100000"})
+	public int size;
+
+	private byte[][] addresses;
+	private int[] ports;
+	private byte[][] tokens;
+	private Exchange[] exchanges;
+	private KeyMID[] midKeys;
+	private KeyMID[] localKeys;
+	private KeyToken[] tokenKeys;
+
+	private ConcurrentHashMap<BaselineKeyMID, Exchange> mapByMID;
+	private ConcurrentHashMap<BaselineKeyToken, Exchange> mapByToken;
+	private ExchangeStore storeByMID;
+	private ExchangeStore storeByToken;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(size);
+		addresses = new byte[size][];
+		ports = new int[size];
+		tokens = new byte[size][];
+		exchanges = new Exchange[size];
+		midKeys = new KeyMID[size];
+		localKeys = new KeyMID[size];
+		tokenKeys = new KeyToken[size];
+		mapByMID = new ConcurrentHashMap<BaselineKeyMID, Exchange>();
+		mapByToken = new ConcurrentHashMap<BaselineKeyToken, Exchange>();
+		storeByMID = new PackedExchangeStore();
+		storeByToken = new PackedExchangeStore();
+		for (int i = 0; i < size; i++) {
+			addresses[i] = new byte[] {10, (byte) random.nextInt(), (byte) random.nextInt(), (byte) random.nextInt()};
+			ports[i] = 1024 + random.nextInt(60000);
+			tokens[i] = new byte[8];
+			random.nextBytes(tokens[i]);
+			Request request = new Request(Code.GET);
+			request.setMID(i & 0xFFFF);
+			request.setToken(tokens[i]);
+			exchanges[i] = new Exchange(request, Origin.REMOTE);
+			mapByMID.put(new BaselineKeyMID(i & 0xFFFF, addresses[i], ports[i]), exchanges[i]);
+			mapByToken.put(new BaselineKeyToken(tokens[i]), exchanges[i]);
+			storeByMID.put(i & 0xFFFF, addresses[i], ports[i], exchanges[i]);
+			storeByToken.put(tokens[i], exchanges[i]);
+			midKeys[i] = new KeyMID(i & 0xFFFF, addresses[i], ports[i]);
+			localKeys[i] = new KeyMID(i & 0xFFFF, null, 0);
+			tokenKeys[i] = new KeyToken(tokens[i]);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next = new Random().nextInt(1 << 16);
+
+		private int next(int size) {
+			next = (next + 7919) % size;
+			return next;
+		}
+	}
+
+	@Benchmark
+	public Object concurrentHashMap(Cursor cursor) {
+		int i = cursor.next(size);
+		int mid = i & 0xFFFF;
+		Exchange byMID = mapByMID.get(new BaselineKeyMID(mid, addresses[i], ports[i]));
+		Exchange byToken = mapByToken.get(new BaselineKeyToken(tokens[i]));
+		mapByMID.put(new BaselineKeyMID(mid, null, 0), byToken);
+		mapByMID.remove(new BaselineKeyMID(mid, null, 0));
+		return byMID;
+	}
+
+	@Benchmark
+	public Object packedExchangeStore(Cursor cursor) {
+		int i = cursor.next(size);
+		int mid = i & 0xFFFF;
+		Exchange byMID = storeByMID.get(mid, addresses[i], ports[i]);
+		Exchange byToken = storeByToken.get(tokens[i]);
+		storeByMID.put(mid, null, 0, byToken);
+		storeByMID.remove(mid, null, 0);
+		return byMID;
+	}
+
+	@Benchmark
+	public Object packedExchangeStoreWithKeys(Cursor cursor) {
+		int i = cursor.next(size);
+		Exchange byMID = storeByMID.get(midKeys[i]);
+		Exchange byToken = storeByToken.get(tokenKeys[i]);
+		storeByMID.put(localKeys[i], byToken);
+		storeByMID.remove(localKeys[i], byToken);
+		return byMID;
+	}
+
+	/**
+	 * The KeyMID of the matcher before the {@link PackedExchangeStore}.
+	 */
+	private static final class BaselineKeyMID {
+
+		private final int mid;
+		private final byte[] address;
+		private final int port;
+		private final int hash;
+
+		private BaselineKeyMID(int mid, byte[] address, int port) {
+			this.mid = mid;
+			this.address = address;
+			this.port = port;
+			this.hash = (port*31 + mid) * 31 + Arrays.hashCode(address);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (! (o instanceof BaselineKeyMID))
+				return false;
+			BaselineKeyMID key = (BaselineKeyMID) o;
+			return mid == key.mid && port == key.port && Arrays.equals(address, key.address);
+		}
+	}
+
+	/**
+	 * The KeyToken of the matcher before the {@link PackedExchangeStore}.
+	 */
+	private static final class BaselineKeyToken {
+
+		private final byte[] token;
+		private final int hash;
+
+		private BaselineKeyToken(byte[] token) {
+			this.token = token;
+			this.hash = Arrays.hashCode(token);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (! (o instanceof BaselineKeyToken))
+				return false;
+			return Arrays.equals(token, ((BaselineKeyToken) o).token);
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(ExchangeStoreBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}